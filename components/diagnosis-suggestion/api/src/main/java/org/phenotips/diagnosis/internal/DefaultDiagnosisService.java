@@ -18,6 +18,7 @@
 package org.phenotips.diagnosis.internal;
 
 import org.phenotips.diagnosis.DiagnosisService;
+import org.phenotips.vocabulary.Vocabulary;
 import org.phenotips.vocabulary.VocabularyManager;
 import org.phenotips.vocabulary.VocabularyTerm;
 
@@ -30,23 +31,35 @@
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.regex.Pattern;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 
+import ontologizer.association.AssociationContainer;
+import ontologizer.go.Ontology;
 import ontologizer.go.Term;
 import ontologizer.types.ByteString;
 import sonumina.boqa.calculation.BOQA;
@@ -63,12 +76,46 @@
 @Component
 public class DefaultDiagnosisService implements DiagnosisService, Initializable
 {
+    /** The BOQA data file holding the HPO ontology. */
+    private static final String VOCABULARY_SOURCE = "hp.obo.gz";
+
+    /** The BOQA data file holding the disease-phenotype annotations. */
+    private static final String ANNOTATION_SOURCE = "new_phenotype.gz";
+
+    /** Where the prepared BOQA model is stored, relative to the permanent directory. */
+    private static final String SNAPSHOT_FILE = "boqa/model.snapshot";
+
+    /** The number of recently seen sets of phenotypes for which the computed scores are kept. */
+    private static final int SCORE_CACHE_SIZE = 128;
+
+    /** Diseases whose name starts with one of these characters are not suggested. */
+    private static final Pattern EXCLUDED_NAMES = Pattern.compile("^[*+^]");
+
+    private static final String OMIM_PREFIX = "OMIM:";
+
     @Inject
     private Logger logger;
 
     private BOQA boqa;
 
-    private Map<Integer, ByteString> omimMap;
+    /** The BOQA item indices of the OMIM diseases, in ascending order; other items are never suggested. */
+    private int[] omimItems;
+
+    /** The OMIM identifiers, without prefix, of the {@link #omimItems}. */
+    private String[] omimIds;
+
+    /** The marginals computed for the {@link #omimItems} for recently seen sets of phenotypes. */
+    private final Map<String, double[]> scoreCache =
+        Collections.synchronizedMap(new LinkedHashMap<String, double[]>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, double[]> eldest)
+            {
+                return size() > SCORE_CACHE_SIZE;
+            }
+        });
 
     @Inject
     private VocabularyManager vocabulary;
@@ -92,35 +139,23 @@ public void initialize() throws InitializationException
         this.boqa.setMaxFrequencyTerms(2);
         this.boqa.setPrecalculateJaccard(false);
 
-        String annotationPath = null;
-        String vocabularyPath = null;
-        try {
-            annotationPath =
-                stream2file(BOQA.class.getClassLoader().getResourceAsStream("new_phenotype.gz"), "annotation")
-                    .getPath();
-            vocabularyPath =
-                stream2file(BOQA.class.getClassLoader().getResourceAsStream("hp.obo.gz"), "ontology").getPath();
-        } catch (IOException e) {
-            throw new InitializationException(e.getMessage());
-        }
+        Object[] model = loadModel();
+        this.boqa.setup((Ontology) model[0], (AssociationContainer) model[1]);
 
-        // Load datafiles
-        try {
-            utils.loadDataFiles(vocabularyPath, annotationPath);
-        } catch (InterruptedException e) {
-            throw new InitializationException(e.getMessage());
-        } catch (IOException e) {
-            throw new InitializationException(e.getMessage());
+        // Set up our index -> OMIM mapping, ignoring non-OMIM diseases (BOQA has ORPHANET and DECIPHER as well)
+        SortedMap<Integer, String> omim = new TreeMap<>();
+        for (Map.Entry<ByteString, Integer> item : this.boqa.item2Index.entrySet()) {
+            String termId = String.valueOf(item.getKey());
+            if (termId.startsWith(OMIM_PREFIX)) {
+                omim.put(item.getValue(), termId.substring(OMIM_PREFIX.length()));
+            }
         }
-
-        this.boqa.setup(utils.getGraph(), utils.getDataAssociation());
-
-        // Set up our index -> OMIM mapping by flipping the OMIM -> Index mapping in boqa
-        Set<Map.Entry<ByteString, Integer>> omimtonum = this.boqa.item2Index.entrySet();
-        this.omimMap = new HashMap<Integer, ByteString>(omimtonum.size());
-
-        for (Map.Entry<ByteString, Integer> item : omimtonum) {
-            this.omimMap.put(item.getValue(), item.getKey());
+        this.omimItems = new int[omim.size()];
+        this.omimIds = new String[omim.size()];
+        int i = 0;
+        for (Map.Entry<Integer, String> item : omim.entrySet()) {
+            this.omimItems[i] = item.getKey();
+            this.omimIds[i++] = item.getValue();
         }
     }
 
@@ -129,96 +164,278 @@ public List<VocabularyTerm> getDiagnosis(List<String> phenotypes, List<String> n
     {
         // TODO: use the `nonstandardPhenotypes` argument
 
-        Observations o = new Observations();
-        o.observations = new boolean[this.boqa.getOntology().getNumberOfTerms()];
-        boolean searchIsEmpty = true;
-
-        // Add all hpo terms with ancestors to array of booleans
-        for (String hpo : phenotypes) {
-            Term t = this.boqa.getOntology().getTerm(hpo);
-            searchIsEmpty = !addTermAndAncestors(t, o) && searchIsEmpty;
-        }
-
-        if (searchIsEmpty) {
+        SortedSet<Integer> observed = getTermIndices(phenotypes);
+        if (observed.isEmpty() || limit <= 0) {
             return Collections.emptyList();
         }
+        double[] scores = getScores(observed);
+
+        // Candidates are resolved in batches, best first, until enough valid diseases are found
+        List<VocabularyTerm> results = new ArrayList<VocabularyTerm>(limit);
+        int processed = 0;
+        int wanted = Math.min(scores.length, 2 * limit);
+        while (results.size() < limit && processed < wanted) {
+            int[] best = selectBest(scores, wanted);
+            List<String> ids = new ArrayList<>(best.length - processed);
+            for (int i = processed; i < best.length; ++i) {
+                ids.add(this.omimIds[best[i]]);
+            }
+            Map<String, VocabularyTerm> terms = resolveTerms(ids);
+            for (String id : ids) {
+                if (results.size() >= limit) {
+                    break;
+                }
+                VocabularyTerm term = terms.get(id);
+                if (term == null) {
+                    this.logger.warn("Unable to resolve OMIM term '{}' due to outdated OMIM vocabulary.", id);
+                } else if (!EXCLUDED_NAMES.matcher(StringUtils.defaultString(term.getName())).find()) {
+                    results.add(term);
+                }
+            }
+            processed = best.length;
+            wanted = Math.min(scores.length, 2 * wanted);
+        }
 
-        // Get marginals
-        final BOQA.Result res = this.boqa.assignMarginals(o, false, 1);
+        this.logger.debug(String.valueOf(results));
 
-        // All of this is sorting diseases by marginals
-        Integer[] order = new Integer[res.size()];
-        for (int i = 0; i < order.length; i++) {
-            order[i] = i;
-        }
+        return results;
+    }
 
-        Arrays.sort(order, new Comparator<Integer>()
-        {
-            @Override
-            public int compare(Integer o1, Integer o2)
-            {
-                if (res.getMarginal(o1) < res.getMarginal(o2)) {
-                    return 1;
-                }
-                if (res.getMarginal(o1) > res.getMarginal(o2)) {
-                    return -1;
-                }
-                return 0;
+    /**
+     * Get the BOQA indices of the requested phenotypes, ignoring unknown phenotypes. Since the result is sorted and
+     * has no duplicates, it identifies a set of phenotypes regardless of the order they were listed in.
+     *
+     * @param phenotypes a list of HPO term identifiers
+     * @return a sorted set of indices, may be empty
+     */
+    private SortedSet<Integer> getTermIndices(List<String> phenotypes)
+    {
+        SortedSet<Integer> result = new TreeSet<>();
+        for (String hpo : phenotypes) {
+            Term t = this.boqa.getOntology().getTerm(hpo);
+            try {
+                result.add(this.boqa.getTermIndex(t));
+            } catch (Exception e) {
+                this.logger.warn("Unable to find the boqa index of [{}].", t);
             }
-        });
+        }
+        return result;
+    }
 
-        // Get top limit results
-        List<VocabularyTerm> results = new ArrayList<VocabularyTerm>();
-        for (int id : order) {
-            if (results.size() >= limit) {
-                break;
+    /**
+     * Compute the marginals of all the OMIM diseases for a set of observed phenotypes, or reuse them if the same set
+     * of phenotypes was recently scored.
+     *
+     * @param observed the BOQA indices of the observed phenotypes
+     * @return the marginal of each of the {@link #omimItems}
+     */
+    private double[] getScores(SortedSet<Integer> observed)
+    {
+        String key = observed.toString();
+        double[] scores = this.scoreCache.get(key);
+        if (scores == null) {
+            // Add all hpo terms with ancestors to array of booleans
+            Observations o = new Observations();
+            o.observations = new boolean[this.boqa.getOntology().getNumberOfTerms()];
+            for (int id : observed) {
+                o.observations[id] = true;
+                this.boqa.activateAncestors(id, o.observations);
             }
 
-            String termId = String.valueOf(this.omimMap.get(id));
-            String vocabularyId = StringUtils.substringBefore(termId, ":");
+            BOQA.Result res = this.boqa.assignMarginals(o, false, Runtime.getRuntime().availableProcessors());
+            scores = new double[this.omimItems.length];
+            for (int i = 0; i < scores.length; ++i) {
+                scores[i] = res.getMarginal(this.omimItems[i]);
+            }
+            this.scoreCache.put(key, scores);
+        }
+        return scores;
+    }
 
-            // ignore non-OMIM diseases (BOQA has ORPHANIET and DECIPHER as well)
-            if (!"OMIM".equals(vocabularyId)) {
-                continue;
+    /**
+     * Select the highest scores, without sorting all the scores. Equal scores are ordered by their position.
+     *
+     * @param scores the scores to select from
+     * @param count how many scores to select
+     * @return the positions of the {@code count} highest scores, ordered from the highest score to the lowest
+     */
+    private static int[] selectBest(double[] scores, int count)
+    {
+        // A min-heap holding the best positions found so far, with the worst of them on top
+        int[] heap = new int[Math.min(count, scores.length)];
+        int size = 0;
+        for (int i = 0; i < scores.length; ++i) {
+            if (size < heap.length) {
+                heap[size] = i;
+                siftUp(heap, size++, scores);
+            } else if (size > 0 && isBetter(i, heap[0], scores)) {
+                heap[0] = i;
+                siftDown(heap, size, scores);
             }
+        }
+        int[] result = new int[size];
+        for (int i = size - 1; i >= 0; --i) {
+            result[i] = heap[0];
+            heap[0] = heap[--size];
+            siftDown(heap, size, scores);
+        }
+        return result;
+    }
 
-            // Strip 'O' in "OMIM"
-            termId = termId.substring(1);
+    private static boolean isBetter(int first, int second, double[] scores)
+    {
+        return scores[first] > scores[second] || scores[first] == scores[second] && first < second;
+    }
 
-            VocabularyTerm term = this.vocabulary.resolveTerm(termId);
+    private static void siftUp(int[] heap, int position, double[] scores)
+    {
+        int child = position;
+        while (child > 0) {
+            int parent = (child - 1) / 2;
+            if (!isBetter(heap[parent], heap[child], scores)) {
+                return;
+            }
+            swap(heap, parent, child);
+            child = parent;
+        }
+    }
 
-            if (term == null) {
-                this.logger.warn(String.format(
-                    "Unable to resolve OMIM term '%s' due to outdated OMIM vocabulary.", termId));
-                continue;
+    private static void siftDown(int[] heap, int size, double[] scores)
+    {
+        int parent = 0;
+        while (2 * parent + 1 < size) {
+            int child = 2 * parent + 1;
+            if (child + 1 < size && isBetter(heap[child], heap[child + 1], scores)) {
+                ++child;
+            }
+            if (!isBetter(heap[parent], heap[child], scores)) {
+                return;
             }
+            swap(heap, parent, child);
+            parent = child;
+        }
+    }
 
-            // Do not suggest diseases that start with *, +, and ^
-            Pattern pattern = Pattern.compile("[*+^]");
-            if (pattern.matcher(term.getName().substring(0, 1)).matches()) {
-                continue;
+    private static void swap(int[] heap, int first, int second)
+    {
+        int temp = heap[first];
+        heap[first] = heap[second];
+        heap[second] = temp;
+    }
+
+    /**
+     * Fetch several OMIM terms at once.
+     *
+     * @param ids OMIM identifiers, without prefix
+     * @return the terms found, indexed by their identifier
+     */
+    private Map<String, VocabularyTerm> resolveTerms(Collection<String> ids)
+    {
+        Map<String, VocabularyTerm> result = new HashMap<>();
+        Vocabulary omim = this.vocabulary.getVocabulary("MIM");
+        if (omim != null) {
+            for (VocabularyTerm term : omim.getTerms(ids)) {
+                result.put(StringUtils.removeStart(term.getId(), "MIM:"), term);
+            }
+        } else {
+            for (String id : ids) {
+                VocabularyTerm term = this.vocabulary.resolveTerm("MIM:" + id);
+                if (term != null) {
+                    result.put(id, term);
+                }
             }
+        }
+        return result;
+    }
 
-            results.add(term);
+    /**
+     * Get the ontology graph and the annotations needed by BOQA, from a snapshot if one was built from the current
+     * data files, or by parsing the data files otherwise.
+     *
+     * @return the ontology graph and the association container
+     * @throws InitializationException if loading the data files fails
+     */
+    private Object[] loadModel() throws InitializationException
+    {
+        File snapshot = null;
+        String sourceVersion = null;
+        if (this.env.getPermanentDirectory() != null) {
+            snapshot = new File(this.env.getPermanentDirectory(), SNAPSHOT_FILE);
+            try {
+                sourceVersion = getSourceVersion();
+                Object[] model = ModelSnapshot.read(snapshot, sourceVersion);
+                if (model != null && model.length == 2 && model[0] instanceof Ontology
+                    && model[1] instanceof AssociationContainer) {
+                    this.logger.debug("Loaded the BOQA model from [{}]", snapshot);
+                    return model;
+                }
+            } catch (IOException ex) {
+                this.logger.warn("Failed to read the BOQA model snapshot, rebuilding it: {}", ex.getMessage());
+            }
+        }
 
+        Object[] model = parseModel();
+        if (sourceVersion != null) {
+            try {
+                ModelSnapshot.write(snapshot, sourceVersion, model);
+            } catch (IOException ex) {
+                this.logger.info("Cannot store the BOQA model snapshot: {}", ex.getMessage());
+            }
         }
+        return model;
+    }
 
-        this.logger.debug(String.valueOf(results));
+    private Object[] parseModel() throws InitializationException
+    {
+        String annotationPath = null;
+        String vocabularyPath = null;
+        try {
+            annotationPath = stream2file(getSource(ANNOTATION_SOURCE), "annotation").getPath();
+            vocabularyPath = stream2file(getSource(VOCABULARY_SOURCE), "ontology").getPath();
+        } catch (IOException e) {
+            throw new InitializationException(e.getMessage());
+        }
 
-        return results;
+        // Load datafiles
+        try {
+            this.utils.loadDataFiles(vocabularyPath, annotationPath);
+        } catch (InterruptedException e) {
+            throw new InitializationException(e.getMessage());
+        } catch (IOException e) {
+            throw new InitializationException(e.getMessage());
+        }
+        return new Object[] { this.utils.getGraph(), this.utils.getDataAssociation() };
     }
 
-    private boolean addTermAndAncestors(Term t, Observations o)
+    /**
+     * Identify the data files bundled with BOQA by their checksum, so that a new release of the data invalidates the
+     * stored snapshot.
+     *
+     * @return a hexadecimal checksum of the data files
+     * @throws IOException if reading the data files fails
+     */
+    private String getSourceVersion() throws IOException
     {
         try {
-            int id = this.boqa.getTermIndex(t);
-            o.observations[id] = true;
-            this.boqa.activateAncestors(id, o.observations);
-        } catch (Exception e) {
-            this.logger.warn("Unable to find the boqa index of [{}].", t);
-            return false;
-        }
-        return true;
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            for (String source : Arrays.asList(VOCABULARY_SOURCE, ANNOTATION_SOURCE)) {
+                try (InputStream in = new DigestInputStream(getSource(source), digest)) {
+                    IOUtils.copy(in, new NullOutputStream());
+                }
+            }
+            return new BigInteger(1, digest.digest()).toString(16);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex.getMessage(), ex);
+        }
+    }
+
+    private InputStream getSource(String name) throws IOException
+    {
+        InputStream result = BOQA.class.getClassLoader().getResourceAsStream(name);
+        if (result == null) {
+            throw new IOException("Missing BOQA data file " + name);
+        }
+        return result;
     }
 
     /**
@@ -239,8 +456,9 @@ private File stream2file(InputStream in, String nameRoot) throws IOException
         }
         tempFile.deleteOnExit();
 
-        FileOutputStream out = new FileOutputStream(tempFile);
-        IOUtils.copy(in, out);
+        try (InputStream source = in; FileOutputStream out = new FileOutputStream(tempFile)) {
+            IOUtils.copy(source, out);
+        }
 
         return tempFile;
     }
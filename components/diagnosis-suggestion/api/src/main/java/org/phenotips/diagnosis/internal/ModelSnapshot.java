@@ -0,0 +1,219 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.diagnosis.internal;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Stores prepared model objects in a binary file, so that they don't have to be computed again from their sources on
+ * each startup. Each snapshot records the version of the sources it was built from, and is ignored once the sources
+ * change. Snapshots are read through a memory-mapped buffer, instead of copying the whole file in memory first.
+ *
+ * @version $Id$
+ * @since 1.3M1
+ */
+final class ModelSnapshot
+{
+    /** Identifies snapshot files. */
+    private static final int MAGIC = 0x50544253;
+
+    /** Incremented whenever the snapshot layout changes, to discard snapshots written by previous versions. */
+    private static final int FORMAT_VERSION = 1;
+
+    /** The stack size of the thread reading or writing snapshots, 256MB. */
+    private static final long STACK_SIZE = 256L * 1024 * 1024;
+
+    private ModelSnapshot()
+    {
+        // Utility class
+    }
+
+    /**
+     * Read the model objects stored in a snapshot.
+     *
+     * @param file the snapshot file
+     * @param sourceVersion the version of the current sources, as passed to {@link #write}
+     * @return the stored objects, in the order they were written, or {@code null} if the file doesn't exist, or was
+     *         built from different sources
+     * @throws IOException if reading the snapshot fails
+     */
+    static Object[] read(final File file, final String sourceVersion) throws IOException
+    {
+        if (!file.isFile()) {
+            return null;
+        }
+        return withLargeStack(new Callable<Object[]>()
+        {
+            @Override
+            public Object[] call() throws IOException
+            {
+                return readObjects(file, sourceVersion);
+            }
+        });
+    }
+
+    /**
+     * Store model objects in a snapshot. The file is replaced only once the whole snapshot was written.
+     *
+     * @param file the snapshot file
+     * @param sourceVersion identifies the sources the objects were built from
+     * @param parts the objects to store, must be serializable
+     * @throws IOException if writing the snapshot fails, for example if the objects are not serializable, or are too
+     *             deeply nested
+     */
+    static void write(final File file, final String sourceVersion, final Object... parts) throws IOException
+    {
+        withLargeStack(new Callable<Void>()
+        {
+            @Override
+            public Void call() throws IOException
+            {
+                writeObjects(file, sourceVersion, parts);
+                return null;
+            }
+        });
+    }
+
+    private static Object[] readObjects(File file, String sourceVersion) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            DataInputStream in = new DataInputStream(new ByteBufferInputStream(buffer));
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION || !sourceVersion.equals(in.readUTF())) {
+                return null;
+            }
+            Object[] result = new Object[in.readInt()];
+            ObjectInputStream objects = new ObjectInputStream(in);
+            for (int i = 0; i < result.length; ++i) {
+                result[i] = objects.readObject();
+            }
+            return result;
+        } catch (ClassNotFoundException | ClassCastException ex) {
+            throw new IOException("Invalid model snapshot: " + ex.getMessage(), ex);
+        }
+    }
+
+    private static void writeObjects(File file, String sourceVersion, Object[] parts) throws IOException
+    {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create directory " + parent);
+        }
+        File temp = new File(parent, file.getName() + ".tmp");
+        try {
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(temp))) {
+                DataOutputStream header = new DataOutputStream(out);
+                header.writeInt(MAGIC);
+                header.writeInt(FORMAT_VERSION);
+                header.writeUTF(sourceVersion);
+                header.writeInt(parts.length);
+                ObjectOutputStream objects = new ObjectOutputStream(out);
+                for (Object part : parts) {
+                    objects.writeObject(part);
+                }
+                objects.flush();
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    /**
+     * Java serialization recurses through the object graph, so it may need a much deeper stack than the one of the
+     * calling thread. The task is run in a separate thread with a {@link #STACK_SIZE large stack}, and running out of
+     * stack is reported as a failure to read or write the snapshot, instead of an error.
+     *
+     * @param task the task to run
+     * @return the result of the task
+     * @throws IOException if the task fails
+     */
+    private static <T> T withLargeStack(Callable<T> task) throws IOException
+    {
+        FutureTask<T> future = new FutureTask<>(task);
+        new Thread(null, future, "BOQA model snapshot", STACK_SIZE).start();
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while accessing the model snapshot");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            } else if (ex.getCause() instanceof StackOverflowError) {
+                throw new IOException("The model is too deeply nested to be stored", ex.getCause());
+            }
+            throw new IOException(String.valueOf(ex.getCause()), ex.getCause());
+        }
+    }
+
+    /**
+     * Reads from a (memory-mapped) buffer.
+     */
+    private static final class ByteBufferInputStream extends InputStream
+    {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer)
+        {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read()
+        {
+            return this.buffer.hasRemaining() ? this.buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length)
+        {
+            if (!this.buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, this.buffer.remaining());
+            this.buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available()
+        {
+            return this.buffer.remaining();
+        }
+    }
+}
@@ -18,6 +18,7 @@
 package org.phenotips.diagnosis.internal;
 
 import org.phenotips.diagnosis.DiagnosisService;
+import org.phenotips.vocabulary.Vocabulary;
 import org.phenotips.vocabulary.VocabularyManager;
 import org.phenotips.vocabulary.VocabularyTerm;
 
@@ -30,8 +31,11 @@
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.commons.io.IOUtils;
 import org.junit.Rule;
@@ -41,8 +45,9 @@
 
 import sonumina.boqa.calculation.BOQA;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
-import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.anyCollectionOf;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
@@ -75,23 +80,23 @@ public void returnsCorrectDiagnosis() throws ComponentLookupException, IOExcepti
         disorderIds.add(Arrays.asList(new String[0]));
         phenotypes.add(
             Arrays.asList("HP:0000028", "HP:0000049", "HP:0000202", "HP:0000204", "HP:0000316", "HP:0001869"));
-        disorderIds.add(Arrays.asList("MIM:100050"));
+        disorderIds.add(Arrays.asList("100050"));
         phenotypes.add(
             Arrays.asList("HP:0000707", "HP:0001939", "HP:0003811"));
-        disorderIds.add(Arrays.asList("MIM:306300"));
+        disorderIds.add(Arrays.asList("306300"));
         phenotypes.add(Arrays.asList("HP:0001417", "HP:0001287"));
-        disorderIds.add(Arrays.asList("MIM:308250"));
+        disorderIds.add(Arrays.asList("308250"));
         /* Harder tests */
         phenotypes.add(Arrays.asList("HP:0001419", "HP:0001939", "HP:0001005"));
-        disorderIds.add(Arrays.asList("MIM:308600"));
+        disorderIds.add(Arrays.asList("308600"));
         phenotypes.add(Arrays.asList("HP:0011495", "HP:0000502", "HP:0001005", "HP:0000534"));
-        disorderIds.add(Arrays.asList("MIM:308800"));
+        disorderIds.add(Arrays.asList("308800"));
         /* An empty/invalid HPO term will fail to find a boqa index and should be handled correctly */
         phenotypes.add(Arrays.asList("HP:"));
         disorderIds.add(Arrays.asList(new String[0]));
         phenotypes.add(
             Arrays.asList("HP:0000028", "HP:0000049", "HP:", "HP:0000202", "HP:0000204", "HP:0000316", "HP:0001869"));
-        disorderIds.add(Arrays.asList("MIM:100050"));
+        disorderIds.add(Arrays.asList("100050"));
 
         int invalidPhenotypes = 2;
 
@@ -114,18 +119,23 @@ public void returnsCorrectDiagnosis() throws ComponentLookupException, IOExcepti
         doReturn(tempSpy).when(utilsEnv).getTemporaryDirectory();
         workingUtilsComponent.loadDataFiles(vocabularyPath, annotationPath);
 
-        doAnswer(new Answer<VocabularyTerm>()
+        Vocabulary omim = mock(Vocabulary.class);
+        doReturn(omim).when(vocabulary).getVocabulary("MIM");
+        doAnswer(new Answer<Set<VocabularyTerm>>()
         {
             @Override
-            public VocabularyTerm answer(InvocationOnMock invocationOnMock) throws Throwable
+            public Set<VocabularyTerm> answer(InvocationOnMock invocationOnMock) throws Throwable
             {
-                String id = (String) invocationOnMock.getArguments()[0];
-                VocabularyTerm term = mock(VocabularyTerm.class);
-                doReturn(id).when(term).getId();
-                doReturn("test").when(term).getName();
-                return term;
+                Set<VocabularyTerm> result = new LinkedHashSet<>();
+                for (Object id : (Collection<?>) invocationOnMock.getArguments()[0]) {
+                    VocabularyTerm term = mock(VocabularyTerm.class);
+                    doReturn(id).when(term).getId();
+                    doReturn("test").when(term).getName();
+                    result.add(term);
+                }
+                return result;
             }
-        }).when(vocabulary).resolveTerm(anyString());
+        }).when(omim).getTerms(anyCollectionOf(String.class));
 
         doReturn(tempSpy).when(env).getTemporaryDirectory();
         doReturn(workingUtilsComponent.getGraph()).when(utils).getGraph();
@@ -145,7 +155,23 @@ public VocabularyTerm answer(InvocationOnMock invocationOnMock) throws Throwable
             assertTrue(diagnosisIds.containsAll(disorderIds.get(i)));
             i++;
         }
-        verify(vocabulary, times(limit * (i - invalidPhenotypes))).resolveTerm(anyString());
+        // The terms needed for each search are resolved at once
+        verify(omim, times(i - invalidPhenotypes)).getTerms(anyCollectionOf(String.class));
+
+        // The order of the phenotypes doesn't matter, and duplicate or invalid phenotypes are ignored
+        List<String> shuffled = Arrays.asList("HP:0001869", "HP:0000316", "HP:0000204", "HP:", "HP:0000202",
+            "HP:0000049", "HP:0000028", "HP:0000316");
+        List<String> expected = new LinkedList<>();
+        for (VocabularyTerm diagnosis : diagnosisService.getDiagnosis(phenotypes.get(1), nonstandardPhenotypeSet,
+            limit)) {
+            expected.add(diagnosis.getId());
+        }
+        List<String> actual = new LinkedList<>();
+        for (VocabularyTerm diagnosis : diagnosisService.getDiagnosis(shuffled, nonstandardPhenotypeSet, limit)) {
+            actual.add(diagnosis.getId());
+        }
+        assertEquals(limit, actual.size());
+        assertEquals(expected, actual);
     }
 
     private File stream2file(InputStream in) throws IOException
@@ -0,0 +1,210 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.diagnosis.internal;
+
+import org.xwiki.environment.Environment;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ontologizer.association.AssociationContainer;
+import ontologizer.go.Ontology;
+import ontologizer.types.ByteString;
+import sonumina.boqa.calculation.BOQA;
+import sonumina.boqa.calculation.Observations;
+
+import static org.mockito.Mockito.doReturn;
+
+/**
+ * Tests for {@link ModelSnapshot}.
+ *
+ * @version $Id$
+ */
+public class ModelSnapshotTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Rule
+    public final MockitoComponentMockingRule<Utils> loader =
+        new MockitoComponentMockingRule<Utils>(BoqaUtils.class);
+
+    @Test
+    public void writtenModelIsReadBack() throws IOException
+    {
+        File snapshot = new File(this.folder.getRoot(), "boqa/model.snapshot");
+        ModelSnapshot.write(snapshot, "v1", Arrays.asList("HP:0000001", "HP:0000118"),
+            Collections.singletonMap("OMIM:100050", "HP:0000028"));
+
+        Object[] model = ModelSnapshot.read(snapshot, "v1");
+        Assert.assertEquals(2, model.length);
+        Assert.assertEquals(Arrays.asList("HP:0000001", "HP:0000118"), model[0]);
+        Assert.assertEquals(Collections.singletonMap("OMIM:100050", "HP:0000028"), model[1]);
+        Assert.assertFalse(new File(snapshot.getParentFile(), "model.snapshot.tmp").exists());
+    }
+
+    @Test
+    public void snapshotOfOtherSourcesIsIgnored() throws IOException
+    {
+        File snapshot = this.folder.newFile();
+        ModelSnapshot.write(snapshot, "v1", "model");
+
+        Assert.assertNull(ModelSnapshot.read(snapshot, "v2"));
+    }
+
+    @Test
+    public void missingOrInvalidSnapshotIsIgnored() throws IOException
+    {
+        Assert.assertNull(ModelSnapshot.read(new File(this.folder.getRoot(), "missing"), "v1"));
+
+        File invalid = this.folder.newFile();
+        FileUtils.writeStringToFile(invalid, "not a snapshot, just some text");
+        Assert.assertNull(ModelSnapshot.read(invalid, "v1"));
+    }
+
+    @Test(expected = IOException.class)
+    public void unserializableModelIsNotStored() throws IOException
+    {
+        File snapshot = new File(this.folder.getRoot(), "model.snapshot");
+        try {
+            ModelSnapshot.write(snapshot, "v1", new Object());
+        } finally {
+            Assert.assertFalse(snapshot.exists());
+            Assert.assertFalse(new File(this.folder.getRoot(), "model.snapshot.tmp").exists());
+        }
+    }
+
+    @Test
+    public void deeplyNestedModelIsReadBack() throws IOException
+    {
+        File snapshot = new File(this.folder.getRoot(), "model.snapshot");
+        ModelSnapshot.write(snapshot, "v1", chain(100000));
+
+        Object[] model = ModelSnapshot.read(snapshot, "v1");
+        int length = 0;
+        for (Node node = (Node) model[0]; node != null; node = node.next) {
+            ++length;
+        }
+        Assert.assertEquals(100000, length);
+    }
+
+    @Test(expected = IOException.class)
+    public void tooDeeplyNestedModelIsNotStored() throws IOException
+    {
+        File snapshot = new File(this.folder.getRoot(), "model.snapshot");
+        try {
+            ModelSnapshot.write(snapshot, "v1", chain(1000000));
+        } finally {
+            Assert.assertFalse(snapshot.exists());
+            Assert.assertFalse(new File(this.folder.getRoot(), "model.snapshot.tmp").exists());
+        }
+    }
+
+    /** The ontology and annotations bundled with BOQA give the same scores once read back from a snapshot. */
+    @Test
+    public void boqaModelIsReadBack() throws Exception
+    {
+        Environment env = this.loader.getInstance(Environment.class);
+        doReturn(this.folder.newFolder("tmp")).when(env).getTemporaryDirectory();
+        Utils utils = this.loader.getComponentUnderTest();
+        utils.loadDataFiles(extract("hp.obo.gz"), extract("new_phenotype.gz"));
+        File snapshot = new File(this.folder.getRoot(), "boqa/model.snapshot");
+        ModelSnapshot.write(snapshot, "v1", utils.getGraph(), utils.getDataAssociation());
+
+        Object[] model = ModelSnapshot.read(snapshot, "v1");
+        Assert.assertEquals(2, model.length);
+        BOQA original = setUpBoqa(utils.getGraph(), utils.getDataAssociation());
+        BOQA restored = setUpBoqa((Ontology) model[0], (AssociationContainer) model[1]);
+
+        Assert.assertEquals(original.getOntology().getNumberOfTerms(), restored.getOntology().getNumberOfTerms());
+        Assert.assertEquals(original.item2Index, restored.item2Index);
+        BOQA.Result expected = score(original, "HP:0000028", "HP:0000049", "HP:0000202", "HP:0001869");
+        BOQA.Result actual = score(restored, "HP:0000028", "HP:0000049", "HP:0000202", "HP:0001869");
+        for (Map.Entry<ByteString, Integer> item : original.item2Index.entrySet()) {
+            Assert.assertEquals(String.valueOf(item.getKey()), expected.getMarginal(item.getValue()),
+                actual.getMarginal(item.getValue()), 1e-9);
+        }
+    }
+
+    private Node chain(int length)
+    {
+        Node head = null;
+        for (int i = 0; i < length; ++i) {
+            Node node = new Node();
+            node.next = head;
+            head = node;
+        }
+        return head;
+    }
+
+    private String extract(String name) throws IOException
+    {
+        File result = new File(this.folder.getRoot(), name);
+        try (InputStream in = BOQA.class.getClassLoader().getResourceAsStream(name)) {
+            FileUtils.copyInputStreamToFile(in, result);
+        }
+        return result.getPath();
+    }
+
+    /** Uses the same settings as {@link DefaultDiagnosisService}. */
+    private BOQA setUpBoqa(Ontology ontology, AssociationContainer associations)
+    {
+        BOQA boqa = new BOQA();
+        boqa.setConsiderFrequenciesOnly(false);
+        boqa.setPrecalculateScoreDistribution(false);
+        boqa.setCacheScoreDistribution(false);
+        boqa.setPrecalculateItemMaxs(false);
+        boqa.setPrecalculateMaxICs(false);
+        boqa.setMaxFrequencyTerms(2);
+        boqa.setPrecalculateJaccard(false);
+        boqa.setup(ontology, associations);
+        return boqa;
+    }
+
+    private BOQA.Result score(BOQA boqa, String... phenotypes)
+    {
+        Observations observations = new Observations();
+        observations.observations = new boolean[boqa.getOntology().getNumberOfTerms()];
+        for (String phenotype : phenotypes) {
+            int index = boqa.getTermIndex(boqa.getOntology().getTerm(phenotype));
+            observations.observations[index] = true;
+            boqa.activateAncestors(index, observations.observations);
+        }
+        return boqa.assignMarginals(observations, false, 1);
+    }
+
+    /** A linked list which is serialized recursively. */
+    private static final class Node implements Serializable
+    {
+        private static final long serialVersionUID = 1L;
+
+        private Node next;
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.export.internal;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Writes a table in a compact binary columnar format. Rows are buffered in groups of {@link #ROW_GROUP_SIZE}, and each
+ * group is written column by column; the type of each column chunk is chosen from the values it contains, so numbers
+ * are stored as numbers, and columns with few distinct values are dictionary encoded. The layout is:
+ * <ul>
+ * <li>the magic bytes {@code PTCF}, followed by a format version byte, currently {@code 1}</li>
+ * <li>the number of columns, followed by the name of each column</li>
+ * <li>any number of row groups, each made of the number of rows in the group, followed by a chunk for each column: the
+ * chunk type byte, a bitmap with one bit for each row, least significant bit first, set if the row has a value, and the
+ * values of the rows that have one</li>
+ * <li>a row group with {@code 0} rows, marking the end of the table</li>
+ * </ul>
+ * Counts, lengths and indexes are unsigned LEB128 variable length integers, and strings are stored as their length in
+ * bytes followed by their UTF-8 encoding. The chunk types are {@link #INTEGER} (zigzag encoded variable length
+ * integers), {@link #DECIMAL} (big endian IEEE 754 doubles), {@link #STRING} (strings), and {@link #DICTIONARY} (the
+ * number of distinct values, the distinct values as strings, then the index of each value in this dictionary). Values
+ * are only stored as numbers when the original text can be restored exactly: {@link Long#toString(long)} for
+ * integers, and {@link Double#toString(double)} for decimals, so for example {@code 1.50} is stored as a string.
+ *
+ * @version $Id$
+ * @since 1.3M1
+ */
+class BinaryColumnarTableWriter implements TableWriter
+{
+    /** Chunk type for whole numbers. */
+    static final byte INTEGER = 1;
+
+    /** Chunk type for decimal numbers. */
+    static final byte DECIMAL = 2;
+
+    /** Chunk type for plain strings. */
+    static final byte STRING = 3;
+
+    /** Chunk type for dictionary encoded strings. */
+    static final byte DICTIONARY = 4;
+
+    /** How many rows are buffered and written together. */
+    static final int ROW_GROUP_SIZE = 1024;
+
+    private static final byte[] MAGIC = "PTCF".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte FORMAT_VERSION = 1;
+
+    /** Only numbers written in their canonical form are stored as numbers, so that values like "007" are preserved. */
+    private static final Pattern INTEGER_PATTERN = Pattern.compile("0|-?[1-9][0-9]{0,17}");
+
+    private static final Pattern DECIMAL_PATTERN = Pattern.compile("-?(0|[1-9][0-9]*)\\.[0-9]+");
+
+    private final DataOutputStream out;
+
+    private String[][] rows = new String[ROW_GROUP_SIZE][];
+
+    private int rowCount;
+
+    private int columnCount;
+
+    /**
+     * Simple constructor.
+     *
+     * @param out where to write the table
+     */
+    BinaryColumnarTableWriter(OutputStream out)
+    {
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+    }
+
+    @Override
+    public void start(List<String> columns) throws IOException
+    {
+        this.columnCount = columns.size();
+        this.out.write(MAGIC);
+        this.out.writeByte(FORMAT_VERSION);
+        writeVarInt(this.columnCount);
+        for (String column : columns) {
+            writeString(column);
+        }
+    }
+
+    @Override
+    public void writeRow(String[] values) throws IOException
+    {
+        this.rows[this.rowCount++] = values;
+        if (this.rowCount == ROW_GROUP_SIZE) {
+            writeRowGroup();
+        }
+    }
+
+    @Override
+    public void finish() throws IOException
+    {
+        if (this.rowCount > 0) {
+            writeRowGroup();
+        }
+        writeVarInt(0);
+        this.out.flush();
+    }
+
+    private void writeRowGroup() throws IOException
+    {
+        writeVarInt(this.rowCount);
+        for (int column = 0; column < this.columnCount; ++column) {
+            writeChunk(column);
+        }
+        for (int i = 0; i < this.rowCount; ++i) {
+            this.rows[i] = null;
+        }
+        this.rowCount = 0;
+    }
+
+    private void writeChunk(int column) throws IOException
+    {
+        boolean integers = true;
+        boolean decimals = true;
+        int present = 0;
+        Map<String, Integer> dictionary = new LinkedHashMap<String, Integer>();
+        byte[] bitmap = new byte[(this.rowCount + 7) / 8];
+        for (int i = 0; i < this.rowCount; ++i) {
+            String value = getValue(i, column);
+            if (value == null) {
+                continue;
+            }
+            bitmap[i / 8] |= 1 << (i % 8);
+            ++present;
+            boolean integer = INTEGER_PATTERN.matcher(value).matches();
+            integers &= integer;
+            decimals &= isDecimal(value);
+            if (!dictionary.containsKey(value)) {
+                dictionary.put(value, dictionary.size());
+            }
+        }
+
+        byte type = STRING;
+        if (present > 0 && integers) {
+            type = INTEGER;
+        } else if (present > 0 && decimals) {
+            type = DECIMAL;
+        } else if (present > 0 && dictionary.size() <= present / 2) {
+            type = DICTIONARY;
+        }
+        this.out.writeByte(type);
+        this.out.write(bitmap);
+        if (type == DICTIONARY) {
+            writeVarInt(dictionary.size());
+            for (String value : dictionary.keySet()) {
+                writeString(value);
+            }
+        }
+        for (int i = 0; i < this.rowCount; ++i) {
+            String value = getValue(i, column);
+            if (value != null) {
+                writeValue(type, value, dictionary);
+            }
+        }
+    }
+
+    private void writeValue(byte type, String value, Map<String, Integer> dictionary) throws IOException
+    {
+        switch (type) {
+            case INTEGER:
+                long number = Long.parseLong(value);
+                writeVarInt((number << 1) ^ (number >> 63));
+                break;
+            case DECIMAL:
+                this.out.writeDouble(Double.parseDouble(value));
+                break;
+            case DICTIONARY:
+                writeVarInt(dictionary.get(value));
+                break;
+            default:
+                writeString(value);
+        }
+    }
+
+    /** Only decimals which are printed back the same way are stored as doubles, so that no digits are lost. */
+    private static boolean isDecimal(String value)
+    {
+        return DECIMAL_PATTERN.matcher(value).matches() && Double.toString(Double.parseDouble(value)).equals(value);
+    }
+
+    private String getValue(int row, int column)
+    {
+        String[] values = this.rows[row];
+        return column < values.length ? values[column] : null;
+    }
+
+    private void writeString(String value) throws IOException
+    {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(bytes.length);
+        this.out.write(bytes);
+    }
+
+    private void writeVarInt(long value) throws IOException
+    {
+        long remaining = value;
+        while ((remaining & ~0x7FL) != 0) {
+            this.out.writeByte((int) ((remaining & 0x7F) | 0x80));
+            remaining >>>= 7;
+        }
+        this.out.writeByte((int) remaining);
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.export.internal;
+
+import org.phenotips.data.Patient;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Exports patients as a flat table, with one row per patient and one column per exported value, meant to be processed
+ * by other tools rather than read. The same fields and values as in the spreadsheet export are used, but without any
+ * styling or merging. Some sections use several rows for a patient, for example one row for each phenotype; the values
+ * of such a column are joined with {@link #VALUE_SEPARATOR} in a single cell, keeping the empty values in between, so
+ * that the values of the different columns of a section can still be matched by their position. So that values can be
+ * split back unambiguously, occurrences of the separator and of {@link #ESCAPE} in all the values are preceded by
+ * {@link #ESCAPE}. Rows are written to the output stream as soon as each patient is converted, so the patients can be
+ * loaded lazily by the iterator.
+ *
+ * @version $Id$
+ * @since 1.3M1
+ */
+public class ColumnarExporter
+{
+    /** Separates the values of a column coming from different rows of the same patient. */
+    public static final char VALUE_SEPARATOR = '|';
+
+    /** Escapes the {@link #VALUE_SEPARATOR} and itself inside values. */
+    public static final char ESCAPE = '\\';
+
+    /** Separates the labels of the different header rows in a column name. */
+    private static final String NAME_SEPARATOR = " / ";
+
+    private final ColumnarFormat format;
+
+    /**
+     * Simple constructor.
+     *
+     * @param format the format to write
+     */
+    public ColumnarExporter(ColumnarFormat format)
+    {
+        this.format = format;
+    }
+
+    /**
+     * Exports the patients returned by the iterator, limited by the list of fields that are requested, and writes the
+     * result to the output stream.
+     *
+     * @param enabledFieldsArray array of field ids that should be present in the export
+     * @param patients the patients whose information should be present in the export; {@code null} items are skipped
+     * @param outputStream stream to which the export will be written to
+     * @throws Exception an attempt to close outputStream will be made, but the exception will not be handled
+     */
+    public void export(String[] enabledFieldsArray, Iterator<Patient> patients, OutputStream outputStream)
+        throws Exception
+    {
+        if (enabledFieldsArray == null || patients == null || outputStream == null) {
+            return;
+        }
+        Set<String> enabledFields = new HashSet<String>(Arrays.asList(enabledFieldsArray));
+        try {
+            DataToCellConverter converter = new DataToCellConverter();
+            List<DataSection> headers = SheetAssembler.generateHeaders(converter, enabledFields);
+            int[] offsets = new int[headers.size()];
+            List<String> columns = new ArrayList<String>();
+            for (int i = 0; i < headers.size(); ++i) {
+                offsets[i] = columns.size();
+                columns.addAll(getColumnNames(headers.get(i)));
+            }
+
+            TableWriter writer = createWriter(outputStream);
+            writer.start(columns);
+            while (patients.hasNext()) {
+                Patient patient = patients.next();
+                if (patient != null) {
+                    writer.writeRow(flatten(SheetAssembler.generateBody(converter, patient), offsets, columns.size()));
+                }
+            }
+            writer.finish();
+            outputStream.flush();
+        } finally {
+            try {
+                outputStream.close();
+            } catch (IOException ex) {
+                // If this happens, something went very wrong.
+            }
+        }
+    }
+
+    private TableWriter createWriter(OutputStream outputStream)
+    {
+        switch (this.format) {
+            case CSV:
+                return new DelimitedTableWriter(outputStream, ',');
+            case TSV:
+                return new DelimitedTableWriter(outputStream, '\t');
+            default:
+                return new BinaryColumnarTableWriter(outputStream);
+        }
+    }
+
+    /**
+     * Names each column of a header section by joining the labels found above it on each header row. Like in the
+     * spreadsheet, where header cells are merged with the empty cells to their right, a label applies to all the
+     * following columns until the next label on the same row.
+     *
+     * @param header a header section, as generated by the converter
+     * @return the names of the section's columns, from left to right
+     */
+    static List<String> getColumnNames(DataSection header)
+    {
+        String[][] labels = getValues(header);
+        List<String> names = new ArrayList<String>(labels.length);
+        for (int x = 0; x < labels.length; ++x) {
+            StringBuilder name = new StringBuilder();
+            for (int y = 0; y < labels[x].length; ++y) {
+                String label = null;
+                for (int labelX = x; labelX >= 0 && label == null; --labelX) {
+                    label = labels[labelX][y];
+                }
+                if (StringUtils.isNotBlank(label)) {
+                    if (name.length() > 0) {
+                        name.append(NAME_SEPARATOR);
+                    }
+                    name.append(label.trim());
+                }
+            }
+            names.add(name.toString());
+        }
+        return names;
+    }
+
+    /**
+     * Places the cells of a patient's body sections in a single row.
+     *
+     * @param sections the patient's body sections, in the same order as the header sections
+     * @param offsets the index of the first column of each header section
+     * @param columnCount the total number of columns
+     * @return the values of the row, {@code null} where a column has no value
+     */
+    static String[] flatten(List<DataSection> sections, int[] offsets, int columnCount)
+    {
+        String[] row = new String[columnCount];
+        for (int i = 0; i < sections.size() && i < offsets.length; ++i) {
+            String[][] values = getValues(sections.get(i));
+            for (int x = 0; x < values.length && offsets[i] + x < columnCount; ++x) {
+                row[offsets[i] + x] = join(values[x]);
+            }
+        }
+        return row;
+    }
+
+    /**
+     * Joins the escaped values of a column, without trailing empty values; {@code null} if there's no value at all.
+     */
+    private static String join(String[] values)
+    {
+        int last = values.length - 1;
+        while (last >= 0 && StringUtils.isEmpty(values[last])) {
+            --last;
+        }
+        if (last < 0) {
+            return null;
+        }
+        StringBuilder result = new StringBuilder();
+        for (int y = 0; y <= last; ++y) {
+            if (y > 0) {
+                result.append(VALUE_SEPARATOR);
+            }
+            String value = StringUtils.defaultString(values[y]);
+            for (int i = 0; i < value.length(); ++i) {
+                char c = value.charAt(i);
+                if (c == VALUE_SEPARATOR || c == ESCAPE) {
+                    result.append(ESCAPE);
+                }
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    /** Places the values of the cells of a section in a {@code [x][y]} matrix, without finalizing the section. */
+    private static String[][] getValues(DataSection section)
+    {
+        String[][] values = new String[section.getMaxX() + 1][section.getMaxY() + 1];
+        for (DataCell cell : section.getCellList()) {
+            values[cell.getX()][cell.getY()] = cell.getValue();
+        }
+        return values;
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.export.internal;
+
+/**
+ * The output formats supported by {@link ColumnarExporter}.
+ *
+ * @version $Id$
+ * @since 1.3M1
+ */
+public enum ColumnarFormat
+{
+    /** Comma separated values, quoted as described in RFC 4180. */
+    CSV,
+
+    /** Tab separated values, with tabs, line breaks and backslashes escaped as {@code \t}, {@code \n}, {@code \\}. */
+    TSV,
+
+    /** Binary typed columns, as written by {@link BinaryColumnarTableWriter}. */
+    BINARY
+}
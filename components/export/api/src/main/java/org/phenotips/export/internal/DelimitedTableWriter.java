@@ -0,0 +1,102 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.export.internal;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Writes a table as delimited text, encoded in UTF-8, with one line per row. With a comma as the delimiter, rows end
+ * with CRLF and values containing special characters are quoted, as described in RFC 4180; with a tab, rows end with a
+ * plain LF and special characters are escaped instead, so that each row always fits on a single line.
+ *
+ * @version $Id$
+ * @since 1.3M1
+ */
+class DelimitedTableWriter implements TableWriter
+{
+    private static final String[] TSV_SPECIAL = new String[] { "\\", "\t", "\n", "\r" };
+
+    private static final String[] TSV_ESCAPED = new String[] { "\\\\", "\\t", "\\n", "\\r" };
+
+    private static final String CSV_LINE_END = "\r\n";
+
+    private static final String TSV_LINE_END = "\n";
+
+    private final Writer out;
+
+    private final char delimiter;
+
+    /**
+     * Simple constructor.
+     *
+     * @param out where to write the table
+     * @param delimiter the character separating values, either {@code ','} or {@code '\t'}
+     */
+    DelimitedTableWriter(OutputStream out, char delimiter)
+    {
+        this.out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        this.delimiter = delimiter;
+    }
+
+    @Override
+    public void start(List<String> columns) throws IOException
+    {
+        writeRow(columns.toArray(new String[columns.size()]));
+    }
+
+    @Override
+    public void writeRow(String[] values) throws IOException
+    {
+        for (int i = 0; i < values.length; ++i) {
+            if (i > 0) {
+                this.out.write(this.delimiter);
+            }
+            if (values[i] != null) {
+                this.out.write(this.delimiter == '\t' ? escape(values[i]) : quote(values[i]));
+            }
+        }
+        this.out.write(this.delimiter == '\t' ? TSV_LINE_END : CSV_LINE_END);
+    }
+
+    @Override
+    public void finish() throws IOException
+    {
+        this.out.flush();
+    }
+
+    private String escape(String value)
+    {
+        return StringUtils.replaceEach(value, TSV_SPECIAL, TSV_ESCAPED);
+    }
+
+    private String quote(String value)
+    {
+        if (StringUtils.containsAny(value, this.delimiter, '"', '\n', '\r')) {
+            return '"' + StringUtils.replace(value, "\"", "\"\"") + '"';
+        }
+        return value;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.export.internal;
+
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientRepository;
+
+import java.util.Iterator;
+
+/**
+ * Iterates over patients, loading each one only when it is requested, so that large cohorts can be exported without
+ * holding all the patients in memory.
+ *
+ * @version $Id$
+ * @since 1.3M1
+ */
+public class LazyPatientIterator implements Iterator<Patient>
+{
+    private final Iterator<String> patientIds;
+
+    private final PatientRepository repository;
+
+    /**
+     * Simple constructor.
+     *
+     * @param patientIds the identifiers of the patients to load
+     * @param repository the repository used for loading patients; if it checks access rights, patients that cannot be
+     *            accessed are returned as {@code null}
+     */
+    public LazyPatientIterator(Iterator<String> patientIds, PatientRepository repository)
+    {
+        this.patientIds = patientIds;
+        this.repository = repository;
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        return this.patientIds.hasNext();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @return the next patient, or {@code null} if it doesn't exist or cannot be accessed
+     */
+    @Override
+    public Patient next()
+    {
+        try {
+            return this.repository.getPatientById(this.patientIds.next());
+        } catch (SecurityException ex) {
+            return null;
+        }
+    }
+
+    @Override
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -19,60 +19,36 @@
 
 import org.phenotips.data.Patient;
 
-import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 
 /**
- * Assembles the various DataSections.
+ * Assembles the various DataSections of the header and of each patient.
  *
  * @version $Id$
  * @since 1.0RC1
  */
-public class SheetAssembler
+public final class SheetAssembler
 {
-    /** The global section meant to eventually contain all {@link org.phenotips.export.internal.DataCell}s. */
-    private DataSection oneSection = new DataSection();
-
-    /** The number of rows the header occupies. */
-    private Integer headerHeight = 0;
+    /** Avoid instantiation. */
+    private SheetAssembler()
+    {
+    }
 
     /**
-     * Generates {@link org.phenotips.export.internal.DataCell} containing the data to export, combines them together
-     * into one big matrix ({@link #oneSection}), and styles them.
+     * Sets up the converter, and generates the styled header of the sheet. Must be called on a new converter before
+     * using it in {@link #assemblePatient(DataToCellConverter, Patient)}.
      *
-     * @param enabledFields set of fields for which data should be exported
-     * @param patients list of patients from whom data should exported
+     * @param converter a new converter, which will be set up for generating the requested fields
+     * @param enabledFields set of fields for which data should be exported; the set is modified by the setup
+     * @return a finalized {@link org.phenotips.export.internal.DataSection} containing the whole header
      * @throws java.lang.Exception half of the functions used throw exceptions
      */
-    public SheetAssembler(Set<String> enabledFields, List<Patient> patients) throws Exception
+    static DataSection assembleHeader(DataToCellConverter converter, Set<String> enabledFields) throws Exception
     {
-        DataToCellConverter converter = new DataToCellConverter();
-
-        /* Some sections require setup, which need to be run here. */
-        converter.phenotypeSetup(enabledFields);
-        converter.prenatalPhenotypeSetup(enabledFields);
-        converter.genesSetup(enabledFields);
-
-        /* Headers MUST be generated first. Some of them contain setup code for the body */
-        List<DataSection> headers = generateHeader(converter, enabledFields);
-        List<List<DataSection>> bodySections = generateBody(converter, patients);
-
-        List<DataSection> patientsCombined = new LinkedList<DataSection>();
-        for (List<DataSection> patientSections : bodySections) {
-            for (DataSection section : patientSections) {
-                section.finalizeToMatrix();
-                Styler.disallowBodyStyles(section);
-                Styler.extendStyleHorizontally(section, StyleOption.FEATURE_SEPARATOR, StyleOption.YES_NO_SEPARATOR);
-                Styler.styleSectionBorder(section, StyleOption.SECTION_BORDER_LEFT, StyleOption.SECTION_BORDER_RIGHT);
-            }
-
-            DataSection assembled = assembleSectionsX(patientSections, true);
-            Styler.styleSectionBottom(assembled, StyleOption.PATIENT_BORDER);
-            patientsCombined.add(assembled);
-        }
+        List<DataSection> headers = generateHeaders(converter, enabledFields);
 
         /* Inserting styling calls here is fairly unavoidable. Also don't forget to merge BEFORE styling. */
         for (DataSection header : headers) {
@@ -80,19 +56,53 @@ public SheetAssembler(Set<String> enabledFields, List<Patient> patients) throws
             header.mergeX();
             Styler.styleSectionBorder(header, StyleOption.SECTION_BORDER_LEFT, StyleOption.SECTION_BORDER_RIGHT);
         }
-
-        DataSection bodyCombined = assembleSectionsY(patientsCombined, false);
         DataSection headerCombined = assembleSectionsX(headers, true);
 
         /* Add style through functions. Use only with finalized sections. */
         Styler.styleSectionBottom(headerCombined, StyleOption.HEADER_BOTTOM);
+        return headerCombined;
+    }
+
+    /**
+     * Sets up the converter, and generates the header sections, without finalizing or styling them. Must be called on a
+     * new converter before using it in {@link #generateBody(DataToCellConverter, Patient)}.
+     *
+     * @param converter a new converter, which will be set up for generating the requested fields
+     * @param enabledFields set of fields for which data should be exported; the set is modified by the setup
+     * @return the not null header sections, in the same order as the body sections
+     * @throws java.lang.Exception half of the functions used throw exceptions
+     */
+    static List<DataSection> generateHeaders(DataToCellConverter converter, Set<String> enabledFields) throws Exception
+    {
+        /* Some sections require setup, which need to be run here. */
+        converter.phenotypeSetup(enabledFields);
+        converter.prenatalPhenotypeSetup(enabledFields);
+        converter.genesSetup(enabledFields);
 
-        this.headerHeight = headerCombined.getMaxY() + 1;
-        this.oneSection = assembleSectionsY(Arrays.asList(headerCombined, bodyCombined), true);
+        return generateHeader(converter, enabledFields);
+    }
 
-        /* Extend the section borders all the way to the bottom of the sheet */
-        Styler
-            .extendStyleVertically(this.oneSection, StyleOption.SECTION_BORDER_LEFT, StyleOption.SECTION_BORDER_RIGHT);
+    /**
+     * Generates and styles the rows of one patient, starting at the top of the returned section.
+     *
+     * @param converter a converter already set up by {@link #assembleHeader(DataToCellConverter, Set)}
+     * @param patient the patient whose data should be exported, not null
+     * @return a finalized {@link org.phenotips.export.internal.DataSection} containing all the patient's cells
+     * @throws java.lang.Exception half of the functions used throw exceptions
+     */
+    static DataSection assemblePatient(DataToCellConverter converter, Patient patient) throws Exception
+    {
+        List<DataSection> patientSections = generateBody(converter, patient);
+        for (DataSection section : patientSections) {
+            section.finalizeToMatrix();
+            Styler.disallowBodyStyles(section);
+            Styler.extendStyleHorizontally(section, StyleOption.FEATURE_SEPARATOR, StyleOption.YES_NO_SEPARATOR);
+            Styler.styleSectionBorder(section, StyleOption.SECTION_BORDER_LEFT, StyleOption.SECTION_BORDER_RIGHT);
+        }
+
+        DataSection assembled = assembleSectionsX(patientSections, true);
+        Styler.styleSectionBottom(assembled, StyleOption.PATIENT_BORDER);
+        return assembled;
     }
 
     /**
@@ -101,46 +111,39 @@ public SheetAssembler(Set<String> enabledFields, List<Patient> patients) throws
      *
      * @return list of generated, not null {@link org.phenotips.export.internal.DataSection}s
      */
-    private List<List<DataSection>> generateBody(DataToCellConverter converter, List<Patient> patients)
-        throws Exception
+    static List<DataSection> generateBody(DataToCellConverter converter, Patient patient) throws Exception
     {
-        List<List<DataSection>> allSections = new LinkedList<List<DataSection>>();
-        for (Patient patient : patients) {
-            if (patient == null) {
-                continue;
-            }
-            List<DataSection> patientSections = new LinkedList<DataSection>();
-            patientSections.add(converter.idBody(patient));
-            patientSections.add(converter.documentInfoBody(patient));
-            patientSections.add(converter.patientInfoBody(patient));
-            patientSections.add(converter.familyHistoryBody(patient));
-            patientSections.add(converter.prenatalPerinatalHistoryBody(patient));
-            patientSections.add(converter.prenatalPhenotypeBody(patient));
-            patientSections.add(converter.medicalHistoryBody(patient));
-            patientSections.add(converter.isNormalBody(patient));
-            patientSections.add(converter.phenotypeBody(patient));
-            patientSections.add(converter.genesBody(patient));
-            patientSections.add(converter.disordersBody(patient));
-            patientSections.add(converter.isSolvedBody(patient));
-
-            /* Null section filter */
-            Iterator<DataSection> it = patientSections.iterator();
-            while (it.hasNext()) {
-                DataSection i = it.next();
-                if (i == null) {
-                    it.remove();
-                }
+        List<DataSection> patientSections = new LinkedList<DataSection>();
+        patientSections.add(converter.idBody(patient));
+        patientSections.add(converter.documentInfoBody(patient));
+        patientSections.add(converter.patientInfoBody(patient));
+        patientSections.add(converter.familyHistoryBody(patient));
+        patientSections.add(converter.prenatalPerinatalHistoryBody(patient));
+        patientSections.add(converter.prenatalPhenotypeBody(patient));
+        patientSections.add(converter.medicalHistoryBody(patient));
+        patientSections.add(converter.isNormalBody(patient));
+        patientSections.add(converter.phenotypeBody(patient));
+        patientSections.add(converter.genesBody(patient));
+        patientSections.add(converter.disordersBody(patient));
+        patientSections.add(converter.isSolvedBody(patient));
+
+        /* Null section filter */
+        Iterator<DataSection> it = patientSections.iterator();
+        while (it.hasNext()) {
+            DataSection i = it.next();
+            if (i == null) {
+                it.remove();
             }
-            allSections.add(patientSections);
         }
-        return allSections;
+        return patientSections;
     }
 
     /**
-     * Same as {@link #generateBody(DataToCellConverter, java.util.List)} but for header sections. Most of header
+     * Same as {@link #generateBody(DataToCellConverter, Patient)} but for header sections. Most of header
      * functions from {@link org.phenotips.export.internal.DataToCellConverter} contain some set up code.
      */
-    private List<DataSection> generateHeader(DataToCellConverter converter, Set<String> enabledFields) throws Exception
+    private static List<DataSection> generateHeader(DataToCellConverter converter, Set<String> enabledFields)
+        throws Exception
     {
         List<DataSection> headerSections = new LinkedList<DataSection>();
         headerSections.add(converter.idHeader(enabledFields));
@@ -167,7 +170,7 @@ private List<DataSection> generateHeader(DataToCellConverter converter, Set<Stri
     }
 
     /** Combines the passed in sections into one large section, keeping track of positioning along the x axis. */
-    private DataSection assembleSectionsX(List<DataSection> sections, Boolean finalize) throws Exception
+    private static DataSection assembleSectionsX(List<DataSection> sections, Boolean finalize) throws Exception
     {
         DataSection combinedSection = new DataSection();
 
@@ -188,43 +191,4 @@ private DataSection assembleSectionsX(List<DataSection> sections, Boolean finali
 
         return combinedSection;
     }
-
-    /** Combines the passed in sections into one large section, keeping track of positioning along the y axis. */
-    private DataSection assembleSectionsY(List<DataSection> sections, Boolean finalize) throws Exception
-    {
-        DataSection combinedSection = new DataSection();
-
-        Integer offset = 0;
-        for (DataSection section : sections) {
-            Set<DataCell> cells = section.getCellList();
-
-            for (DataCell cell : cells) {
-                cell.setY(cell.getY() + offset);
-                combinedSection.addCell(cell);
-            }
-            offset += section.getMaxY() + 1;
-        }
-        if (finalize) {
-            combinedSection.finalizeToMatrix();
-        }
-
-        return combinedSection;
-    }
-
-    /**
-     * @return a {@link org.phenotips.export.internal.DataSection} that contains all {@link
-     * org.phenotips.export.internal.DataCell}s
-     */
-    public DataSection getAssembled()
-    {
-        return this.oneSection;
-    }
-
-    /**
-     * @return {@link #headerHeight}
-     */
-    public Integer getHeaderHeight()
-    {
-        return this.headerHeight;
-    }
 }
@@ -0,0 +1,326 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.export.internal;
+
+import org.phenotips.data.Patient;
+
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.context.ExecutionContextManager;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+
+/**
+ * Exports patients into a spreadsheet without holding the whole cohort in memory. Patients are pulled one at a time
+ * from an iterator, converted into cells by several worker threads, and written in order into a streaming workbook,
+ * which only keeps a small window of rows in memory and flushes the others to a temporary file. Since the whole sheet
+ * is never available, columns are sized using the first rows only.
+ *
+ * @version $Id$
+ * @since 1.3M1
+ */
+public class StreamingSpreadsheetExporter
+{
+    /** How many rows are kept in memory before being flushed to disk. */
+    private static final int ROW_WINDOW = 100;
+
+    /** How many converted patients may wait to be written, for each worker thread. */
+    private static final int PENDING_PATIENTS_PER_THREAD = 4;
+
+    /** How many rows, including the header, are used for computing the width of the columns. */
+    private static final int WIDTH_SAMPLE_ROWS = 1000;
+
+    /** The width of one character, in units of 1/256th of the default character width, for the font used. */
+    private static final int CHARACTER_WIDTH = 210;
+
+    private final Execution execution;
+
+    private final ExecutionContextManager contextManager;
+
+    private final int threads;
+
+    private SXSSFWorkbook wBook;
+
+    private Sheet sheet;
+
+    private Styler styler;
+
+    /** The index of the next row to write. */
+    private int nextRow;
+
+    /** The length of the longest line in each column, for the rows written so far, up to {@link #WIDTH_SAMPLE_ROWS}. */
+    private Map<Integer, Integer> sampledWidths = new HashMap<Integer, Integer>();
+
+    /**
+     * Simple constructor passing the components needed for running the conversion in other threads.
+     *
+     * @param execution used for passing the execution context of the caller to the worker threads
+     * @param contextManager used for cloning the execution context of the caller
+     * @param threads how many threads should convert patients in parallel
+     */
+    public StreamingSpreadsheetExporter(Execution execution, ExecutionContextManager contextManager, int threads)
+    {
+        this.execution = execution;
+        this.contextManager = contextManager;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Exports the patients returned by the iterator, limited by the list of fields that are requested, and writes the
+     * result to the output stream. Patients are requested from the iterator in the calling thread, only when there's
+     * room for converting them, so the iterator may load them lazily.
+     *
+     * @param enabledFieldsArray array of field ids that should be present in the export
+     * @param patients the patients whose information should be present in the export; {@code null} items are skipped
+     * @param outputStream stream to which the export will be written to
+     * @throws Exception an attempt to close outputStream will be made, but the exception will not be handled
+     */
+    public void export(String[] enabledFieldsArray, Iterator<Patient> patients, OutputStream outputStream)
+        throws Exception
+    {
+        if (enabledFieldsArray == null || patients == null || outputStream == null) {
+            return;
+        }
+        Set<String> enabledFields = new HashSet<String>(Arrays.asList(enabledFieldsArray));
+        this.wBook = new SXSSFWorkbook(ROW_WINDOW);
+        this.wBook.setCompressTempFiles(true);
+        ExecutorService workers = Executors.newFixedThreadPool(this.threads, new WorkerThreadFactory());
+        try {
+            this.sheet = this.wBook.createSheet("Patient Sheet");
+            this.styler = new Styler();
+
+            DataSection header = SheetAssembler.assembleHeader(new DataToCellConverter(),
+                new HashSet<String>(enabledFields));
+            Map<Integer, Set<StyleOption>> borders =
+                Styler.findColumnStyles(header, StyleOption.SECTION_BORDER_LEFT, StyleOption.SECTION_BORDER_RIGHT);
+            writeSection(header);
+            this.sheet.createFreezePane(0, header.getMaxY() + 1);
+
+            ThreadLocal<DataToCellConverter> converters = new ThreadLocal<DataToCellConverter>();
+            Queue<Future<DataSection>> pending = new ArrayDeque<Future<DataSection>>();
+            while (patients.hasNext()) {
+                Patient patient = patients.next();
+                if (patient == null) {
+                    continue;
+                }
+                pending.add(workers.submit(new PatientConversion(patient, enabledFields, borders, converters)));
+                if (pending.size() >= this.threads * PENDING_PATIENTS_PER_THREAD) {
+                    writeSection(getResult(pending.remove()));
+                }
+            }
+            while (!pending.isEmpty()) {
+                writeSection(getResult(pending.remove()));
+            }
+
+            sizeColumns();
+            this.wBook.write(outputStream);
+            outputStream.flush();
+        } finally {
+            workers.shutdownNow();
+            this.wBook.dispose();
+            try {
+                outputStream.close();
+            } catch (IOException ex) {
+                // If this happens, something went very wrong.
+            }
+        }
+    }
+
+    /**
+     * Writes the cells of a section below the rows already written, and merges cells as needed.
+     *
+     * @param section a finalized section, whose cells are positioned relative to the first row to write
+     */
+    private void writeSection(DataSection section)
+    {
+        DataCell[][] cells = section.getMatrix();
+        for (int y = 0; y <= section.getMaxY(); y++) {
+            int rowIndex = this.nextRow + y;
+            Row row = this.sheet.createRow(rowIndex);
+            Integer maxLines = 0;
+
+            for (int x = 0; x <= section.getMaxX(); x++) {
+                DataCell dataCell = cells[x][y];
+                if (dataCell == null) {
+                    continue;
+                }
+                Cell cell = row.createCell(x);
+                cell.setCellValue(dataCell.getValue());
+                this.styler.style(dataCell, cell, this.wBook);
+
+                if (dataCell.getNumberOfLines() != null) {
+                    maxLines = maxLines < dataCell.getNumberOfLines() ? dataCell.getNumberOfLines() : maxLines;
+                }
+                if (dataCell.getMergeX() != null) {
+                    this.sheet.addMergedRegion(new CellRangeAddress(rowIndex, rowIndex, x, x + dataCell.getMergeX()));
+                }
+                if (rowIndex < WIDTH_SAMPLE_ROWS) {
+                    sampleWidth(x, dataCell.getValue());
+                }
+            }
+            if (maxLines > 1) {
+                Integer height = maxLines * 400;
+                row.setHeight(height.shortValue());
+            }
+        }
+        this.nextRow += section.getMaxY() + 1;
+    }
+
+    private void sampleWidth(int column, String value)
+    {
+        if (value == null) {
+            return;
+        }
+        int longest = 0;
+        for (String line : StringUtils.split(value, '\n')) {
+            longest = Math.max(longest, line.length());
+        }
+        Integer current = this.sampledWidths.get(column);
+        if (current == null || current < longest) {
+            this.sampledWidths.put(column, longest);
+        }
+    }
+
+    /** Sets the width of the columns from the sampled widths, up to {@link DataToCellConverter#charactersPerLine}. */
+    private void sizeColumns()
+    {
+        for (Map.Entry<Integer, Integer> width : this.sampledWidths.entrySet()) {
+            int characters = Math.min(width.getValue() + 1, DataToCellConverter.charactersPerLine);
+            this.sheet.setColumnWidth(width.getKey(), characters * CHARACTER_WIDTH);
+        }
+    }
+
+    private DataSection getResult(Future<DataSection> conversion) throws Exception
+    {
+        try {
+            return conversion.get();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof Exception) {
+                throw (Exception) ex.getCause();
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Converts one patient into a styled section. Each worker thread uses its own converter, since converters keep
+     * some state about the current patient.
+     */
+    private static final class PatientConversion implements Callable<DataSection>
+    {
+        private final Patient patient;
+
+        private final Set<String> enabledFields;
+
+        private final Map<Integer, Set<StyleOption>> borders;
+
+        private final ThreadLocal<DataToCellConverter> converters;
+
+        PatientConversion(Patient patient, Set<String> enabledFields, Map<Integer, Set<StyleOption>> borders,
+            ThreadLocal<DataToCellConverter> converters)
+        {
+            this.patient = patient;
+            this.enabledFields = enabledFields;
+            this.borders = borders;
+            this.converters = converters;
+        }
+
+        @Override
+        public DataSection call() throws Exception
+        {
+            DataToCellConverter converter = this.converters.get();
+            if (converter == null) {
+                converter = new DataToCellConverter();
+                // The header is not needed, but generating it is what sets up the converter
+                SheetAssembler.assembleHeader(converter, new HashSet<String>(this.enabledFields));
+                this.converters.set(converter);
+            }
+            DataSection section = SheetAssembler.assemblePatient(converter, this.patient);
+            /* Extend the section borders of the header all the way to the bottom of the sheet */
+            Styler.applyColumnStyles(section, this.borders);
+            section.finalizeToMatrix();
+            return section;
+        }
+    }
+
+    /** Creates daemon threads running in a clone of the execution context of the thread starting the export. */
+    private final class WorkerThreadFactory implements ThreadFactory
+    {
+        @Override
+        public Thread newThread(final Runnable r)
+        {
+            final ExecutionContext context = cloneContext();
+            Thread thread = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    if (context != null) {
+                        StreamingSpreadsheetExporter.this.execution.setContext(context);
+                    }
+                    try {
+                        r.run();
+                    } finally {
+                        if (context != null) {
+                            StreamingSpreadsheetExporter.this.execution.removeContext();
+                        }
+                    }
+                }
+            }, "Spreadsheet export");
+            thread.setDaemon(true);
+            return thread;
+        }
+
+        private ExecutionContext cloneContext()
+        {
+            if (StreamingSpreadsheetExporter.this.execution == null
+                || StreamingSpreadsheetExporter.this.execution.getContext() == null) {
+                return null;
+            }
+            try {
+                return StreamingSpreadsheetExporter.this.contextManager
+                    .clone(StreamingSpreadsheetExporter.this.execution.getContext());
+            } catch (ExecutionContextException ex) {
+                throw new IllegalStateException("Failed to clone the execution context", ex);
+            }
+        }
+    }
+}
@@ -21,6 +21,7 @@
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -82,8 +83,8 @@ public static void disallowBodyStyles(DataSection section) throws Exception
     /**
      * Styles the bottom cells of the section. Creates new {@link org.phenotips.export.internal.DataCell}s, if missing.
      * This is a static function that is used outside of this class in the final stages of committing cells to a
-     * spreadsheet. For example, {@link org.phenotips.export.internal.SheetAssembler#SheetAssembler(java.util.Set,
-     * java.util.List)}.
+     * spreadsheet. For example, {@link org.phenotips.export.internal.SheetAssembler#assembleHeader(DataToCellConverter,
+     * java.util.Set)}.
      *
      * @param section cannot be null
      * @param style the style to apply
@@ -208,12 +209,28 @@ public static void extendStyleHorizontally(DataSection section, StyleOption... s
      */
     public static void extendStyleVertically(DataSection section, StyleOption... styles)
         throws Exception
+    {
+        applyColumnStyles(section, findColumnStyles(section, styles));
+    }
+
+    /**
+     * Finds, for each column of the passed in section, which of the passed in styles should be extended vertically, as
+     * done by {@link #extendStyleVertically(DataSection, StyleOption[])}.
+     *
+     * @param section cannot be null
+     * @param styles an array of styles to look for
+     * @return the styles to extend, mapped by the column where they were found; columns with no styles are missing
+     * @throws Exception if the section was not {@link DataSection#finalizeToMatrix()}
+     */
+    public static Map<Integer, Set<StyleOption>> findColumnStyles(DataSection section, StyleOption... styles)
+        throws Exception
     {
         DataCell[][] cellMatrix = section.getMatrix();
         if (cellMatrix == null) {
             throw new Exception(NO_MATRIX_ERR_MSG);
         }
 
+        Map<Integer, Set<StyleOption>> result = new LinkedHashMap<Integer, Set<StyleOption>>();
         for (int x = 0; x <= section.getMaxX(); x++) {
             Set<StyleOption> toExtend = new HashSet<StyleOption>();
             Boolean found = false;
@@ -233,18 +250,42 @@ public static void extendStyleVertically(DataSection section, StyleOption... sty
                     break;
                 }
             }
-            if (!found) {
-                continue;
+            if (found) {
+                result.put(x, toExtend);
             }
+        }
+        return result;
+    }
+
+    /**
+     * Adds styles to all the cells of some columns of the passed in section, from the top to the bottom of the section.
+     * Creates new {@link org.phenotips.export.internal.DataCell}s, if missing; columns outside the section's
+     * {@link DataSection#getMatrix() matrix} are filled with new cells, so the section must be finalized again in that
+     * case.
+     *
+     * @param section cannot be null
+     * @param columnStyles the styles to add, mapped by the column they should be added to, as returned by
+     *            {@link #findColumnStyles(DataSection, StyleOption[])}
+     * @throws Exception if the section was not {@link DataSection#finalizeToMatrix()}
+     */
+    public static void applyColumnStyles(DataSection section, Map<Integer, Set<StyleOption>> columnStyles)
+        throws Exception
+    {
+        DataCell[][] cellMatrix = section.getMatrix();
+        if (cellMatrix == null) {
+            throw new Exception(NO_MATRIX_ERR_MSG);
+        }
 
+        for (Map.Entry<Integer, Set<StyleOption>> column : columnStyles.entrySet()) {
+            int x = column.getKey();
             /* In case the border passes through non-existent cells */
             for (int y = 0; y <= section.getMaxY(); y++) {
-                DataCell cell = cellMatrix[x][y];
+                DataCell cell = x < cellMatrix.length ? cellMatrix[x][y] : null;
                 if (cell == null) {
                     cell = new DataCell("", x, y);
                     section.addCell(cell);
                 }
-                cell.addStyles(toExtend);
+                cell.addStyles(column.getValue());
             }
         }
     }
@@ -259,6 +300,13 @@ public static void extendStyleVertically(DataSection section, StyleOption... sty
     public void style(DataCell dataCell, Cell cell, Workbook wBook)
     {
         Set<StyleOption> styles = dataCell.getStyles();
+        /* Check the cache first, since every created style is stored in the workbook, even if it isn't used */
+        CellStyle cachedStyle = this.styleCache.get(styles == null ? Collections.<StyleOption>emptySet() : styles);
+        if (cachedStyle != null) {
+            cell.setCellStyle(cachedStyle);
+            return;
+        }
+
         CellStyle cellStyle = wBook.createCellStyle();
         /* For \n to work properly set to true */
         cellStyle.setWrapText(true);
@@ -272,10 +320,6 @@ public void style(DataCell dataCell, Cell cell, Workbook wBook)
         if (this.setDefaultStyle(styles, cell, cellStyle)) {
             return;
         }
-        if (this.styleCache.containsKey(styles)) {
-            cell.setCellStyle(this.styleCache.get(styles));
-            return;
-        }
 
         /* Priority of styles can be coded in by placing the if statement lower within the corresponding function. */
         this.setFontStyles(styles, cell, cellStyle, wBook);
@@ -292,10 +336,6 @@ public void style(DataCell dataCell, Cell cell, Workbook wBook)
     private boolean setDefaultStyle(Set<StyleOption> styles, Cell cell, CellStyle cellStyle)
     {
         if (styles == null) {
-            if (this.styleCache.containsKey(Collections.<StyleOption>emptySet())) {
-                cell.setCellStyle(this.styleCache.get(Collections.<StyleOption>emptySet()));
-                return true;
-            }
             cell.setCellStyle(cellStyle);
             this.styleCache.put(Collections.<StyleOption>emptySet(), cellStyle);
             return true;
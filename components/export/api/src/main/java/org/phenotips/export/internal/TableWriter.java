@@ -0,0 +1,53 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.export.internal;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Writes a flat table, row by row, as produced by {@link ColumnarExporter}.
+ *
+ * @version $Id$
+ * @since 1.3M1
+ */
+interface TableWriter
+{
+    /**
+     * Starts the table.
+     *
+     * @param columns the names of the columns
+     * @throws IOException if writing to the output fails
+     */
+    void start(List<String> columns) throws IOException;
+
+    /**
+     * Adds a row to the table.
+     *
+     * @param values the values of the row, one for each column, {@code null} for missing values
+     * @throws IOException if writing to the output fails
+     */
+    void writeRow(String[] values) throws IOException;
+
+    /**
+     * Ends the table and flushes any buffered output, without closing the output.
+     *
+     * @throws IOException if writing to the output fails
+     */
+    void finish() throws IOException;
+}
@@ -0,0 +1,91 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.export.script;
+
+import org.phenotips.data.PatientRepository;
+import org.phenotips.export.internal.ColumnarExporter;
+import org.phenotips.export.internal.ColumnarFormat;
+import org.phenotips.export.internal.LazyPatientIterator;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.script.service.ScriptService;
+import org.xwiki.stability.Unstable;
+
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Locale;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+
+/**
+ * Service for exporting patients as a flat table, with one row per patient, in a format meant for data analysis tools:
+ * {@code csv}, {@code tsv}, or {@code binary} for a compact typed columnar format.
+ *
+ * @version $Id$
+ * @since 1.3M1
+ */
+@Unstable
+@Component
+@Named("columnarexport")
+@Singleton
+public class ColumnarExportService implements ScriptService
+{
+    @Inject
+    private Logger logger;
+
+    /** Used for loading the patients to export, checking that the current user can view them. */
+    @Inject
+    @Named("secure")
+    private PatientRepository repository;
+
+    /**
+     * Export the patients with the provided identifiers, containing the specified columns. Patients are loaded and
+     * written one by one, so that large cohorts can be exported without holding all the patients in memory. Patients
+     * that don't exist, or that the current user cannot view, are skipped.
+     *
+     * @param patientIds the identifiers of the patients to export
+     * @param enabledFields a list of field names to export, the same as for the spreadsheet export
+     * @param format the output format, one of {@code csv}, {@code tsv} or {@code binary}
+     * @param outputStream the output stream where the result will be sent, usually the {@code $response}'s output
+     *            stream
+     */
+    public void export(Collection<String> patientIds, String[] enabledFields, String format, OutputStream outputStream)
+    {
+        if (patientIds == null || format == null) {
+            return;
+        }
+        ColumnarFormat columnarFormat;
+        try {
+            columnarFormat = ColumnarFormat.valueOf(format.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException ex) {
+            this.logger.error("Unknown export format [{}]", format);
+            return;
+        }
+        ColumnarExporter exporter = new ColumnarExporter(columnarFormat);
+        try {
+            exporter.export(enabledFields, new LazyPatientIterator(patientIds.iterator(), this.repository),
+                outputStream);
+        } catch (Exception ex) {
+            this.logger.error("Error caught while generating a columnar export", ex);
+        }
+    }
+}
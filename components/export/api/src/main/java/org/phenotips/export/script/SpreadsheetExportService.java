@@ -18,14 +18,20 @@
 package org.phenotips.export.script;
 
 import org.phenotips.data.Patient;
-import org.phenotips.export.internal.SpreadsheetExporter;
+import org.phenotips.data.PatientRepository;
+import org.phenotips.export.internal.LazyPatientIterator;
+import org.phenotips.export.internal.StreamingSpreadsheetExporter;
 
 import org.xwiki.component.annotation.Component;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContextManager;
 import org.xwiki.model.reference.DocumentReferenceResolver;
 import org.xwiki.script.service.ScriptService;
 import org.xwiki.stability.Unstable;
 
 import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 
 import javax.inject.Inject;
@@ -53,6 +59,17 @@ public class SpreadsheetExportService implements ScriptService
     @Named("current")
     private DocumentReferenceResolver<String> referenceResolver;
 
+    /** Used for loading the patients to export, checking that the current user can view them. */
+    @Inject
+    @Named("secure")
+    private PatientRepository repository;
+
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private ExecutionContextManager contextManager;
+
     /**
      * Export the provided list of patients into an Excel file, containing the specified columns. The resulting binary
      * filled will be sent through the provided output stream, usually the {@code $response}'s output stream.
@@ -64,7 +81,32 @@ public class SpreadsheetExportService implements ScriptService
      */
     public void export(List<Patient> patients, String[] enabledFields, OutputStream outputStream)
     {
-        SpreadsheetExporter exporter = new SpreadsheetExporter();
+        export(patients == null ? null : patients.iterator(), enabledFields, outputStream);
+    }
+
+    /**
+     * Export the patients with the provided identifiers into an Excel file, containing the specified columns. Patients
+     * are loaded one by one while the file is being generated, so that large cohorts can be exported without holding
+     * all the patients in memory. Patients that don't exist, or that the current user cannot view, are skipped.
+     *
+     * @param patientIds the identifiers of the patients to export
+     * @param enabledFields a list of field names to export; these are internal names, which will be turned into human
+     *            readable labels
+     * @param outputStream the output stream where the resulting binary {@code .xlsx} file will be sent
+     * @since 1.3M1
+     */
+    public void exportPatients(Collection<String> patientIds, String[] enabledFields, OutputStream outputStream)
+    {
+        if (patientIds == null) {
+            return;
+        }
+        export(new LazyPatientIterator(patientIds.iterator(), this.repository), enabledFields, outputStream);
+    }
+
+    private void export(Iterator<Patient> patients, String[] enabledFields, OutputStream outputStream)
+    {
+        StreamingSpreadsheetExporter exporter = new StreamingSpreadsheetExporter(this.execution, this.contextManager,
+            Runtime.getRuntime().availableProcessors());
         try {
             exporter.export(enabledFields, patients, outputStream);
         } catch (Exception ex) {
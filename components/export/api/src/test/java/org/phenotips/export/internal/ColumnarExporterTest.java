@@ -0,0 +1,271 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.export.internal;
+
+import org.phenotips.data.Patient;
+
+import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.component.manager.ComponentManager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import com.xpn.xwiki.web.Utils;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ColumnarExporterTest
+{
+    private static final String[] ID_FIELDS = new String[] { "doc.name", "external_id" };
+
+    @Mock
+    private ComponentManager cm;
+
+    @Mock
+    private DocumentAccessBridge dab;
+
+    @Before
+    public void setup() throws Exception
+    {
+        MockitoAnnotations.initMocks(this);
+        Utils.setComponentManager(this.cm);
+        when(this.cm.getInstance(DocumentAccessBridge.class)).thenReturn(this.dab);
+    }
+
+    @Test
+    public void csvExportHasOneLinePerPatient() throws Exception
+    {
+        String result = export(ColumnarFormat.CSV, "12", "Smith, \"J\"", null);
+
+        Assert.assertEquals("Identifiers / Report ID,Identifiers / Patient Identifier\r\n"
+            + "P0000000,12\r\n"
+            + "P0000001,\"Smith, \"\"J\"\"\"\r\n"
+            + "P0000002,\r\n", result);
+    }
+
+    @Test
+    public void tsvExportEscapesSpecialCharacters() throws Exception
+    {
+        String result = export(ColumnarFormat.TSV, "a\tb", "two\nlines", "back\\slash");
+
+        Assert.assertEquals("Identifiers / Report ID\tIdentifiers / Patient Identifier\n"
+            + "P0000000\ta\\tb\n"
+            + "P0000001\ttwo\\nlines\n"
+            + "P0000002\tback\\\\slash\n", result);
+    }
+
+    @Test
+    public void binaryExportStoresTypedColumns() throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ColumnarExporter(ColumnarFormat.BINARY).export(ID_FIELDS, getPatients("12", null, "-3", "7").iterator(),
+            out);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+        byte[] magic = new byte[4];
+        in.readFully(magic);
+        Assert.assertEquals("PTCF", new String(magic, StandardCharsets.US_ASCII));
+        Assert.assertEquals(1, in.readByte());
+        Assert.assertEquals(2, readVarInt(in));
+        Assert.assertEquals("Identifiers / Report ID", readString(in));
+        Assert.assertEquals("Identifiers / Patient Identifier", readString(in));
+
+        Assert.assertEquals(4, readVarInt(in));
+        Assert.assertEquals(BinaryColumnarTableWriter.STRING, in.readByte());
+        Assert.assertEquals(0x0F, in.readByte());
+        for (int i = 0; i < 4; ++i) {
+            Assert.assertEquals("P000000" + i, readString(in));
+        }
+        Assert.assertEquals(BinaryColumnarTableWriter.INTEGER, in.readByte());
+        Assert.assertEquals(0x0D, in.readByte());
+        for (long expected : new long[] { 12, -3, 7 }) {
+            long zigzag = readVarInt(in);
+            Assert.assertEquals(expected, (zigzag >>> 1) ^ -(zigzag & 1));
+        }
+
+        Assert.assertEquals(0, readVarInt(in));
+        Assert.assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void binaryExportUsesDictionariesForRepeatedValues() throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ColumnarExporter(ColumnarFormat.BINARY).export(ID_FIELDS,
+            getPatients("yes", "no", "yes", "yes", "yes", "0.5").iterator(), out);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+        in.skipBytes(5);
+        for (int i = readVarInt(in); i > 0; --i) {
+            readString(in);
+        }
+        Assert.assertEquals(6, readVarInt(in));
+        in.skipBytes(2);
+        for (int i = 0; i < 6; ++i) {
+            readString(in);
+        }
+        Assert.assertEquals(BinaryColumnarTableWriter.DICTIONARY, in.readByte());
+        Assert.assertEquals(0x3F, in.readByte());
+        Assert.assertEquals(3, readVarInt(in));
+        Assert.assertEquals("yes", readString(in));
+        Assert.assertEquals("no", readString(in));
+        Assert.assertEquals("0.5", readString(in));
+        for (int expected : new int[] { 0, 1, 0, 0, 0, 2 }) {
+            Assert.assertEquals(expected, readVarInt(in));
+        }
+    }
+
+    @Test
+    public void binaryExportOnlyStoresExactDecimalsAsNumbers() throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ColumnarExporter(ColumnarFormat.BINARY).export(ID_FIELDS, getPatients("1.5", "-0.25", "10.0").iterator(),
+            out);
+        DataInputStream in = skipToSecondColumn(out, 3);
+        Assert.assertEquals(BinaryColumnarTableWriter.DECIMAL, in.readByte());
+        Assert.assertEquals(0x07, in.readByte());
+        Assert.assertEquals(1.5, in.readDouble(), 0);
+        Assert.assertEquals(-0.25, in.readDouble(), 0);
+        Assert.assertEquals(10.0, in.readDouble(), 0);
+
+        // Trailing zeros, or integers mixed with decimals, wouldn't be read back the same way
+        for (String[] values : new String[][] { { "1.50", "2.5" }, { "3", "2.5" } }) {
+            out = new ByteArrayOutputStream();
+            new ColumnarExporter(ColumnarFormat.BINARY).export(ID_FIELDS, getPatients(values).iterator(), out);
+            in = skipToSecondColumn(out, 2);
+            Assert.assertEquals(BinaryColumnarTableWriter.STRING, in.readByte());
+            Assert.assertEquals(0x03, in.readByte());
+            Assert.assertEquals(values[0], readString(in));
+            Assert.assertEquals(values[1], readString(in));
+        }
+    }
+
+    @Test
+    public void columnNamesCombineAllHeaderRows()
+    {
+        DataSection header = new DataSection();
+        header.addCell(new DataCell("Phenotype", 0, 0));
+        header.addCell(new DataCell("Present", 0, 1));
+        header.addCell(new DataCell("Label", 1, 1));
+        header.addCell(new DataCell("ID", 2, 1));
+
+        Assert.assertEquals(Arrays.asList("Phenotype / Present", "Phenotype / Label", "Phenotype / ID"),
+            ColumnarExporter.getColumnNames(header));
+    }
+
+    @Test
+    public void flattenJoinsTheRowsOfEachColumn()
+    {
+        DataSection phenotypes = new DataSection();
+        phenotypes.addCell(new DataCell("Yes", 0, 0));
+        phenotypes.addCell(new DataCell("Seizures", 1, 0));
+        phenotypes.addCell(new DataCell("Ataxia", 1, 1));
+        phenotypes.addCell(new DataCell("No", 0, 2));
+        phenotypes.addCell(new DataCell("Tremor", 1, 2));
+        phenotypes.addCell(new DataCell("", 1, 3));
+        DataSection ids = new DataSection();
+        ids.addCell(new DataCell("P0000001", 0, 0));
+
+        String[] row = ColumnarExporter.flatten(Arrays.asList(ids, phenotypes), new int[] { 0, 2 }, 5);
+
+        Assert.assertArrayEquals(new String[] { "P0000001", null, "Yes||No", "Seizures|Ataxia|Tremor", null }, row);
+    }
+
+    @Test
+    public void flattenEscapesTheSeparator()
+    {
+        DataSection notes = new DataSection();
+        notes.addCell(new DataCell("a|b", 0, 0));
+        notes.addCell(new DataCell("c\\d", 0, 1));
+        notes.addCell(new DataCell("|", 1, 0));
+
+        String[] row = ColumnarExporter.flatten(Arrays.asList(notes), new int[] { 0 }, 2);
+
+        Assert.assertArrayEquals(new String[] { "a\\|b|c\\\\d", "\\|" }, row);
+    }
+
+    /** Skips the header and the first column of a binary export with a single row group. */
+    private DataInputStream skipToSecondColumn(ByteArrayOutputStream out, int rows) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+        in.skipBytes(5);
+        for (int i = readVarInt(in); i > 0; --i) {
+            readString(in);
+        }
+        Assert.assertEquals(rows, readVarInt(in));
+        Assert.assertEquals(BinaryColumnarTableWriter.STRING, in.readByte());
+        in.skipBytes(1);
+        for (int i = 0; i < rows; ++i) {
+            readString(in);
+        }
+        return in;
+    }
+
+    private String export(ColumnarFormat format, String... externalIds) throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ColumnarExporter(format).export(ID_FIELDS, getPatients(externalIds).iterator(), out);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private List<Patient> getPatients(String... externalIds)
+    {
+        List<Patient> patients = new LinkedList<>();
+        for (int i = 0; i < externalIds.length; ++i) {
+            Patient patient = mock(Patient.class);
+            when(patient.getId()).thenReturn(String.format("P%07d", i));
+            when(patient.getExternalId()).thenReturn(externalIds[i]);
+            patients.add(patient);
+        }
+        patients.add(null);
+        return patients;
+    }
+
+    private int readVarInt(DataInputStream in) throws IOException
+    {
+        int result = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.readByte();
+            result |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return result;
+    }
+
+    private String readString(DataInputStream in) throws IOException
+    {
+        byte[] bytes = new byte[readVarInt(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.export.internal;
+
+import org.phenotips.data.Patient;
+
+import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextManager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import com.xpn.xwiki.web.Utils;
+
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class StreamingSpreadsheetExporterTest
+{
+    private static final String[] ID_FIELDS = new String[] { "doc.name", "external_id" };
+
+    @Mock
+    private ComponentManager cm;
+
+    @Mock
+    private DocumentAccessBridge dab;
+
+    private List<Patient> patients = new ArrayList<>();
+
+    @Before
+    public void setup() throws Exception
+    {
+        MockitoAnnotations.initMocks(this);
+        Utils.setComponentManager(this.cm);
+        when(this.cm.getInstance(DocumentAccessBridge.class)).thenReturn(this.dab);
+
+        for (int i = 0; i < 50; ++i) {
+            Patient patient = mock(Patient.class);
+            when(patient.getId()).thenReturn(String.format("P%07d", i));
+            when(patient.getExternalId()).thenReturn("Patient " + StringUtils.repeat('x', i));
+            this.patients.add(patient);
+        }
+    }
+
+    @Test
+    public void exportWritesAllPatientsInOrder() throws Exception
+    {
+        this.patients.add(10, null);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        new StreamingSpreadsheetExporter(null, null, 4).export(ID_FIELDS, this.patients.iterator(), out);
+
+        Sheet sheet = new XSSFWorkbook(new ByteArrayInputStream(out.toByteArray())).getSheetAt(0);
+        Assert.assertEquals("Identifiers", sheet.getRow(0).getCell(0).getStringCellValue());
+        Assert.assertEquals("Report ID", sheet.getRow(1).getCell(0).getStringCellValue());
+        Assert.assertEquals("Patient Identifier", sheet.getRow(1).getCell(1).getStringCellValue());
+        Assert.assertEquals(1, sheet.getNumMergedRegions());
+        Assert.assertEquals(51, sheet.getLastRowNum());
+        for (int i = 0; i < 50; ++i) {
+            Row row = sheet.getRow(i + 2);
+            Assert.assertEquals(String.format("P%07d", i), row.getCell(0).getStringCellValue());
+            Assert.assertEquals("Patient " + StringUtils.repeat('x', i), row.getCell(1).getStringCellValue());
+            Assert.assertEquals(CellStyle.BORDER_MEDIUM, row.getCell(0).getCellStyle().getBorderLeft());
+            Assert.assertEquals(CellStyle.BORDER_MEDIUM, row.getCell(1).getCellStyle().getBorderRight());
+        }
+    }
+
+    @Test
+    public void columnsAreSizedFromTheirContent() throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        new StreamingSpreadsheetExporter(null, null, 2).export(ID_FIELDS, this.patients.iterator(), out);
+
+        Sheet sheet = new XSSFWorkbook(new ByteArrayInputStream(out.toByteArray())).getSheetAt(0);
+        Assert.assertTrue(sheet.getColumnWidth(1) > sheet.getColumnWidth(0));
+        Assert.assertTrue(sheet.getColumnWidth(1) <= DataToCellConverter.charactersPerLine * 210);
+    }
+
+    @Test
+    public void conversionRunsInAClonedExecutionContext() throws Exception
+    {
+        Execution execution = mock(Execution.class);
+        ExecutionContextManager contextManager = mock(ExecutionContextManager.class);
+        ExecutionContext context = new ExecutionContext();
+        ExecutionContext clone = new ExecutionContext();
+        when(execution.getContext()).thenReturn(context);
+        when(contextManager.clone(context)).thenReturn(clone);
+
+        new StreamingSpreadsheetExporter(execution, contextManager, 2).export(ID_FIELDS, this.patients.iterator(),
+            new ByteArrayOutputStream());
+
+        verify(execution, atLeastOnce()).setContext(clone);
+        verify(execution, timeout(5000).atLeastOnce()).removeContext();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void conversionErrorsAreReported() throws Exception
+    {
+        when(this.patients.get(20).getId()).thenThrow(new IllegalStateException());
+        OutputStream out = mock(OutputStream.class);
+        try {
+            new StreamingSpreadsheetExporter(null, null, 4).export(ID_FIELDS, this.patients.iterator(), out);
+        } finally {
+            verify(out).close();
+        }
+    }
+
+    @Test
+    public void badParameters() throws Exception
+    {
+        OutputStream out = mock(OutputStream.class);
+        StreamingSpreadsheetExporter exporter = new StreamingSpreadsheetExporter(null, null, 4);
+        exporter.export(null, this.patients.iterator(), out);
+        exporter.export(ID_FIELDS, null, out);
+        exporter.export(ID_FIELDS, this.patients.iterator(), null);
+        verify(this.patients.get(0), never()).getId();
+    }
+}
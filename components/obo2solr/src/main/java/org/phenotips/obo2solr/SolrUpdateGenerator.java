@@ -18,11 +18,18 @@
 package org.phenotips.obo2solr;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.slf4j.Logger;
@@ -32,16 +39,11 @@
 {
     private static final String TERM_MARKER = "[Term]";
 
-    /** Not all entities are terms prompted by the presence of a {@link #TERM_MARKER} */
-    private static final String ENTITY_SEPARATION_REGEX = "^\\[[a-zA-Z]+\\]$";
+    private static final String HEADER_ID = "HEADER_INFO";
 
-    private static final String FIELD_NAME_VALUE_SEPARATOR = "\\s*:\\s+";
+    private static final String VERSION_FIELD_NAME = "version";
 
-    private int counter;
-
-    private TermData crtTerm = new TermData();
-
-    private Map<String, TermData> data = new LinkedHashMap<String, TermData>();
+    private static final String DATA_VERSION_FIELD_NAME = "data-version";
 
     private Map<String, Double> fieldSelection;
 
@@ -59,66 +61,200 @@ public Map<String, TermData> transform(String ontologyUrl, Map<String, Double> f
     }
 
     public Map<String, TermData> transform(URL input, Map<String, Double> fieldSelection)
+    {
+        final Map<String, TermData> data = new LinkedHashMap<String, TermData>();
+        try {
+            transform(input, fieldSelection, new TermHandler()
+            {
+                @Override
+                public void handle(TermData term)
+                {
+                    data.put(term.getId(), term);
+                }
+            });
+        } catch (IOException ex) {
+            this.logger.error("IOException: {}", ex.getMessage());
+        }
+        return data;
+    }
+
+    /**
+     * Parse an OBO ontology, passing each term to a handler as soon as it is complete. Only the hierarchy of the
+     * ontology is kept in memory, so the memory needed doesn't depend on the amount of data stored for each term. When
+     * the ancestors of the terms are needed, the ontology is read twice: once to build the hierarchy, and once to emit
+     * the terms; remote ontologies are downloaded in a temporary file first.
+     *
+     * @param input the location of the ontology
+     * @param fieldSelection the fields to extract, along with their boost; if empty, all fields are extracted
+     * @param handler receives the parsed terms, in the order they are defined in the ontology
+     * @return the number of terms passed to the handler, including the header, if any
+     * @throws IOException if reading the ontology fails, or if the handler fails
+     * @since 1.3M1
+     */
+    public int transform(URL input, Map<String, Double> fieldSelection, TermHandler handler) throws IOException
     {
         this.fieldSelection = fieldSelection;
+        File localCopy = null;
         try {
-            BufferedReader in = new BufferedReader(new InputStreamReader(input.openConnection().getInputStream()));
+            URL source = input;
+            TermHierarchy hierarchy = null;
+            if (isFieldSelected(TermData.TERM_CATEGORY_FIELD_NAME)) {
+                if (!"file".equals(input.getProtocol())) {
+                    localCopy = File.createTempFile("obo2solr", ".obo");
+                    try (InputStream in = input.openStream()) {
+                        Files.copy(in, localCopy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    source = localCopy.toURI().toURL();
+                }
+                hierarchy = readHierarchy(source);
+            }
+            return readTerms(source, hierarchy, handler);
+        } finally {
+            this.fieldSelection = null;
+            if (localCopy != null && !localCopy.delete()) {
+                localCopy.deleteOnExit();
+            }
+        }
+    }
+
+    private TermHierarchy readHierarchy(URL input) throws IOException
+    {
+        TermHierarchy result = new TermHierarchy();
+        try (BufferedReader in = open(input)) {
             String line;
-            this.counter = 0;
+            boolean inTerm = false;
+            String id = null;
+            List<String> parents = new ArrayList<>();
+            while ((line = in.readLine()) != null) {
+                String trimmed = line.trim();
+                if (isEntitySeparator(trimmed)) {
+                    if (inTerm && id != null) {
+                        result.setParents(id, parents);
+                    }
+                    inTerm = TERM_MARKER.equalsIgnoreCase(trimmed);
+                    id = null;
+                    parents.clear();
+                    continue;
+                }
+                int separator = findNameValueSeparator(line);
+                if (!inTerm || separator < 0) {
+                    continue;
+                }
+                String name = getName(line, separator);
+                if (TermData.ID_FIELD_NAME.equals(name)) {
+                    id = getValue(line, separator);
+                } else if (TermData.PARENT_FIELD_NAME.equals(name)) {
+                    parents.add(TermData.getParentId(getValue(line, separator)));
+                }
+            }
+            if (inTerm && id != null) {
+                result.setParents(id, parents);
+            }
+        }
+        return result;
+    }
 
+    private int readTerms(URL input, TermHierarchy hierarchy, TermHandler handler) throws IOException
+    {
+        int count = 0;
+        try (BufferedReader in = open(input)) {
+            TermData crtTerm = new TermData();
+            String line;
             /*
              * When encountering a separator that is not a term separator, all data should be skipped until a term
              * separator is encountered again
              */
             boolean skip = false;
             while ((line = in.readLine()) != null) {
-                if (line.trim().matches(ENTITY_SEPARATION_REGEX)) {
-                    if (this.counter > 0) {
-                        storeCrtTerm();
-                    }
-                    // Overridden below
-                    skip = true;
+                String trimmed = line.trim();
+                if (isEntitySeparator(trimmed)) {
+                    count += emit(crtTerm, hierarchy, handler);
+                    crtTerm = new TermData();
+                    skip = !TERM_MARKER.equalsIgnoreCase(trimmed);
+                    continue;
                 }
-                if (line.trim().equalsIgnoreCase(TERM_MARKER)) {
-                    ++this.counter;
-                    skip = false;
+                if (skip) {
                     continue;
                 }
-                if (!skip) {
-                    String[] pieces = line.split(FIELD_NAME_VALUE_SEPARATOR, 2);
-                    if (pieces.length != 2) {
-                        continue;
-                    }
-                    if (pieces[0].trim().equals("data-version")) {
-                        this.crtTerm.addTo("version", pieces[1]);
-                        this.crtTerm.addTo(TermData.ID_FIELD_NAME, "HEADER_INFO");
-                        this.counter++;
-                    }
-                    loadField(pieces[0], pieces[1]);
+                int separator = findNameValueSeparator(line);
+                if (separator < 0) {
+                    continue;
+                }
+                String name = getName(line, separator);
+                String value = getValue(line, separator);
+                if (DATA_VERSION_FIELD_NAME.equals(name.trim())) {
+                    crtTerm.addTo(VERSION_FIELD_NAME, value);
+                    crtTerm.addTo(TermData.ID_FIELD_NAME, HEADER_ID);
                 }
+                loadField(crtTerm, name, value);
             }
-            if (this.counter > 0) {
-                storeCrtTerm();
+            count += emit(crtTerm, hierarchy, handler);
+        }
+        return count;
+    }
+
+    private int emit(TermData term, TermHierarchy hierarchy, TermHandler handler) throws IOException
+    {
+        if (term.getId() == null) {
+            return 0;
+        }
+        if (hierarchy != null) {
+            term.addTo(TermData.TERM_CATEGORY_FIELD_NAME, hierarchy.getAncestorsAndSelf(term.getId()));
+        }
+        handler.handle(term);
+        return 1;
+    }
+
+    private BufferedReader open(URL input) throws IOException
+    {
+        return new BufferedReader(new InputStreamReader(input.openStream(), StandardCharsets.UTF_8));
+    }
+
+    /** Not all entities are terms, only those prompted by the presence of a {@link #TERM_MARKER}. */
+    private boolean isEntitySeparator(String line)
+    {
+        int length = line.length();
+        if (length < 3 || line.charAt(0) != '[' || line.charAt(length - 1) != ']') {
+            return false;
+        }
+        for (int i = 1; i < length - 1; ++i) {
+            char c = line.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z')) {
+                return false;
             }
-            if (isFieldSelected(TermData.TERM_CATEGORY_FIELD_NAME)) {
-                propagateAncestors();
+        }
+        return true;
+    }
+
+    /** The position of the first colon followed by whitespace, which separates a field name from its value. */
+    private int findNameValueSeparator(String line)
+    {
+        int position = line.indexOf(':');
+        while (position >= 0 && position < line.length() - 1) {
+            if (Character.isWhitespace(line.charAt(position + 1))) {
+                return position;
             }
-        } catch (NullPointerException ex) {
-            this.logger.error("NullPointer: {}", ex.getMessage());
-        } catch (IOException ex) {
-            this.logger.error("IOException: {}", ex.getMessage());
-        } finally {
-            this.fieldSelection = null;
+            position = line.indexOf(':', position + 1);
+        }
+        return -1;
+    }
+
+    private String getName(String line, int separator)
+    {
+        int end = separator;
+        while (end > 0 && Character.isWhitespace(line.charAt(end - 1))) {
+            --end;
         }
-        return this.data;
+        return line.substring(0, end);
     }
 
-    private void storeCrtTerm()
+    private String getValue(String line, int separator)
     {
-        if (this.crtTerm.getId() != null) {
-            this.data.put(this.crtTerm.getId(), this.crtTerm);
+        int start = separator + 1;
+        while (start < line.length() && Character.isWhitespace(line.charAt(start))) {
+            ++start;
         }
-        this.crtTerm = new TermData();
+        return line.substring(start);
     }
 
     private boolean isFieldSelected(String name)
@@ -126,19 +262,51 @@ private boolean isFieldSelected(String name)
         return this.fieldSelection.isEmpty() || this.fieldSelection.containsKey(name);
     }
 
-    private void loadField(String name, String value)
+    private void loadField(TermData term, String name, String value)
     {
         if (!(isFieldSelected(name))) {
             return;
         }
-        this.crtTerm.addTo(name, value.replaceFirst("^\"(.+)\"\\s*?(?:[A-Z]+|\\[).*", "$1").replace("\\\"", "\""));
+        term.addTo(name, unescape(unquote(value)));
     }
 
-    private void propagateAncestors()
+    /**
+     * Extract the text from a quoted value followed by qualifiers, such as {@code "Some text" EXACT []} or
+     * {@code "Some text." [HPO:probinson]}. Other values are returned unchanged.
+     */
+    private String unquote(String value)
     {
-        for (String id : this.data.keySet()) {
-            TermData term = this.data.get(id);
-            term.expandTermCategories(this.data);
+        if (value.length() < 3 || value.charAt(0) != '"') {
+            return value;
+        }
+        for (int end = value.lastIndexOf('"'); end > 1; end = value.lastIndexOf('"', end - 1)) {
+            int next = end + 1;
+            while (next < value.length() && Character.isWhitespace(value.charAt(next))) {
+                ++next;
+            }
+            if (next < value.length()) {
+                char c = value.charAt(next);
+                if (c == '[' || c >= 'A' && c <= 'Z') {
+                    return value.substring(1, end);
+                }
+            }
+        }
+        return value;
+    }
+
+    private String unescape(String value)
+    {
+        int position = value.indexOf("\\\"");
+        if (position < 0) {
+            return value;
+        }
+        StringBuilder result = new StringBuilder(value.length());
+        int start = 0;
+        while (position >= 0) {
+            result.append(value, start, position).append('"');
+            start = position + 2;
+            position = value.indexOf("\\\"", start);
         }
+        return result.append(value, start, value.length()).toString();
     }
 }
@@ -56,7 +56,7 @@ public boolean addTo(String key, String value)
         if (ID_FIELD_NAME.equals(key)) {
             this.id = value;
         } else if (PARENT_FIELD_NAME.equals(key)) {
-            this.addTo(TERM_CATEGORY_FIELD_NAME, value.replaceAll(PARENT_ID_REGEX, "$1"));
+            this.addTo(TERM_CATEGORY_FIELD_NAME, getParentId(value));
         }
         return super.addTo(key, value);
     }
@@ -71,6 +71,26 @@ public boolean addTo(String key, Collection<String> values)
         return result;
     }
 
+    /**
+     * Extract the identifier of the parent term from an {@code is_a} value, dropping the trailing {@code ! Name}
+     * comment.
+     *
+     * @param value an {@code is_a} value, for example {@code HP:0000118 ! Phenotypic abnormality}
+     * @return the identifier of the parent term, for example {@code HP:0000118}
+     */
+    static String getParentId(String value)
+    {
+        int start = 0;
+        while (start < value.length() && Character.isWhitespace(value.charAt(start))) {
+            ++start;
+        }
+        int end = start;
+        while (end < value.length() && value.charAt(end) != '!' && !Character.isWhitespace(value.charAt(end))) {
+            ++end;
+        }
+        return value.substring(start, end);
+    }
+
     public void expandTermCategories(Map<String, TermData> data)
     {
         Set<String> result = new HashSet<String>();
@@ -0,0 +1,38 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.obo2solr;
+
+import java.io.IOException;
+
+/**
+ * Receives the terms of an ontology as they are parsed by {@link SolrUpdateGenerator}.
+ *
+ * @version $Id$
+ * @since 1.3M1
+ */
+public interface TermHandler
+{
+    /**
+     * Process a parsed term. The term is complete, including all its ancestors in the
+     * {@link TermData#TERM_CATEGORY_FIELD_NAME} field, and isn't used by the parser after this call.
+     *
+     * @param term the parsed term
+     * @throws IOException if processing the term fails; parsing stops and the exception is passed on to the caller
+     */
+    void handle(TermData term) throws IOException;
+}
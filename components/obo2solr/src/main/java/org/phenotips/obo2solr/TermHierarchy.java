@@ -0,0 +1,317 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.obo2solr;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The {@code is_a} hierarchy of an ontology, with terms identified internally by their position, and with the ancestor
+ * sets computed once per term and reused for all their descendants. Ancestors are computed without recursion, so deep
+ * hierarchies are not a problem, and terms in a cycle all get the same ancestors: each other, and the ancestors of the
+ * cycle. This is used both while parsing an ontology, for
+ * listing the ancestors of each term, and by the indexed vocabularies, for computing distances between terms without
+ * querying the index.
+ * <p>
+ * Building the hierarchy and listing ancestors isn't thread safe. Once all the parents are set, {@link #contains},
+ * {@link #size} and {@link #getDistance} can be called concurrently.
+ *
+ * @version $Id$
+ * @since 1.3M1
+ */
+public final class TermHierarchy
+{
+    private static final int[] NO_PARENTS = new int[0];
+
+    private final Map<String, Integer> indexes = new HashMap<>();
+
+    private final List<String> ids = new ArrayList<>();
+
+    /** The direct parents of each term, {@code null} for terms only referenced as parents, but not defined. */
+    private int[][] parents = new int[1024][];
+
+    /** The number of defined terms. */
+    private int size;
+
+    /** The sorted indexes of the ancestors of each term, including the term itself; computed when first needed. */
+    private int[][] ancestors;
+
+    /**
+     * Set the parents of a term. Parents don't have to be defined before their children.
+     *
+     * @param id the identifier of the term
+     * @param parentIds the identifiers of the direct parents of the term
+     */
+    public void setParents(String id, Collection<String> parentIds)
+    {
+        int node = getIndex(id);
+        if (this.parents[node] == null) {
+            ++this.size;
+        }
+        int[] nodeParents = new int[parentIds.size()];
+        int i = 0;
+        for (String parentId : parentIds) {
+            nodeParents[i++] = getIndex(parentId);
+        }
+        this.parents[node] = nodeParents;
+        this.ancestors = null;
+    }
+
+    /**
+     * Get the identifiers of all the ancestors of a term, including the term itself.
+     *
+     * @param id the identifier of the term
+     * @return a collection of identifiers, containing at least the requested identifier
+     */
+    public Collection<String> getAncestorsAndSelf(String id)
+    {
+        Integer node = this.indexes.get(id);
+        if (node == null) {
+            return Collections.singleton(id);
+        }
+        if (this.ancestors == null) {
+            computeAncestors();
+        }
+        int[] closure = this.ancestors[node];
+        List<String> result = new ArrayList<>(closure.length);
+        for (int ancestor : closure) {
+            result.add(this.ids.get(ancestor));
+        }
+        return result;
+    }
+
+    /**
+     * Check if a term is defined in this hierarchy. Terms which are only referenced as parents of other terms are not
+     * considered defined.
+     *
+     * @param id the identifier of the term to check
+     * @return {@code true} if the parents of the term were {@link #setParents set}
+     */
+    public boolean contains(String id)
+    {
+        Integer node = this.indexes.get(id);
+        return node != null && this.parents[node] != null;
+    }
+
+    /**
+     * The number of defined terms.
+     *
+     * @return a positive number, or {@code 0} for an empty hierarchy
+     */
+    public int size()
+    {
+        return this.size;
+    }
+
+    /**
+     * Compute the distance between two terms, as the length of the shortest path going up from both terms to a
+     * common ancestor.
+     *
+     * @param fromId the identifier of the first term
+     * @param toId the identifier of the second term
+     * @return the distance between the two terms, {@code 0} if they are the same term, or {@code -1} if either term is
+     *         not defined or they have no common ancestor
+     */
+    public long getDistance(String fromId, String toId)
+    {
+        if (!contains(fromId) || !contains(toId)) {
+            return -1;
+        }
+        Map<Integer, Integer> fromDistances = getAncestorDistances(this.indexes.get(fromId));
+        Map<Integer, Integer> toDistances = getAncestorDistances(this.indexes.get(toId));
+        long result = -1;
+        for (Map.Entry<Integer, Integer> ancestor : fromDistances.entrySet()) {
+            Integer otherDistance = toDistances.get(ancestor.getKey());
+            if (otherDistance != null && (result < 0 || ancestor.getValue() + otherDistance < result)) {
+                result = ancestor.getValue() + otherDistance;
+            }
+        }
+        return result;
+    }
+
+    /** Breadth-first search going up from a term, listing the length of the shortest path to each ancestor. */
+    private Map<Integer, Integer> getAncestorDistances(int node)
+    {
+        Map<Integer, Integer> result = new HashMap<>();
+        result.put(node, 0);
+        Deque<Integer> queue = new ArrayDeque<>();
+        queue.add(node);
+        while (!queue.isEmpty()) {
+            int current = queue.poll();
+            int distance = result.get(current) + 1;
+            for (int parent : getParents(current)) {
+                if (!result.containsKey(parent)) {
+                    result.put(parent, distance);
+                    queue.add(parent);
+                }
+            }
+        }
+        return result;
+    }
+
+    private int getIndex(String id)
+    {
+        Integer result = this.indexes.get(id);
+        if (result == null) {
+            result = this.ids.size();
+            this.indexes.put(id, result);
+            this.ids.add(id);
+            if (result == this.parents.length) {
+                this.parents = Arrays.copyOf(this.parents, result * 2);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Compute the ancestors of all the terms, using Tarjan's strongly connected components algorithm with explicit
+     * stacks. A component is completed after all the components above it, so its ancestors are its members, plus the
+     * already computed ancestors of the parents outside the component.
+     */
+    private void computeAncestors()
+    {
+        int count = this.ids.size();
+        this.ancestors = new int[count][];
+        // The order in which each term was reached, 0 for terms not reached yet
+        int[] visitOrder = new int[count];
+        // The earliest reached term known to be in the same component as each term
+        int[] lowLink = new int[count];
+        // How many parents of each term were already explored
+        int[] nextParent = new int[count];
+        boolean[] inComponent = new boolean[count];
+        int[] calls = new int[count];
+        int[] component = new int[count];
+        int callDepth = 0;
+        int componentSize = 0;
+        int visited = 0;
+
+        for (int start = 0; start < count; ++start) {
+            if (visitOrder[start] != 0) {
+                continue;
+            }
+            calls[callDepth++] = start;
+            visitOrder[start] = ++visited;
+            lowLink[start] = visited;
+            component[componentSize++] = start;
+            inComponent[start] = true;
+
+            while (callDepth > 0) {
+                int node = calls[callDepth - 1];
+                int[] nodeParents = getParents(node);
+                if (nextParent[node] < nodeParents.length) {
+                    int parent = nodeParents[nextParent[node]++];
+                    if (visitOrder[parent] == 0) {
+                        calls[callDepth++] = parent;
+                        visitOrder[parent] = ++visited;
+                        lowLink[parent] = visited;
+                        component[componentSize++] = parent;
+                        inComponent[parent] = true;
+                    } else if (inComponent[parent]) {
+                        lowLink[node] = Math.min(lowLink[node], visitOrder[parent]);
+                    }
+                    continue;
+                }
+                --callDepth;
+                if (callDepth > 0) {
+                    int caller = calls[callDepth - 1];
+                    lowLink[caller] = Math.min(lowLink[caller], lowLink[node]);
+                }
+                if (lowLink[node] == visitOrder[node]) {
+                    int first = componentSize;
+                    do {
+                        --first;
+                        inComponent[component[first]] = false;
+                    } while (component[first] != node);
+                    int[] members = Arrays.copyOfRange(component, first, componentSize);
+                    componentSize = first;
+                    int[] closure = merge(members);
+                    for (int member : members) {
+                        this.ancestors[member] = closure;
+                    }
+                }
+            }
+        }
+    }
+
+    private int[] getParents(int node)
+    {
+        return this.parents[node] == null ? NO_PARENTS : this.parents[node];
+    }
+
+    /** Add a value to a sorted array, unless it's already there. */
+    private static int[] insert(int[] sorted, int value)
+    {
+        int position = Arrays.binarySearch(sorted, value);
+        if (position >= 0) {
+            return sorted;
+        }
+        position = -position - 1;
+        int[] result = new int[sorted.length + 1];
+        System.arraycopy(sorted, 0, result, 0, position);
+        result[position] = value;
+        System.arraycopy(sorted, position, result, position + 1, sorted.length - position);
+        return result;
+    }
+
+    /**
+     * Combine the members of a component with the ancestors of their parents outside the component, in a sorted array
+     * without duplicates.
+     */
+    private int[] merge(int[] members)
+    {
+        int[] memberParents = getParents(members[0]);
+        if (members.length == 1 && memberParents.length == 1 && memberParents[0] != members[0]) {
+            return insert(this.ancestors[memberParents[0]], members[0]);
+        }
+        int size = members.length;
+        for (int member : members) {
+            for (int parent : getParents(member)) {
+                if (this.ancestors[parent] != null) {
+                    size += this.ancestors[parent].length;
+                }
+            }
+        }
+        int[] all = new int[size];
+        System.arraycopy(members, 0, all, 0, members.length);
+        int position = members.length;
+        for (int member : members) {
+            for (int parent : getParents(member)) {
+                int[] closure = this.ancestors[parent];
+                if (closure != null) {
+                    System.arraycopy(closure, 0, all, position, closure.length);
+                    position += closure.length;
+                }
+            }
+        }
+        Arrays.sort(all);
+        int unique = 0;
+        for (int i = 0; i < all.length; ++i) {
+            if (i == 0 || all[i] != all[i - 1]) {
+                all[unique++] = all[i];
+            }
+        }
+        return unique == all.length ? all : Arrays.copyOf(all, unique);
+    }
+}
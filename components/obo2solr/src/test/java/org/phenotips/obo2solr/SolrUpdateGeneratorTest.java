@@ -0,0 +1,150 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.obo2solr;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link SolrUpdateGenerator} class. The expected values are those produced by the previous version of
+ * the parser, which kept all the terms in memory.
+ *
+ * @version $Id$
+ */
+public class SolrUpdateGeneratorTest
+{
+    private Map<String, TermData> terms;
+
+    @Before
+    public void setUp()
+    {
+        this.terms = new SolrUpdateGenerator().transform(this.getClass().getResource("/test.obo"),
+            Collections.<String, Double>emptyMap());
+    }
+
+    @Test
+    public void termsAreListedInOrder()
+    {
+        Assert.assertEquals(Arrays.asList("HEADER_INFO", "HP:0000001", "HP:0000118", "HP:0001507", "HP:0000707",
+            "HP:0001250", "HP:0000003", "HP:0000004", "HP:0000005", "HP:0000006", "HP:0000007"),
+            new ArrayList<>(this.terms.keySet()));
+    }
+
+    @Test
+    public void headerIsParsed()
+    {
+        TermData header = this.terms.get("HEADER_INFO");
+        Assert.assertEquals(Collections.singleton("releases/2016-01-13"), asSet(header.get("version")));
+        Assert.assertEquals(Collections.singleton("releases/2016-01-13"), asSet(header.get("data-version")));
+        Assert.assertEquals(Collections.singleton("1.2"), asSet(header.get("format-version")));
+        Assert.assertEquals(Collections.singleton("HEADER_INFO"), asSet(header.get(TermData.TERM_CATEGORY_FIELD_NAME)));
+    }
+
+    @Test
+    public void quotedValuesAreUnquoted()
+    {
+        Assert.assertEquals(Collections.singleton("A phenotypic abnormality."),
+            asSet(this.terms.get("HP:0000118").get("def")));
+        Assert.assertEquals(Collections.singleton("An abnormality of the \"nervous system\"."),
+            asSet(this.terms.get("HP:0000707").get("def")));
+        Assert.assertEquals(Arrays.asList("Epilepsy", "Seizure"),
+            new ArrayList<>(this.terms.get("HP:0001250").get("synonym")));
+    }
+
+    @Test
+    public void multipleParentsAndAlternativeIdsAreKept()
+    {
+        TermData term = this.terms.get("HP:0001250");
+        Assert.assertEquals(Arrays.asList("HP:0001279", "HP:0002279"), new ArrayList<>(term.get("alt_id")));
+        Assert.assertEquals(Arrays.asList("HP:0000707 ! Abnormality of the nervous system",
+            "HP:0001507 ! Growth abnormality"), new ArrayList<>(term.get(TermData.PARENT_FIELD_NAME)));
+        Assert.assertEquals(
+            new HashSet<>(Arrays.asList("HP:0001250", "HP:0000707", "HP:0001507", "HP:0000118", "HP:0000001")),
+            asSet(term.get(TermData.TERM_CATEGORY_FIELD_NAME)));
+    }
+
+    @Test
+    public void obsoleteTermsAreKeptWithoutAncestors()
+    {
+        TermData term = this.terms.get("HP:0000003");
+        Assert.assertEquals(Collections.singleton("true"), asSet(term.get("is_obsolete")));
+        Assert.assertEquals(Collections.singleton("HP:0000003"), asSet(term.get(TermData.TERM_CATEGORY_FIELD_NAME)));
+    }
+
+    @Test
+    public void typedefsAreSkipped()
+    {
+        Assert.assertFalse(this.terms.containsKey("part_of"));
+        Assert.assertNull(this.terms.get("HP:0000003").get("is_transitive"));
+    }
+
+    @Test
+    public void termsInCyclesShareTheirAncestors()
+    {
+        Collection<String> cycle =
+            new HashSet<>(Arrays.asList("HP:0000004", "HP:0000005", "HP:0000006", "HP:0000118", "HP:0000001"));
+        Assert.assertEquals(cycle, asSet(this.terms.get("HP:0000004").get(TermData.TERM_CATEGORY_FIELD_NAME)));
+        Assert.assertEquals(cycle, asSet(this.terms.get("HP:0000005").get(TermData.TERM_CATEGORY_FIELD_NAME)));
+        Assert.assertEquals(cycle, asSet(this.terms.get("HP:0000006").get(TermData.TERM_CATEGORY_FIELD_NAME)));
+        Collection<String> child = new HashSet<>(cycle);
+        child.add("HP:0000007");
+        Assert.assertEquals(child, asSet(this.terms.get("HP:0000007").get(TermData.TERM_CATEGORY_FIELD_NAME)));
+    }
+
+    @Test
+    public void onlySelectedFieldsAreExtracted() throws IOException
+    {
+        Map<String, Double> selection = new HashMap<>();
+        selection.put(TermData.ID_FIELD_NAME, 1.0);
+        selection.put("name", 1.0);
+        final List<TermData> handled = new ArrayList<>();
+        int count = new SolrUpdateGenerator().transform(this.getClass().getResource("/test.obo"), selection,
+            new TermHandler()
+            {
+                @Override
+                public void handle(TermData term)
+                {
+                    handled.add(term);
+                }
+            });
+
+        Assert.assertEquals(11, count);
+        Assert.assertEquals(11, handled.size());
+        TermData term = handled.get(5);
+        Assert.assertEquals("HP:0001250", term.getId());
+        Assert.assertEquals(new HashSet<>(Arrays.asList(TermData.ID_FIELD_NAME, "name")), term.keySet());
+        Assert.assertEquals(new HashSet<>(Arrays.asList(TermData.ID_FIELD_NAME, "version")),
+            handled.get(0).keySet());
+    }
+
+    private Collection<String> asSet(Collection<String> values)
+    {
+        return values == null ? null : new HashSet<>(values);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.obo2solr;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link TermHierarchy} class.
+ *
+ * @version $Id$
+ */
+public class TermHierarchyTest
+{
+    private TermHierarchy hierarchy;
+
+    /**
+     * Builds a small hierarchy:
+     *
+     * <pre>
+     *         R
+     *       /   \
+     *      A     B
+     *     / \   / \
+     *    C   D E   |
+     *     \ /      |
+     *      F ------+
+     * </pre>
+     */
+    @Before
+    public void setUp()
+    {
+        this.hierarchy = new TermHierarchy();
+        this.hierarchy.setParents("F", Arrays.asList("C", "D", "B"));
+        this.hierarchy.setParents("C", Arrays.asList("A"));
+        this.hierarchy.setParents("D", Arrays.asList("A"));
+        this.hierarchy.setParents("E", Arrays.asList("B"));
+        this.hierarchy.setParents("A", Arrays.asList("R"));
+        this.hierarchy.setParents("B", Arrays.asList("R", "UNKNOWN"));
+        this.hierarchy.setParents("R", Collections.<String>emptyList());
+    }
+
+    @Test
+    public void containsOnlyDefinedTerms()
+    {
+        Assert.assertEquals(7, this.hierarchy.size());
+        Assert.assertTrue(this.hierarchy.contains("F"));
+        Assert.assertTrue(this.hierarchy.contains("R"));
+        Assert.assertFalse(this.hierarchy.contains("UNKNOWN"));
+        Assert.assertFalse(this.hierarchy.contains("X"));
+    }
+
+    @Test
+    public void ancestorsIncludeAllPaths()
+    {
+        Assert.assertEquals(new HashSet<>(Arrays.asList("F", "C", "D", "A", "B", "R", "UNKNOWN")),
+            new HashSet<>(this.hierarchy.getAncestorsAndSelf("F")));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("R")),
+            new HashSet<>(this.hierarchy.getAncestorsAndSelf("R")));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("X")),
+            new HashSet<>(this.hierarchy.getAncestorsAndSelf("X")));
+    }
+
+    @Test
+    public void distanceUsesTheClosestCommonAncestor()
+    {
+        Assert.assertEquals(0, this.hierarchy.getDistance("F", "F"));
+        Assert.assertEquals(1, this.hierarchy.getDistance("F", "B"));
+        Assert.assertEquals(2, this.hierarchy.getDistance("C", "D"));
+        Assert.assertEquals(2, this.hierarchy.getDistance("F", "E"));
+        Assert.assertEquals(4, this.hierarchy.getDistance("C", "E"));
+        Assert.assertEquals(-1, this.hierarchy.getDistance("C", "X"));
+        Assert.assertEquals(-1, this.hierarchy.getDistance("UNKNOWN", "B"));
+    }
+
+    @Test
+    public void redefiningTermsReplacesTheirParents()
+    {
+        this.hierarchy.setParents("E", Arrays.asList("D"));
+        Assert.assertEquals(7, this.hierarchy.size());
+        Assert.assertEquals(1, this.hierarchy.getDistance("E", "D"));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("E", "D", "A", "R")),
+            new HashSet<>(this.hierarchy.getAncestorsAndSelf("E")));
+    }
+
+    @Test
+    public void cyclesDoNotBreakTheHierarchy()
+    {
+        TermHierarchy cyclic = new TermHierarchy();
+        cyclic.setParents("X", Arrays.asList("Y"));
+        cyclic.setParents("Y", Arrays.asList("X"));
+        cyclic.setParents("Z", Collections.<String>emptyList());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("X", "Y")), new HashSet<>(cyclic.getAncestorsAndSelf("X")));
+        Assert.assertEquals(1, cyclic.getDistance("X", "Y"));
+        Assert.assertEquals(-1, cyclic.getDistance("X", "Z"));
+    }
+
+    @Test
+    public void termsInLongerCyclesShareTheirAncestors()
+    {
+        TermHierarchy cyclic = new TermHierarchy();
+        cyclic.setParents("X", Arrays.asList("Y"));
+        cyclic.setParents("Y", Arrays.asList("Z"));
+        cyclic.setParents("Z", Arrays.asList("X", "R"));
+        cyclic.setParents("R", Collections.<String>emptyList());
+        cyclic.setParents("C", Arrays.asList("Z"));
+        for (String id : Arrays.asList("X", "Y", "Z")) {
+            Assert.assertEquals(new HashSet<>(Arrays.asList("X", "Y", "Z", "R")),
+                new HashSet<>(cyclic.getAncestorsAndSelf(id)));
+        }
+        Assert.assertEquals(new HashSet<>(Arrays.asList("C", "X", "Y", "Z", "R")),
+            new HashSet<>(cyclic.getAncestorsAndSelf("C")));
+    }
+
+    @Test
+    public void deepHierarchiesDoNotOverflowTheStack()
+    {
+        TermHierarchy deep = new TermHierarchy();
+        deep.setParents("T0", Collections.<String>emptyList());
+        for (int i = 1; i < 5000; ++i) {
+            deep.setParents("T" + i, Collections.singletonList("T" + (i - 1)));
+        }
+        Assert.assertEquals(5000, deep.getAncestorsAndSelf("T4999").size());
+        Assert.assertEquals(4999, deep.getDistance("T4999", "T0"));
+    }
+}
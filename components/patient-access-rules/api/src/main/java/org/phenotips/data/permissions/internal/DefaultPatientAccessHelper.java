@@ -18,6 +18,9 @@
 package org.phenotips.data.permissions.internal;
 
 import org.phenotips.data.Patient;
+import org.phenotips.data.events.PatientChangedEvent;
+import org.phenotips.data.events.PatientDeletedEvent;
+import org.phenotips.data.events.PatientEvent;
 import org.phenotips.data.permissions.AccessLevel;
 import org.phenotips.data.permissions.Collaborator;
 import org.phenotips.data.permissions.Owner;
@@ -25,20 +28,36 @@
 import org.phenotips.data.permissions.Visibility;
 
 import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.LRUCacheConfiguration;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
 import org.xwiki.context.Execution;
 import org.xwiki.model.EntityType;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.DocumentReferenceResolver;
 import org.xwiki.model.reference.EntityReference;
 import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.observation.event.Event;
 import org.xwiki.security.authorization.AuthorizationManager;
 import org.xwiki.security.authorization.Right;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
@@ -59,11 +78,16 @@
 import com.xpn.xwiki.user.api.XWikiGroupService;
 
 /**
+ * Default implementation of the {@link PatientAccessHelper}, storing the access rights in the patient documents. Since
+ * access rights are checked for every patient displayed or indexed, two things are cached: the owner, visibility and
+ * collaborators of each patient, until the patient record changes, and the groups that each user belongs to, directly
+ * or through other groups, until a group changes.
+ *
  * @version $Id$
  */
-@Component
+@Component(roles = { PatientAccessHelper.class })
 @Singleton
-public class DefaultPatientAccessHelper implements PatientAccessHelper
+public class DefaultPatientAccessHelper implements PatientAccessHelper, Initializable, EventListener
 {
     private static final EntityReference USER_CLASS = new EntityReference("XWikiUsers", EntityType.DOCUMENT,
         new EntityReference(XWiki.SYSTEM_SPACE, EntityType.SPACE));
@@ -71,6 +95,12 @@ public class DefaultPatientAccessHelper implements PatientAccessHelper
     private static final EntityReference GROUP_CLASS = new EntityReference("XWikiGroups", EntityType.DOCUMENT,
         new EntityReference(XWiki.SYSTEM_SPACE, EntityType.SPACE));
 
+    /** The maximum number of users whose groups are cached. */
+    private static final int GROUP_CACHE_SIZE = 1000;
+
+    /** The maximum number of patients whose access rights are cached. */
+    private static final int PATIENT_CACHE_SIZE = 10000;
+
     @Inject
     private Logger logger;
 
@@ -97,6 +127,58 @@ public class DefaultPatientAccessHelper implements PatientAccessHelper
     @Inject
     private AuthorizationManager rights;
 
+    /** Used for creating the group and access rights caches. */
+    @Inject
+    private CacheManager cacheManager;
+
+    /** Allows registering this object as an event listener, for keeping the caches up to date. */
+    @Inject
+    private ObservationManager observationManager;
+
+    /** All the groups of a user, including the user itself, indexed by the serialized user reference. */
+    private Cache<Set<DocumentReference>> groups;
+
+    /** The access rights of each patient, indexed by the serialized reference of the patient document. */
+    private Cache<AccessSnapshot> snapshots;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        try {
+            this.groups = this.cacheManager.createNewCache(new LRUCacheConfiguration("patientAccess.groups",
+                GROUP_CACHE_SIZE));
+            this.snapshots = this.cacheManager.createNewCache(new LRUCacheConfiguration("patientAccess.patients",
+                PATIENT_CACHE_SIZE));
+        } catch (CacheException ex) {
+            throw new InitializationException("Failed to create the patient access caches", ex);
+        }
+        this.observationManager.addListener(this);
+    }
+
+    @Override
+    public String getName()
+    {
+        return "patient-access-cache";
+    }
+
+    @Override
+    public List<Event> getEvents()
+    {
+        return Arrays.<Event>asList(new PatientChangedEvent(), new PatientDeletedEvent(), new DocumentCreatedEvent(),
+            new DocumentUpdatedEvent(), new DocumentDeletedEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        if (event instanceof PatientEvent) {
+            invalidate(((PatientEvent) event).getPatient());
+        } else if (isGroup((XWikiDocument) source)) {
+            // Memberships are transitive, any user might be affected by this group
+            this.groups.removeAll();
+        }
+    }
+
     @Override
     public DocumentReference getCurrentUser()
     {
@@ -118,13 +200,7 @@ public Owner getOwner(Patient patient)
         if (patient == null || patient.getDocument() == null) {
             return null;
         }
-        DocumentReference classReference =
-            this.partialEntityResolver.resolve(Owner.CLASS_REFERENCE, patient.getDocument());
-        String owner = String.valueOf(this.bridge.getProperty(patient.getDocument(), classReference, "owner"));
-        if (StringUtils.isNotBlank(owner) && !"null".equals(owner)) {
-            return new DefaultOwner(this.stringEntityResolver.resolve(owner, patient.getDocument()), this);
-        }
-        return new DefaultOwner(null, this);
+        return new DefaultOwner(getSnapshot(patient).owner, this);
     }
 
     @Override
@@ -145,19 +221,18 @@ public boolean setOwner(Patient patient, EntityReference userOrGroup)
             return true;
         } catch (Exception e) {
             return false;
+        } finally {
+            invalidate(patient);
         }
     }
 
     @Override
     public Visibility getVisibility(Patient patient)
     {
-        DocumentReference classReference =
-            this.partialEntityResolver.resolve(Visibility.CLASS_REFERENCE, patient.getDocument());
-        String visibility = (String) this.bridge.getProperty(patient.getDocument(), classReference, "visibility");
-        if (StringUtils.isNotBlank(visibility)) {
-            return this.manager.resolveVisibility(visibility);
+        if (patient == null || patient.getDocument() == null) {
+            return null;
         }
-        return null;
+        return getSnapshot(patient).visibility;
     }
 
     @Override
@@ -171,47 +246,70 @@ public boolean setVisibility(Patient patient, Visibility visibility)
             return true;
         } catch (Exception e) {
             return false;
+        } finally {
+            invalidate(patient);
         }
     }
 
     @Override
     public AccessLevel getAccessLevel(Patient patient, EntityReference user)
     {
-        AccessLevel result = this.manager.resolveAccessLevel("none");
         if (patient == null || user == null) {
-            return result;
+            return this.manager.resolveAccessLevel("none");
         }
-        try {
-            EntityReference owner = getOwner(patient).getUser();
-            Collection<Collaborator> collaborators = getCollaborators(patient);
-            Set<DocumentReference> processedEntities = new HashSet<DocumentReference>();
-            Queue<DocumentReference> entitiesToCheck = new LinkedList<DocumentReference>();
-            entitiesToCheck.add((DocumentReference) user);
-            AccessLevel currentItemAccess = null;
-            DocumentReference currentItem;
-            XWikiContext context = getXWikiContext();
-            XWikiGroupService groupService = context.getWiki().getGroupService(context);
-            while (!entitiesToCheck.isEmpty()) {
-                currentItem = entitiesToCheck.poll();
-                currentItemAccess = getAccessLevel(currentItem, owner, collaborators);
-                if (currentItemAccess.compareTo(result) > 0) {
-                    result = currentItemAccess;
+        return getAccessLevels(Collections.singleton(patient), user).get(patient);
+    }
+
+    @Override
+    public Map<Patient, AccessLevel> getAccessLevels(Collection<Patient> patients, EntityReference user)
+    {
+        Map<Patient, AccessLevel> result = new LinkedHashMap<Patient, AccessLevel>();
+        AccessLevel none = this.manager.resolveAccessLevel("none");
+        Set<DocumentReference> userAndGroups = Collections.emptySet();
+        if (user != null) {
+            try {
+                userAndGroups = getUserAndGroups((DocumentReference) user);
+            } catch (XWikiException ex) {
+                this.logger.warn("Failed to compute the groups of [{}]: {}", user, ex.getMessage());
+                // The user's own access can still be checked
+                userAndGroups = Collections.singleton((DocumentReference) user);
+            }
+        }
+        for (Patient patient : patients) {
+            if (patient == null) {
+                continue;
+            }
+            AccessLevel access = none;
+            if (patient.getDocument() != null && !userAndGroups.isEmpty()) {
+                AccessSnapshot snapshot = getSnapshot(patient);
+                for (DocumentReference userOrGroup : userAndGroups) {
+                    AccessLevel currentItemAccess = getAccessLevel(userOrGroup, snapshot.owner, snapshot.collaborators);
+                    if (currentItemAccess.compareTo(access) > 0) {
+                        access = currentItemAccess;
+                    }
                 }
-                processedEntities.add(currentItem);
-                Collection<DocumentReference> groups =
-                    groupService.getAllGroupsReferencesForMember(currentItem, 0, 0, context);
-                groups.removeAll(processedEntities);
-                entitiesToCheck.addAll(groups);
             }
-        } catch (XWikiException ex) {
-            this.logger.warn("Failed to compute access level for [{}] on [{}]: {}", user, patient.getDocument(),
-                ex.getMessage());
+            result.put(patient, access);
         }
         return result;
     }
 
     @Override
     public Collection<Collaborator> getCollaborators(Patient patient)
+    {
+        if (patient == null || patient.getDocument() == null) {
+            return Collections.emptySet();
+        }
+        return getSnapshot(patient).collaborators;
+    }
+
+    /**
+     * Reads the collaborators from the patient document.
+     *
+     * @param patient the patient whose collaborators to read
+     * @return the collaborators, or {@code null} if reading the document failed
+     */
+    private Collection<Collaborator> readCollaborators(Patient patient)
     {
         try {
             XWikiDocument patientDoc = (XWikiDocument) this.bridge.getDocument(patient.getDocument());
@@ -240,11 +338,11 @@ public Collection<Collaborator> getCollaborators(Patient patient)
                 Collaborator collaborator = new DefaultCollaborator(userOrGroup, access, this);
                 collaborators.put(userOrGroup, collaborator);
             }
-            return collaborators.values();
+            return Collections.unmodifiableCollection(new ArrayList<Collaborator>(collaborators.values()));
         } catch (Exception e) {
             // This should not happen;
         }
-        return Collections.emptySet();
+        return null;
     }
 
     @Override
@@ -262,6 +360,7 @@ public boolean setCollaborators(Patient patient, Collection<Collaborator> newCol
                 o.setStringValue("access", collaborator.getAccessLevel().getName());
             }
             context.getWiki().saveDocument(patientDoc, "Updated collaborators", true, context);
+            invalidate(patient);
             return true;
         } catch (Exception e) {
             // This should not happen;
@@ -290,6 +389,7 @@ public boolean addCollaborator(Patient patient, Collaborator collaborator)
             o.setStringValue("access", collaborator.getAccessLevel().getName());
 
             context.getWiki().saveDocument(patientDoc, "Added collaborator: " + user, true, context);
+            invalidate(patient);
             return true;
         } catch (Exception e) {
             // This should not happen;
@@ -312,6 +412,7 @@ public boolean removeCollaborator(Patient patient, Collaborator collaborator)
             if (o != null) {
                 patientDoc.removeXObject(o);
                 context.getWiki().saveDocument(patientDoc, "Removed collaborator: " + user, true, context);
+                invalidate(patient);
                 return true;
             }
         } catch (Exception e) {
@@ -349,8 +450,117 @@ private AccessLevel getAccessLevel(EntityReference userOrGroup, EntityReference
         return this.manager.resolveAccessLevel("none");
     }
 
+    /**
+     * Returns the owner, visibility and collaborators of a patient, reading them from the patient document unless
+     * they're already cached.
+     *
+     * @param patient the patient whose access rights are needed, with a not {@code null} document
+     * @return the access rights of the patient
+     */
+    private AccessSnapshot getSnapshot(Patient patient)
+    {
+        String key = this.entitySerializer.serialize(patient.getDocument());
+        AccessSnapshot snapshot = this.snapshots.get(key);
+        if (snapshot != null) {
+            return snapshot;
+        }
+        Collection<Collaborator> collaborators = readCollaborators(patient);
+        snapshot = new AccessSnapshot(readOwner(patient), readVisibility(patient),
+            collaborators != null ? collaborators : Collections.<Collaborator>emptySet());
+        // Don't remember a failure to read the document, it might work next time
+        if (collaborators != null) {
+            this.snapshots.set(key, snapshot);
+        }
+        return snapshot;
+    }
+
+    private EntityReference readOwner(Patient patient)
+    {
+        DocumentReference classReference =
+            this.partialEntityResolver.resolve(Owner.CLASS_REFERENCE, patient.getDocument());
+        String owner = String.valueOf(this.bridge.getProperty(patient.getDocument(), classReference, "owner"));
+        if (StringUtils.isNotBlank(owner) && !"null".equals(owner)) {
+            return this.stringEntityResolver.resolve(owner, patient.getDocument());
+        }
+        return null;
+    }
+
+    private Visibility readVisibility(Patient patient)
+    {
+        DocumentReference classReference =
+            this.partialEntityResolver.resolve(Visibility.CLASS_REFERENCE, patient.getDocument());
+        String visibility = (String) this.bridge.getProperty(patient.getDocument(), classReference, "visibility");
+        if (StringUtils.isNotBlank(visibility)) {
+            return this.manager.resolveVisibility(visibility);
+        }
+        return null;
+    }
+
+    private void invalidate(Patient patient)
+    {
+        if (patient != null && patient.getDocument() != null) {
+            this.snapshots.remove(this.entitySerializer.serialize(patient.getDocument()));
+        }
+    }
+
+    /**
+     * Lists the user and all the groups it belongs to, directly or through other groups.
+     *
+     * @param user the user whose groups are needed
+     * @return an unmodifiable set containing the user and all its groups
+     * @throws XWikiException if listing the members of a group fails
+     */
+    private Set<DocumentReference> getUserAndGroups(DocumentReference user) throws XWikiException
+    {
+        String key = this.entitySerializer.serialize(user);
+        Set<DocumentReference> result = this.groups.get(key);
+        if (result != null) {
+            return result;
+        }
+        result = new HashSet<DocumentReference>();
+        Queue<DocumentReference> entitiesToCheck = new LinkedList<DocumentReference>();
+        entitiesToCheck.add(user);
+        XWikiContext context = getXWikiContext();
+        XWikiGroupService groupService = context.getWiki().getGroupService(context);
+        while (!entitiesToCheck.isEmpty()) {
+            DocumentReference currentItem = entitiesToCheck.poll();
+            if (result.add(currentItem)) {
+                entitiesToCheck.addAll(groupService.getAllGroupsReferencesForMember(currentItem, 0, 0, context));
+            }
+        }
+        result = Collections.unmodifiableSet(result);
+        this.groups.set(key, result);
+        return result;
+    }
+
+    private boolean isGroup(XWikiDocument doc)
+    {
+        return doc != null && (doc.getXObject(GROUP_CLASS) != null
+            || doc.getOriginalDocument() != null && doc.getOriginalDocument().getXObject(GROUP_CLASS) != null);
+    }
+
     private XWikiContext getXWikiContext()
     {
         return (XWikiContext) this.execution.getContext().getProperty("xwikicontext");
     }
+
+    /** The access rights of a patient, as stored in the patient document. */
+    private static final class AccessSnapshot
+    {
+        /** The owner of the patient, may be {@code null}. */
+        private final EntityReference owner;
+
+        /** The visibility of the patient, may be {@code null}. */
+        private final Visibility visibility;
+
+        /** The unmodifiable collaborators of the patient. */
+        private final Collection<Collaborator> collaborators;
+
+        AccessSnapshot(EntityReference owner, Visibility visibility, Collection<Collaborator> collaborators)
+        {
+            this.owner = owner;
+            this.visibility = visibility;
+            this.collaborators = collaborators;
+        }
+    }
 }
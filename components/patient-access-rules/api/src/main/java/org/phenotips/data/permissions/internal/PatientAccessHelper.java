@@ -28,6 +28,7 @@
 import org.xwiki.model.reference.EntityReference;
 
 import java.util.Collection;
+import java.util.Map;
 
 /**
  * @version $Id$
@@ -47,6 +48,8 @@
 
     AccessLevel getAccessLevel(Patient patient, EntityReference userOrGroup);
 
+    Map<Patient, AccessLevel> getAccessLevels(Collection<Patient> patients, EntityReference user);
+
     boolean setVisibility(Patient patient, Visibility visibility);
 
     Collection<Collaborator> getCollaborators(Patient patient);
@@ -18,6 +18,7 @@
 package org.phenotips.data.permissions.internal;
 
 import org.phenotips.data.Patient;
+import org.phenotips.data.events.PatientChangedEvent;
 import org.phenotips.data.permissions.AccessLevel;
 import org.phenotips.data.permissions.Collaborator;
 import org.phenotips.data.permissions.Owner;
@@ -30,6 +31,12 @@
 import org.phenotips.data.permissions.internal.access.ViewAccessLevel;
 
 import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.CacheConfiguration;
 import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.component.util.DefaultParameterizedType;
 import org.xwiki.context.Execution;
@@ -39,6 +46,7 @@
 import org.xwiki.model.reference.DocumentReferenceResolver;
 import org.xwiki.model.reference.EntityReference;
 import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.observation.EventListener;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 
 import java.lang.reflect.ParameterizedType;
@@ -48,11 +56,14 @@
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Matchers;
 import org.mockito.Mockito;
 
@@ -76,6 +87,8 @@
     /** The patient used for tests. */
     private static final DocumentReference PATIENT_REFERENCE = new DocumentReference("xwiki", "data", "P0000001");
 
+    private static final String PATIENT_STR = "xwiki:data.P0000001";
+
     private Patient patient = mock(Patient.class);
 
     /** The user used as the owner of the patient. */
@@ -134,8 +147,13 @@
 
     private XWikiContext context;
 
+    private Cache<Set<DocumentReference>> groupCache;
+
+    private Cache<Object> patientCache;
+
     @Before
-    public void setup() throws ComponentLookupException
+    @SuppressWarnings("unchecked")
+    public void setup() throws ComponentLookupException, CacheException
     {
         this.bridge = this.mocker.getInstance(DocumentAccessBridge.class);
         this.partialEntityResolver = this.mocker.getInstance(this.entityResolverType, "currentmixed");
@@ -163,6 +181,7 @@ public void setup() throws ComponentLookupException
         when(this.stringEntitySerializer.serialize(OWNER)).thenReturn(OWNER_STR);
         when(this.stringEntitySerializer.serialize(COLLABORATOR)).thenReturn(COLLABORATOR_STR);
         when(this.stringEntitySerializer.serialize(OTHER_USER)).thenReturn(OTHER_USER_STR);
+        when(this.stringEntitySerializer.serialize(PATIENT_REFERENCE)).thenReturn(PATIENT_STR);
 
         when(this.patient.getDocument()).thenReturn(PATIENT_REFERENCE);
         when(this.bridge.getProperty(PATIENT_REFERENCE, OWNER_CLASS, "owner")).thenReturn(OWNER_STR);
@@ -172,6 +191,13 @@ public void setup() throws ComponentLookupException
         when(e.getContext()).thenReturn(ec);
         this.context = mock(XWikiContext.class);
         when(ec.getProperty("xwikicontext")).thenReturn(this.context);
+
+        // The group cache is created first, then the patient cache
+        this.groupCache = mock(Cache.class);
+        this.patientCache = mock(Cache.class);
+        CacheManager cacheManager = this.mocker.getInstance(CacheManager.class);
+        Mockito.doReturn(this.groupCache).doReturn(this.patientCache).when(cacheManager)
+            .createNewCache(Matchers.any(CacheConfiguration.class));
     }
 
     /** Basic tests for {@link PatientAccessHelper#getCurrentUser()}. */
@@ -694,6 +720,127 @@ public void getAccessLevelWithExceptions() throws ComponentLookupException, XWik
         Assert.assertSame(none, this.mocker.getComponentUnderTest().getAccessLevel(this.patient, OTHER_USER));
     }
 
+    /**
+     * {@link PatientAccessHelper#getAccessLevel(Patient, EntityReference)} still checks the user's own access when the
+     * groups of the user can't be computed.
+     */
+    @Test
+    public void getAccessLevelWithFailedGroupLookup() throws Exception
+    {
+        AccessLevel edit = setupGroupCollaborator();
+        AccessLevel owner = new OwnerAccessLevel();
+        PermissionsManager manager = this.mocker.getInstance(PermissionsManager.class);
+        when(manager.resolveAccessLevel("owner")).thenReturn(owner);
+        XWiki xwiki = mock(XWiki.class);
+        when(this.context.getWiki()).thenReturn(xwiki);
+        when(xwiki.getGroupService(this.context)).thenThrow(new XWikiException());
+
+        Assert.assertSame(owner, this.mocker.getComponentUnderTest().getAccessLevel(this.patient, OWNER));
+        Assert.assertSame(edit, this.mocker.getComponentUnderTest().getAccessLevel(this.patient, GROUP));
+        // The failure isn't remembered
+        Mockito.verify(this.groupCache, Mockito.never()).set(Mockito.anyString(), Mockito.anySetOf(
+            DocumentReference.class));
+    }
+
+    /** {@link PatientAccessHelper#getAccessLevels(Collection, EntityReference)} expands the user's groups once. */
+    @Test
+    public void getAccessLevelsComputesGroupsOnce() throws Exception
+    {
+        AccessLevel edit = setupGroupCollaborator();
+        XWikiGroupService groupService = mock(XWikiGroupService.class);
+        XWiki xwiki = mock(XWiki.class);
+        when(this.context.getWiki()).thenReturn(xwiki);
+        when(xwiki.getGroupService(this.context)).thenReturn(groupService);
+        when(groupService.getAllGroupsReferencesForMember(COLLABORATOR, 0, 0, this.context))
+            .thenReturn(Arrays.asList(GROUP));
+        Patient other = mock(Patient.class);
+        DocumentReference otherReference = new DocumentReference("xwiki", "data", "P0000002");
+        when(other.getDocument()).thenReturn(otherReference);
+        when(this.bridge.getDocument(otherReference)).thenReturn(mock(XWikiDocument.class));
+
+        Map<Patient, AccessLevel> levels = this.mocker.getComponentUnderTest()
+            .getAccessLevels(Arrays.asList(this.patient, other, null), COLLABORATOR);
+
+        Assert.assertEquals(2, levels.size());
+        Assert.assertSame(edit, levels.get(this.patient));
+        Assert.assertEquals(new NoAccessLevel(), levels.get(other));
+        Mockito.verify(groupService).getAllGroupsReferencesForMember(COLLABORATOR, 0, 0, this.context);
+        Mockito.verify(this.groupCache).set(COLLABORATOR_STR, new HashSet<>(Arrays.asList(COLLABORATOR, GROUP)));
+    }
+
+    /** {@link PatientAccessHelper#getAccessLevel(Patient, EntityReference)} reuses the cached groups of the user. */
+    @Test
+    public void getAccessLevelWithCachedGroups() throws Exception
+    {
+        AccessLevel edit = setupGroupCollaborator();
+        Set<DocumentReference> groups = new HashSet<>(Arrays.asList(COLLABORATOR, GROUP));
+        when(this.groupCache.get(COLLABORATOR_STR)).thenReturn(groups);
+
+        Assert.assertSame(edit, this.mocker.getComponentUnderTest().getAccessLevel(this.patient, COLLABORATOR));
+        Mockito.verify(this.context, Mockito.never()).getWiki();
+    }
+
+    /** The cached groups are discarded when a group document changes. */
+    @Test
+    public void groupChangesClearTheGroupCache() throws Exception
+    {
+        EventListener listener = (EventListener) this.mocker.getComponentUnderTest();
+        EntityReference groupClass = new EntityReference("XWikiGroups", EntityType.DOCUMENT,
+            new EntityReference(XWiki.SYSTEM_SPACE, EntityType.SPACE));
+
+        listener.onEvent(new DocumentUpdatedEvent(), mock(XWikiDocument.class), null);
+        Mockito.verify(this.groupCache, Mockito.never()).removeAll();
+
+        XWikiDocument group = mock(XWikiDocument.class);
+        when(group.getXObject(groupClass)).thenReturn(mock(BaseObject.class));
+        listener.onEvent(new DocumentUpdatedEvent(), group, null);
+        Mockito.verify(this.groupCache).removeAll();
+
+        XWikiDocument deletedGroup = mock(XWikiDocument.class);
+        when(deletedGroup.getOriginalDocument()).thenReturn(group);
+        listener.onEvent(new DocumentDeletedEvent(), deletedGroup, null);
+        Mockito.verify(this.groupCache, Mockito.times(2)).removeAll();
+    }
+
+    /** The access rights of a patient are read once, and forgotten when the patient changes. */
+    @Test
+    public void accessRightsAreCachedUntilThePatientChanges() throws Exception
+    {
+        PatientAccessHelper helper = this.mocker.getComponentUnderTest();
+        when(this.bridge.getDocument(PATIENT_REFERENCE)).thenReturn(mock(XWikiDocument.class));
+        Assert.assertSame(OWNER, helper.getOwner(this.patient).getUser());
+
+        ArgumentCaptor<Object> snapshot = ArgumentCaptor.forClass(Object.class);
+        Mockito.verify(this.patientCache).set(Matchers.eq(PATIENT_STR), snapshot.capture());
+        when(this.patientCache.get(PATIENT_STR)).thenReturn(snapshot.getValue());
+        when(this.bridge.getProperty(PATIENT_REFERENCE, OWNER_CLASS, "owner")).thenReturn(OTHER_USER_STR);
+
+        Assert.assertSame(OWNER, helper.getOwner(this.patient).getUser());
+        Assert.assertNull(helper.getVisibility(this.patient));
+        Assert.assertTrue(helper.getCollaborators(this.patient).isEmpty());
+        Mockito.verify(this.bridge).getProperty(PATIENT_REFERENCE, OWNER_CLASS, "owner");
+
+        ((EventListener) helper).onEvent(new PatientChangedEvent(this.patient, null), null, null);
+        Mockito.verify(this.patientCache).remove(PATIENT_STR);
+    }
+
+    /** The access rights of a patient aren't cached when reading the patient document fails. */
+    @Test
+    public void failedReadsAreNotCached() throws Exception
+    {
+        when(this.bridge.getDocument(PATIENT_REFERENCE)).thenThrow(new Exception());
+        Assert.assertSame(OWNER, this.mocker.getComponentUnderTest().getOwner(this.patient).getUser());
+        Mockito.verify(this.patientCache, Mockito.never()).set(Matchers.anyString(), Matchers.any());
+    }
+
+    /** Changing the access rights of a patient discards its cached rights. */
+    @Test
+    public void setVisibilityClearsTheCachedRights() throws Exception
+    {
+        Assert.assertTrue(this.mocker.getComponentUnderTest().setVisibility(this.patient, null));
+        Mockito.verify(this.patientCache).remove(PATIENT_STR);
+    }
+
     /** Basic tests for {@link PatientAccessHelper#getType(EntityReference)}. */
     @Test
     public void getType() throws Exception
@@ -721,4 +868,20 @@ public void getType() throws Exception
         Assert.assertEquals("group", this.mocker.getComponentUnderTest().getType(GROUP));
         Assert.assertEquals("unknown", this.mocker.getComponentUnderTest().getType(COLLABORATOR));
     }
+
+    /** Sets up the patient with the {@link #GROUP} as an edit collaborator, and returns the edit access level. */
+    private AccessLevel setupGroupCollaborator() throws Exception
+    {
+        XWikiDocument doc = mock(XWikiDocument.class);
+        when(this.bridge.getDocument(PATIENT_REFERENCE)).thenReturn(doc);
+        BaseObject collaborator = mock(BaseObject.class);
+        when(collaborator.getStringValue("collaborator")).thenReturn(GROUP_STR);
+        when(collaborator.getStringValue("access")).thenReturn("edit");
+        when(doc.getXObjects(COLLABORATOR_CLASS)).thenReturn(Arrays.asList(collaborator));
+        PermissionsManager manager = this.mocker.getInstance(PermissionsManager.class);
+        AccessLevel edit = new EditAccessLevel();
+        when(manager.resolveAccessLevel("edit")).thenReturn(edit);
+        when(manager.resolveAccessLevel("none")).thenReturn(new NoAccessLevel());
+        return edit;
+    }
 }
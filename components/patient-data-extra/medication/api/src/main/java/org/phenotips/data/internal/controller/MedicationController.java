@@ -24,6 +24,7 @@
 import org.phenotips.data.PatientDataController;
 
 import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.bridge.DocumentModelBridge;
 import org.xwiki.component.annotation.Component;
 
 import java.util.Collection;
@@ -81,7 +82,10 @@ public class MedicationController implements PatientDataController<Medication>
     public PatientData<Medication> load(Patient patient)
     {
         try {
-            XWikiDocument doc = (XWikiDocument) this.documentAccessBridge.getDocument(patient.getDocument());
+            XWikiDocument doc = (XWikiDocument) patient.getXDocument();
+            if (doc == null) {
+                doc = (XWikiDocument) this.documentAccessBridge.getDocument(patient.getDocument());
+            }
             List<BaseObject> data = doc.getXObjects(Medication.CLASS_REFERENCE);
             if (data == null || data.isEmpty()) {
                 this.logger.debug("No medication data for patient [{}]", patient.getDocument());
@@ -114,22 +118,21 @@ public PatientData<Medication> load(Patient patient)
     }
 
     @Override
-    public void save(Patient patient)
+    public void save(Patient patient, DocumentModelBridge doc)
     {
         try {
-            XWikiDocument doc = (XWikiDocument) this.documentAccessBridge.getDocument(patient.getDocument());
-
             PatientData<Medication> data = patient.getData(DATA_NAME);
             if (data == null || !data.isIndexed()) {
                 return;
             }
-            doc.removeXObjects(Medication.CLASS_REFERENCE);
+            XWikiDocument xdoc = (XWikiDocument) doc;
+            xdoc.removeXObjects(Medication.CLASS_REFERENCE);
             XWikiContext context = this.xcontext.get();
             for (Medication m : data) {
                 if (m == null) {
                     continue;
                 }
-                BaseObject o = doc.newXObject(Medication.CLASS_REFERENCE, context);
+                BaseObject o = xdoc.newXObject(Medication.CLASS_REFERENCE, context);
                 o.setStringValue(Medication.NAME, m.getName());
                 o.setStringValue(Medication.GENERIC_NAME, m.getGenericName());
                 o.setStringValue(Medication.DOSE, m.getDose());
@@ -143,8 +146,6 @@ public void save(Patient patient)
                 }
                 o.setLargeStringValue(Medication.NOTES, m.getNotes());
             }
-
-            context.getWiki().saveDocument(doc, "Updated medication data from JSON", true, context);
         } catch (Exception ex) {
             this.logger.error("Failed to save medication data: [{}]", ex.getMessage());
         }
@@ -197,7 +197,7 @@ public void loadWithExceptionReturnsNull() throws Exception
     public void saveWithNoDataDoesNothing() throws Exception
     {
         when(this.patient.getData(MedicationController.DATA_NAME)).thenReturn(null);
-        this.mocker.getComponentUnderTest().save(this.patient);
+        this.mocker.getComponentUnderTest().save(this.patient, this.doc);
         Mockito.verifyZeroInteractions(this.doc);
     }
 
@@ -206,7 +206,7 @@ public void saveWithNonIndexedDataDoesNothing() throws Exception
     {
         when(this.patient.<Medication>getData(MedicationController.DATA_NAME)).thenReturn(
             new DictionaryPatientData<>(MedicationController.DATA_NAME, Collections.<String, Medication>emptyMap()));
-        this.mocker.getComponentUnderTest().save(this.patient);
+        this.mocker.getComponentUnderTest().save(this.patient, this.doc);
         Mockito.verifyZeroInteractions(this.doc);
     }
 
@@ -215,7 +215,7 @@ public void saveWithEmptyDataClearsXObjects() throws Exception
     {
         when(this.patient.getData(MedicationController.DATA_NAME))
             .thenReturn(new IndexedPatientData<>(MedicationController.DATA_NAME, Collections.emptyList()));
-        this.mocker.getComponentUnderTest().save(this.patient);
+        this.mocker.getComponentUnderTest().save(this.patient, this.doc);
         Mockito.verify(this.doc).removeXObjects(Medication.CLASS_REFERENCE);
         Mockito.verifyNoMoreInteractions(this.doc);
     }
@@ -226,7 +226,7 @@ public void saveHandlesExceptions() throws Exception
         setupSampleData();
         when(this.doc.newXObject(eq(Medication.CLASS_REFERENCE), any(XWikiContext.class)))
             .thenThrow(new XWikiException());
-        this.mocker.getComponentUnderTest().save(this.patient);
+        this.mocker.getComponentUnderTest().save(this.patient, this.doc);
         Mockito.verify(this.doc).removeXObjects(Medication.CLASS_REFERENCE);
     }
 
@@ -239,7 +239,7 @@ public void saveUpdatesXObjects() throws Exception
         when(this.doc.newXObject(eq(Medication.CLASS_REFERENCE), any(XWikiContext.class)))
             .thenReturn(obj1, obj2);
 
-        this.mocker.getComponentUnderTest().save(this.patient);
+        this.mocker.getComponentUnderTest().save(this.patient, this.doc);
 
         verify(this.doc, times(1)).removeXObjects(Medication.CLASS_REFERENCE);
 
@@ -261,7 +261,7 @@ public void saveUpdatesXObjects() throws Exception
         verify(obj2, never()).setStringValue(Medication.EFFECT, null);
         verify(obj2).setLargeStringValue(Medication.NOTES, "note2");
 
-        verify(this.xwiki, times(1)).saveDocument(eq(this.doc), any(String.class), eq(true), eq(this.xcontext));
+        verify(this.xwiki, never()).saveDocument(eq(this.doc), any(String.class), eq(true), eq(this.xcontext));
     }
 
     @Test
@@ -19,6 +19,7 @@
 
 import org.phenotips.Constants;
 
+import org.xwiki.bridge.DocumentModelBridge;
 import org.xwiki.model.EntityType;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.EntityReference;
@@ -66,6 +67,16 @@
      */
     DocumentReference getDocument();
 
+    /**
+     * Returns the already loaded document where the patient data is stored, so that the patient data can be read
+     * without looking up the document again.
+     *
+     * @return the document this patient was loaded from, or {@code null} if this patient isn't backed by an already
+     *         loaded document, in which case the document must be retrieved using {@link #getDocument() its reference}
+     * @since 1.3M1
+     */
+    DocumentModelBridge getXDocument();
+
     /**
      * Returns a reference to the profile of the user that created the patient record.
      *
@@ -137,6 +148,7 @@
      * JSON. All fields not present in JSON will be left as is.
      *
      * @param json JSON object containing patient data
+     * @throws IllegalStateException if the updated patient data couldn't be saved; in this case nothing is saved
      */
     void updateFromJSON(JSONObject json);
 }
@@ -17,6 +17,7 @@
  */
 package org.phenotips.data;
 
+import org.xwiki.bridge.DocumentModelBridge;
 import org.xwiki.component.annotation.Role;
 import org.xwiki.stability.Unstable;
 
@@ -33,8 +34,9 @@
  * <p>
  * The {@link #load(Patient)} method is responsible for populating a {@link Patient} object with actual data from the
  * patient record. Data read from the record can be accessed using the {@link Patient}'s {@link Patient#getData(String)
- * custom data access method}. The {@link #save(Patient)} method is responsible for storing back into the database the
- * custom data.
+ * custom data access method}. The {@link #save(Patient, DocumentModelBridge)} method is responsible for writing back
+ * the custom data into the document storing the patient record; the document itself is saved only once, by the caller,
+ * after all the data controllers have written their data.
  * </p>
  * <p>
  * The {@link #writeJSON(Patient, JSONObject)} method serializes custom data into the JSON being generated for a
@@ -67,12 +69,16 @@
     PatientData<T> load(Patient patient);
 
     /**
-     * Plays the role of a serialization function. Given a patient, saves the data that it {@link #load(Patient) loaded}
-     * for this patient in the underlying document storing the patient record.
+     * Plays the role of a serialization function. Given a patient, writes the data that it {@link #load(Patient)
+     * loaded} for this patient into the document storing the patient record. The document must not be saved by this
+     * method, since the same document instance is shared by all the data controllers taking part in an update, and it
+     * will be saved only once, by the caller, after all the controllers have written their data.
      *
      * @param patient the patient being saved
+     * @param doc the document storing the patient record, where the data is to be written
+     * @since 1.3M1
      */
-    void save(Patient patient);
+    void save(Patient patient, DocumentModelBridge doc);
 
     /**
      * Exports the data being managed by this data controller into the patient JSON export.
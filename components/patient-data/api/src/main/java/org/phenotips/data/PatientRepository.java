@@ -22,6 +22,8 @@
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.stability.Unstable;
 
+import org.json.JSONObject;
+
 /**
  * API that provides access to patient data. No access rights are checked here.
  *
@@ -74,4 +76,19 @@
      * @return the created patient record
      */
     Patient createNewPatient(DocumentReference creator);
+
+    /**
+     * Create and return a new patient record (owned by the given entity), filled in with the provided data. Unlike
+     * {@link #createNewPatient(DocumentReference) creating an empty record} and then {@link Patient#updateFromJSON
+     * updating it}, the new record is saved only once, already holding the provided data.
+     *
+     * @param creator a reference to the document representing an entity (a user or a group) which will be set as the
+     *            owner for the created {@link Patient patient}.
+     * @param data the patient data, in the format generated by {@link Patient#toJSON()}
+     * @return the created patient record
+     * @throws IllegalStateException if the new patient record couldn't be created or saved; in this case nothing is
+     *             saved
+     * @since 1.3M1
+     */
+    Patient createNewPatient(DocumentReference creator, JSONObject data);
 }
@@ -0,0 +1,267 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.internal;
+
+import org.phenotips.Constants;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.hibernate.HibernateException;
+import org.hibernate.LockMode;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.hibernate.exception.ConstraintViolationException;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.objects.LongProperty;
+import com.xpn.xwiki.store.XWikiHibernateBaseStore;
+import com.xpn.xwiki.store.XWikiStoreInterface;
+
+/**
+ * Allocates patient identifiers from blocks reserved in a persistent sequence. The next free identifier is stored in an
+ * object of the hidden document {@code PhenoTips.PatientIdentifierSequence}; each node reserves a whole block of
+ * identifiers at once, by advancing the stored value while holding a database lock on it, and then hands out
+ * identifiers from its block using an atomic counter, without any locking. The database is only accessed again once
+ * the block is exhausted. Identifiers from a block that is not fully used before a restart are lost.
+ * <p>
+ * The stored value is only ever written by the reservation itself, never by saving the sequence document, and it is
+ * initialized with an insert guarded by the primary key of the property, so that nodes of a cluster creating the
+ * sequence at the same time can't reset it.
+ *
+ * @version $Id$
+ * @since 1.3M1
+ */
+@Component
+@Singleton
+public class BlockPatientIdentifierAllocator implements PatientIdentifierAllocator
+{
+    /** The document holding the persistent sequence, which is also the class of the sequence object. */
+    private static final EntityReference SEQUENCE_REFERENCE = new EntityReference("PatientIdentifierSequence",
+        EntityType.DOCUMENT, Constants.CODE_SPACE_REFERENCE);
+
+    /** The name of the property storing the next free identifier. */
+    private static final String NEXT = "next";
+
+    /** How many identifiers to reserve at once, if not configured in {@code xwiki.properties}. */
+    private static final int DEFAULT_BLOCK_SIZE = 100;
+
+    /** How many times to try reserving a block, when the sequence is initialized concurrently by another node. */
+    private static final int MAX_ATTEMPTS = 2;
+
+    @Inject
+    @Named("hibernate")
+    private XWikiStoreInterface store;
+
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
+    @Inject
+    @Named("current")
+    private DocumentReferenceResolver<EntityReference> referenceResolver;
+
+    @Inject
+    private QueryManager qm;
+
+    /** Provides access to the configured block size. */
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    /** The block from which identifiers are currently handed out, {@code null} until the first allocation. */
+    private final AtomicReference<Block> block = new AtomicReference<>();
+
+    /** The database identifier of the sequence object, {@code null} until the sequence is first used. */
+    private Long sequenceObjectId;
+
+    @Override
+    public long allocate()
+    {
+        while (true) {
+            Block current = this.block.get();
+            if (current != null) {
+                long id = current.next.getAndIncrement();
+                if (id < current.end) {
+                    return id;
+                }
+            }
+            // The block is exhausted, only one thread reserves the next one
+            synchronized (this) {
+                if (this.block.get() == current) {
+                    this.block.set(reserveBlock());
+                }
+            }
+        }
+    }
+
+    /**
+     * Reserves a new block of identifiers by advancing the persistent sequence.
+     *
+     * @return the reserved block
+     */
+    private Block reserveBlock()
+    {
+        XWikiContext context = this.xcontextProvider.get();
+        int blockSize = Math.max(1, this.configuration.getProperty("phenotips.patients.idBlockSize",
+            DEFAULT_BLOCK_SIZE));
+        try {
+            long objectId = getSequenceObjectId(context);
+            for (int attempt = 0; attempt < MAX_ATTEMPTS; ++attempt) {
+                Long start = advanceSequence(objectId, blockSize, context);
+                if (start != null) {
+                    return new Block(start, start + blockSize);
+                }
+            }
+            throw new IllegalStateException("Failed to initialize the patient identifier sequence");
+        } catch (XWikiException | QueryException | HibernateException ex) {
+            throw new IllegalStateException("Failed to reserve new patient identifiers: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Advances the stored sequence by one block. This is done in a separate database session, with its own short
+     * transaction, so that the reservation is committed right away regardless of any transaction already started by
+     * the current request, and so that the lock on the sequence is released as soon as possible. If the sequence
+     * doesn't have a value yet, it is inserted, starting after the highest identifier already used.
+     *
+     * @param objectId the database identifier of the sequence object
+     * @param blockSize how many identifiers to reserve
+     * @param context the current request context
+     * @return the first identifier of the reserved block, or {@code null} if another node inserted the initial value of
+     *         the sequence at the same time, in which case the reservation must be tried again
+     * @throws XWikiException if selecting the current wiki database fails
+     * @throws QueryException if looking up the last used identifier fails
+     */
+    private Long advanceSequence(long objectId, int blockSize, XWikiContext context)
+        throws XWikiException, QueryException
+    {
+        XWikiHibernateBaseStore hibernateStore = (XWikiHibernateBaseStore) this.store;
+        Session session = hibernateStore.getSessionFactory().openSession();
+        Transaction transaction = null;
+        try {
+            hibernateStore.setDatabase(session, context);
+            transaction = session.beginTransaction();
+            LongProperty key = new LongProperty();
+            key.setId(objectId);
+            key.setName(NEXT);
+            LongProperty next = (LongProperty) session.get(LongProperty.class, key, LockMode.PESSIMISTIC_WRITE);
+            long start;
+            if (next == null) {
+                start = getLastUsedId() + 1;
+                key.setValue(start + blockSize);
+                session.save(key);
+            } else {
+                start = (Long) next.getValue();
+                next.setValue(start + blockSize);
+                session.update(next);
+            }
+            transaction.commit();
+            return start;
+        } catch (ConstraintViolationException ex) {
+            // Another node inserted the initial value first
+            transaction.rollback();
+            return null;
+        } catch (XWikiException | QueryException | RuntimeException ex) {
+            if (transaction != null && transaction.isActive()) {
+                transaction.rollback();
+            }
+            throw ex;
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Returns the database identifier of the object storing the sequence, creating the sequence document if it doesn't
+     * exist yet. The object is created without a value, which is only set by {@link #advanceSequence}, so that a node
+     * saving the document at the same time as another node is reserving a block can't overwrite the sequence.
+     *
+     * @param context the current request context
+     * @return the identifier of the sequence object
+     * @throws XWikiException if accessing the sequence document fails
+     */
+    private long getSequenceObjectId(XWikiContext context) throws XWikiException
+    {
+        if (this.sequenceObjectId == null) {
+            XWiki xwiki = context.getWiki();
+            DocumentReference reference = this.referenceResolver.resolve(SEQUENCE_REFERENCE);
+            XWikiDocument doc = xwiki.getDocument(reference, context);
+            BaseObject sequence = doc.getXObject(reference);
+            if (sequence == null) {
+                doc.getXClass().addNumberField(NEXT, "Next free patient identifier", 20, "long");
+                sequence = doc.newXObject(reference, context);
+                doc.setHidden(true);
+                xwiki.saveDocument(doc, "Created the patient identifier sequence", true, context);
+            }
+            this.sequenceObjectId = sequence.getId();
+        }
+        return this.sequenceObjectId;
+    }
+
+    private long getLastUsedId() throws QueryException
+    {
+        long crtMaxID = 0;
+        Query q =
+            this.qm.createQuery(
+                "select patient.identifier from Document doc, doc.object(PhenoTips.PatientClass) as patient"
+                    + " where patient.identifier is not null order by patient.identifier desc", Query.XWQL)
+                .setLimit(1);
+        List<Long> crtMaxIDList = q.execute();
+        if (!crtMaxIDList.isEmpty() && crtMaxIDList.get(0) != null) {
+            crtMaxID = crtMaxIDList.get(0);
+        }
+        crtMaxID = Math.max(crtMaxID, 0);
+        return crtMaxID;
+    }
+
+    /** A reserved range of identifiers, {@code [next, end)}. */
+    private static final class Block
+    {
+        /** The next identifier to hand out from this block. */
+        private final AtomicLong next;
+
+        /** The first identifier following this block, which is not part of it. */
+        private final long end;
+
+        Block(long start, long end)
+        {
+            this.next = new AtomicLong(start);
+            this.end = end;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.internal;
+
+import org.phenotips.data.PatientDataController;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+
+/**
+ * Default implementation for the {@link PatientDataControllerRegistry} role, which looks up the data controllers only
+ * once, and keeps them in an immutable map until {@link #invalidate() invalidated}.
+ *
+ * @version $Id$
+ * @since 1.3M1
+ */
+@Component
+@Singleton
+public class DefaultPatientDataControllerRegistry implements PatientDataControllerRegistry
+{
+    /** Logging helper object. */
+    @Inject
+    private Logger logger;
+
+    /** Used for looking up the available data controllers. */
+    @Inject
+    @Named("context")
+    private Provider<ComponentManager> componentManager;
+
+    /** The cached controllers, {@code null} if they must be looked up again. */
+    private volatile Map<String, PatientDataController<?>> controllers;
+
+    @Override
+    public Map<String, PatientDataController<?>> getControllers()
+    {
+        Map<String, PatientDataController<?>> result = this.controllers;
+        if (result == null) {
+            synchronized (this) {
+                result = this.controllers;
+                if (result == null) {
+                    result = lookupControllers();
+                    if (result == null) {
+                        // Don't cache the failure, try again next time
+                        return Collections.emptyMap();
+                    }
+                    this.controllers = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized void invalidate()
+    {
+        this.controllers = null;
+    }
+
+    private Map<String, PatientDataController<?>> lookupControllers()
+    {
+        try {
+            List<PatientDataController<?>> availableControllers =
+                this.componentManager.get().getInstanceList(PatientDataController.class);
+            Map<String, PatientDataController<?>> result = new TreeMap<String, PatientDataController<?>>();
+            for (PatientDataController<?> controller : availableControllers) {
+                if (result.containsKey(controller.getName())) {
+                    this.logger.warn("Overwriting patient data controller with the name [{}]", controller.getName());
+                }
+                result.put(controller.getName(), controller);
+            }
+            return Collections.unmodifiableMap(result);
+        } catch (ComponentLookupException ex) {
+            this.logger.error("Failed to lookup serializers", ex);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.internal;
+
+import org.phenotips.data.PatientDataController;
+
+import org.xwiki.component.annotation.Role;
+
+import java.util.Map;
+
+/**
+ * Keeps track of the available {@link PatientDataController patient data controllers}, so that they don't have to be
+ * looked up again each time a patient record is loaded.
+ *
+ * @version $Id$
+ * @since 1.3M1
+ */
+@Role
+public interface PatientDataControllerRegistry
+{
+    /**
+     * Lists the available data controllers.
+     *
+     * @return a read-only map of the available data controllers, sorted and indexed by their name, may be empty if the
+     *         controllers cannot be looked up
+     */
+    Map<String, PatientDataController<?>> getControllers();
+
+    /**
+     * Discards the known data controllers, so that they will be looked up again the next time they are requested.
+     * Should be called whenever a data controller is registered or unregistered.
+     */
+    void invalidate();
+}
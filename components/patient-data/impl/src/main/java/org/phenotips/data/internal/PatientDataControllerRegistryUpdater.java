@@ -0,0 +1,64 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.internal;
+
+import org.phenotips.data.PatientDataController;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.event.ComponentDescriptorAddedEvent;
+import org.xwiki.component.event.ComponentDescriptorEvent;
+import org.xwiki.component.event.ComponentDescriptorRemovedEvent;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.event.Event;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+/**
+ * Invalidates the {@link PatientDataControllerRegistry known data controllers} whenever a new data controller is
+ * registered or an existing one is unregistered, for example when an extension is installed or uninstalled.
+ *
+ * @version $Id$
+ * @since 1.3M1
+ */
+@Component
+@Named("patient-data-controller-registry-updater")
+@Singleton
+public class PatientDataControllerRegistryUpdater extends AbstractEventListener
+{
+    @Inject
+    private PatientDataControllerRegistry registry;
+
+    /** Default constructor, sets up the listener name and the list of events to subscribe to. */
+    public PatientDataControllerRegistryUpdater()
+    {
+        super("patient-data-controller-registry-updater", new ComponentDescriptorAddedEvent(),
+            new ComponentDescriptorRemovedEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        ComponentDescriptorEvent componentEvent = (ComponentDescriptorEvent) event;
+        if (PatientDataController.class.equals(ReflectionUtils.getTypeClass(componentEvent.getRoleType()))) {
+            this.registry.invalidate();
+        }
+    }
+}
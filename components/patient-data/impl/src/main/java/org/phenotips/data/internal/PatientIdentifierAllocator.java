@@ -0,0 +1,39 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.internal;
+
+import org.xwiki.component.annotation.Role;
+
+/**
+ * Hands out numeric identifiers for new patient records. Identifiers are never handed out twice, not even by different
+ * nodes of a cluster sharing the same database, but they are not guaranteed to be consecutive.
+ *
+ * @version $Id$
+ * @since 1.3M1
+ */
+@Role
+public interface PatientIdentifierAllocator
+{
+    /**
+     * Returns a new, never used before, patient identifier.
+     *
+     * @return a positive number
+     * @throws IllegalStateException if a new identifier couldn't be reserved in the database
+     */
+    long allocate();
+}
@@ -26,6 +26,7 @@
 import org.phenotips.data.PatientDataController;
 
 import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.bridge.DocumentModelBridge;
 import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.context.Execution;
 import org.xwiki.model.EntityType;
@@ -40,6 +41,7 @@
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.regex.Pattern;
 
 import org.apache.commons.lang3.StringUtils;
 import org.json.JSONArray;
@@ -90,12 +92,18 @@ public class PhenoTipsPatient implements Patient
 
     private static final String[] DISORDER_PROPERTIES = new String[] { DISORDER_PROPERTIES_OMIMID };
 
+    /** Matches the names of the properties holding phenotypes, excluding the extended ones. */
+    private static final Pattern PHENOTYPE_FIELD_PATTERN = Pattern.compile("(?!extended_)(.*_)?phenotype");
+
     /** Logging helper object. */
     private Logger logger = LoggerFactory.getLogger(PhenoTipsPatient.class);
 
     /** @see #getDocument() */
     private DocumentReference document;
 
+    /** @see #getXDocument() */
+    private XWikiDocument xdocument;
+
     /** @see #getReporter() */
     private DocumentReference reporter;
 
@@ -106,11 +114,14 @@ public class PhenoTipsPatient implements Patient
     private Set<Disorder> disorders = new TreeSet<Disorder>();
 
     /** The list of all the initialized data holders (PatientDataSerializer). */
-    private Map<String, PatientDataController<?>> serializers = new TreeMap<String, PatientDataController<?>>();
+    private Map<String, PatientDataController<?>> serializers = Collections.emptyMap();
 
     /** Extra data that can be plugged into the patient record. */
     private Map<String, PatientData<?>> extraData = new TreeMap<String, PatientData<?>>();
 
+    /** Whether the data of all the controllers was already loaded, see {@link #loadAllData()}. */
+    private boolean allDataLoaded;
+
     /**
      * Constructor that copies the data from an XDocument.
      *
@@ -119,6 +130,7 @@ public class PhenoTipsPatient implements Patient
     public PhenoTipsPatient(XWikiDocument doc)
     {
         this.document = doc.getDocumentReference();
+        this.xdocument = doc;
         this.reporter = doc.getCreatorReference();
 
         BaseObject data = doc.getXObject(CLASS_REFERENCE);
@@ -140,12 +152,54 @@ public PhenoTipsPatient(XWikiDocument doc)
 
     }
 
+    /**
+     * Copy constructor, creating a new patient object holding the same data as an already loaded patient. The read-only
+     * features and disorders are shared, while the extra data is copied, so that changes made to the copy don't affect
+     * the original patient. If the original patient {@link #loadAllData() loaded the data of all the controllers}, the
+     * copy doesn't load it again.
+     *
+     * @param original the already loaded patient to copy
+     * @param doc the current instance of the document holding the patient, with the same version as the one the
+     *            original patient was loaded from
+     */
+    PhenoTipsPatient(PhenoTipsPatient original, XWikiDocument doc)
+    {
+        this.document = original.document;
+        this.xdocument = doc;
+        this.reporter = original.reporter;
+        this.features = original.features;
+        this.disorders = original.disorders;
+        this.serializers = original.serializers;
+        this.extraData.putAll(original.extraData);
+        this.allDataLoaded = original.allDataLoaded;
+    }
+
+    /**
+     * Loads the data of all the controllers at once, instead of lazily when first requested, so that this patient can
+     * be used as a complete snapshot for {@link #PhenoTipsPatient(PhenoTipsPatient, XWikiDocument) copies}.
+     */
+    void loadAllData()
+    {
+        for (PatientDataController<?> serializer : this.serializers.values()) {
+            try {
+                PatientData<?> data = serializer.load(this);
+                if (data != null && !this.extraData.containsKey(data.getName())) {
+                    this.extraData.put(data.getName(), data);
+                }
+            } catch (Exception ex) {
+                this.logger.warn("Failed to load patient data using controller [{}]: {}", serializer.getName(),
+                    ex.getMessage(), ex);
+            }
+        }
+        this.allDataLoaded = true;
+    }
+
     private void loadFeatures(XWikiDocument doc, BaseObject data)
     {
         @SuppressWarnings("unchecked")
         Collection<BaseProperty<EntityReference>> fields = data.getFieldList();
         for (BaseProperty<EntityReference> field : fields) {
-            if (field == null || !field.getName().matches("(?!extended_)(.*_)?phenotype")
+            if (field == null || !PHENOTYPE_FIELD_PATTERN.matcher(field.getName()).matches()
                 || !ListProperty.class.isInstance(field)) {
                 continue;
             }
@@ -175,15 +229,9 @@ private void loadDisorders(XWikiDocument doc, BaseObject data) throws XWikiExcep
     private void loadSerializers()
     {
         try {
-            List<PatientDataController<?>> availableSerializers = ComponentManagerRegistry
-                .getContextComponentManager()
-                .getInstanceList(PatientDataController.class);
-            for (PatientDataController<?> serializer : availableSerializers) {
-                if (this.serializers.containsKey(serializer.getName())) {
-                    this.logger.warn("Overwriting patient data controller with the name [{}]", serializer.getName());
-                }
-                this.serializers.put(serializer.getName(), serializer);
-            }
+            PatientDataControllerRegistry registry = ComponentManagerRegistry.getContextComponentManager()
+                .getInstance(PatientDataControllerRegistry.class);
+            this.serializers = registry.getControllers();
         } catch (ComponentLookupException ex) {
             this.logger.error("Failed to lookup serializers", ex);
         }
@@ -243,6 +291,12 @@ public DocumentReference getDocument()
         return this.document;
     }
 
+    @Override
+    public DocumentModelBridge getXDocument()
+    {
+        return this.xdocument;
+    }
+
     @Override
     public DocumentReference getReporter()
     {
@@ -265,7 +319,7 @@ public Set<Disorder> getDisorders()
     @Override
     public <T> PatientData<T> getData(String name)
     {
-        if (!this.extraData.containsKey(name)) {
+        if (!this.allDataLoaded && !this.extraData.containsKey(name)) {
             this.readPatientData(name);
         }
         return (PatientData<T>) this.extraData.get(name);
@@ -350,8 +404,7 @@ public JSONObject toJSON(Collection<String> onlyFieldNames)
         return result;
     }
 
-    private void updateFeaturesFromJSON(XWikiDocument doc, BaseObject data, XWikiContext context,
-        JSONObject json)
+    private void updateFeaturesFromJSON(BaseObject data, XWikiContext context, JSONObject json)
     {
         try {
             JSONArray jsonFeatures =
@@ -390,8 +443,6 @@ private void updateFeaturesFromJSON(XWikiDocument doc, BaseObject data, XWikiCon
             // update the values in the document (overwriting the old list, if any)
             data.set(PHENOTYPE_POSITIVE_PROPERTY, positiveValues, context);
             data.set(PHENOTYPE_NEGATIVE_PROPERTY, negativeValues, context);
-            context.getWiki().saveDocument(doc, "Updated features from JSON", true, context);
-
         } catch (Exception ex) {
             this.logger.warn("Failed to update patient features from JSON [{}]: {}", ex.getMessage(), ex);
         }
@@ -413,7 +464,7 @@ private JSONArray joinArrays(JSONArray jsonOne, JSONArray jsonTwo)
         return result;
     }
 
-    private void updateDisordersFromJSON(XWikiDocument doc, BaseObject data, XWikiContext context, JSONObject json)
+    private void updateDisordersFromJSON(BaseObject data, XWikiContext context, JSONObject json)
     {
         try {
             JSONArray inputDisorders = json.optJSONArray(JSON_KEY_DISORDERS);
@@ -441,19 +492,54 @@ private void updateDisordersFromJSON(XWikiDocument doc, BaseObject data, XWikiCo
 
                 // update the values in the document (overwriting the old list, if any)
                 data.set(DISORDER_PROPERTIES_OMIMID, disorderValues, context);
-                context.getWiki().saveDocument(doc, "Updated disorders from JSON", true, context);
             }
         } catch (Exception ex) {
             this.logger.warn("Failed to update patient disorders from JSON [{}]: {}", ex.getMessage(), ex);
         }
     }
 
+    /**
+     * Writes the provided patient data in the given document, without saving it, and keeps this patient in sync with
+     * the document.
+     *
+     * @param json JSON object containing patient data
+     * @param doc the document holding this patient, where the data is written
+     * @param context the current XWiki context
+     */
+    void writeJSON(JSONObject json, XWikiDocument doc, XWikiContext context)
+    {
+        BaseObject data = doc.getXObject(CLASS_REFERENCE);
+        if (data == null) {
+            return;
+        }
+
+        updateFeaturesFromJSON(data, context, json);
+        updateDisordersFromJSON(data, context, json);
+
+        for (PatientDataController<?> serializer : this.serializers.values()) {
+            try {
+                PatientData<?> patientData = serializer.readJSON(json);
+                if (patientData != null) {
+                    this.extraData.put(patientData.getName(), patientData);
+                    serializer.save(this, doc);
+                    this.logger.info("Successfully updated patient form JSON using serializer [{}]",
+                        serializer.getName());
+                }
+            } catch (UnsupportedOperationException ex) {
+                this.logger.info("Unable to update patient from JSON using serializer [{}]: not supported",
+                    serializer.getName());
+            } catch (Exception ex) {
+                this.logger.warn("Failed to update patient data from JSON using serializer [{}]: {}",
+                    serializer.getName(), ex.getMessage(), ex);
+            }
+        }
+    }
+
     @Override
     public void updateFromJSON(JSONObject json)
     {
         try {
             // TODO: Check versions and throw if versions mismatch if necessary
-            // TODO: Separate updateFromJSON and saveToDB? Move to PatientRepository?
 
             Execution execution = ComponentManagerRegistry.getContextComponentManager().getInstance(Execution.class);
             XWikiContext context = (XWikiContext) execution.getContext().getProperty("xwikicontext");
@@ -462,33 +548,18 @@ public void updateFromJSON(JSONObject json)
                 ComponentManagerRegistry.getContextComponentManager().getInstance(DocumentAccessBridge.class);
             XWikiDocument doc = (XWikiDocument) documentAccessBridge.getDocument(getDocument());
 
-            BaseObject data = doc.getXObject(CLASS_REFERENCE);
-            if (data == null) {
+            if (doc.getXObject(CLASS_REFERENCE) == null) {
                 return;
             }
+            writeJSON(json, doc, context);
 
-            updateFeaturesFromJSON(doc, data, context, json);
-            updateDisordersFromJSON(doc, data, context, json);
-
-            for (PatientDataController<?> serializer : this.serializers.values()) {
-                try {
-                    PatientData<?> patientData = serializer.readJSON(json);
-                    if (patientData != null) {
-                        this.extraData.put(patientData.getName(), patientData);
-                        serializer.save(this);
-                        this.logger.info("Successfully updated patient form JSON using serializer [{}]",
-                            serializer.getName());
-                    }
-                } catch (UnsupportedOperationException ex) {
-                    this.logger.info("Unable to update patient from JSON using serializer [{}]: not supported",
-                        serializer.getName());
-                } catch (Exception ex) {
-                    this.logger.warn("Failed to update patient data from JSON using serializer [{}]: {}",
-                        serializer.getName(), ex.getMessage(), ex);
-                }
-            }
+            // All the changes were written in the same document instance, commit them as a single new version
+            context.getWiki().saveDocument(doc, "Updated from JSON", true, context);
+            this.xdocument = doc;
         } catch (Exception ex) {
             this.logger.warn("Failed to update patient data from JSON [{}]: {}", ex.getMessage(), ex);
+            // Callers must know that nothing was saved
+            throw new IllegalStateException("Failed to update patient [" + getId() + "] from JSON", ex);
         }
     }
 
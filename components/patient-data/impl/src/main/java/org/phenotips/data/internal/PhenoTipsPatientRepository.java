@@ -21,20 +21,35 @@
 import org.phenotips.data.Patient;
 import org.phenotips.data.PatientRecordInitializer;
 import org.phenotips.data.PatientRepository;
+import org.phenotips.data.events.PatientChangedEvent;
+import org.phenotips.data.events.PatientDeletedEvent;
+import org.phenotips.data.events.PatientEvent;
 
 import org.xwiki.bridge.DocumentAccessBridge;
 import org.xwiki.bridge.DocumentModelBridge;
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.LRUCacheConfiguration;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
 import org.xwiki.context.Execution;
 import org.xwiki.model.EntityType;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.DocumentReferenceResolver;
 import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.observation.event.Event;
 import org.xwiki.query.Query;
 import org.xwiki.query.QueryException;
 import org.xwiki.query.QueryManager;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -42,6 +57,8 @@
 import javax.inject.Named;
 import javax.inject.Singleton;
 
+import org.apache.commons.lang3.StringUtils;
+import org.json.JSONObject;
 import org.slf4j.Logger;
 
 import com.xpn.xwiki.XWikiContext;
@@ -49,15 +66,20 @@
 
 /**
  * Implementation of patient data access service using XWiki as the storage backend, where patients in documents having
- * an object of type {@code PhenoTips.PatientClass}.
+ * an object of type {@code PhenoTips.PatientClass}. Loaded patients are kept in a bounded cache, indexed by the
+ * document they are stored in, and reused as long as the document version doesn't change. Cached patients are removed
+ * as soon as the patient record is modified or deleted.
  *
  * @version $Id$
  * @since 1.0M8
  */
-@Component
+@Component(roles = { PatientRepository.class })
 @Singleton
-public class PhenoTipsPatientRepository implements PatientRepository
+public class PhenoTipsPatientRepository implements PatientRepository, Initializable, EventListener
 {
+    /** The maximum number of patients to keep in the cache, if not configured in {@code xwiki.properties}. */
+    private static final int DEFAULT_CACHE_SIZE = 1000;
+
     /** Logging helper object. */
     @Inject
     private Logger logger;
@@ -84,6 +106,63 @@ public class PhenoTipsPatientRepository implements PatientRepository
     @Named("current")
     private DocumentReferenceResolver<EntityReference> referenceResolver;
 
+    /** Hands out identifiers for new patients. */
+    @Inject
+    private PatientIdentifierAllocator identifierAllocator;
+
+    /** Serializes document references into cache keys. */
+    @Inject
+    private EntityReferenceSerializer<String> referenceSerializer;
+
+    /** Used for creating the patient cache. */
+    @Inject
+    private CacheManager cacheManager;
+
+    /** Allows registering this object as an event listener, for keeping the cache up to date. */
+    @Inject
+    private ObservationManager observationManager;
+
+    /** Provides access to the configured size of the patient cache. */
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    /** Already loaded patients, indexed by the serialized reference of their document. */
+    private Cache<CachedPatient> cache;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        try {
+            int cacheSize = this.configuration.getProperty("phenotips.patients.cacheSize", DEFAULT_CACHE_SIZE);
+            this.cache = this.cacheManager.createNewCache(new LRUCacheConfiguration("patients", cacheSize));
+        } catch (CacheException ex) {
+            throw new InitializationException("Failed to create the patient cache", ex);
+        }
+        this.observationManager.addListener(this);
+    }
+
+    @Override
+    public String getName()
+    {
+        return "patient-repository-cache";
+    }
+
+    @Override
+    public List<Event> getEvents()
+    {
+        return Arrays.<Event>asList(new PatientChangedEvent(), new PatientDeletedEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        Patient patient = ((PatientEvent) event).getPatient();
+        if (patient != null && patient.getDocument() != null) {
+            this.cache.remove(this.referenceSerializer.serialize(patient.getDocument()));
+        }
+    }
+
     @Override
     public Patient getPatientById(String id)
     {
@@ -91,7 +170,7 @@ public Patient getPatientById(String id)
         try {
             XWikiDocument doc = (XWikiDocument) this.bridge.getDocument(reference);
             if (doc != null && doc.getXObject(Patient.CLASS_REFERENCE) != null) {
-                return new PhenoTipsPatient(doc);
+                return getCachedPatient(doc);
             }
         } catch (Exception ex) {
             this.logger.warn("Failed to access patient with id [{}]: {}", id, ex.getMessage(), ex);
@@ -109,7 +188,7 @@ public Patient getPatientByExternalId(String externalId)
             if (results.size() == 1) {
                 DocumentReference reference =
                     this.stringResolver.resolve(results.get(0), Patient.DEFAULT_DATA_SPACE);
-                return new PhenoTipsPatient((XWikiDocument) this.bridge.getDocument(reference));
+                return getCachedPatient((XWikiDocument) this.bridge.getDocument(reference));
             }
         } catch (QueryException ex) {
             this.logger.warn("Failed to search for the patient with external id [{}]: {}", externalId, ex.getMessage(),
@@ -132,50 +211,15 @@ public Patient loadPatientFromDocument(DocumentModelBridge document)
     }
 
     @Override
-    public synchronized Patient createNewPatient(DocumentReference creator)
+    public Patient createNewPatient(DocumentReference creator)
     {
         try {
-            // FIXME Take these from the configuration
-            String prefix = "P";
-
             XWikiContext context = (XWikiContext) this.execution.getContext().getProperty("xwikicontext");
-            long id = getLastUsedId();
-            DocumentReference newDoc;
-            do {
-                newDoc = this.referenceResolver.resolve(new EntityReference(
-                    prefix + String.format("%07d", ++id), EntityType.DOCUMENT, Patient.DEFAULT_DATA_SPACE));
-            } while (this.bridge.exists(newDoc));
-            XWikiDocument doc = (XWikiDocument) this.bridge.getDocument(newDoc);
-            doc.readFromTemplate(this.referenceResolver.resolve(PhenoTipsPatient.TEMPLATE_REFERENCE), context);
-            doc.setTitle(newDoc.getName());
-            doc.getXObject(Patient.CLASS_REFERENCE).setLongValue("identifier", id);
-            if (creator != null) {
-                doc.setCreatorReference(creator);
-                doc.setAuthorReference(creator);
-                doc.setContentAuthorReference(creator);
-            }
+            XWikiDocument doc = preparePatientDocument(creator, context);
             context.getWiki().saveDocument(doc, context);
 
             Patient patient = new PhenoTipsPatient(doc);
-            List<PatientRecordInitializer> initializers = Collections.emptyList();
-            try {
-                initializers = ComponentManagerRegistry.getContextComponentManager().getInstanceList(
-                    PatientRecordInitializer.class);
-            } catch (ComponentLookupException e) {
-                this.logger.error("Failed to get initializers", e);
-            }
-
-            for (PatientRecordInitializer initializer : initializers) {
-                try {
-                    initializer.initialize(patient);
-                } catch (Exception ex) {
-                    // Initializers shouldn't block the creation of a new patient, especially since the new patient
-                    // has already been saved...
-                    this.logger.warn("Patient initializer [{}] failed: {}", initializer.getClass().getName(),
-                        ex.getMessage(), ex);
-                }
-            }
-
+            initializePatient(patient);
             return patient;
         } catch (Exception ex) {
             this.logger.warn("Failed to create patient: {}", ex.getMessage(), ex);
@@ -184,24 +228,131 @@ public synchronized Patient createNewPatient(DocumentReference creator)
     }
 
     @Override
-    public synchronized Patient createNewPatient()
+    public Patient createNewPatient(DocumentReference creator, JSONObject data)
+    {
+        try {
+            XWikiContext context = (XWikiContext) this.execution.getContext().getProperty("xwikicontext");
+            XWikiDocument doc = preparePatientDocument(creator, context);
+            PhenoTipsPatient patient = new PhenoTipsPatient(doc);
+            patient.writeJSON(data, doc, context);
+            context.getWiki().saveDocument(doc, "Created from JSON", context);
+
+            initializePatient(patient);
+            return patient;
+        } catch (Exception ex) {
+            this.logger.warn("Failed to create patient from JSON: {}", ex.getMessage(), ex);
+            // Callers must know that nothing was saved
+            throw new IllegalStateException("Failed to create a patient from JSON", ex);
+        }
+    }
+
+    @Override
+    public Patient createNewPatient()
     {
         return createNewPatient(this.bridge.getCurrentUserReference());
     }
 
-    private long getLastUsedId() throws QueryException
+    /**
+     * Prepares the document for a new patient record, with a newly allocated identifier, filled in from the patient
+     * template. The document isn't saved.
+     *
+     * @param creator the owner of the new patient record, may be {@code null}
+     * @param context the current XWiki context
+     * @return the new document
+     * @throws Exception if accessing the new document or the patient template fails
+     */
+    private XWikiDocument preparePatientDocument(DocumentReference creator, XWikiContext context) throws Exception
+    {
+        // FIXME Take these from the configuration
+        String prefix = "P";
+
+        long id;
+        DocumentReference newDoc;
+        do {
+            // Normally the allocated identifier is free, but records may have been created by other means
+            id = this.identifierAllocator.allocate();
+            newDoc = this.referenceResolver.resolve(new EntityReference(
+                prefix + String.format("%07d", id), EntityType.DOCUMENT, Patient.DEFAULT_DATA_SPACE));
+        } while (this.bridge.exists(newDoc));
+        XWikiDocument doc = (XWikiDocument) this.bridge.getDocument(newDoc);
+        doc.readFromTemplate(this.referenceResolver.resolve(PhenoTipsPatient.TEMPLATE_REFERENCE), context);
+        doc.setTitle(newDoc.getName());
+        doc.getXObject(Patient.CLASS_REFERENCE).setLongValue("identifier", id);
+        if (creator != null) {
+            doc.setCreatorReference(creator);
+            doc.setAuthorReference(creator);
+            doc.setContentAuthorReference(creator);
+        }
+        return doc;
+    }
+
+    /**
+     * Runs all the {@link PatientRecordInitializer initializers} on a newly created patient.
+     *
+     * @param patient the new, already saved, patient
+     */
+    private void initializePatient(Patient patient)
     {
-        long crtMaxID = 0;
-        Query q =
-            this.qm.createQuery(
-                "select patient.identifier from Document doc, doc.object(PhenoTips.PatientClass) as patient"
-                    + " where patient.identifier is not null order by patient.identifier desc", Query.XWQL)
-                .setLimit(1);
-        List<Long> crtMaxIDList = q.execute();
-        if (!crtMaxIDList.isEmpty() && crtMaxIDList.get(0) != null) {
-            crtMaxID = crtMaxIDList.get(0);
+        List<PatientRecordInitializer> initializers = Collections.emptyList();
+        try {
+            initializers = ComponentManagerRegistry.getContextComponentManager().getInstanceList(
+                PatientRecordInitializer.class);
+        } catch (ComponentLookupException e) {
+            this.logger.error("Failed to get initializers", e);
+        }
+
+        for (PatientRecordInitializer initializer : initializers) {
+            try {
+                initializer.initialize(patient);
+            } catch (Exception ex) {
+                // Initializers shouldn't block the creation of a new patient, especially since the new patient
+                // has already been saved...
+                this.logger.warn("Patient initializer [{}] failed: {}", initializer.getClass().getName(),
+                    ex.getMessage(), ex);
+            }
+        }
+    }
+
+    /**
+     * Returns the patient stored in the given document, reusing the already parsed patient data if the document wasn't
+     * modified since it was last loaded. The cached patient is a snapshot holding the data of all the controllers, loaded
+     * once when it is cached, and it is never handed out: each caller gets its own copy, so that changes made by one
+     * caller, for example through {@link Patient#updateFromJSON}, can't leak into the cache or to other callers.
+     *
+     * @param doc the document holding the patient record
+     * @return the patient stored in the document
+     */
+    private Patient getCachedPatient(XWikiDocument doc)
+    {
+        String key = this.referenceSerializer.serialize(doc.getDocumentReference());
+        String version = doc.getVersion();
+        CachedPatient cached = this.cache.get(key);
+        if (cached != null && StringUtils.equals(version, cached.version)) {
+            return new PhenoTipsPatient(cached.patient, doc);
+        }
+        PhenoTipsPatient patient = new PhenoTipsPatient(doc);
+        // New documents aren't saved yet, don't cache their transient state
+        if (!doc.isNew()) {
+            patient.loadAllData();
+            this.cache.set(key, new CachedPatient(version, patient));
+            return new PhenoTipsPatient(patient, doc);
+        }
+        return patient;
+    }
+
+    /** A cached patient snapshot, along with the version of the document it was loaded from. */
+    private static final class CachedPatient
+    {
+        /** The version of the document when the patient was loaded. */
+        private final String version;
+
+        /** The loaded patient, only used as a template for the copies handed out to callers. */
+        private final PhenoTipsPatient patient;
+
+        CachedPatient(String version, PhenoTipsPatient patient)
+        {
+            this.version = version;
+            this.patient = patient;
         }
-        crtMaxID = Math.max(crtMaxID, 0);
-        return crtMaxID;
     }
 }
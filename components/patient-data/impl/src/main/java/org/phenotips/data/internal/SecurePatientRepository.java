@@ -34,6 +34,7 @@
 import javax.inject.Named;
 import javax.inject.Singleton;
 
+import org.json.JSONObject;
 import org.slf4j.Logger;
 
 /**
@@ -101,6 +102,16 @@ public Patient createNewPatient(DocumentReference creator)
         throw new SecurityException("User not authorized to create new patients");
     }
 
+    @Override
+    public Patient createNewPatient(DocumentReference creator, JSONObject data)
+    {
+        if (this.access.hasAccess(Right.EDIT, creator,
+            this.currentResolver.resolve(Patient.DEFAULT_DATA_SPACE, EntityType.SPACE))) {
+            return this.internalService.createNewPatient(creator, data);
+        }
+        throw new SecurityException("User not authorized to create new patients");
+    }
+
     @Override
     public synchronized Patient createNewPatient()
     {
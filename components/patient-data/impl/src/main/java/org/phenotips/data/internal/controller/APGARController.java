@@ -23,6 +23,7 @@
 import org.phenotips.data.PatientDataController;
 
 import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.bridge.DocumentModelBridge;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.model.reference.ObjectPropertyReference;
 
@@ -73,7 +74,10 @@ public class APGARController implements PatientDataController<Integer>
     public PatientData<Integer> load(Patient patient)
     {
         try {
-            XWikiDocument doc = (XWikiDocument) this.documentAccessBridge.getDocument(patient.getDocument());
+            XWikiDocument doc = (XWikiDocument) patient.getXDocument();
+            if (doc == null) {
+                doc = (XWikiDocument) this.documentAccessBridge.getDocument(patient.getDocument());
+            }
             BaseObject data = doc.getXObject(Patient.CLASS_REFERENCE);
             if (data == null) {
                 return null;
@@ -95,11 +99,10 @@ public PatientData<Integer> load(Patient patient)
 
     @SuppressWarnings("unchecked")
     @Override
-    public void save(Patient patient)
+    public void save(Patient patient, DocumentModelBridge doc)
     {
         try {
-            XWikiDocument doc = (XWikiDocument) this.documentAccessBridge.getDocument(patient.getDocument());
-            BaseObject dataHolder = doc.getXObject(Patient.CLASS_REFERENCE);
+            BaseObject dataHolder = ((XWikiDocument) doc).getXObject(Patient.CLASS_REFERENCE);
             PatientData<Integer> data = patient.getData(getName());
             if (data == null || dataHolder == null) {
                 return;
@@ -25,6 +25,7 @@
 import org.phenotips.data.internal.AbstractPhenoTipsVocabularyProperty;
 
 import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.bridge.DocumentModelBridge;
 import org.xwiki.component.util.DefaultParameterizedType;
 import org.xwiki.model.reference.EntityReference;
 import org.xwiki.model.reference.ObjectPropertyReference;
@@ -32,6 +33,7 @@
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
@@ -79,7 +81,10 @@
     public PatientData<T> load(Patient patient)
     {
         try {
-            XWikiDocument doc = (XWikiDocument) this.documentAccessBridge.getDocument(patient.getDocument());
+            XWikiDocument doc = (XWikiDocument) patient.getXDocument();
+            if (doc == null) {
+                doc = (XWikiDocument) this.documentAccessBridge.getDocument(patient.getDocument());
+            }
             BaseObject data = doc.getXObject(getXClassReference());
             if (data == null) {
                 return null;
@@ -113,6 +118,9 @@ public PatientData<T> load(Patient patient)
     @Override
     public void writeJSON(Patient patient, JSONObject json, Collection<String> selectedFieldNames)
     {
+        if (selectedFieldNames != null && Collections.disjoint(selectedFieldNames, getProperties())) {
+            return;
+        }
         PatientData<T> data = patient.getData(getName());
         if (data == null) {
             return;
@@ -274,11 +282,10 @@ public void writeJSON(Patient patient, JSONObject json)
 
     @SuppressWarnings("unchecked")
     @Override
-    public void save(Patient patient)
+    public void save(Patient patient, DocumentModelBridge doc)
     {
         try {
-            XWikiDocument doc = (XWikiDocument) this.documentAccessBridge.getDocument(patient.getDocument());
-            BaseObject dataHolder = doc.getXObject(getXClassReference());
+            BaseObject dataHolder = ((XWikiDocument) doc).getXObject(getXClassReference());
             PatientData<T> data = patient.getData(this.getName());
             if (dataHolder == null && data != null) {
                 return;
@@ -297,9 +304,6 @@ public void save(Patient patient)
                     dataHolder.set(propertyName, this.saveFormat(propertyValue), context);
                 }
             }
-
-            context.getWiki()
-                .saveDocument(doc, String.format("Updated %s history from JSON", this.getName()), true, context);
         } catch (Exception ex) {
             this.logger.error("Could not load patient document or some unknown error has occurred", ex.getMessage());
         }
@@ -23,8 +23,10 @@
 import org.phenotips.data.PatientDataController;
 
 import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.bridge.DocumentModelBridge;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -32,13 +34,11 @@
 import java.util.Map.Entry;
 
 import javax.inject.Inject;
-import javax.inject.Provider;
 
 import org.apache.commons.lang3.StringUtils;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 
-import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.doc.XWikiDocument;
 import com.xpn.xwiki.objects.BaseObject;
 
@@ -58,15 +58,14 @@ public abstract class AbstractSimpleController implements PatientDataController<
     @Inject
     private Logger logger;
 
-    /** Provides access to the current execution context. */
-    @Inject
-    private Provider<XWikiContext> contextProvider;
-
     @Override
     public PatientData<String> load(Patient patient)
     {
         try {
-            XWikiDocument doc = (XWikiDocument) this.documentAccessBridge.getDocument(patient.getDocument());
+            XWikiDocument doc = (XWikiDocument) patient.getXDocument();
+            if (doc == null) {
+                doc = (XWikiDocument) this.documentAccessBridge.getDocument(patient.getDocument());
+            }
             BaseObject data = doc.getXObject(Patient.CLASS_REFERENCE);
             if (data == null) {
                 return null;
@@ -87,11 +86,10 @@ public PatientData<String> load(Patient patient)
     }
 
     @Override
-    public void save(Patient patient)
+    public void save(Patient patient, DocumentModelBridge doc)
     {
         try {
-            XWikiDocument doc = (XWikiDocument) this.documentAccessBridge.getDocument(patient.getDocument());
-            BaseObject xwikiDataObject = doc.getXObject(Patient.CLASS_REFERENCE);
+            BaseObject xwikiDataObject = ((XWikiDocument) doc).getXObject(Patient.CLASS_REFERENCE);
             if (xwikiDataObject == null) {
                 throw new IllegalArgumentException(ERROR_MESSAGE_NO_PATIENT_CLASS);
             }
@@ -103,10 +101,6 @@ public void save(Patient patient)
             for (String property : this.getProperties()) {
                 xwikiDataObject.setStringValue(property, data.get(property));
             }
-
-            XWikiContext context = this.contextProvider.get();
-            String comment = String.format("Updated %s from JSON", this.getName());
-            context.getWiki().saveDocument(doc, comment, true, context);
         } catch (Exception e) {
             this.logger.error("Failed to save {}: [{}]", this.getName(), e.getMessage());
         }
@@ -121,6 +115,9 @@ public void writeJSON(Patient patient, JSONObject json)
     @Override
     public void writeJSON(Patient patient, JSONObject json, Collection<String> selectedFieldNames)
     {
+        if (selectedFieldNames != null && Collections.disjoint(selectedFieldNames, getProperties())) {
+            return;
+        }
         PatientData<String> data = patient.getData(getName());
         if (data == null || !data.isNamed()) {
             return;
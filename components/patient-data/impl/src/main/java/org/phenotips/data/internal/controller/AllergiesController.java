@@ -24,6 +24,7 @@
 import org.phenotips.data.PatientDataController;
 
 import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.bridge.DocumentModelBridge;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.model.EntityType;
 import org.xwiki.model.reference.EntityReference;
@@ -84,7 +85,10 @@ public String getName()
     public PatientData<String> load(Patient patient)
     {
         try {
-            XWikiDocument doc = (XWikiDocument) this.documentAccessBridge.getDocument(patient.getDocument());
+            XWikiDocument doc = (XWikiDocument) patient.getXDocument();
+            if (doc == null) {
+                doc = (XWikiDocument) this.documentAccessBridge.getDocument(patient.getDocument());
+            }
             BaseObject data = doc.getXObject(CLASS_REFERENCE);
             if (data == null) {
                 return null;
@@ -113,7 +117,7 @@ public PatientData<String> load(Patient patient)
     }
 
     @Override
-    public void save(Patient patient)
+    public void save(Patient patient, DocumentModelBridge doc)
     {
         try {
             PatientData<String> data = patient.getData(DATA_NAME);
@@ -131,12 +135,9 @@ public void save(Patient patient)
                 }
             }
 
-            XWikiDocument doc = (XWikiDocument) this.documentAccessBridge.getDocument(patient.getDocument());
-            BaseObject xobject = doc.getXObject(CLASS_REFERENCE, true, this.xcontext.get());
+            BaseObject xobject = ((XWikiDocument) doc).getXObject(CLASS_REFERENCE, true, this.xcontext.get());
             xobject.setIntValue(NKDA, nkda ? 1 : 0);
             xobject.setDBStringListValue(DATA_NAME, allergies);
-
-            this.xcontext.get().getWiki().saveDocument(doc, "Updated allergies from JSON", true, this.xcontext.get());
         } catch (Exception ex) {
             this.logger.error("Could not access requested document or some unforeseen error has occurred during save.",
                 ex);
@@ -23,6 +23,7 @@
 import org.phenotips.data.PatientData;
 import org.phenotips.data.PatientDataController;
 
+import org.xwiki.bridge.DocumentModelBridge;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.model.EntityType;
 import org.xwiki.model.reference.EntityReference;
@@ -119,7 +120,10 @@ protected List<String> getCodeFields()
     public PatientData<Map<String, String>> load(Patient patient)
     {
         try {
-            XWikiDocument doc = (XWikiDocument) this.documentAccessBridge.getDocument(patient.getDocument());
+            XWikiDocument doc = (XWikiDocument) patient.getXDocument();
+            if (doc == null) {
+                doc = (XWikiDocument) this.documentAccessBridge.getDocument(patient.getDocument());
+            }
             List<BaseObject> geneXWikiObjects = doc.getXObjects(GENE_CLASS_REFERENCE);
             if (geneXWikiObjects == null || geneXWikiObjects.isEmpty()) {
                 this.logger.debug("No candidate genes information found, returning");
@@ -227,7 +231,7 @@ public PatientData<Map<String, String>> readJSON(JSONObject json)
     }
 
     @Override
-    public void save(Patient patient)
+    public void save(Patient patient, DocumentModelBridge doc)
     {
         try {
             PatientData<Map<String, String>> genes = patient.getData(this.getName());
@@ -235,18 +239,18 @@ public void save(Patient patient)
                 return;
             }
 
-            XWikiDocument doc = (XWikiDocument) this.documentAccessBridge.getDocument(patient.getDocument());
             if (doc == null) {
                 throw new NullPointerException(ERROR_MESSAGE_NO_PATIENT_CLASS);
             }
+            XWikiDocument xdoc = (XWikiDocument) doc;
 
             XWikiContext context = this.xcontextProvider.get();
-            doc.removeXObjects(GENE_CLASS_REFERENCE);
+            xdoc.removeXObjects(GENE_CLASS_REFERENCE);
             Iterator<Map<String, String>> iterator = genes.iterator();
             while (iterator.hasNext()) {
                 try {
                     Map<String, String> gene = iterator.next();
-                    BaseObject xwikiObject = doc.newXObject(GENE_CLASS_REFERENCE, context);
+                    BaseObject xwikiObject = xdoc.newXObject(GENE_CLASS_REFERENCE, context);
 
                     for (String property : this.getProperties()) {
                         String value = gene.get(property);
@@ -259,8 +263,6 @@ public void save(Patient patient)
                     this.logger.error("Failed to save a specific gene: [{}]", e.getMessage());
                 }
             }
-
-            context.getWiki().saveDocument(doc, "Updated genes from JSON", true, context);
         } catch (Exception e) {
             this.logger.error("Failed to save genes: [{}]", e.getMessage());
         }
@@ -23,8 +23,8 @@
 import org.phenotips.data.PatientDataController;
 
 import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.bridge.DocumentModelBridge;
 import org.xwiki.component.annotation.Component;
-import org.xwiki.context.Execution;
 
 import java.util.Collection;
 import java.util.Iterator;
@@ -40,7 +40,6 @@
 import org.json.JSONObject;
 import org.slf4j.Logger;
 
-import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.doc.XWikiDocument;
 import com.xpn.xwiki.objects.BaseObject;
 
@@ -67,15 +66,14 @@ public class IdentifiersController implements PatientDataController<String>
     @Inject
     private DocumentAccessBridge documentAccessBridge;
 
-    /** Provides access to the current execution context. */
-    @Inject
-    private Execution execution;
-
     @Override
     public PatientData<String> load(Patient patient)
     {
         try {
-            XWikiDocument doc = (XWikiDocument) this.documentAccessBridge.getDocument(patient.getDocument());
+            XWikiDocument doc = (XWikiDocument) patient.getXDocument();
+            if (doc == null) {
+                doc = (XWikiDocument) this.documentAccessBridge.getDocument(patient.getDocument());
+            }
             BaseObject data = doc.getXObject(Patient.CLASS_REFERENCE);
             if (data == null) {
                 return null;
@@ -91,11 +89,10 @@ public PatientData<String> load(Patient patient)
     }
 
     @Override
-    public void save(Patient patient)
+    public void save(Patient patient, DocumentModelBridge doc)
     {
         try {
-            XWikiDocument doc = (XWikiDocument) this.documentAccessBridge.getDocument(patient.getDocument());
-            BaseObject data = doc.getXObject(Patient.CLASS_REFERENCE);
+            BaseObject data = ((XWikiDocument) doc).getXObject(Patient.CLASS_REFERENCE);
             if (data == null) {
                 throw new NullPointerException(ERROR_MESSAGE_NO_PATIENT_CLASS);
             }
@@ -106,9 +103,6 @@ public void save(Patient patient)
             }
             String externalId = identifiers.get(EXTERNAL_IDENTIFIER_PROPERTY_NAME);
             data.setStringValue(EXTERNAL_IDENTIFIER_PROPERTY_NAME, externalId);
-
-            XWikiContext context = (XWikiContext) this.execution.getContext().getProperty("xwikicontext");
-            context.getWiki().saveDocument(doc, "Updated identifiers from JSON", true, context);
         } catch (Exception e) {
             this.logger.error("Failed to save identifiers: [{}]", e.getMessage());
         }
@@ -24,6 +24,7 @@
 
 import org.xwiki.component.annotation.Component;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
@@ -75,6 +76,8 @@ public class MetaDataController extends AbstractSimpleController implements Pati
 
     private static final String CONTROLLER_NAME = "metadata";
 
+    private static final List<String> METADATA_PROPERTIES = Arrays.asList(DOCUMENT_NAME, CREATION_DATE, AUTHOR, DATE);
+
     @Inject
     private Logger logger;
 
@@ -82,7 +85,10 @@ public class MetaDataController extends AbstractSimpleController implements Pati
     public PatientData<String> load(Patient patient)
     {
         try {
-            XWikiDocument doc = (XWikiDocument) this.documentAccessBridge.getDocument(patient.getDocument());
+            XWikiDocument doc = (XWikiDocument) patient.getXDocument();
+            if (doc == null) {
+                doc = (XWikiDocument) this.documentAccessBridge.getDocument(patient.getDocument());
+            }
 
             Map<String, String> result = new LinkedHashMap<String, String>();
 
@@ -109,6 +115,9 @@ public PatientData<String> load(Patient patient)
     @Override
     public void writeJSON(Patient patient, JSONObject json, Collection<String> selectedFieldNames)
     {
+        if (selectedFieldNames != null && Collections.disjoint(selectedFieldNames, METADATA_PROPERTIES)) {
+            return;
+        }
         PatientData<String> patientData = patient.<String>getData(getName());
         if (patientData != null && patientData.isNamed()) {
             Iterator<Entry<String, String>> values = patientData.dictionaryIterator();
@@ -24,6 +24,7 @@
 import org.phenotips.data.PatientDataController;
 
 import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.bridge.DocumentModelBridge;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.model.EntityType;
 import org.xwiki.model.reference.EntityReference;
@@ -101,7 +102,10 @@ public String getName()
     public PatientData<Integer> load(Patient patient)
     {
         try {
-            XWikiDocument doc = (XWikiDocument) this.documentAccessBridge.getDocument(patient.getDocument());
+            XWikiDocument doc = (XWikiDocument) patient.getXDocument();
+            if (doc == null) {
+                doc = (XWikiDocument) this.documentAccessBridge.getDocument(patient.getDocument());
+            }
             BaseObject data = doc.getXObject(getXClassReference());
             if (data == null) {
                 this.logger.debug("No data for patient [{}]", patient.getDocument());
@@ -125,22 +129,18 @@ public PatientData<Integer> load(Patient patient)
     }
 
     @Override
-    public void save(Patient patient)
+    public void save(Patient patient, DocumentModelBridge doc)
     {
         try {
-            XWikiDocument doc = (XWikiDocument) this.documentAccessBridge.getDocument(patient.getDocument());
-
             PatientData<Integer> data = patient.getData(getName());
             if (data == null || !data.isNamed()) {
                 return;
             }
             XWikiContext context = this.xcontext.get();
-            BaseObject o = doc.getXObject(getXClassReference(), true, context);
+            BaseObject o = ((XWikiDocument) doc).getXObject(getXClassReference(), true, context);
             for (String property : getProperties()) {
                 o.set(PREFIX + property, data.get(property), context);
             }
-
-            context.getWiki().saveDocument(doc, "Updated obstetric history from JSON", true, context);
         } catch (Exception ex) {
             this.logger.error("Failed to save obstetric history: [{}]", ex.getMessage());
         }
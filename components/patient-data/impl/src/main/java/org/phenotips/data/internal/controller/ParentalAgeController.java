@@ -24,12 +24,14 @@
 import org.phenotips.data.PatientDataController;
 
 import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.bridge.DocumentModelBridge;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.model.EntityType;
 import org.xwiki.model.reference.EntityReference;
 
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -87,7 +89,10 @@ public String getName()
     public PatientData<Integer> load(Patient patient)
     {
         try {
-            XWikiDocument doc = (XWikiDocument) this.documentAccessBridge.getDocument(patient.getDocument());
+            XWikiDocument doc = (XWikiDocument) patient.getXDocument();
+            if (doc == null) {
+                doc = (XWikiDocument) this.documentAccessBridge.getDocument(patient.getDocument());
+            }
             BaseObject data = doc.getXObject(getXClassReference());
             if (data == null) {
                 this.logger.debug("No parental information for patient [{}]", patient.getDocument());
@@ -111,22 +116,18 @@ public PatientData<Integer> load(Patient patient)
     }
 
     @Override
-    public void save(Patient patient)
+    public void save(Patient patient, DocumentModelBridge doc)
     {
         try {
-            XWikiDocument doc = (XWikiDocument) this.documentAccessBridge.getDocument(patient.getDocument());
-
             PatientData<Integer> data = patient.getData(getName());
             if (data == null || !data.isNamed()) {
                 return;
             }
             XWikiContext context = this.xcontext.get();
-            BaseObject o = doc.getXObject(getXClassReference(), true, context);
+            BaseObject o = ((XWikiDocument) doc).getXObject(getXClassReference(), true, context);
             for (String property : getProperties()) {
                 o.set(property, data.get(property), context);
             }
-
-            context.getWiki().saveDocument(doc, "Updated parental age from JSON", true, context);
         } catch (Exception ex) {
             this.logger.error("Failed to save parental age: [{}]", ex.getMessage());
         }
@@ -141,6 +142,9 @@ public void writeJSON(Patient patient, JSONObject json)
     @Override
     public void writeJSON(Patient patient, JSONObject json, Collection<String> selectedFieldNames)
     {
+        if (selectedFieldNames != null && Collections.disjoint(selectedFieldNames, getProperties())) {
+            return;
+        }
         PatientData<Integer> data = patient.getData(getName());
         if (data == null || !data.isNamed() || data.size() == 0) {
             return;
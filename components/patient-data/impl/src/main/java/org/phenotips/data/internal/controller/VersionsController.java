@@ -74,7 +74,10 @@ public PatientData<String> load(Patient patient)
         Map<String, String> versions = new LinkedHashMap<>();
 
         try {
-            XWikiDocument doc = (XWikiDocument) this.documentAccessBridge.getDocument(patient.getDocument());
+            XWikiDocument doc = (XWikiDocument) patient.getXDocument();
+            if (doc == null) {
+                doc = (XWikiDocument) this.documentAccessBridge.getDocument(patient.getDocument());
+            }
             addOntologyVersions(doc, versions);
             addPhenoTipsVersion(versions);
         } catch (Exception e) {
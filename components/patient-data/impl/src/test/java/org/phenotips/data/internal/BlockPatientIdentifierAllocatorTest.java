@@ -0,0 +1,256 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.internal;
+
+import org.xwiki.component.util.DefaultParameterizedType;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryManager;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.inject.Provider;
+
+import org.hibernate.HibernateException;
+import org.hibernate.LockMode;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.exception.ConstraintViolationException;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.objects.LongProperty;
+import com.xpn.xwiki.objects.classes.BaseClass;
+import com.xpn.xwiki.store.XWikiHibernateStore;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Tests for the {@link BlockPatientIdentifierAllocator} component.
+ *
+ * @version $Id$
+ */
+public class BlockPatientIdentifierAllocatorTest
+{
+    @Rule
+    public MockitoComponentMockingRule<PatientIdentifierAllocator> mocker =
+        new MockitoComponentMockingRule<PatientIdentifierAllocator>(BlockPatientIdentifierAllocator.class);
+
+    @Mock
+    private XWikiHibernateStore store;
+
+    @Mock
+    private SessionFactory sessionFactory;
+
+    @Mock
+    private Session session;
+
+    @Mock
+    private Transaction transaction;
+
+    @Mock
+    private XWikiContext context;
+
+    @Mock
+    private XWiki xwiki;
+
+    @Mock
+    private XWikiDocument sequenceDocument;
+
+    @Mock
+    private BaseObject sequenceObject;
+
+    private DocumentReference sequenceReference =
+        new DocumentReference("wiki", "PhenoTips", "PatientIdentifierSequence");
+
+    private LongProperty storedNext;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        MockitoAnnotations.initMocks(this);
+        ReflectionUtils.setFieldValue(this.mocker.getComponentUnderTest(), "store", this.store);
+
+        Provider<XWikiContext> contextProvider = this.mocker.getInstance(XWikiContext.TYPE_PROVIDER);
+        doReturn(this.context).when(contextProvider).get();
+        doReturn(this.xwiki).when(this.context).getWiki();
+
+        DocumentReferenceResolver<EntityReference> resolver = this.mocker.getInstance(
+            new DefaultParameterizedType(null, DocumentReferenceResolver.class, EntityReference.class), "current");
+        doReturn(this.sequenceReference).when(resolver).resolve(any(EntityReference.class));
+        doReturn(this.sequenceDocument).when(this.xwiki).getDocument(this.sequenceReference, this.context);
+        doReturn(this.sequenceObject).when(this.sequenceDocument).getXObject(this.sequenceReference);
+        doReturn(42L).when(this.sequenceObject).getId();
+
+        ConfigurationSource configuration = this.mocker.getInstance(ConfigurationSource.class, "xwikiproperties");
+        doReturn(10).when(configuration).getProperty("phenotips.patients.idBlockSize", 100);
+
+        doReturn(this.sessionFactory).when(this.store).getSessionFactory();
+        doReturn(this.session).when(this.sessionFactory).openSession();
+        doReturn(this.transaction).when(this.session).beginTransaction();
+        this.storedNext = new LongProperty();
+        this.storedNext.setValue(5L);
+        doReturn(this.storedNext).when(this.session).get(eq(LongProperty.class), any(LongProperty.class),
+            eq(LockMode.PESSIMISTIC_WRITE));
+    }
+
+    @Test
+    public void identifiersAreHandedOutFromReservedBlocks() throws Exception
+    {
+        PatientIdentifierAllocator allocator = this.mocker.getComponentUnderTest();
+        for (long expected = 5; expected < 30; ++expected) {
+            Assert.assertEquals(expected, allocator.allocate());
+        }
+        // 25 identifiers from blocks of 10
+        verify(this.session, times(3)).get(eq(LongProperty.class), any(LongProperty.class),
+            eq(LockMode.PESSIMISTIC_WRITE));
+        verify(this.transaction, times(3)).commit();
+        verify(this.session, times(3)).close();
+        Assert.assertEquals(35L, this.storedNext.getValue());
+        // The reservation never touches the transaction of the current request
+        verify(this.store, never()).beginTransaction(any(XWikiContext.class));
+    }
+
+    @Test
+    public void concurrentAllocationsNeverReturnTheSameIdentifier() throws Exception
+    {
+        final PatientIdentifierAllocator allocator = this.mocker.getComponentUnderTest();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        Callable<Set<Long>> task = new Callable<Set<Long>>()
+        {
+            @Override
+            public Set<Long> call()
+            {
+                Set<Long> result = new HashSet<>();
+                for (int i = 0; i < 100; ++i) {
+                    result.add(allocator.allocate());
+                }
+                return result;
+            }
+        };
+        Set<Long> all = new HashSet<>();
+        for (Future<Set<Long>> result : executor.invokeAll(Collections.nCopies(8, task))) {
+            all.addAll(result.get());
+        }
+        executor.shutdown();
+        Assert.assertEquals(800, all.size());
+    }
+
+    @Test
+    public void sequenceIsCreatedWithoutAValue() throws Exception
+    {
+        doReturn(null).when(this.sequenceDocument).getXObject(this.sequenceReference);
+        doReturn(mock(BaseClass.class)).when(this.sequenceDocument).getXClass();
+        doReturn(this.sequenceObject).when(this.sequenceDocument).newXObject(this.sequenceReference, this.context);
+
+        Assert.assertEquals(5L, this.mocker.getComponentUnderTest().allocate());
+
+        verify(this.xwiki).saveDocument(eq(this.sequenceDocument), anyString(), eq(true), eq(this.context));
+        verify(this.sequenceObject, never()).setLongValue(anyString(), anyLong());
+    }
+
+    @Test
+    public void sequenceValueIsInsertedAfterTheLastUsedIdentifier() throws Exception
+    {
+        doReturn(null).when(this.session).get(eq(LongProperty.class), any(LongProperty.class),
+            eq(LockMode.PESSIMISTIC_WRITE));
+        mockLastUsedIdentifier(1234L);
+
+        Assert.assertEquals(1235L, this.mocker.getComponentUnderTest().allocate());
+
+        ArgumentCaptor<LongProperty> inserted = ArgumentCaptor.forClass(LongProperty.class);
+        verify(this.session).save(inserted.capture());
+        Assert.assertEquals(42L, inserted.getValue().getId());
+        Assert.assertEquals("next", inserted.getValue().getName());
+        Assert.assertEquals(1245L, inserted.getValue().getValue());
+        verify(this.transaction).commit();
+    }
+
+    @Test
+    public void concurrentSequenceInitializationIsRetried() throws Exception
+    {
+        // Another node inserts the initial value between the read and the commit
+        doReturn(null).doReturn(this.storedNext).when(this.session).get(eq(LongProperty.class),
+            any(LongProperty.class), eq(LockMode.PESSIMISTIC_WRITE));
+        mockLastUsedIdentifier(1234L);
+        doThrow(new ConstraintViolationException("duplicate", new SQLException(), "PRIMARY")).doNothing()
+            .when(this.transaction).commit();
+
+        Assert.assertEquals(5L, this.mocker.getComponentUnderTest().allocate());
+
+        verify(this.transaction).rollback();
+        verify(this.session, times(2)).close();
+        Assert.assertEquals(15L, this.storedNext.getValue());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void failuresToReserveABlockAreReported() throws Exception
+    {
+        doThrow(new HibernateException("failed")).when(this.session).get(eq(LongProperty.class),
+            any(LongProperty.class), eq(LockMode.PESSIMISTIC_WRITE));
+        doReturn(true).when(this.transaction).isActive();
+        try {
+            this.mocker.getComponentUnderTest().allocate();
+        } finally {
+            verify(this.transaction, never()).commit();
+            verify(this.transaction).rollback();
+            verify(this.session).close();
+        }
+    }
+
+    private void mockLastUsedIdentifier(long identifier) throws Exception
+    {
+        QueryManager qm = this.mocker.getInstance(QueryManager.class);
+        Query query = mock(Query.class);
+        doReturn(query).when(qm).createQuery(anyString(), anyString());
+        doReturn(query).when(query).setLimit(1);
+        doReturn(Arrays.asList(identifier)).when(query).execute();
+    }
+}
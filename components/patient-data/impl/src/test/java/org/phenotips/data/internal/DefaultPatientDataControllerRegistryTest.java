@@ -0,0 +1,135 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.internal;
+
+import org.phenotips.data.PatientDataController;
+
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.util.DefaultParameterizedType;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.inject.Provider;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Tests for the {@link DefaultPatientDataControllerRegistry} component.
+ *
+ * @version $Id$
+ */
+public class DefaultPatientDataControllerRegistryTest
+{
+    @Rule
+    public MockitoComponentMockingRule<PatientDataControllerRegistry> mocker =
+        new MockitoComponentMockingRule<PatientDataControllerRegistry>(DefaultPatientDataControllerRegistry.class);
+
+    @Mock
+    private ComponentManager componentManager;
+
+    @Mock
+    private PatientDataController<String> controller1;
+
+    @Mock
+    private PatientDataController<String> controller2;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        MockitoAnnotations.initMocks(this);
+
+        Provider<ComponentManager> cmProvider =
+            this.mocker.getInstance(new DefaultParameterizedType(null, Provider.class, ComponentManager.class),
+                "context");
+        doReturn(this.componentManager).when(cmProvider).get();
+
+        doReturn("b").when(this.controller1).getName();
+        doReturn("a").when(this.controller2).getName();
+        List<PatientDataController<?>> controllers =
+            Arrays.<PatientDataController<?>>asList(this.controller1, this.controller2);
+        doReturn(controllers).when(this.componentManager).getInstanceList(PatientDataController.class);
+    }
+
+    @Test
+    public void controllersAreSortedByName() throws ComponentLookupException
+    {
+        Map<String, PatientDataController<?>> result = this.mocker.getComponentUnderTest().getControllers();
+
+        Assert.assertEquals(2, result.size());
+        Iterator<Map.Entry<String, PatientDataController<?>>> it = result.entrySet().iterator();
+        Map.Entry<String, PatientDataController<?>> entry = it.next();
+        Assert.assertEquals("a", entry.getKey());
+        Assert.assertSame(this.controller2, entry.getValue());
+        entry = it.next();
+        Assert.assertEquals("b", entry.getKey());
+        Assert.assertSame(this.controller1, entry.getValue());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void controllersAreReadOnly() throws ComponentLookupException
+    {
+        this.mocker.getComponentUnderTest().getControllers().remove("a");
+    }
+
+    @Test
+    public void controllersAreLookedUpOnlyOnce() throws ComponentLookupException
+    {
+        Map<String, PatientDataController<?>> result = this.mocker.getComponentUnderTest().getControllers();
+        Assert.assertSame(result, this.mocker.getComponentUnderTest().getControllers());
+        Assert.assertSame(result, this.mocker.getComponentUnderTest().getControllers());
+
+        verify(this.componentManager, times(1)).getInstanceList(PatientDataController.class);
+    }
+
+    @Test
+    public void invalidateForcesNewLookup() throws ComponentLookupException
+    {
+        this.mocker.getComponentUnderTest().getControllers();
+        this.mocker.getComponentUnderTest().invalidate();
+        this.mocker.getComponentUnderTest().getControllers();
+
+        verify(this.componentManager, times(2)).getInstanceList(PatientDataController.class);
+    }
+
+    @Test
+    public void lookupFailuresAreNotCached() throws ComponentLookupException
+    {
+        doThrow(new ComponentLookupException("failed")).when(this.componentManager)
+            .getInstanceList(PatientDataController.class);
+
+        Assert.assertTrue(this.mocker.getComponentUnderTest().getControllers().isEmpty());
+        Assert.assertTrue(this.mocker.getComponentUnderTest().getControllers().isEmpty());
+
+        verify(this.componentManager, times(2)).getInstanceList(PatientDataController.class);
+    }
+}
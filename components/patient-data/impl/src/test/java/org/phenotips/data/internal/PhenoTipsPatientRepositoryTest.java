@@ -0,0 +1,298 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.internal;
+
+import org.phenotips.components.ComponentManagerRegistry;
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientData;
+import org.phenotips.data.PatientDataController;
+import org.phenotips.data.PatientRepository;
+import org.phenotips.data.events.PatientChangedEvent;
+import org.phenotips.data.events.PatientDeletedEvent;
+
+import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.observation.EventListener;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.inject.Provider;
+
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Tests for the patient cache of the {@link PhenoTipsPatientRepository} component.
+ *
+ * @version $Id$
+ */
+public class PhenoTipsPatientRepositoryTest
+{
+    private static final String PATIENT_ID = "P0000001";
+
+    private static final String CACHE_KEY = "xwiki:data.P0000001";
+
+    private static final String DATA_NAME = "extra";
+
+    @Rule
+    public MockitoComponentMockingRule<PatientRepository> mocker =
+        new MockitoComponentMockingRule<PatientRepository>(PhenoTipsPatientRepository.class);
+
+    @Mock
+    private Provider<ComponentManager> cmProvider;
+
+    @Mock
+    private ComponentManager contextComponentManager;
+
+    @Mock
+    private PatientDataControllerRegistry registry;
+
+    @Mock
+    private PatientDataController<String> controller;
+
+    @Mock
+    private PatientData<String> data;
+
+    @Mock
+    private XWikiDocument doc;
+
+    @Mock
+    private BaseObject patientObject;
+
+    private DocumentReference reference = new DocumentReference("xwiki", "data", PATIENT_ID);
+
+    private Map<String, Object> cacheContent = new HashMap<String, Object>();
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception
+    {
+        MockitoAnnotations.initMocks(this);
+
+        ReflectionUtils.setFieldValue(new ComponentManagerRegistry(), "cmProvider", this.cmProvider);
+        doReturn(this.contextComponentManager).when(this.cmProvider).get();
+        doReturn(this.registry).when(this.contextComponentManager).getInstance(PatientDataControllerRegistry.class);
+        doReturn(Collections.singletonMap(DATA_NAME, this.controller)).when(this.registry).getControllers();
+        doReturn(this.data).when(this.controller).load(Matchers.any(Patient.class));
+        doReturn(DATA_NAME).when(this.data).getName();
+
+        ConfigurationSource configuration = this.mocker.getInstance(ConfigurationSource.class, "xwikiproperties");
+        doReturn(1000).when(configuration).getProperty("phenotips.patients.cacheSize", 1000);
+
+        // A map backed cache, enough for checking what the repository stores and evicts
+        Cache<Object> cache = mock(Cache.class);
+        doAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation)
+            {
+                return PhenoTipsPatientRepositoryTest.this.cacheContent.get(invocation.getArguments()[0]);
+            }
+        }).when(cache).get(Matchers.anyString());
+        doAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation)
+            {
+                Object[] args = invocation.getArguments();
+                return PhenoTipsPatientRepositoryTest.this.cacheContent.put((String) args[0], args[1]);
+            }
+        }).when(cache).set(Matchers.anyString(), Matchers.any());
+        doAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation)
+            {
+                return PhenoTipsPatientRepositoryTest.this.cacheContent.remove(invocation.getArguments()[0]);
+            }
+        }).when(cache).remove(Matchers.anyString());
+        CacheManager cacheManager = this.mocker.getInstance(CacheManager.class);
+        doReturn(cache).when(cacheManager).createNewCache(Matchers.any(CacheConfiguration.class));
+
+        DocumentReferenceResolver<String> resolver =
+            this.mocker.getInstance(DocumentReferenceResolver.TYPE_STRING, "current");
+        doReturn(this.reference).when(resolver).resolve(PATIENT_ID, Patient.DEFAULT_DATA_SPACE);
+        EntityReferenceSerializer<String> serializer = this.mocker.getInstance(EntityReferenceSerializer.TYPE_STRING);
+        doReturn(CACHE_KEY).when(serializer).serialize(this.reference);
+
+        DocumentAccessBridge bridge = this.mocker.getInstance(DocumentAccessBridge.class);
+        doReturn(this.doc).when(bridge).getDocument(this.reference);
+        doReturn(this.reference).when(this.doc).getDocumentReference();
+        doReturn("1.1").when(this.doc).getVersion();
+        doReturn(this.patientObject).when(this.doc).getXObject(Patient.CLASS_REFERENCE);
+        doReturn(Collections.emptyList()).when(this.patientObject).getFieldList();
+    }
+
+    /** A patient is only parsed once as long as its document isn't modified. */
+    @Test
+    public void cachedPatientIsReusedWhileTheVersionIsUnchanged() throws Exception
+    {
+        Patient first = this.mocker.getComponentUnderTest().getPatientById(PATIENT_ID);
+        Patient second = this.mocker.getComponentUnderTest().getPatientById(PATIENT_ID);
+
+        Assert.assertEquals(PATIENT_ID, first.getId());
+        Assert.assertEquals(PATIENT_ID, second.getId());
+        Assert.assertSame(first.getFeatures(), second.getFeatures());
+        verify(this.registry, times(1)).getControllers();
+    }
+
+    /**
+     * Each caller gets its own copy, but the data of the controllers is loaded only once, when the patient is cached,
+     * and not again by the copies.
+     */
+    @Test
+    public void callersGetPrivateCopiesOfTheLoadedData() throws Exception
+    {
+        Patient first = this.mocker.getComponentUnderTest().getPatientById(PATIENT_ID);
+        Patient second = this.mocker.getComponentUnderTest().getPatientById(PATIENT_ID);
+        Assert.assertNotSame(first, second);
+
+        Assert.assertSame(this.data, first.getData(DATA_NAME));
+        Assert.assertSame(this.data, second.getData(DATA_NAME));
+        Patient third = this.mocker.getComponentUnderTest().getPatientById(PATIENT_ID);
+        Assert.assertSame(this.data, third.getData(DATA_NAME));
+        Assert.assertNull(third.getData("missing"));
+
+        verify(this.controller, times(1)).load(Matchers.any(Patient.class));
+        verify(this.controller, never()).load(first);
+        verify(this.controller, never()).load(second);
+        verify(this.controller, never()).load(third);
+    }
+
+    /** Each new version of the document loads the data of the controllers again, once. */
+    @Test
+    public void newVersionsLoadTheDataAgain() throws Exception
+    {
+        this.mocker.getComponentUnderTest().getPatientById(PATIENT_ID).getData(DATA_NAME);
+        doReturn("1.2").when(this.doc).getVersion();
+        this.mocker.getComponentUnderTest().getPatientById(PATIENT_ID).getData(DATA_NAME);
+        this.mocker.getComponentUnderTest().getPatientById(PATIENT_ID).getData(DATA_NAME);
+
+        verify(this.controller, times(2)).load(Matchers.any(Patient.class));
+    }
+
+    /** A new version of the document causes the patient to be parsed again. */
+    @Test
+    public void newVersionsInvalidateTheCachedPatient() throws Exception
+    {
+        this.mocker.getComponentUnderTest().getPatientById(PATIENT_ID);
+        doReturn("1.2").when(this.doc).getVersion();
+        this.mocker.getComponentUnderTest().getPatientById(PATIENT_ID);
+        this.mocker.getComponentUnderTest().getPatientById(PATIENT_ID);
+
+        verify(this.registry, times(2)).getControllers();
+    }
+
+    /** Modified and deleted patients are removed from the cache. */
+    @Test
+    public void patientEventsEvictTheCachedPatient() throws Exception
+    {
+        Patient patient = this.mocker.getComponentUnderTest().getPatientById(PATIENT_ID);
+        Assert.assertTrue(this.cacheContent.containsKey(CACHE_KEY));
+
+        EventListener listener = (EventListener) this.mocker.getComponentUnderTest();
+        listener.onEvent(new PatientChangedEvent(patient, null), null, null);
+        Assert.assertFalse(this.cacheContent.containsKey(CACHE_KEY));
+
+        this.mocker.getComponentUnderTest().getPatientById(PATIENT_ID);
+        verify(this.registry, times(2)).getControllers();
+        listener.onEvent(new PatientDeletedEvent(patient, null), null, null);
+        Assert.assertFalse(this.cacheContent.containsKey(CACHE_KEY));
+    }
+
+    /** Documents which aren't saved yet aren't cached. */
+    @Test
+    public void newDocumentsAreNotCached() throws Exception
+    {
+        doReturn(true).when(this.doc).isNew();
+
+        this.mocker.getComponentUnderTest().getPatientById(PATIENT_ID);
+        this.mocker.getComponentUnderTest().getPatientById(PATIENT_ID);
+
+        Assert.assertTrue(this.cacheContent.isEmpty());
+        verify(this.registry, times(2)).getControllers();
+    }
+
+    /** Patients created with data are saved only once, already holding the data. */
+    @Test
+    public void newPatientsWithDataAreSavedOnce() throws Exception
+    {
+        XWikiContext context = mock(XWikiContext.class);
+        XWiki xwiki = mock(XWiki.class);
+        ExecutionContext executionContext = mock(ExecutionContext.class);
+        Execution execution = this.mocker.getInstance(Execution.class);
+        doReturn(executionContext).when(execution).getContext();
+        doReturn(context).when(executionContext).getProperty("xwikicontext");
+        doReturn(xwiki).when(context).getWiki();
+        PatientIdentifierAllocator allocator = this.mocker.getInstance(PatientIdentifierAllocator.class);
+        doReturn(1L).when(allocator).allocate();
+        DocumentReferenceResolver<EntityReference> resolver =
+            this.mocker.getInstance(DocumentReferenceResolver.TYPE_REFERENCE, "current");
+        doReturn(this.reference).when(resolver).resolve(Matchers.any(EntityReference.class));
+        DocumentAccessBridge bridge = this.mocker.getInstance(DocumentAccessBridge.class);
+        doReturn(false).when(bridge).exists(this.reference);
+        doReturn(this.data).when(this.controller).readJSON(Matchers.any(JSONObject.class));
+        DocumentReference creator = new DocumentReference("xwiki", "XWiki", "padams");
+
+        Patient patient = this.mocker.getComponentUnderTest().createNewPatient(creator, new JSONObject());
+
+        Assert.assertEquals(PATIENT_ID, patient.getId());
+        Assert.assertSame(this.data, patient.getData(DATA_NAME));
+        verify(this.controller).save(patient, this.doc);
+        verify(this.doc).setCreatorReference(creator);
+        verify(this.patientObject).setLongValue("identifier", 1L);
+        verify(xwiki, times(1)).saveDocument(Matchers.same(this.doc), Matchers.anyString(), Matchers.same(context));
+        verify(xwiki, never()).saveDocument(Matchers.any(XWikiDocument.class), Matchers.anyString(),
+            Matchers.anyBoolean(), Matchers.any(XWikiContext.class));
+        verify(xwiki, never()).saveDocument(Matchers.any(XWikiDocument.class), Matchers.any(XWikiContext.class));
+    }
+}
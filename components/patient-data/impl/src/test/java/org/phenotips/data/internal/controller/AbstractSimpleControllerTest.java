@@ -33,8 +33,6 @@
 import java.util.LinkedList;
 import java.util.Map;
 
-import javax.inject.Provider;
-
 import org.json.JSONObject;
 import org.junit.Assert;
 import org.junit.Before;
@@ -43,17 +41,14 @@
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
-import com.xpn.xwiki.XWiki;
-import com.xpn.xwiki.XWikiContext;
-import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiDocument;
 import com.xpn.xwiki.objects.BaseObject;
 
 import static org.mockito.Matchers.any;
-import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.phenotips.data.internal.controller.AbstractSimpleControllerTestImplementation.DATA_NAME;
@@ -75,11 +70,6 @@
 
     private DocumentAccessBridge documentAccessBridge;
 
-    private XWikiContext xcontext;
-
-    @Mock
-    protected XWiki xWiki;
-
     @Mock
     protected Patient patient;
 
@@ -95,9 +85,6 @@ public void setUp() throws Exception
         MockitoAnnotations.initMocks(this);
 
         this.documentAccessBridge = this.mocker.getInstance(DocumentAccessBridge.class);
-        Provider<XWikiContext> provider = this.mocker.getInstance(XWikiContext.TYPE_PROVIDER);
-        this.xcontext = provider.get();
-        doReturn(this.xWiki).when(this.xcontext).getWiki();
 
         DocumentReference patientDocument = new DocumentReference("wiki", "patient", "00000001");
         doReturn(patientDocument).when(this.patient).getDocument();
@@ -154,6 +141,20 @@ public void loadReturnsAllData() throws ComponentLookupException
         Assert.assertEquals(3, result.size());
     }
 
+    @Test
+    public void loadUsesAlreadyLoadedDocument() throws Exception
+    {
+        XWikiDocument loadedDoc = mock(XWikiDocument.class);
+        doReturn(loadedDoc).when(this.patient).getXDocument();
+        doReturn(this.data).when(loadedDoc).getXObject(Patient.CLASS_REFERENCE);
+        doReturn("datum").when(this.data).getStringValue(PROPERTY_1);
+
+        PatientData<String> result = this.mocker.getComponentUnderTest().load(this.patient);
+
+        Assert.assertEquals("datum", result.get(PROPERTY_1));
+        verify(this.documentAccessBridge, never()).getDocument(any(DocumentReference.class));
+    }
+
     @Test
     public void loadIgnoresBlankFields() throws ComponentLookupException
     {
@@ -170,63 +171,30 @@ public void loadIgnoresBlankFields() throws ComponentLookupException
 
     // -----------------------------------save() tests-----------------------------------
 
-    @Test
-    public void saveCatchesExceptionFromDocumentAccess() throws Exception
-    {
-        Exception exception = new Exception();
-        doThrow(exception).when(this.documentAccessBridge).getDocument(any(DocumentReference.class));
-
-        this.mocker.getComponentUnderTest().save(this.patient);
-
-        verify(this.mocker.getMockedLogger()).error("Failed to save {}: [{}]", DATA_NAME, exception.getMessage());
-    }
-
     @Test
     public void saveCatchesExceptionWhenPatientDoesNotHavePatientClass() throws ComponentLookupException
     {
         doReturn(null).when(this.doc).getXObject(Patient.CLASS_REFERENCE);
 
-        this.mocker.getComponentUnderTest().save(this.patient);
+        this.mocker.getComponentUnderTest().save(this.patient, this.doc);
 
         verify(this.mocker.getMockedLogger()).error("Failed to save {}: [{}]", DATA_NAME,
             PatientDataController.ERROR_MESSAGE_NO_PATIENT_CLASS);
     }
 
     @Test
-    public void saveCatchesExceptionFromSaveDocument() throws XWikiException, ComponentLookupException
-    {
-        XWikiException exception = new XWikiException();
-        doThrow(exception).when(this.xWiki).saveDocument(any(XWikiDocument.class),
-            anyString(), anyBoolean(), any(XWikiContext.class));
-        Map<String, String> map = new LinkedHashMap<String, String>();
-        map.put(PROPERTY_1, "datum1");
-        map.put(PROPERTY_2, "datum2");
-        map.put(PROPERTY_3, "datum3");
-        PatientData<String> patientData = new DictionaryPatientData<String>(DATA_NAME, map);
-        doReturn(patientData).when(this.patient).getData(DATA_NAME);
-
-        this.mocker.getComponentUnderTest().save(this.patient);
-
-        verify(this.xWiki).saveDocument(any(XWikiDocument.class),
-            anyString(), anyBoolean(), any(XWikiContext.class));
-        verify(this.mocker.getMockedLogger()).error("Failed to save {}: [{}]", DATA_NAME, exception.getMessage());
-    }
-
-    @Test
-    public void saveReturnsWithoutSavingWhenDataIsNotKeyValueBased() throws ComponentLookupException, XWikiException
+    public void saveReturnsWithoutSavingWhenDataIsNotKeyValueBased() throws ComponentLookupException
     {
         PatientData<String> patientData = new SimpleValuePatientData<String>(DATA_NAME, "datum");
         doReturn(patientData).when(this.patient).getData(DATA_NAME);
 
-        this.mocker.getComponentUnderTest().save(this.patient);
+        this.mocker.getComponentUnderTest().save(this.patient, this.doc);
 
         verify(this.data, never()).setStringValue(anyString(), anyString());
-        verify(this.xWiki, never()).saveDocument(any(XWikiDocument.class),
-            anyString(), anyBoolean(), any(XWikiContext.class));
     }
 
     @Test
-    public void saveSetsAllFields() throws XWikiException, ComponentLookupException
+    public void saveSetsAllFields() throws Exception
     {
         Map<String, String> map = new LinkedHashMap<String, String>();
         map.put(PROPERTY_1, "datum1");
@@ -235,12 +203,12 @@ public void saveSetsAllFields() throws XWikiException, ComponentLookupException
         PatientData<String> patientData = new DictionaryPatientData<String>(DATA_NAME, map);
         doReturn(patientData).when(this.patient).getData(DATA_NAME);
 
-        this.mocker.getComponentUnderTest().save(this.patient);
+        this.mocker.getComponentUnderTest().save(this.patient, this.doc);
 
-        verify(this.xWiki).saveDocument(this.doc, "Updated test from JSON", true, this.xcontext);
         verify(this.data).setStringValue(PROPERTY_1, "datum1");
         verify(this.data).setStringValue(PROPERTY_2, "datum2");
         verify(this.data).setStringValue(PROPERTY_3, "datum3");
+        verify(this.documentAccessBridge, never()).getDocument(any(DocumentReference.class));
     }
 
     // -----------------------------------writeJSON() tests-----------------------------------
@@ -268,6 +236,19 @@ public void writeJSONWithSelectedFieldsReturnsWhenGetDataReturnsNull() throws Co
         Assert.assertFalse(json.has(DATA_NAME));
     }
 
+    @Test
+    public void writeJSONWithOtherSelectedFieldsDoesNotLoadData() throws ComponentLookupException
+    {
+        JSONObject json = new JSONObject();
+        Collection<String> selectedFields = new LinkedList<>();
+        selectedFields.add("other_field");
+
+        this.mocker.getComponentUnderTest().writeJSON(this.patient, json, selectedFields);
+
+        Assert.assertFalse(json.has(DATA_NAME));
+        verify(this.patient, never()).getData(anyString());
+    }
+
     @Test
     public void writeJSONReturnsWhenDataIsNotKeyValueBased() throws ComponentLookupException
     {
@@ -26,8 +26,6 @@
 
 import org.xwiki.bridge.DocumentAccessBridge;
 import org.xwiki.component.manager.ComponentLookupException;
-import org.xwiki.context.Execution;
-import org.xwiki.context.ExecutionContext;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 
@@ -47,18 +45,13 @@
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
-import com.xpn.xwiki.XWiki;
-import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiDocument;
 import com.xpn.xwiki.objects.BaseObject;
 
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
-import static org.mockito.Matchers.eq;
-import static org.mockito.Matchers.same;
 import static org.mockito.Mockito.doReturn;
-import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 
@@ -76,20 +69,9 @@
 
     private RecordConfigurationManager configurationManager;
 
-    private Execution execution;
-
     @Mock
     private RecordConfiguration configuration;
 
-    @Mock
-    private ExecutionContext executionContext;
-
-    @Mock
-    private XWikiContext xWikiContext;
-
-    @Mock
-    private XWiki xWiki;
-
     @Mock
     private BaseObject data;
 
@@ -113,7 +95,6 @@ public void setUp() throws Exception
 
         this.documentAccessBridge = this.mocker.getInstance(DocumentAccessBridge.class);
         this.configurationManager = this.mocker.getInstance(RecordConfigurationManager.class);
-        this.execution = this.mocker.getInstance(Execution.class);
 
         DocumentReference patientDocument = new DocumentReference("wiki", "patient", "00000001");
         doReturn(patientDocument).when(this.patient).getDocument();
@@ -123,10 +104,6 @@ public void setUp() throws Exception
         this.dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
         doReturn(this.configuration).when(this.configurationManager).getActiveConfiguration();
         doReturn("yyyy-MM-dd'T'HH:mm:ss.SSSZ").when(this.configuration).getISODateFormat();
-
-        doReturn(this.executionContext).when(this.execution).getContext();
-        doReturn(this.xWikiContext).when(this.executionContext).getProperty("xwikicontext");
-        doReturn(this.xWiki).when(this.xWikiContext).getWiki();
     }
 
     @Test
@@ -171,7 +148,7 @@ public void saveCatchesExceptionWhenPatientDoesNotHavePatientClass() throws Comp
     {
         doReturn(null).when(this.doc).getXObject(Patient.CLASS_REFERENCE);
 
-        this.mocker.getComponentUnderTest().save(this.patient);
+        this.mocker.getComponentUnderTest().save(this.patient, this.doc);
 
         verify(this.mocker.getMockedLogger()).error("Failed to save dates: [{}]",
             PatientDataController.ERROR_MESSAGE_NO_PATIENT_CLASS);
@@ -182,7 +159,7 @@ public void saveCatchesExceptionWhenGetDateDataReturnsNull() throws ComponentLoo
     {
         doReturn(null).when(this.patient).getData(DATA_NAME);
 
-        this.mocker.getComponentUnderTest().save(this.patient);
+        this.mocker.getComponentUnderTest().save(this.patient, this.doc);
 
         verify(this.mocker.getMockedLogger()).error("Failed to save dates: [{}]", (String) null);
     }
@@ -193,7 +170,7 @@ public void saveDoesNotContinueIfDateDataIsNotNamed() throws ComponentLookupExce
         doReturn(this.dateData).when(this.patient).getData(DATA_NAME);
         doReturn(false).when(this.dateData).isNamed();
 
-        this.mocker.getComponentUnderTest().save(this.patient);
+        this.mocker.getComponentUnderTest().save(this.patient, this.doc);
 
         verify(this.data, never()).setDateValue(anyString(), any(Date.class));
     }
@@ -205,26 +182,11 @@ public void saveDoesNotAddNullDates() throws ComponentLookupException
         doReturn(true).when(this.dateData).isNamed();
         doReturn(null).when(this.dateData).get(anyString());
 
-        this.mocker.getComponentUnderTest().save(this.patient);
+        this.mocker.getComponentUnderTest().save(this.patient, this.doc);
 
         verify(this.data, never()).setDateValue(anyString(), any(Date.class));
     }
 
-    @Test
-    public void saveCatchesXWikiException() throws XWikiException, ComponentLookupException
-    {
-        doReturn(this.dateData).when(this.patient).getData(DATA_NAME);
-        doReturn(true).when(this.dateData).isNamed();
-        doReturn(null).when(this.dateData).get(anyString());
-        XWikiException exception = new XWikiException();
-        doThrow(exception).when(this.xWiki).saveDocument(any(XWikiDocument.class),
-            anyString(), any(Boolean.class), any(XWikiContext.class));
-
-        this.mocker.getComponentUnderTest().save(this.patient);
-
-        verify(this.mocker.getMockedLogger()).error("Failed to save dates: [{}]", exception.getMessage());
-    }
-
     @Test
     public void saveAddsAllDates() throws XWikiException, ComponentLookupException
     {
@@ -238,13 +200,11 @@ public void saveAddsAllDates() throws XWikiException, ComponentLookupException
         PatientData<Date> datesData = new DictionaryPatientData<>(DATA_NAME, datesMap);
         doReturn(datesData).when(this.patient).getData(DATA_NAME);
 
-        this.mocker.getComponentUnderTest().save(this.patient);
+        this.mocker.getComponentUnderTest().save(this.patient, this.doc);
 
         verify(this.data).setDateValue(DatesController.PATIENT_DATEOFBIRTH_FIELDNAME, birthDate);
         verify(this.data).setDateValue(DatesController.PATIENT_DATEOFDEATH_FIELDNAME, deathDate);
         verify(this.data).setDateValue(DatesController.PATIENT_EXAMDATE_FIELDNAME, examDate);
-
-        verify(this.xWiki).saveDocument(same(this.doc), anyString(), eq(true), same(this.xWikiContext));
     }
 
     @Test
@@ -437,7 +437,7 @@ public void readWorksCorrectly() throws ComponentLookupException
     @Test
     public void saveWithNoDataDoesNothing() throws ComponentLookupException
     {
-        this.mocker.getComponentUnderTest().save(this.patient);
+        this.mocker.getComponentUnderTest().save(this.patient, this.doc);
         Mockito.verifyZeroInteractions(this.doc);
     }
 
@@ -445,7 +445,7 @@ public void saveWithNoDataDoesNothing() throws ComponentLookupException
     public void saveWithWrongTypeOfDataDoesNothing() throws ComponentLookupException
     {
         when(this.patient.getData(CONTROLLER_NAME)).thenReturn(new SimpleValuePatientData<Object>("a", "b"));
-        this.mocker.getComponentUnderTest().save(this.patient);
+        this.mocker.getComponentUnderTest().save(this.patient, this.doc);
         Mockito.verifyZeroInteractions(this.doc);
     }
 
@@ -457,7 +457,7 @@ public void saveWithEmptyDataClearsGenes() throws ComponentLookupException
         Provider<XWikiContext> xcontextProvider = this.mocker.getInstance(XWikiContext.TYPE_PROVIDER);
         XWikiContext context = xcontextProvider.get();
         when(context.getWiki()).thenReturn(mock(XWiki.class));
-        this.mocker.getComponentUnderTest().save(this.patient);
+        this.mocker.getComponentUnderTest().save(this.patient, this.doc);
         verify(this.doc).removeXObjects(GeneListController.GENE_CLASS_REFERENCE);
 
         Mockito.verifyNoMoreInteractions(this.doc);
@@ -485,7 +485,7 @@ public void saveUpdatesGenes() throws ComponentLookupException, XWikiException
         BaseObject o2 = mock(BaseObject.class);
         when(this.doc.newXObject(GeneListController.GENE_CLASS_REFERENCE, context)).thenReturn(o1, o2);
 
-        this.mocker.getComponentUnderTest().save(this.patient);
+        this.mocker.getComponentUnderTest().save(this.patient, this.doc);
 
         verify(this.doc).removeXObjects(GeneListController.GENE_CLASS_REFERENCE);
         verify(o1).set("gene", "GENE1", context);
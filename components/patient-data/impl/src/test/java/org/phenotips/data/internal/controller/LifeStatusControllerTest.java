@@ -34,8 +34,6 @@
 import java.util.LinkedList;
 import java.util.Map;
 
-import javax.inject.Provider;
-
 import org.json.JSONObject;
 import org.junit.Assert;
 import org.junit.Before;
@@ -44,15 +42,11 @@
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
-import com.xpn.xwiki.XWiki;
-import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiDocument;
 import com.xpn.xwiki.objects.BaseObject;
 
 import static org.mockito.Matchers.any;
-import static org.mockito.Matchers.anyBoolean;
-import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.verify;
@@ -79,11 +73,6 @@
 
     private DocumentAccessBridge documentAccessBridge;
 
-    private XWikiContext xcontext;
-
-    @Mock
-    private XWiki xwiki;
-
     @Mock
     private Patient patient;
 
@@ -104,10 +93,6 @@ public void setUp() throws Exception
         doReturn(patientDocument).when(this.patient).getDocument();
         doReturn(this.doc).when(this.documentAccessBridge).getDocument(patientDocument);
         doReturn(this.data).when(this.doc).getXObject(Patient.CLASS_REFERENCE);
-
-        Provider<XWikiContext> provider = this.mocker.getInstance(XWikiContext.TYPE_PROVIDER);
-        this.xcontext = provider.get();
-        doReturn(this.xwiki).when(this.xcontext).getWiki();
     }
 
     @Test
@@ -168,42 +153,17 @@ public void loadReturnsAliveWhenDateOfDeathIsNullAndUnknownDateOfDeathIsNotSet()
         Assert.assertEquals(ALIVE, result.getValue());
     }
 
-    @Test
-    public void saveCatchesExceptionFromDocumentAccess() throws Exception
-    {
-        doThrow(Exception.class).when(this.documentAccessBridge).getDocument(any(DocumentReference.class));
-
-        this.mocker.getComponentUnderTest().save(this.patient);
-
-        verify(this.mocker.getMockedLogger()).error("Failed to save life status: [{}]", (String) null);
-    }
-
     @Test
     public void saveCatchesExceptionWhenPatientDoesNotHavePatientClass() throws ComponentLookupException
     {
         doReturn(null).when(this.doc).getXObject(Patient.CLASS_REFERENCE);
 
-        this.mocker.getComponentUnderTest().save(this.patient);
+        this.mocker.getComponentUnderTest().save(this.patient, this.doc);
 
         verify(this.mocker.getMockedLogger()).error("Failed to save life status: [{}]",
             PatientDataController.ERROR_MESSAGE_NO_PATIENT_CLASS);
     }
 
-    @Test
-    public void saveCatchesExceptionFromSaveDocument() throws XWikiException, ComponentLookupException
-    {
-        XWikiException exception = new XWikiException();
-        doThrow(exception).when(this.xwiki).saveDocument(any(XWikiDocument.class), anyString(), anyBoolean(),
-            any(XWikiContext.class));
-        doReturn(null).when(this.patient).getData(DATA_NAME);
-        doReturn(null).when(this.patient).getData("dates");
-
-        this.mocker.getComponentUnderTest().save(this.patient);
-
-        verify(this.xwiki).saveDocument(any(XWikiDocument.class), anyString(), anyBoolean(), any(XWikiContext.class));
-        verify(this.mocker.getMockedLogger()).error("Failed to save life status: [{}]", exception.getMessage());
-    }
-
     @Test
     public void saveSetsDateOfDeathUnknownWhenDeceasedAndDatesNull() throws XWikiException, ComponentLookupException
     {
@@ -211,10 +171,9 @@ public void saveSetsDateOfDeathUnknownWhenDeceasedAndDatesNull() throws XWikiExc
         doReturn(lifeStatus).when(this.patient).getData(DATA_NAME);
         doReturn(null).when(this.patient).getData("dates");
 
-        this.mocker.getComponentUnderTest().save(this.patient);
+        this.mocker.getComponentUnderTest().save(this.patient, this.doc);
 
         verify(this.data).setIntValue(PATIENT_UNKNOWN_DATEOFDEATH_FIELDNAME, 1);
-        verify(this.xwiki).saveDocument(this.doc, "Updated life status from JSON", true, this.xcontext);
     }
 
     @Test
@@ -228,10 +187,9 @@ public void saveSetsDateOfDeathUnknownWhenDeceasedAndDateOfDeathNull() throws XW
         PatientData<Date> dates = new DictionaryPatientData<Date>("dates", datesMap);
         doReturn(dates).when(this.patient).getData("dates");
 
-        this.mocker.getComponentUnderTest().save(this.patient);
+        this.mocker.getComponentUnderTest().save(this.patient, this.doc);
 
         verify(this.data).setIntValue(PATIENT_UNKNOWN_DATEOFDEATH_FIELDNAME, 1);
-        verify(this.xwiki).saveDocument(this.doc, "Updated life status from JSON", true, this.xcontext);
     }
 
     @Test
@@ -240,10 +198,9 @@ public void saveClearsDateOfDeathUnknownByDefault() throws XWikiException, Compo
         doReturn(null).when(this.patient).getData(DATA_NAME);
         doReturn(null).when(this.patient).getData("dates");
 
-        this.mocker.getComponentUnderTest().save(this.patient);
+        this.mocker.getComponentUnderTest().save(this.patient, this.doc);
 
         verify(this.data).setIntValue(PATIENT_UNKNOWN_DATEOFDEATH_FIELDNAME, 0);
-        verify(this.xwiki).saveDocument(this.doc, "Updated life status from JSON", true, this.xcontext);
     }
 
     @Test
@@ -253,10 +210,9 @@ public void saveClearsDateOfDeathUnknownWhenAlive() throws XWikiException, Compo
         doReturn(lifeStatus).when(this.patient).getData(DATA_NAME);
         doReturn(null).when(this.patient).getData("dates");
 
-        this.mocker.getComponentUnderTest().save(this.patient);
+        this.mocker.getComponentUnderTest().save(this.patient, this.doc);
 
         verify(this.data).setIntValue(PATIENT_UNKNOWN_DATEOFDEATH_FIELDNAME, 0);
-        verify(this.xwiki).saveDocument(this.doc, "Updated life status from JSON", true, this.xcontext);
     }
 
     @Test
@@ -270,10 +226,9 @@ public void saveClearsDateOfDeathUnknownWhenDeceasedAndDateOfDeathDefined() thro
         PatientData<Date> dates = new DictionaryPatientData<Date>("dates", datesMap);
         doReturn(dates).when(this.patient).getData("dates");
 
-        this.mocker.getComponentUnderTest().save(this.patient);
+        this.mocker.getComponentUnderTest().save(this.patient, this.doc);
 
         verify(this.data).setIntValue(PATIENT_UNKNOWN_DATEOFDEATH_FIELDNAME, 0);
-        verify(this.xwiki).saveDocument(this.doc, "Updated life status from JSON", true, this.xcontext);
     }
 
     @Test
@@ -284,10 +239,9 @@ public void saveIgnoresDatesWhenDatesIsNotKeyValueBased() throws XWikiException,
         PatientData<Date> dates = new SimpleValuePatientData<>(PATIENT_DATEOFDEATH_FIELDNAME, new Date());
         doReturn(dates).when(this.patient).getData("dates");
 
-        this.mocker.getComponentUnderTest().save(this.patient);
+        this.mocker.getComponentUnderTest().save(this.patient, this.doc);
 
         verify(this.data).setIntValue(PATIENT_UNKNOWN_DATEOFDEATH_FIELDNAME, 1);
-        verify(this.xwiki).saveDocument(this.doc, "Updated life status from JSON", true, this.xcontext);
     }
 
     @Test
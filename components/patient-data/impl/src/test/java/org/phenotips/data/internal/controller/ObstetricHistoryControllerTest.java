@@ -189,7 +189,7 @@ public void saveHandlesEmptyPatientTest() throws XWikiException
     {
         doReturn(null).when(this.patient).getData(this.obstetricHistoryController.getName());
 
-        this.obstetricHistoryController.save(this.patient);
+        this.obstetricHistoryController.save(this.patient, this.doc);
 
         verifyNoMoreInteractions(this.data);
         verify(this.xWikiContext.getWiki(), never()).saveDocument(this.doc,
@@ -212,19 +212,21 @@ public void saveDefaultBehaviourTest() throws XWikiException
 
         doReturn(this.data).when(this.doc).getXObject(any(EntityReference.class), eq(true), eq(this.xWikiContext));
 
-        this.obstetricHistoryController.save(this.patient);
+        this.obstetricHistoryController.save(this.patient, this.doc);
 
-        verify(this.xWikiContext.getWiki()).saveDocument(this.doc, "Updated obstetric history from JSON", true,
-            this.xWikiContext);
+        verify(this.data).set(PREFIX + GRAVIDA, AGE_NON_ZERO, this.xWikiContext);
+        verify(this.data).set(PREFIX + TERM, AGE_ZERO, this.xWikiContext);
+        verify(this.xWikiContext.getWiki(), never()).saveDocument(this.doc, "Updated obstetric history from JSON",
+            true, this.xWikiContext);
     }
 
     @Test
     public void saveHandlesExceptionsTest() throws Exception
     {
-        Exception testException = new Exception("Test Exception");
-        doThrow(testException).when(this.documentAccessBridge).getDocument(this.patientDocument);
+        Exception testException = new RuntimeException("Test Exception");
+        doThrow(testException).when(this.patient).getData(this.obstetricHistoryController.getName());
 
-        this.obstetricHistoryController.save(this.patient);
+        this.obstetricHistoryController.save(this.patient, this.doc);
 
         verify(this.logger).error("Failed to save obstetric history: [{}]", "Test Exception");
     }
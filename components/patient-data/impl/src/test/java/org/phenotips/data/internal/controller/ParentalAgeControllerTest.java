@@ -205,7 +205,7 @@ public void saveEmptyPatientTest() throws XWikiException
     {
         doReturn(this.patientData).when(this.patient).getData(this.parentalAgeController.getName());
         doReturn(false).when(this.patientData).isNamed();
-        this.parentalAgeController.save(this.patient);
+        this.parentalAgeController.save(this.patient, this.doc);
         verifyNoMoreInteractions(this.doc);
         verify(this.xWikiContext.getWiki(), never()).saveDocument(this.doc,
             "Updated parental age from JSON", true, this.xWikiContext);
@@ -222,21 +222,21 @@ public void saveDefaultBehaviourTest() throws XWikiException
         doReturn(AGE_NON_ZERO).when(this.patientData).get(MATERNAL_AGE);
         doReturn(AGE_NON_ZERO).when(this.patientData).get(PATERNAL_AGE);
 
-        this.parentalAgeController.save(this.patient);
+        this.parentalAgeController.save(this.patient, this.doc);
 
         verify(data).set(MATERNAL_AGE, AGE_NON_ZERO, this.xWikiContext);
         verify(data).set(PATERNAL_AGE, AGE_NON_ZERO, this.xWikiContext);
-        verify(this.xWikiContext.getWiki()).saveDocument(this.doc,
+        verify(this.xWikiContext.getWiki(), never()).saveDocument(this.doc,
             "Updated parental age from JSON", true, this.xWikiContext);
     }
 
     @Test
     public void saveHandlesExceptions() throws Exception
     {
-        Exception testException = new Exception("Test Exception");
-        doThrow(testException).when(this.documentAccessBridge).getDocument(this.patientDocument);
+        Exception testException = new RuntimeException("Test Exception");
+        doThrow(testException).when(this.patient).getData(this.parentalAgeController.getName());
 
-        this.parentalAgeController.save(this.patient);
+        this.parentalAgeController.save(this.patient, this.doc);
         verify(this.logger).error("Failed to save parental age: [{}]", testException.getMessage());
     }
 
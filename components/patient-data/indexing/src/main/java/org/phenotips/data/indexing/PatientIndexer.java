@@ -47,7 +47,16 @@
     void delete(Patient patient);
 
     /**
-     * Reindex all the patients.
+     * Reindex all the patients. The new index is built aside and replaces the current one only once complete, so
+     * searches keep working on the old index while the reindex is running.
      */
     void reindex();
+
+    /**
+     * Reindex only the patients modified since the most recent change already present in the index. If the index
+     * doesn't know about any change, this is the same as a full {@link #reindex()}.
+     *
+     * @since 1.3M1
+     */
+    void reindexIncrementally();
 }
@@ -0,0 +1,247 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.indexing.internal;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+
+/**
+ * Holds index updates until a background worker sends them, in batches, to the index. Only the latest update queued
+ * for a key is kept, so a record saved several times in a row is only indexed once. Updates are processed in the
+ * order in which their keys were first queued.
+ *
+ * @param <T> the type of updates held in the queue
+ * @version $Id$
+ * @since 1.3M1
+ */
+public class IndexingQueue<T> implements IndexingQueueMBean, Runnable
+{
+    /**
+     * Sends a batch of updates to the index.
+     *
+     * @param <T> the type of updates processed
+     */
+    public interface BatchProcessor<T>
+    {
+        /**
+         * Process a batch of updates.
+         *
+         * @param batch the updates to process, indexed by their key, in queue order
+         */
+        void process(Map<String, T> batch);
+    }
+
+    /** The pending updates, in queue order; also used as the monitor signalling new updates. */
+    private final Map<String, Pending<T>> pending = new LinkedHashMap<>();
+
+    /** Ensures that batches are processed one at a time, and thus in order. */
+    private final Lock processing = new ReentrantLock();
+
+    private final BatchProcessor<T> processor;
+
+    private final int batchSize;
+
+    private final Logger logger;
+
+    private Thread worker;
+
+    private volatile boolean running;
+
+    private volatile long lastBatchLag;
+
+    private volatile long processedCount;
+
+    /**
+     * Simple constructor passing all the needed components.
+     *
+     * @param processor the processor which receives the batches of updates
+     * @param batchSize the maximum number of updates in a batch
+     * @param logger the logger where processing errors are reported
+     */
+    public IndexingQueue(BatchProcessor<T> processor, int batchSize, Logger logger)
+    {
+        this.processor = processor;
+        this.batchSize = batchSize;
+        this.logger = logger;
+    }
+
+    /**
+     * Queue an update, replacing any update for the same key that is still waiting to be processed.
+     *
+     * @param key the identifier of the indexed record
+     * @param update the new update for that record
+     */
+    public void add(String key, T update)
+    {
+        synchronized (this.pending) {
+            Pending<T> previous = this.pending.get(key);
+            this.pending.put(key, new Pending<>(update, previous == null ? System.currentTimeMillis()
+                : previous.queuedAt));
+            this.pending.notifyAll();
+        }
+    }
+
+    /**
+     * Start processing updates in a background thread.
+     *
+     * @param name the name of the worker thread
+     */
+    public synchronized void start(String name)
+    {
+        if (this.worker == null) {
+            this.running = true;
+            this.worker = new Thread(this, name);
+            this.worker.setDaemon(true);
+            this.worker.start();
+        }
+    }
+
+    /**
+     * Stop the background worker, then process all the remaining updates in the calling thread.
+     */
+    public synchronized void stop()
+    {
+        this.running = false;
+        synchronized (this.pending) {
+            this.pending.notifyAll();
+        }
+        if (this.worker != null) {
+            try {
+                this.worker.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            this.worker = null;
+        }
+        flush();
+    }
+
+    /**
+     * Process all the pending updates in the calling thread. When this returns, all the updates queued before the
+     * call have been processed.
+     */
+    public void flush()
+    {
+        while (processNextBatch()) {
+            // Keep going until the queue is empty
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        while (this.running) {
+            synchronized (this.pending) {
+                while (this.running && this.pending.isEmpty()) {
+                    try {
+                        this.pending.wait();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+            }
+            processNextBatch();
+        }
+    }
+
+    @Override
+    public int getQueueDepth()
+    {
+        synchronized (this.pending) {
+            return this.pending.size();
+        }
+    }
+
+    @Override
+    public long getLag()
+    {
+        synchronized (this.pending) {
+            if (this.pending.isEmpty()) {
+                return 0;
+            }
+            return System.currentTimeMillis() - this.pending.values().iterator().next().queuedAt;
+        }
+    }
+
+    @Override
+    public long getLastBatchLag()
+    {
+        return this.lastBatchLag;
+    }
+
+    @Override
+    public long getProcessedCount()
+    {
+        return this.processedCount;
+    }
+
+    private boolean processNextBatch()
+    {
+        this.processing.lock();
+        try {
+            Map<String, T> batch = new LinkedHashMap<>();
+            long oldest = Long.MAX_VALUE;
+            synchronized (this.pending) {
+                Iterator<Map.Entry<String, Pending<T>>> it = this.pending.entrySet().iterator();
+                while (it.hasNext() && batch.size() < this.batchSize) {
+                    Map.Entry<String, Pending<T>> entry = it.next();
+                    batch.put(entry.getKey(), entry.getValue().update);
+                    oldest = Math.min(oldest, entry.getValue().queuedAt);
+                    it.remove();
+                }
+            }
+            if (batch.isEmpty()) {
+                return false;
+            }
+            this.lastBatchLag = System.currentTimeMillis() - oldest;
+            try {
+                this.processor.process(batch);
+            } catch (RuntimeException ex) {
+                this.logger.warn("Failed to process {} queued index updates: {}", batch.size(), ex.getMessage());
+            }
+            this.processedCount += batch.size();
+            return true;
+        } finally {
+            this.processing.unlock();
+        }
+    }
+
+    /**
+     * An update waiting in the queue.
+     *
+     * @param <T> the type of the update
+     */
+    private static final class Pending<T>
+    {
+        private final T update;
+
+        /** When the first still unprocessed update for the same key was queued. */
+        private final long queuedAt;
+
+        Pending(T update, long queuedAt)
+        {
+            this.update = update;
+            this.queuedAt = queuedAt;
+        }
+    }
+}
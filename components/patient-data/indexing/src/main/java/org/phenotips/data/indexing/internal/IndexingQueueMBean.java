@@ -0,0 +1,57 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.indexing.internal;
+
+/**
+ * Monitoring view of an {@link IndexingQueue}, exposed through JMX.
+ *
+ * @version $Id$
+ * @since 1.3M1
+ */
+public interface IndexingQueueMBean
+{
+    /**
+     * The number of updates waiting to be sent to the index.
+     *
+     * @return a positive number, {@code 0} if the queue is empty
+     */
+    int getQueueDepth();
+
+    /**
+     * How long the oldest pending update has been waiting.
+     *
+     * @return a duration in milliseconds, {@code 0} if the queue is empty
+     */
+    long getLag();
+
+    /**
+     * How long the updates in the most recently processed batch waited, from the moment the oldest one was queued
+     * until the batch was sent to the index.
+     *
+     * @return a duration in milliseconds
+     */
+    long getLastBatchLag();
+
+    /**
+     * The number of updates sent to the index so far, not counting the ones discarded because a newer update for the
+     * same key was queued before they were processed.
+     *
+     * @return a positive number
+     */
+    long getProcessedCount();
+}
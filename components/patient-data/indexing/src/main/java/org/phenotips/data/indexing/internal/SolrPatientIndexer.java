@@ -23,43 +23,99 @@
 import org.phenotips.data.PatientRepository;
 import org.phenotips.data.indexing.PatientIndexer;
 import org.phenotips.data.permissions.PermissionsManager;
+import org.phenotips.data.permissions.Visibility;
 import org.phenotips.vocabulary.SolrCoreContainerHandler;
 import org.phenotips.vocabulary.Vocabulary;
 import org.phenotips.vocabulary.VocabularyTerm;
 
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
 import org.xwiki.component.phase.Initializable;
 import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
 import org.xwiki.query.Query;
 import org.xwiki.query.QueryException;
 import org.xwiki.query.QueryManager;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
-import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrInputDocument;
 import org.slf4j.Logger;
 
+import com.xpn.xwiki.doc.XWikiDocument;
+
 /**
  * Indexes patients in a local Solr core.
+ * <p>
+ * A full reindex is built in a separate shadow core, which is swapped with the live core once complete, so that
+ * searches keep returning the old results until the new index is ready. Patients are loaded in batches and each batch
+ * is sent to Solr in a single request, while the next batch is being prepared.
+ * </p>
+ * <p>
+ * Changes to individual patients are queued and sent to Solr by a background thread, so saving a patient doesn't wait
+ * for the index. Repeated changes to the same patient are merged, and the changes are made visible to searches within
+ * {@code phenotips.indexing.commitWithin} milliseconds, configured in {@code xwiki.properties}.
+ * </p>
  *
  * @version $Id$
  * @since 1.0M8
  */
 @Component
 @Singleton
-public class SolrPatientIndexer implements PatientIndexer, Initializable
+public class SolrPatientIndexer implements PatientIndexer, Initializable, Disposable
 {
+    private static final String CORE_NAME = "patients";
+
+    private static final String MBEAN_NAME = "org.phenotips:type=PatientIndexer,name=queue";
+
+    private static final String ALL_PATIENTS_QUERY = "from doc.object(PhenoTips.PatientClass) as patient";
+
+    private static final String MODIFIED_PATIENTS_QUERY = ALL_PATIENTS_QUERY + " where doc.date >= :since";
+
+    /** How many patients are sent to Solr in one request while reindexing. */
+    private static final int BATCH_SIZE = 100;
+
+    /** The default maximum delay, in milliseconds, before a queued change becomes visible in searches. */
+    private static final int DEFAULT_COMMIT_WITHIN = 1000;
+
+    /** How many batches can be sent to Solr at the same time. */
+    private static final int WORKERS = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+
+    private static final String DOCUMENT_FIELD = "document";
+
+    private static final String DATE_FIELD = "date";
+
+    /** Document dates may be stored with a precision of one second, so date ranges are extended by this much. */
+    private static final long DATE_PRECISION = 1000;
+
     private static final String GENES_KEY = "genes";
 
     private static final String GENE_NAME_FIELD = "gene";
@@ -104,22 +160,188 @@ public class SolrPatientIndexer implements PatientIndexer, Initializable
     @Named("hpo")
     private Vocabulary ontologyService;
 
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    /** Changes to individual patients waiting to be sent to Solr. */
+    private IndexingQueue<PatientUpdate> queue;
+
+    /** The maximum delay, in milliseconds, before a queued change becomes visible in searches. */
+    private int commitWithin;
+
     @Override
     public void initialize() throws InitializationException
     {
-        this.server = new EmbeddedSolrServer(this.cores.getContainer(), "patients");
+        this.server = new EmbeddedSolrServer(this.cores.getContainer(), CORE_NAME);
+        Integer configuredCommitWithin = this.configuration.getProperty("phenotips.indexing.commitWithin",
+            Integer.class);
+        this.commitWithin = configuredCommitWithin != null ? configuredCommitWithin : DEFAULT_COMMIT_WITHIN;
+        this.queue = new IndexingQueue<>(new IndexingQueue.BatchProcessor<PatientUpdate>()
+        {
+            @Override
+            public void process(Map<String, PatientUpdate> batch)
+            {
+                processQueued(batch);
+            }
+        }, BATCH_SIZE, this.logger);
+        this.queue.start("Patient indexer");
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this.queue, new ObjectName(MBEAN_NAME));
+        } catch (JMException ex) {
+            this.logger.debug("Failed to register the patient indexing queue in JMX: {}", ex.getMessage());
+        }
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(MBEAN_NAME));
+        } catch (JMException ex) {
+            // Wasn't registered
+        }
+        this.queue.stop();
     }
 
     @Override
     public void index(Patient patient)
     {
-        SolrInputDocument input = new SolrInputDocument();
-        input.setField("document", patient.getDocument().toString());
+        this.queue.add(patient.getDocument().toString(), prepare(patient));
+    }
+
+    @Override
+    public void delete(Patient patient)
+    {
+        this.queue.add(patient.getDocument().toString(), PatientUpdate.DELETE);
+    }
+
+    /**
+     * Send all the queued changes to Solr now, in the calling thread.
+     */
+    void flush()
+    {
+        this.queue.flush();
+    }
+
+    @Override
+    public void reindex()
+    {
+        Date start = new Date(System.currentTimeMillis() - DATE_PRECISION);
+        try {
+            List<String> patientDocs = this.qm.createQuery(ALL_PATIENTS_QUERY, Query.XWQL).execute();
+            SolrClient shadow = this.cores.createShadowCore(CORE_NAME);
+            if (shadow != null) {
+                try {
+                    indexAll(patientDocs, shadow);
+                    shadow.commit();
+                    this.cores.swapShadowCore(CORE_NAME);
+                } finally {
+                    // After a successful swap this is the old index, otherwise it is an incomplete one
+                    this.cores.discardShadowCore(CORE_NAME);
+                }
+                // Changes made while the shadow core was being built went to the old index, catch up with them
+                indexModifiedSince(start);
+            } else {
+                this.logger.warn("Cannot locate the patients core, the index will be rebuilt in place");
+                this.server.deleteByQuery("*:*");
+                indexAll(patientDocs, this.server);
+                this.server.commit();
+            }
+        } catch (SolrServerException ex) {
+            this.logger.warn("Failed to reindex patients: {}", ex.getMessage());
+        } catch (IOException | SolrException ex) {
+            this.logger.warn("Error occurred while reindexing patients: {}", ex.getMessage());
+        } catch (QueryException ex) {
+            this.logger.warn("Failed to search patients for reindexing: {}", ex.getMessage());
+        }
+    }
+
+    @Override
+    public void reindexIncrementally()
+    {
+        try {
+            Date since = getLastIndexedDate();
+            if (since == null) {
+                reindex();
+                return;
+            }
+            indexModifiedSince(new Date(since.getTime() - DATE_PRECISION));
+        } catch (SolrServerException ex) {
+            this.logger.warn("Failed to reindex patients: {}", ex.getMessage());
+        } catch (IOException ex) {
+            this.logger.warn("Error occurred while reindexing patients: {}", ex.getMessage());
+        } catch (QueryException ex) {
+            this.logger.warn("Failed to search patients for reindexing: {}", ex.getMessage());
+        }
+    }
+
+    private void indexModifiedSince(Date since) throws QueryException, SolrServerException, IOException
+    {
+        List<String> patientDocs =
+            this.qm.createQuery(MODIFIED_PATIENTS_QUERY, Query.XWQL).bindValue("since", since).execute();
+        indexAll(patientDocs, this.server);
+        this.server.commit();
+    }
+
+    /**
+     * Sends a batch of queued changes to Solr.
+     *
+     * @param batch the queued changes, indexed by the name of the patient document
+     */
+    private void processQueued(Map<String, PatientUpdate> batch)
+    {
+        List<String> deleted = new ArrayList<>();
+        List<SolrInputDocument> updated = new ArrayList<>();
+        Map<String, Collection<String>> ancestorsCache = new HashMap<>();
+        for (Map.Entry<String, PatientUpdate> update : batch.entrySet()) {
+            if (update.getValue() == PatientUpdate.DELETE) {
+                deleted.add(update.getKey());
+            } else {
+                updated.add(getSolrDocument(update.getValue(), ancestorsCache));
+            }
+        }
+        if (!deleted.isEmpty()) {
+            try {
+                this.server.deleteById(deleted, this.commitWithin);
+            } catch (SolrServerException ex) {
+                this.logger.warn("Failed to delete from Solr: {}", ex.getMessage());
+            } catch (IOException ex) {
+                this.logger.warn("Error occurred while deleting Solr documents: {}", ex.getMessage());
+            }
+        }
+        if (!updated.isEmpty()) {
+            try {
+                this.server.add(updated, this.commitWithin);
+            } catch (SolrServerException ex) {
+                this.logger.warn("Failed to perform Solr search: {}", ex.getMessage());
+            } catch (IOException ex) {
+                this.logger.warn("Error occurred while performing Solr search: {}", ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Collects the indexed data of a patient. This needs the XWiki context, and is done when the change is queued;
+     * expanding the phenotypes with their ancestors only needs the vocabulary, and is left for
+     * {@link #getSolrDocument(PatientUpdate, Map)}.
+     *
+     * @param patient the patient to index
+     * @return the prepared update
+     */
+    private PatientUpdate prepare(Patient patient)
+    {
+        PatientUpdate update = new PatientUpdate();
+        SolrInputDocument input = update.document;
+        input.setField(DOCUMENT_FIELD, patient.getDocument().toString());
         String reporter = "";
         if (patient.getReporter() != null) {
             reporter = patient.getReporter().toString();
         }
         input.setField("reporter", reporter);
+        if (patient.getXDocument() instanceof XWikiDocument) {
+            input.setField(DATE_FIELD, ((XWikiDocument) patient.getXDocument()).getDate());
+        }
 
         // Index direct phenotypes and extended ancestor sets
         for (Feature phenotype : patient.getFeatures()) {
@@ -130,61 +352,143 @@ public void index(Patient patient)
             String termId = phenotype.getId();
             if (StringUtils.isNotBlank(termId)) {
                 input.addField(fieldName, termId);
-                // Add ancestors of the term
-                VocabularyTerm term = this.ontologyService.getTerm(termId);
-                if (term != null) {
-                    for (VocabularyTerm ancestor : term.getAncestorsAndSelf()) {
-                        input.addField(ancestorFieldName, ancestor.getId());
-                    }
-                }
+                update.addTerm(ancestorFieldName, termId);
             }
         }
 
-        input.setField("visibility", this.permissions.getPatientAccess(patient).getVisibility().getName());
-        input.setField("accessLevel", this.permissions.getPatientAccess(patient).getVisibility().getPermissiveness());
+        Visibility visibility = this.permissions.getPatientAccess(patient).getVisibility();
+        input.setField("visibility", visibility.getName());
+        input.setField("accessLevel", visibility.getPermissiveness());
 
         addGenes(input, patient);
+        return update;
+    }
 
-        try {
-            this.server.add(input);
-        } catch (SolrServerException ex) {
-            this.logger.warn("Failed to perform Solr search: {}", ex.getMessage());
-        } catch (IOException ex) {
-            this.logger.warn("Error occurred while performing Solr search: {}", ex.getMessage());
+    /**
+     * Completes a prepared update with the ancestors of the indexed phenotypes.
+     *
+     * @param update the prepared update
+     * @param ancestorsCache a map of already expanded terms
+     * @return the document to send to Solr
+     */
+    private SolrInputDocument getSolrDocument(PatientUpdate update, Map<String, Collection<String>> ancestorsCache)
+    {
+        for (Map.Entry<String, List<String>> terms : update.terms.entrySet()) {
+            for (String termId : terms.getValue()) {
+                for (String ancestor : getAncestorsAndSelf(termId, ancestorsCache)) {
+                    update.document.addField(terms.getKey(), ancestor);
+                }
+            }
         }
+        return update.document;
     }
 
-    @Override
-    public void delete(Patient patient)
+    /**
+     * Lists the identifiers of a term and of all its ancestors, remembering the result in the provided cache so that
+     * terms shared by many patients are only looked up once.
+     *
+     * @param termId the identifier of the term to expand
+     * @param cache a map of already expanded terms
+     * @return a collection of term identifiers, empty if the term is not in the vocabulary
+     */
+    private Collection<String> getAncestorsAndSelf(String termId, Map<String, Collection<String>> cache)
     {
-        try {
-            this.server.deleteByQuery("document:" + ClientUtils.escapeQueryChars(patient.getDocument().toString()));
-            this.server.commit();
-        } catch (SolrServerException ex) {
-            this.logger.warn("Failed to delete from Solr: {}", ex.getMessage());
-        } catch (IOException ex) {
-            this.logger.warn("Error occurred while deleting Solr documents: {}", ex.getMessage());
+        Collection<String> result = cache.get(termId);
+        if (result == null) {
+            result = new ArrayList<>();
+            VocabularyTerm term = this.ontologyService.getTerm(termId);
+            if (term != null) {
+                for (VocabularyTerm ancestor : term.getAncestorsAndSelf()) {
+                    result.add(ancestor.getId());
+                }
+            }
+            cache.put(termId, result);
         }
+        return result;
     }
 
-    @Override
-    public void reindex()
+    /**
+     * Indexes the listed patients in batches. Patients are loaded in the current thread, since that requires the
+     * XWiki context, while the prepared batches are sent to Solr by a pool of background workers.
+     *
+     * @param patientDocs the names of the patient documents to index
+     * @param target the Solr core where patients are indexed
+     * @throws SolrServerException if sending a batch to Solr fails
+     * @throws IOException if communicating with Solr fails
+     */
+    private void indexAll(List<String> patientDocs, final SolrClient target) throws SolrServerException, IOException
     {
+        ExecutorService workers = Executors.newFixedThreadPool(WORKERS);
+        List<Future<?>> pending = new LinkedList<>();
+        Map<String, Collection<String>> ancestorsCache = new HashMap<>();
+        List<SolrInputDocument> batch = new ArrayList<>(BATCH_SIZE);
+        int processed = 0;
         try {
-            List<String> patientDocs =
-                this.qm.createQuery("from doc.object(PhenoTips.PatientClass) as patient", Query.XWQL).execute();
-            this.server.deleteByQuery("*:*");
             for (String patientDoc : patientDocs) {
-                this.index(this.patientRepository.getPatientById(patientDoc));
+                Patient patient = this.patientRepository.getPatientById(patientDoc);
+                if (patient != null) {
+                    batch.add(getSolrDocument(prepare(patient), ancestorsCache));
+                }
+                if (batch.size() == BATCH_SIZE) {
+                    if (pending.size() >= 2 * WORKERS) {
+                        waitFor(pending.remove(0));
+                    }
+                    pending.add(workers.submit(new BatchAdder(target, batch)));
+                    batch = new ArrayList<>(BATCH_SIZE);
+                }
+                if (++processed % BATCH_SIZE == 0) {
+                    this.logger.info("Reindexed {} of {} patients", processed, patientDocs.size());
+                }
             }
-            this.server.commit();
-        } catch (SolrServerException ex) {
-            this.logger.warn("Failed to reindex patients: {}", ex.getMessage());
-        } catch (IOException ex) {
-            this.logger.warn("Error occurred while reindexing patients: {}", ex.getMessage());
-        } catch (QueryException ex) {
-            this.logger.warn("Failed to search patients for reindexing: {}", ex.getMessage());
+            if (!batch.isEmpty()) {
+                pending.add(workers.submit(new BatchAdder(target, batch)));
+            }
+            for (Future<?> result : pending) {
+                waitFor(result);
+            }
+            this.logger.info("Reindexed {} patients", processed);
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    private void waitFor(Future<?> result) throws SolrServerException, IOException
+    {
+        try {
+            result.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reindexing patients", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof SolrServerException) {
+                throw (SolrServerException) ex.getCause();
+            } else if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new SolrServerException(ex.getCause());
+        }
+    }
+
+    /**
+     * Finds the most recent modification date of the indexed patients.
+     *
+     * @return the most recent date, or {@code null} if the index is empty or holds no dates
+     * @throws SolrServerException if querying Solr fails
+     * @throws IOException if communicating with Solr fails
+     */
+    private Date getLastIndexedDate() throws SolrServerException, IOException
+    {
+        SolrQuery query = new SolrQuery("*:*");
+        query.addFilterQuery(DATE_FIELD + ":[* TO *]");
+        query.setFields(DATE_FIELD);
+        query.setSort(DATE_FIELD, SolrQuery.ORDER.desc);
+        query.setRows(1);
+        QueryResponse response = this.server.query(query);
+        SolrDocumentList results = response == null ? null : response.getResults();
+        if (results == null || results.isEmpty()) {
+            return null;
         }
+        return (Date) results.get(0).getFieldValue(DATE_FIELD);
     }
 
     private void addGenes(SolrInputDocument input, Patient patient)
@@ -215,4 +519,47 @@ private void addGenes(SolrInputDocument input, Patient patient)
             }
         }
     }
+
+    /** The data to index for a patient, waiting for its phenotypes to be expanded with their ancestors. */
+    private static final class PatientUpdate
+    {
+        /** Marks a patient to be removed from the index. */
+        private static final PatientUpdate DELETE = new PatientUpdate();
+
+        private final SolrInputDocument document = new SolrInputDocument();
+
+        /** The phenotypes to expand, grouped by the name of the field where their ancestors are indexed. */
+        private final Map<String, List<String>> terms = new HashMap<>();
+
+        private void addTerm(String field, String termId)
+        {
+            List<String> fieldTerms = this.terms.get(field);
+            if (fieldTerms == null) {
+                fieldTerms = new ArrayList<>();
+                this.terms.put(field, fieldTerms);
+            }
+            fieldTerms.add(termId);
+        }
+    }
+
+    /** Sends one batch of documents to Solr. */
+    private static final class BatchAdder implements Callable<Void>
+    {
+        private final SolrClient target;
+
+        private final Collection<SolrInputDocument> batch;
+
+        BatchAdder(SolrClient target, Collection<SolrInputDocument> batch)
+        {
+            this.target = target;
+            this.batch = batch;
+        }
+
+        @Override
+        public Void call() throws SolrServerException, IOException
+        {
+            this.target.add(this.batch);
+            return null;
+        }
+    }
 }
@@ -0,0 +1,140 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.indexing.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Tests for the {@link IndexingQueue}.
+ *
+ * @version $Id$
+ */
+public class IndexingQueueTest
+{
+    private List<Map<String, String>> batches = new ArrayList<>();
+
+    private Logger logger = mock(Logger.class);
+
+    private IndexingQueue<String> queue;
+
+    @Before
+    public void setUp()
+    {
+        this.queue = new IndexingQueue<>(new IndexingQueue.BatchProcessor<String>()
+        {
+            @Override
+            public void process(Map<String, String> batch)
+            {
+                IndexingQueueTest.this.batches.add(batch);
+            }
+        }, 2, this.logger);
+    }
+
+    @Test
+    public void repeatedUpdatesAreCoalesced()
+    {
+        this.queue.add("P1", "first");
+        this.queue.add("P2", "other");
+        this.queue.add("P1", "second");
+        Assert.assertEquals(2, this.queue.getQueueDepth());
+
+        this.queue.flush();
+
+        Assert.assertEquals(1, this.batches.size());
+        Map<String, String> expected = new LinkedHashMap<>();
+        expected.put("P1", "second");
+        expected.put("P2", "other");
+        Assert.assertEquals(expected, this.batches.get(0));
+        Assert.assertEquals(Arrays.asList("P1", "P2"), new ArrayList<>(this.batches.get(0).keySet()));
+        Assert.assertEquals(0, this.queue.getQueueDepth());
+        Assert.assertEquals(0, this.queue.getLag());
+        Assert.assertEquals(2, this.queue.getProcessedCount());
+    }
+
+    @Test
+    public void updatesAreProcessedInBatches()
+    {
+        this.queue.add("P1", "a");
+        this.queue.add("P2", "b");
+        this.queue.add("P3", "c");
+
+        this.queue.flush();
+
+        Assert.assertEquals(2, this.batches.size());
+        Assert.assertEquals(2, this.batches.get(0).size());
+        Assert.assertEquals("c", this.batches.get(1).get("P3"));
+        Assert.assertEquals(3, this.queue.getProcessedCount());
+    }
+
+    @Test
+    public void lagIsMeasuredFromTheOldestPendingUpdate() throws InterruptedException
+    {
+        this.queue.add("P1", "a");
+        Thread.sleep(20);
+        this.queue.add("P1", "b");
+        Assert.assertTrue(this.queue.getLag() >= 20);
+
+        this.queue.flush();
+
+        Assert.assertTrue(this.queue.getLastBatchLag() >= 20);
+    }
+
+    @Test
+    public void backgroundWorkerProcessesQueuedUpdates()
+    {
+        this.queue.start("test");
+        this.queue.add("P1", "a");
+        this.queue.stop();
+
+        Assert.assertEquals(1, this.batches.size());
+        Assert.assertEquals(0, this.queue.getQueueDepth());
+    }
+
+    @Test
+    public void processingErrorsAreLogged()
+    {
+        IndexingQueue<String> failing = new IndexingQueue<>(new IndexingQueue.BatchProcessor<String>()
+        {
+            @Override
+            public void process(Map<String, String> batch)
+            {
+                throw new IllegalStateException("broken");
+            }
+        }, 2, this.logger);
+        failing.add("P1", "a");
+
+        failing.flush();
+
+        verify(this.logger).warn(anyString(), anyInt(), anyString());
+        Assert.assertEquals(0, failing.getQueueDepth());
+    }
+}
@@ -42,8 +42,10 @@
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -52,24 +54,34 @@
 
 import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.client.solrj.response.UpdateResponse;
-import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
 import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.core.CoreContainer;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.mockito.InOrder;
 import org.mockito.Mock;
+import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 import org.mockito.internal.matchers.CapturingMatcher;
 import org.slf4j.Logger;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyListOf;
 import static org.mockito.Matchers.argThat;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -159,8 +171,8 @@ public void indexDefaultPhenotypeBehaviourTest() throws IOException, SolrServerE
         PatientAccess patientAccess = mock(DefaultPatientAccess.class);
         Visibility patientVisibility = new PublicVisibility();
 
-        CapturingMatcher<SolrInputDocument> capturedArgument = new CapturingMatcher<>();
-        when(this.server.add(argThat(capturedArgument))).thenReturn(mock(UpdateResponse.class));
+        CapturingMatcher<Collection<SolrInputDocument>> capturedArgument = new CapturingMatcher<>();
+        when(this.server.add(argThat(capturedArgument), eq(1000))).thenReturn(mock(UpdateResponse.class));
 
         doReturn(this.patientDocReference).when(this.patient).getDocument();
         doReturn(reporterReference).when(this.patient).getReporter();
@@ -168,9 +180,10 @@ public void indexDefaultPhenotypeBehaviourTest() throws IOException, SolrServerE
         doReturn(patientVisibility).when(patientAccess).getVisibility();
 
         this.patientIndexer.index(this.patient);
+        ((SolrPatientIndexer) this.patientIndexer).flush();
 
-        SolrInputDocument inputDoc = capturedArgument.getLastValue();
-        verify(this.server).add(inputDoc);
+        Assert.assertEquals(1, capturedArgument.getLastValue().size());
+        SolrInputDocument inputDoc = capturedArgument.getLastValue().iterator().next();
         Assert.assertEquals("public", inputDoc.getFieldValue("visibility"));
         Assert.assertEquals("HP:0001367", inputDoc.getFieldValue("phenotype"));
         Assert.assertEquals("id2", inputDoc.getFieldValue("negative_phenotype"));
@@ -187,8 +200,8 @@ public void indexDefaultGeneBehaviourTest() throws IOException, SolrServerExcept
         PatientAccess patientAccess = mock(DefaultPatientAccess.class);
         Visibility patientVisibility = new PublicVisibility();
 
-        CapturingMatcher<SolrInputDocument> capturedArgument = new CapturingMatcher<>();
-        when(this.server.add(argThat(capturedArgument))).thenReturn(mock(UpdateResponse.class));
+        CapturingMatcher<Collection<SolrInputDocument>> capturedArgument = new CapturingMatcher<>();
+        when(this.server.add(argThat(capturedArgument), eq(1000))).thenReturn(mock(UpdateResponse.class));
 
         doReturn(patientDocReference).when(this.patient).getDocument();
         doReturn(reporterReference).when(this.patient).getReporter();
@@ -224,8 +237,9 @@ public void indexDefaultGeneBehaviourTest() throws IOException, SolrServerExcept
         doReturn(patientVisibility).when(patientAccess).getVisibility();
 
         this.patientIndexer.index(this.patient);
-        SolrInputDocument inputDoc = capturedArgument.getLastValue();
-        verify(this.server).add(inputDoc);
+        ((SolrPatientIndexer) this.patientIndexer).flush();
+        Assert.assertEquals(1, capturedArgument.getLastValue().size());
+        SolrInputDocument inputDoc = capturedArgument.getLastValue().iterator().next();
 
         Collection<Object> indexedGenes;
         indexedGenes = inputDoc.getFieldValues("candidate_genes");
@@ -264,9 +278,10 @@ public void indexThrowsSolrException() throws IOException, SolrServerException
         doReturn(patientAccess).when(this.permissions).getPatientAccess(this.patient);
         doReturn(patientVisibility).when(patientAccess).getVisibility();
         doThrow(new SolrServerException("Error while adding SolrInputDocument")).when(this.server)
-            .add(any(SolrInputDocument.class));
+            .add(anyCollectionOf(SolrInputDocument.class), eq(1000));
 
         this.patientIndexer.index(this.patient);
+        ((SolrPatientIndexer) this.patientIndexer).flush();
 
         verify(this.logger).warn("Failed to perform Solr search: {}", "Error while adding SolrInputDocument");
     }
@@ -292,9 +307,10 @@ public void indexThrowsIOException() throws IOException, SolrServerException
         doReturn(patientAccess).when(this.permissions).getPatientAccess(this.patient);
         doReturn(patientVisibility).when(patientAccess).getVisibility();
         doThrow(new IOException("Error while adding SolrInputDocument")).when(this.server)
-            .add(any(SolrInputDocument.class));
+            .add(anyCollectionOf(SolrInputDocument.class), eq(1000));
 
         this.patientIndexer.index(this.patient);
+        ((SolrPatientIndexer) this.patientIndexer).flush();
 
         verify(this.logger).warn("Error occurred while performing Solr search: {}",
             "Error while adding SolrInputDocument");
@@ -309,8 +325,8 @@ public void indexGetReporterIsNull() throws IOException, SolrServerException
         PatientAccess patientAccess = mock(DefaultPatientAccess.class);
         Visibility patientVisibility = new PublicVisibility();
 
-        CapturingMatcher<SolrInputDocument> capturedArgument = new CapturingMatcher<>();
-        when(this.server.add(argThat(capturedArgument))).thenReturn(mock(UpdateResponse.class));
+        CapturingMatcher<Collection<SolrInputDocument>> capturedArgument = new CapturingMatcher<>();
+        when(this.server.add(argThat(capturedArgument), eq(1000))).thenReturn(mock(UpdateResponse.class));
 
         doReturn(this.patientDocReference).when(this.patient).getDocument();
         doReturn(null).when(this.patient).getReporter();
@@ -324,8 +340,9 @@ public void indexGetReporterIsNull() throws IOException, SolrServerException
         doReturn(patientVisibility).when(patientAccess).getVisibility();
 
         this.patientIndexer.index(this.patient);
-        SolrInputDocument inputDoc = capturedArgument.getLastValue();
-        verify(this.server).add(inputDoc);
+        ((SolrPatientIndexer) this.patientIndexer).flush();
+        Assert.assertEquals(1, capturedArgument.getLastValue().size());
+        SolrInputDocument inputDoc = capturedArgument.getLastValue().iterator().next();
         Assert.assertEquals(inputDoc.getFieldValue("reporter"), "");
     }
 
@@ -334,27 +351,29 @@ public void deleteDefaultBehaviourTest() throws IOException, SolrServerException
     {
         doReturn(this.patientDocReference).when(this.patient).getDocument();
         this.patientIndexer.delete(this.patient);
-        verify(this.server).deleteByQuery("document:"
-            + ClientUtils.escapeQueryChars(this.patientDocReference.toString()));
-        verify(this.server).commit();
+        ((SolrPatientIndexer) this.patientIndexer).flush();
+        verify(this.server).deleteById(Collections.singletonList(this.patientDocReference.toString()), 1000);
     }
 
     @Test
     public void deleteThrowsSolrException() throws IOException, SolrServerException
     {
         doReturn(this.patientDocReference).when(this.patient).getDocument();
-        doThrow(new SolrServerException("commit failed")).when(this.server).commit();
+        doThrow(new SolrServerException("delete failed")).when(this.server).deleteById(anyListOf(String.class),
+            eq(1000));
         this.patientIndexer.delete(this.patient);
-        verify(this.logger).warn("Failed to delete from Solr: {}", "commit failed");
+        ((SolrPatientIndexer) this.patientIndexer).flush();
+        verify(this.logger).warn("Failed to delete from Solr: {}", "delete failed");
     }
 
     @Test
     public void deleteThrowsIOException() throws IOException, SolrServerException
     {
         doReturn(this.patientDocReference).when(this.patient).getDocument();
-        doThrow(new IOException("commit failed")).when(this.server).commit();
+        doThrow(new IOException("delete failed")).when(this.server).deleteById(anyListOf(String.class), eq(1000));
         this.patientIndexer.delete(this.patient);
-        verify(this.logger).warn("Error occurred while deleting Solr documents: {}", "commit failed");
+        ((SolrPatientIndexer) this.patientIndexer).flush();
+        verify(this.logger).warn("Error occurred while deleting Solr documents: {}", "delete failed");
     }
 
     @Test
@@ -393,6 +412,33 @@ public void reindexDefaultBehaviour() throws QueryException, IOException, SolrSe
 
     }
 
+    @Test
+    public void reindexBuildsShadowCoreAndSwapsItWithTheLiveCore() throws ComponentLookupException, QueryException,
+        IOException, SolrServerException
+    {
+        SolrClient shadow = mock(SolrClient.class);
+        SolrCoreContainerHandler cores = this.mocker.getInstance(SolrCoreContainerHandler.class);
+        doReturn(shadow).when(cores).createShadowCore("patients");
+
+        Query allQuery = mock(Query.class);
+        doReturn(allQuery).when(this.qm).createQuery("from doc.object(PhenoTips.PatientClass) as patient", Query.XWQL);
+        doReturn(Collections.emptyList()).when(allQuery).execute();
+        Query modifiedQuery = mock(Query.class);
+        doReturn(modifiedQuery).when(this.qm).createQuery(
+            "from doc.object(PhenoTips.PatientClass) as patient where doc.date >= :since", Query.XWQL);
+        doReturn(modifiedQuery).when(modifiedQuery).bindValue(eq("since"), any(Date.class));
+        doReturn(Collections.emptyList()).when(modifiedQuery).execute();
+
+        this.patientIndexer.reindex();
+
+        InOrder order = Mockito.inOrder(shadow, cores);
+        order.verify(shadow).commit();
+        order.verify(cores).swapShadowCore("patients");
+        order.verify(cores).discardShadowCore("patients");
+        verify(modifiedQuery).execute();
+        verify(this.server, never()).deleteByQuery("*:*");
+    }
+
     @Test
     public void reindexSolrServerException() throws QueryException, IOException, SolrServerException
     {
@@ -438,4 +484,101 @@ public void reindexQueryException() throws QueryException, IOException, SolrServ
         verify(this.logger).warn("Failed to search patients for reindexing: {}", "createQuery failed");
 
     }
+
+    @Test
+    public void reindexSendsBatchesAndExpandsSharedTermsOnce()
+        throws QueryException, IOException, SolrServerException, ComponentLookupException
+    {
+        List<String> patientDocs = new ArrayList<>();
+        patientDocs.add("P0000001");
+        patientDocs.add("P0000002");
+
+        Query testQuery = mock(Query.class);
+        doReturn(testQuery).when(this.qm).createQuery("from doc.object(PhenoTips.PatientClass) as patient", Query.XWQL);
+        doReturn(patientDocs).when(testQuery).execute();
+
+        Patient otherPatient = mock(Patient.class);
+        doReturn(this.patient).when(this.patientRepository).getPatientById("P0000001");
+        doReturn(otherPatient).when(this.patientRepository).getPatientById("P0000002");
+
+        Feature testFeature = mock(Feature.class);
+        doReturn(true).when(testFeature).isPresent();
+        doReturn("phenotype").when(testFeature).getType();
+        doReturn("HP:0001367").when(testFeature).getId();
+        PatientAccess patientAccess = mock(DefaultPatientAccess.class);
+        doReturn(new PublicVisibility()).when(patientAccess).getVisibility();
+        for (Patient p : Arrays.asList(this.patient, otherPatient)) {
+            doReturn(this.patientDocReference).when(p).getDocument();
+            doReturn(Collections.singleton(testFeature)).when(p).getFeatures();
+            doReturn(patientAccess).when(this.permissions).getPatientAccess(p);
+        }
+
+        CapturingMatcher<Collection<SolrInputDocument>> capturedArgument = new CapturingMatcher<>();
+        when(this.server.add(argThat(capturedArgument))).thenReturn(mock(UpdateResponse.class));
+
+        this.patientIndexer.reindex();
+
+        Assert.assertEquals(2, capturedArgument.getLastValue().size());
+        for (SolrInputDocument doc : capturedArgument.getLastValue()) {
+            Assert.assertEquals(5, doc.getFieldValues("extended_phenotype").size());
+        }
+        Vocabulary hpo = this.mocker.getInstance(Vocabulary.class, "hpo");
+        verify(hpo, times(1)).getTerm("HP:0001367");
+        verify(this.server).commit();
+    }
+
+    @Test
+    public void reindexIncrementallyOnlyIndexesModifiedPatients() throws QueryException, IOException,
+        SolrServerException
+    {
+        Date lastIndexed = new Date(1000000000L);
+        SolrDocument indexed = new SolrDocument();
+        indexed.setField("date", lastIndexed);
+        SolrDocumentList results = new SolrDocumentList();
+        results.add(indexed);
+        QueryResponse response = mock(QueryResponse.class);
+        doReturn(results).when(response).getResults();
+        doReturn(response).when(this.server).query(any(SolrParams.class));
+
+        Query testQuery = mock(Query.class);
+        doReturn(testQuery).when(this.qm).createQuery(
+            "from doc.object(PhenoTips.PatientClass) as patient where doc.date >= :since", Query.XWQL);
+        Date since = new Date(lastIndexed.getTime() - 1000);
+        doReturn(testQuery).when(testQuery).bindValue("since", since);
+        doReturn(Collections.emptyList()).when(testQuery).execute();
+
+        this.patientIndexer.reindexIncrementally();
+
+        verify(testQuery).bindValue("since", since);
+        verify(this.server, never()).deleteByQuery("*:*");
+        verify(this.server).commit();
+    }
+
+    @Test
+    public void reindexIncrementallyWithEmptyIndexPerformsFullReindex() throws QueryException, IOException,
+        SolrServerException
+    {
+        QueryResponse response = mock(QueryResponse.class);
+        doReturn(new SolrDocumentList()).when(response).getResults();
+        doReturn(response).when(this.server).query(any(SolrParams.class));
+
+        Query testQuery = mock(Query.class);
+        doReturn(testQuery).when(this.qm).createQuery("from doc.object(PhenoTips.PatientClass) as patient", Query.XWQL);
+        doReturn(Collections.emptyList()).when(testQuery).execute();
+
+        this.patientIndexer.reindexIncrementally();
+
+        verify(this.server).deleteByQuery("*:*");
+        verify(this.server).commit();
+    }
+
+    @Test
+    public void reindexIncrementallyQueryException() throws QueryException, IOException, SolrServerException
+    {
+        doThrow(new SolrServerException("query failed")).when(this.server).query(any(SolrParams.class));
+
+        this.patientIndexer.reindexIncrementally();
+
+        verify(this.logger).warn("Failed to reindex patients: {}", "query failed");
+    }
 }
@@ -0,0 +1,72 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.rest;
+
+import org.xwiki.stability.Unstable;
+
+import java.io.InputStream;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Response;
+
+/**
+ * Resource for importing and exporting many patient records at once, using newline-delimited JSON: each line holds the
+ * JSON representation of one patient record.
+ *
+ * @version $Id$
+ * @since 1.3M1
+ */
+@Unstable
+@Path("/patients/bulk")
+public interface PatientsBulkResource
+{
+    /** The media type used for newline-delimited JSON. */
+    String NDJSON_MEDIA_TYPE = "application/x-ndjson";
+
+    /**
+     * Import new patients from their JSON representations, one per line. Records are read and committed to the
+     * database in batches, and each new patient is saved only once, already holding its data. The response lists, one
+     * per line and in the same order as the input, the outcome for each imported record: the line number, and either
+     * the identifier of the created patient, or an error message. Records which couldn't be saved aren't kept.
+     *
+     * @param records the JSON representations of the new patients to add, one per line
+     * @param batchSize how many records to commit to the database at once
+     * @return the outcome of each record, as newline-delimited JSON, or an error report if the import couldn't start
+     */
+    @POST
+    @Consumes(NDJSON_MEDIA_TYPE)
+    @Produces(NDJSON_MEDIA_TYPE)
+    Response importPatients(InputStream records, @QueryParam("batchSize") @DefaultValue("100") Integer batchSize);
+
+    /**
+     * Export all the patient records that the current user can view, one JSON representation per line.
+     *
+     * @param fields a comma-separated list of the fields to include in the exported records; if missing or empty, all
+     *            fields are exported
+     * @return the JSON representations of the patients, one per line
+     */
+    @GET
+    @Produces(NDJSON_MEDIA_TYPE)
+    Response exportPatients(@QueryParam("fields") String fields);
+}
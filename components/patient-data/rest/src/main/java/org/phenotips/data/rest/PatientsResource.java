@@ -48,16 +48,26 @@
     Response addPatient(String json);
 
     /**
-     * @param start for large result set paging, the index of the first patient to display in the returned page
+     * Lists the patient records accessible to the current user. Large result sets can be paged either by offset, using
+     * {@code start}, or by continuing after the last patient of the previous page, using {@code after}. The latter is
+     * recommended, since the cost of retrieving a page doesn't depend on its position in the whole result set; when a
+     * page is full, the returned representation contains a {@code next} link pointing to the following page.
+     *
+     * @param start for large result set paging, the index of the first patient to display in the returned page,
+     *            counted after {@code after} if specified
      * @param number for large result set paging, how many patients to display in the returned page
      * @param orderField field used for ordering the patients, can be one of {@code id} (default) or {@code eid}
      * @param order the sorting order, can be one of {@code asc} (default) or {@code desc}
+     * @param after for large result set paging, the identifier of the last patient displayed in the previous page; if
+     *            specified, only the patients following it in the requested order are listed
      * @return a list of patient records
+     * @since 1.3M1
      */
     @GET
     Patients listPatients(
         @QueryParam("start") @DefaultValue("0") Integer start,
         @QueryParam("number") @DefaultValue("30") Integer number,
         @QueryParam("orderField") @DefaultValue("id") String orderField,
-        @QueryParam("order") @DefaultValue("asc") String order);
+        @QueryParam("order") @DefaultValue("asc") String order,
+        @QueryParam("after") String after);
 }
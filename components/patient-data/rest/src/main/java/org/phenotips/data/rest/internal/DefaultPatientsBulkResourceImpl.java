@@ -0,0 +1,369 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.rest.internal;
+
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientRepository;
+import org.phenotips.data.events.PatientDeletedEvent;
+import org.phenotips.data.rest.PatientsBulkResource;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceResolver;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+import org.xwiki.rest.XWikiResource;
+import org.xwiki.security.authorization.AuthorizationManager;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.users.User;
+import org.xwiki.users.UserManager;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.apache.commons.lang3.StringUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.store.XWikiCacheStoreInterface;
+import com.xpn.xwiki.store.XWikiHibernateStore;
+import com.xpn.xwiki.store.XWikiStoreInterface;
+
+/**
+ * Default implementation for {@link PatientsBulkResource} using XWiki's support for REST resources. Imported records
+ * are read in batches, and each record is created and saved once, already holding its data; the saves of a batch are
+ * committed to the database in a single transaction. If a batch can't be committed, it is rolled back and its records
+ * are retried one at a time, so that only the records which can't be saved are lost. Both the outcome of the import
+ * and the exported records are written directly to the response, so that large imports and exports don't have to be
+ * kept in memory.
+ *
+ * @version $Id$
+ * @since 1.3M1
+ */
+@Component
+@Named("org.phenotips.data.rest.internal.DefaultPatientsBulkResourceImpl")
+@Singleton
+public class DefaultPatientsBulkResourceImpl extends XWikiResource implements PatientsBulkResource
+{
+    /** How many patient identifiers are retrieved from the database at once while exporting. */
+    private static final int EXPORT_BATCH_SIZE = 500;
+
+    /** The maximum number of records committed at once while importing. */
+    private static final int MAX_IMPORT_BATCH_SIZE = 1000;
+
+    private static final String LINE = "line";
+
+    private static final String ERROR = "error";
+
+    private static final String ID = "id";
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private PatientRepository repository;
+
+    @Inject
+    private QueryManager queries;
+
+    @Inject
+    private AuthorizationManager access;
+
+    @Inject
+    private UserManager users;
+
+    /** Fills in missing reference fields with those from the current context document to create a full reference. */
+    @Inject
+    @Named("current")
+    private EntityReferenceResolver<EntityReference> currentResolver;
+
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
+    /** Used for announcing that the patients of a rolled back import batch no longer exist. */
+    @Inject
+    private ObservationManager observationManager;
+
+    @Override
+    public Response importPatients(InputStream records, Integer batchSize)
+    {
+        User currentUser = this.users.getCurrentUser();
+        if (!this.access.hasAccess(Right.EDIT, currentUser == null ? null : currentUser.getProfileDocument(),
+            this.currentResolver.resolve(Patient.DEFAULT_DATA_SPACE, EntityType.SPACE))) {
+            throw new WebApplicationException(Status.UNAUTHORIZED);
+        }
+        int safeBatchSize = Math.max(1, Math.min(MAX_IMPORT_BATCH_SIZE, batchSize == null ? 1 : batchSize));
+        return Response.ok(new ImportOutput(records, currentUser, safeBatchSize), NDJSON_MEDIA_TYPE).build();
+    }
+
+    @Override
+    public Response exportPatients(String fields)
+    {
+        Collection<String> selectedFields = null;
+        if (StringUtils.isNotBlank(fields)) {
+            selectedFields = Arrays.asList(StringUtils.split(fields, ", "));
+        }
+        User currentUser = this.users.getCurrentUser();
+        DocumentReference currentUserProfile = currentUser == null ? null : currentUser.getProfileDocument();
+        return Response.ok(new PatientsOutput(currentUserProfile, selectedFields), NDJSON_MEDIA_TYPE).build();
+    }
+
+    /**
+     * Imports a batch of records, and writes the outcome of each record to the response. If the batch can't be
+     * committed, its records are retried one at a time.
+     *
+     * @param batch the records to import
+     * @param user the user importing the records, the owner of the new patients
+     * @param writer where the outcome of each record is written
+     * @throws IOException if writing the response fails
+     */
+    private void importBatch(List<ImportedRecord> batch, User user, Writer writer) throws IOException
+    {
+        if (batch.isEmpty()) {
+            return;
+        }
+        List<JSONObject> outcome = saveBatch(batch, user);
+        if (outcome == null && batch.size() > 1) {
+            // Don't lose the whole batch because of a few bad records
+            for (ImportedRecord record : batch) {
+                importBatch(Collections.singletonList(record), user, writer);
+            }
+            return;
+        } else if (outcome == null) {
+            outcome = Collections.singletonList(
+                new JSONObject().put(LINE, batch.get(0).line).put(ERROR, "Failed to save the patient"));
+        }
+        for (JSONObject item : outcome) {
+            writer.write(item.toString());
+            writer.write('\n');
+        }
+    }
+
+    /**
+     * Creates the patients in a batch of imported records, saving them all in a single database transaction. If the
+     * batch fails, the transaction is rolled back, and the patients created in it are announced as deleted, so that
+     * caches and indexes forget them.
+     *
+     * @param batch the records to import
+     * @param user the user importing the records, the owner of the new patients
+     * @return the outcome of each record, or {@code null} if the batch was rolled back
+     */
+    private List<JSONObject> saveBatch(List<ImportedRecord> batch, User user)
+    {
+        XWikiContext context = this.xcontextProvider.get();
+        XWikiHibernateStore store = context.getWiki().getHibernateStore();
+        List<JSONObject> outcome = new ArrayList<>(batch.size());
+        List<Patient> created = new ArrayList<>();
+        boolean commit = false;
+        try {
+            boolean transaction = store.beginTransaction(context);
+            try {
+                for (ImportedRecord record : batch) {
+                    outcome.add(importRecord(record, user, created));
+                }
+                commit = true;
+            } finally {
+                if (transaction) {
+                    store.endTransaction(context, commit);
+                }
+            }
+        } catch (XWikiException | RuntimeException ex) {
+            commit = false;
+            this.logger.warn("Failed to import the patients starting at line [{}]: {}", batch.get(0).line,
+                ex.getMessage(), ex);
+        }
+        if (commit) {
+            return outcome;
+        }
+        // The rolled back documents may still be cached
+        XWikiStoreInterface cachedStore = context.getWiki().getStore();
+        if (cachedStore instanceof XWikiCacheStoreInterface) {
+            ((XWikiCacheStoreInterface) cachedStore).flushCache();
+        }
+        for (Patient patient : created) {
+            this.observationManager.notify(new PatientDeletedEvent(patient, user), patient);
+        }
+        return null;
+    }
+
+    /**
+     * Creates a new patient from one imported record.
+     *
+     * @param record the imported record
+     * @param user the user importing the records, the owner of the new patient
+     * @param created where the created patient is added
+     * @return the outcome of the import: the line number, and either the identifier of the created patient, or an
+     *         error message if the record isn't valid JSON
+     * @throws IllegalStateException if the new patient couldn't be saved
+     */
+    private JSONObject importRecord(ImportedRecord record, User user, List<Patient> created)
+    {
+        JSONObject outcome = new JSONObject().put(LINE, record.line);
+        if (record.data == null) {
+            return outcome.put(ERROR, record.error);
+        }
+        Patient patient =
+            this.repository.createNewPatient(user == null ? null : user.getProfileDocument(), record.data);
+        created.add(patient);
+        return outcome.put(ID, patient.getId());
+    }
+
+    /** One imported line, either parsed, or with the reason why it couldn't be parsed. */
+    private static final class ImportedRecord
+    {
+        private final int line;
+
+        private JSONObject data;
+
+        private String error;
+
+        ImportedRecord(int line, String content)
+        {
+            this.line = line;
+            try {
+                this.data = new JSONObject(content);
+            } catch (JSONException ex) {
+                this.error = "Invalid JSON: " + ex.getMessage();
+            }
+        }
+    }
+
+    /** Reads the imported patients in batches, and writes the outcome of each batch as soon as it is committed. */
+    private final class ImportOutput implements StreamingOutput
+    {
+        private final InputStream records;
+
+        private final User user;
+
+        private final int batchSize;
+
+        ImportOutput(InputStream records, User user, int batchSize)
+        {
+            this.records = records;
+            this.user = user;
+            this.batchSize = batchSize;
+        }
+
+        @Override
+        public void write(OutputStream output) throws IOException
+        {
+            Writer writer = new OutputStreamWriter(output, StandardCharsets.UTF_8);
+            try (BufferedReader reader =
+                new BufferedReader(new InputStreamReader(this.records, StandardCharsets.UTF_8))) {
+                List<ImportedRecord> batch = new ArrayList<>(this.batchSize);
+                int lineNumber = 0;
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    ++lineNumber;
+                    if (StringUtils.isBlank(line)) {
+                        continue;
+                    }
+                    batch.add(new ImportedRecord(lineNumber, line));
+                    if (batch.size() >= this.batchSize) {
+                        importBatch(batch, this.user, writer);
+                        writer.flush();
+                        batch.clear();
+                    }
+                }
+                importBatch(batch, this.user, writer);
+                writer.flush();
+            }
+        }
+    }
+
+    /** Writes the exported patients to the response, one at a time, as they are retrieved and serialized. */
+    private final class PatientsOutput implements StreamingOutput
+    {
+        private final DocumentReference user;
+
+        private final Collection<String> fields;
+
+        PatientsOutput(DocumentReference user, Collection<String> fields)
+        {
+            this.user = user;
+            this.fields = fields;
+        }
+
+        @Override
+        public void write(OutputStream output) throws IOException
+        {
+            Writer writer = new OutputStreamWriter(output, StandardCharsets.UTF_8);
+            try {
+                String lastName = "";
+                List<String> names;
+                do {
+                    Query query = DefaultPatientsBulkResourceImpl.this.queries.createQuery("select doc.name from "
+                        + "Document doc, doc.object(PhenoTips.PatientClass) p where doc.name <> :t and doc.name > :name"
+                        + " order by doc.name asc", Query.XWQL);
+                    query.bindValue("t", "PatientTemplate");
+                    query.bindValue("name", lastName);
+                    query.setLimit(EXPORT_BATCH_SIZE);
+                    names = query.execute();
+                    for (String name : names) {
+                        lastName = name;
+                        writePatient(name, writer);
+                    }
+                    writer.flush();
+                } while (names.size() >= EXPORT_BATCH_SIZE);
+            } catch (QueryException ex) {
+                // The response is already being sent, the best that can be done is to abort it
+                DefaultPatientsBulkResourceImpl.this.logger.error("Failed to export patients: {}", ex.getMessage(),
+                    ex);
+                throw new WebApplicationException(ex, Status.INTERNAL_SERVER_ERROR);
+            }
+        }
+
+        private void writePatient(String name, Writer writer) throws IOException
+        {
+            DefaultPatientsBulkResourceImpl outer = DefaultPatientsBulkResourceImpl.this;
+            Patient patient = outer.repository.getPatientById(name);
+            if (patient == null || !outer.access.hasAccess(Right.VIEW, this.user, patient.getDocument())) {
+                return;
+            }
+            writer.write(patient.toJSON(this.fields).toString());
+            writer.write('\n');
+        }
+    }
+}
@@ -32,6 +32,7 @@
 import org.xwiki.model.reference.EntityReference;
 import org.xwiki.model.reference.EntityReferenceResolver;
 import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
 import org.xwiki.query.QueryManager;
 import org.xwiki.rest.XWikiResource;
 import org.xwiki.security.authorization.AuthorizationManager;
@@ -51,6 +52,7 @@
 import javax.ws.rs.core.Response.Status;
 import javax.ws.rs.core.UriBuilder;
 
+import org.apache.commons.lang3.StringUtils;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 
@@ -65,6 +67,15 @@
 @Singleton
 public class DefaultPatientsResourceImpl extends XWikiResource implements PatientsResource
 {
+    /** How many records are retrieved from the database at once while filling a page. */
+    private static final int BATCH_SIZE = 100;
+
+    /**
+     * The external identifier used for ordering and for continuing after the last seen patient. Patients without an
+     * external identifier are sorted as if it were empty, otherwise they would never match the keyset comparison.
+     */
+    private static final String EXTERNAL_ID_KEY = "coalesce(p.external_id, '')";
+
     @Inject
     private Logger logger;
 
@@ -115,40 +126,48 @@ public Response addPatient(String json)
     }
 
     @Override
-    public Patients listPatients(Integer start, Integer number, String orderField, String order)
+    public Patients listPatients(Integer start, Integer number, String orderField, String order, String after)
     {
         Patients result = new Patients();
         try {
-            String safeOrderField = "doc.name";
-            if ("eid".equals(orderField)) {
-                safeOrderField = "p.external_id";
-            }
-            String safeOrder = " asc";
-            if ("desc".equals(order)) {
-                safeOrder = " desc";
+            boolean byExternalId = "eid".equals(orderField);
+            boolean descending = "desc".equals(order);
+
+            // Keyset pagination: each batch continues after the last record seen, so that only the rows actually
+            // needed for the requested page are retrieved, regardless of the page position
+            String lastName = StringUtils.defaultIfBlank(after, null);
+            String lastExternalId = null;
+            if (lastName != null && byExternalId) {
+                Patient lastPatient = this.repository.getPatientById(lastName);
+                if (lastPatient == null) {
+                    throw new WebApplicationException(Status.BAD_REQUEST);
+                }
+                lastExternalId = StringUtils.defaultString(lastPatient.getExternalId());
             }
-            Query query = this.queries.createQuery(
-                "select doc.fullName, p.external_id, doc.creator, doc.creationDate, doc.version, doc.author, doc.date"
-                    + " from Document doc, doc.object(PhenoTips.PatientClass) p where doc.name <> :t order by "
-                    + safeOrderField + safeOrder,
-                "xwql");
-            query.bindValue("t", "PatientTemplate");
-
-            List<Object[]> records = query.execute();
+
             int skipped = 0;
-            for (Object[] record : records) {
-                PatientSummary summary = this.factory.createPatientSummary(record, this.uriInfo);
-                // Since raw queries can't take into account access rights, we must do our own paging with rights checks
-                if (summary != null) {
-                    if (++skipped > start) {
+            boolean exhausted = false;
+            while (!exhausted && result.getPatientSummaries().size() < number) {
+                Query query = createListQuery(byExternalId, descending, lastName, lastExternalId);
+                List<Object[]> records = query.execute();
+                exhausted = records.size() < BATCH_SIZE;
+                for (Object[] record : records) {
+                    lastName = StringUtils.substringAfterLast(String.valueOf(record[0]), ".");
+                    lastExternalId = StringUtils.defaultString((String) record[1]);
+                    PatientSummary summary = this.factory.createPatientSummary(record, this.uriInfo);
+                    // Raw queries can't take into account access rights, so paging is done here, with rights checks
+                    if (summary != null && ++skipped > start) {
                         result.getPatientSummaries().add(summary);
-                    }
-                    if (result.getPatientSummaries().size() >= number) {
-                        break;
+                        if (result.getPatientSummaries().size() >= number) {
+                            break;
+                        }
                     }
                 }
             }
             result.getLinks().add(new Link().withRel(Relations.SELF).withHref(this.uriInfo.getRequestUri().toString()));
+            addNextLink(result, number);
+        } catch (WebApplicationException ex) {
+            throw ex;
         } catch (Exception ex) {
             this.logger.error("Failed to list patients: {}", ex.getMessage(), ex);
             throw new WebApplicationException(Status.INTERNAL_SERVER_ERROR);
@@ -156,4 +175,68 @@ public Patients listPatients(Integer start, Integer number, String orderField, S
 
         return result;
     }
+
+    /**
+     * Creates a query retrieving the next batch of patient summaries, following the specified last seen patient.
+     *
+     * @param byExternalId whether the patients are ordered by their external identifier, or by their identifier
+     * @param descending whether the patients are listed in descending order
+     * @param lastName the identifier of the last patient seen, {@code null} to start from the beginning
+     * @param lastExternalId the external identifier of the last patient seen, used only when ordering by it
+     * @return the query, ready to be executed
+     * @throws QueryException if creating the query fails
+     */
+    private Query createListQuery(boolean byExternalId, boolean descending, String lastName, String lastExternalId)
+        throws QueryException
+    {
+        String comparison = descending ? " < " : " > ";
+        String direction = descending ? " desc" : " asc";
+        StringBuilder statement = new StringBuilder(
+            "select doc.fullName, p.external_id, doc.creator, doc.creationDate, doc.version, doc.author, doc.date"
+                + " from Document doc, doc.object(PhenoTips.PatientClass) p where doc.name <> :t");
+        if (lastName != null) {
+            if (byExternalId) {
+                statement.append(" and (").append(EXTERNAL_ID_KEY).append(comparison).append(":eid or (")
+                    .append(EXTERNAL_ID_KEY).append(" = :eid and doc.name").append(comparison).append(":name))");
+            } else {
+                statement.append(" and doc.name").append(comparison).append(":name");
+            }
+        }
+        statement.append(" order by ");
+        if (byExternalId) {
+            statement.append(EXTERNAL_ID_KEY).append(direction).append(", ");
+        }
+        statement.append("doc.name").append(direction);
+
+        Query query = this.queries.createQuery(statement.toString(), "xwql");
+        query.bindValue("t", "PatientTemplate");
+        if (lastName != null) {
+            query.bindValue("name", lastName);
+            if (byExternalId) {
+                query.bindValue("eid", lastExternalId);
+            }
+        }
+        query.setLimit(BATCH_SIZE);
+        return query;
+    }
+
+    /**
+     * If the page is full, adds a link to the next page, continuing after the last listed patient.
+     *
+     * @param result the listed page of patients
+     * @param number the requested number of patients per page
+     */
+    private void addNextLink(Patients result, Integer number)
+    {
+        List<PatientSummary> summaries = result.getPatientSummaries();
+        if (summaries.isEmpty() || summaries.size() < number) {
+            return;
+        }
+        String lastId = summaries.get(summaries.size() - 1).getId();
+        if (lastId != null) {
+            URI next = UriBuilder.fromUri(this.uriInfo.getRequestUri()).replaceQueryParam("start")
+                .replaceQueryParam("after", lastId).build();
+            result.getLinks().add(new Link().withRel(Relations.NEXT).withHref(next.toString()));
+        }
+    }
 }
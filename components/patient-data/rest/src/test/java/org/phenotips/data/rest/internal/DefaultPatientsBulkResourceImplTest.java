@@ -0,0 +1,291 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.rest.internal;
+
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientRepository;
+import org.phenotips.data.events.PatientDeletedEvent;
+import org.phenotips.data.rest.PatientsBulkResource;
+
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+import org.xwiki.security.authorization.AuthorizationManager;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+import org.xwiki.users.User;
+import org.xwiki.users.UserManager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+
+import javax.inject.Provider;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.store.XWikiCacheStoreInterface;
+import com.xpn.xwiki.store.XWikiHibernateStore;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.same;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class DefaultPatientsBulkResourceImplTest
+{
+    @Rule
+    public MockitoComponentMockingRule<PatientsBulkResource> mocker =
+        new MockitoComponentMockingRule<PatientsBulkResource>(DefaultPatientsBulkResourceImpl.class);
+
+    @Mock
+    private User currentUser;
+
+    @Mock
+    private Patient patient1;
+
+    @Mock
+    private Patient patient2;
+
+    private PatientRepository repository;
+
+    private AuthorizationManager access;
+
+    private PatientsBulkResource resource;
+
+    @Mock
+    private XWikiContext context;
+
+    @Mock
+    private XWiki xwiki;
+
+    @Mock
+    private XWikiHibernateStore store;
+
+    @Mock
+    private XWikiCacheStoreInterface cacheStore;
+
+    private ObservationManager observationManager;
+
+    private DocumentReference userProfile = new DocumentReference("wiki", "XWiki", "padams");
+
+    private DocumentReference patientDocument1 = new DocumentReference("wiki", "data", "P0000001");
+
+    private DocumentReference patientDocument2 = new DocumentReference("wiki", "data", "P0000002");
+
+    @Before
+    public void setUp() throws Exception
+    {
+        MockitoAnnotations.initMocks(this);
+        this.resource = this.mocker.getComponentUnderTest();
+        this.repository = this.mocker.getInstance(PatientRepository.class);
+        this.access = this.mocker.getInstance(AuthorizationManager.class);
+        UserManager users = this.mocker.getInstance(UserManager.class);
+        doReturn(this.currentUser).when(users).getCurrentUser();
+        doReturn(this.userProfile).when(this.currentUser).getProfileDocument();
+
+        doReturn("P0000001").when(this.patient1).getId();
+        doReturn(this.patientDocument1).when(this.patient1).getDocument();
+        doReturn("P0000002").when(this.patient2).getId();
+        doReturn(this.patientDocument2).when(this.patient2).getDocument();
+
+        doReturn(true).when(this.access).hasAccess(eq(Right.EDIT), any(DocumentReference.class),
+            any(EntityReference.class));
+        Provider<XWikiContext> provider = this.mocker.getInstance(XWikiContext.TYPE_PROVIDER);
+        doReturn(this.context).when(provider).get();
+        doReturn(this.xwiki).when(this.context).getWiki();
+        doReturn(this.store).when(this.xwiki).getHibernateStore();
+        doReturn(this.cacheStore).when(this.xwiki).getStore();
+        doReturn(true).when(this.store).beginTransaction(this.context);
+        this.observationManager = this.mocker.getInstance(ObservationManager.class);
+    }
+
+    @Test
+    public void importRequiresEditRightOnTheDataSpace()
+    {
+        doReturn(false).when(this.access).hasAccess(eq(Right.EDIT), any(DocumentReference.class),
+            any(EntityReference.class));
+        try {
+            this.resource.importPatients(toStream("{}"), 100);
+            Assert.fail("Import should have been refused");
+        } catch (WebApplicationException ex) {
+            Assert.assertEquals(Response.Status.UNAUTHORIZED.getStatusCode(), ex.getResponse().getStatus());
+        }
+        verify(this.repository, never()).createNewPatient(any(DocumentReference.class), any(JSONObject.class));
+    }
+
+    @Test
+    public void importSavesEachPatientOnceInBatches() throws Exception
+    {
+        doReturn(this.patient1, this.patient2).when(this.repository).createNewPatient(eq(this.userProfile),
+            any(JSONObject.class));
+
+        Response response = this.resource.importPatients(
+            toStream("{\"external_id\":\"a\"}\n\nnot json\n{\"external_id\":\"b\"}\n"), 2);
+        // Nothing is imported until the response is written
+        verify(this.repository, never()).createNewPatient(any(DocumentReference.class), any(JSONObject.class));
+
+        String[] lines = writeImport(response);
+        Assert.assertEquals(3, lines.length);
+        Assert.assertEquals("P0000001", new JSONObject(lines[0]).getString("id"));
+        Assert.assertEquals(1, new JSONObject(lines[0]).getInt("line"));
+        Assert.assertEquals(3, new JSONObject(lines[1]).getInt("line"));
+        Assert.assertTrue(new JSONObject(lines[1]).has("error"));
+        Assert.assertEquals("P0000002", new JSONObject(lines[2]).getString("id"));
+        Assert.assertEquals(4, new JSONObject(lines[2]).getInt("line"));
+
+        // Two batches, each committed at once, and the patients are created with their data instead of updated
+        verify(this.store, times(2)).beginTransaction(this.context);
+        verify(this.store, times(2)).endTransaction(this.context, true);
+        verify(this.patient1, never()).updateFromJSON(any(JSONObject.class));
+        verify(this.patient2, never()).updateFromJSON(any(JSONObject.class));
+    }
+
+    @Test
+    public void failedBatchesAreRolledBackAndRetriedOneAtATime() throws Exception
+    {
+        doReturn(this.patient1).doThrow(new IllegalStateException()).doReturn(this.patient2)
+            .doThrow(new IllegalStateException()).when(this.repository)
+            .createNewPatient(eq(this.userProfile), any(JSONObject.class));
+
+        String[] lines = writeImport(this.resource.importPatients(toStream("{}\n{}"), 10));
+
+        Assert.assertEquals(2, lines.length);
+        JSONObject imported = new JSONObject(lines[0]);
+        Assert.assertFalse(imported.has("error"));
+        Assert.assertEquals("P0000002", imported.getString("id"));
+        JSONObject failed = new JSONObject(lines[1]);
+        Assert.assertTrue(failed.has("error"));
+        Assert.assertFalse(failed.has("id"));
+
+        // The batch and the failed retry were rolled back, and the patients created in them are forgotten
+        verify(this.store, times(2)).endTransaction(this.context, false);
+        verify(this.store, times(1)).endTransaction(this.context, true);
+        verify(this.cacheStore, times(2)).flushCache();
+        verify(this.observationManager).notify(any(PatientDeletedEvent.class), same(this.patient1));
+        verify(this.observationManager, never()).notify(any(PatientDeletedEvent.class), same(this.patient2));
+    }
+
+    @Test
+    public void failedCommitsAreReported() throws Exception
+    {
+        doReturn(this.patient1).when(this.repository).createNewPatient(eq(this.userProfile), any(JSONObject.class));
+        doThrow(new RuntimeException()).when(this.store).endTransaction(this.context, true);
+
+        String[] lines = writeImport(this.resource.importPatients(toStream("{}"), 10));
+
+        Assert.assertEquals(1, lines.length);
+        Assert.assertTrue(new JSONObject(lines[0]).has("error"));
+        verify(this.observationManager).notify(any(PatientDeletedEvent.class), same(this.patient1));
+    }
+
+    @Test
+    public void exportWritesOnlyViewablePatients() throws Exception
+    {
+        QueryManager queries = this.mocker.getInstance(QueryManager.class);
+        Query query = mock(Query.class);
+        doReturn(query).when(queries).createQuery(anyString(), anyString());
+        doReturn(Arrays.asList("P0000001", "P0000002")).when(query).execute();
+        doReturn(this.patient1).when(this.repository).getPatientById("P0000001");
+        doReturn(this.patient2).when(this.repository).getPatientById("P0000002");
+        doReturn(true).when(this.access).hasAccess(Right.VIEW, this.userProfile, this.patientDocument1);
+        doReturn(false).when(this.access).hasAccess(Right.VIEW, this.userProfile, this.patientDocument2);
+        doReturn(new JSONObject().put("id", "P0000001")).when(this.patient1).toJSON(Arrays.asList("id", "sex"));
+
+        Response response = this.resource.exportPatients("id,sex");
+        // Nothing is retrieved until the response is written
+        verify(this.repository, never()).getPatientById(anyString());
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ((StreamingOutput) response.getEntity()).write(output);
+        Assert.assertEquals("{\"id\":\"P0000001\"}\n", output.toString("UTF-8"));
+        verify(this.patient2, never()).toJSON(any(Collection.class));
+    }
+
+    @Test
+    public void exportContinuesAfterTheLastPatientOfEachBatch() throws Exception
+    {
+        QueryManager queries = this.mocker.getInstance(QueryManager.class);
+        Query query = mock(Query.class);
+        doReturn(query).when(queries).createQuery(anyString(), anyString());
+        String[] firstBatch = new String[500];
+        for (int i = 0; i < firstBatch.length; ++i) {
+            firstBatch[i] = String.format("P%07d", i + 1);
+        }
+        doReturn(Arrays.asList(firstBatch)).doReturn(Arrays.asList("P0000501")).when(query).execute();
+
+        Response response = this.resource.exportPatients(null);
+        ((StreamingOutput) response.getEntity()).write(new ByteArrayOutputStream());
+
+        verify(query).bindValue("name", "");
+        verify(query).bindValue("name", "P0000500");
+        verify(this.repository).getPatientById("P0000501");
+    }
+
+    @Test
+    public void exportFailuresAbortTheResponse() throws Exception
+    {
+        QueryManager queries = this.mocker.getInstance(QueryManager.class);
+        Query query = mock(Query.class);
+        doReturn(query).when(queries).createQuery(anyString(), anyString());
+        doThrow(new QueryException("failed", query, null)).when(query).execute();
+
+        Response response = this.resource.exportPatients(null);
+        try {
+            ((StreamingOutput) response.getEntity()).write(new ByteArrayOutputStream());
+            Assert.fail("The export failure should have been reported");
+        } catch (WebApplicationException ex) {
+            Assert.assertEquals(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode(), ex.getResponse().getStatus());
+        }
+    }
+
+    private String[] writeImport(Response response) throws Exception
+    {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ((StreamingOutput) response.getEntity()).write(output);
+        return output.toString("UTF-8").split("\n");
+    }
+
+    private InputStream toStream(String content)
+    {
+        return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -21,6 +21,7 @@
 import org.phenotips.data.PatientRepository;
 import org.phenotips.data.rest.DomainObjectFactory;
 import org.phenotips.data.rest.PatientsResource;
+import org.phenotips.data.rest.Relations;
 import org.phenotips.data.rest.model.PatientSummary;
 import org.phenotips.data.rest.model.Patients;
 
@@ -197,7 +198,7 @@ public void listPatientsNullOrderField() throws QueryException
         doReturn(query).when(this.queries).createQuery(anyString(), anyString());
         doReturn(query).when(query).bindValue(anyString(), anyString());
         doReturn(new ArrayList<Object[]>()).when(query).execute();
-        this.patientsResource.listPatients(0, 30, null, "asc");
+        this.patientsResource.listPatients(0, 30, null, "asc", null);
         verify(this.queries).createQuery(
             "select doc.fullName, p.external_id, doc.creator, doc.creationDate, doc.version, doc.author, doc.date"
                 + " from Document doc, doc.object(PhenoTips.PatientClass) p where doc.name <> :t order by "
@@ -212,7 +213,7 @@ public void listPatientsNullOrder() throws QueryException
         doReturn(query).when(this.queries).createQuery(anyString(), anyString());
         doReturn(query).when(query).bindValue(anyString(), anyString());
         doReturn(new ArrayList<Object[]>()).when(query).execute();
-        this.patientsResource.listPatients(0, 30, "id", null);
+        this.patientsResource.listPatients(0, 30, "id", null, null);
         verify(this.queries).createQuery(
             "select doc.fullName, p.external_id, doc.creator, doc.creationDate, doc.version, doc.author, doc.date"
                 + " from Document doc, doc.object(PhenoTips.PatientClass) p where doc.name <> :t order by "
@@ -227,11 +228,11 @@ public void listPatientsNonDefaultBehaviour() throws QueryException
         doReturn(query).when(this.queries).createQuery(anyString(), anyString());
         doReturn(query).when(query).bindValue(anyString(), anyString());
         doReturn(new ArrayList<Object[]>()).when(query).execute();
-        this.patientsResource.listPatients(0, 30, "eid", "desc");
+        this.patientsResource.listPatients(0, 30, "eid", "desc", null);
         verify(this.queries).createQuery(
             "select doc.fullName, p.external_id, doc.creator, doc.creationDate, doc.version, doc.author, doc.date"
                 + " from Document doc, doc.object(PhenoTips.PatientClass) p where doc.name <> :t order by "
-                + "p.external_id" + " desc",
+                + "coalesce(p.external_id, '') desc, doc.name desc",
             "xwql");
     }
 
@@ -248,7 +249,7 @@ public void listPatientsNoUserAccess() throws QueryException
         doReturn(false).when(this.access).hasAccess(eq(Right.VIEW), any(DocumentReference.class),
             any(EntityReference.class));
         doReturn(null).when(this.factory).createPatientSummary(patientSummaryData, this.uriInfo);
-        Patients result = this.patientsResource.listPatients(0, 30, "id", "asc");
+        Patients result = this.patientsResource.listPatients(0, 30, "id", "asc", null);
         verify(this.queries).createQuery(
             "select doc.fullName, p.external_id, doc.creator, doc.creationDate, doc.version, doc.author, doc.date"
                 + " from Document doc, doc.object(PhenoTips.PatientClass) p where doc.name <> :t order by "
@@ -270,7 +271,7 @@ public void listPatientsUserHasAccess() throws QueryException
         doReturn(true).when(this.access).hasAccess(eq(Right.VIEW), any(DocumentReference.class),
             any(EntityReference.class));
         doReturn(new PatientSummary()).when(this.factory).createPatientSummary(any(Object[].class), eq(this.uriInfo));
-        Patients result = this.patientsResource.listPatients(0, 30, "id", "asc");
+        Patients result = this.patientsResource.listPatients(0, 30, "id", "asc", null);
         verify(this.queries).createQuery(
             "select doc.fullName, p.external_id, doc.creator, doc.creationDate, doc.version, doc.author, doc.date"
                 + " from Document doc, doc.object(PhenoTips.PatientClass) p where doc.name <> :t order by "
@@ -295,16 +296,16 @@ public void listPatientsSpecificNumberOfRecords() throws QueryException
             any(EntityReference.class));
         doReturn(new PatientSummary()).when(this.factory).createPatientSummary(any(Object[].class), eq(this.uriInfo));
 
-        Patients allPatients = this.patientsResource.listPatients(0, 30, "id", "asc");
+        Patients allPatients = this.patientsResource.listPatients(0, 30, "id", "asc", null);
         Assert.assertEquals(30, allPatients.getPatientSummaries().size());
 
-        Patients selectedNumberOfPatients = this.patientsResource.listPatients(15, 15, "id", "asc");
+        Patients selectedNumberOfPatients = this.patientsResource.listPatients(15, 15, "id", "asc", null);
         Assert.assertEquals(15, selectedNumberOfPatients.getPatientSummaries().size());
 
-        Patients onePatient = this.patientsResource.listPatients(15, 1, "id", "asc");
+        Patients onePatient = this.patientsResource.listPatients(15, 1, "id", "asc", null);
         Assert.assertEquals(1, onePatient.getPatientSummaries().size());
 
-        Patients incorrectLookup = this.patientsResource.listPatients(31, 5, "id", "asc");
+        Patients incorrectLookup = this.patientsResource.listPatients(31, 5, "id", "asc", null);
         Assert.assertEquals(0, incorrectLookup.getPatientSummaries().size());
     }
 
@@ -323,10 +324,126 @@ public void listPatientsGetMoreRecordsThanAdded() throws QueryException
         doReturn(true).when(this.access).hasAccess(eq(Right.VIEW), any(DocumentReference.class),
             any(EntityReference.class));
         doReturn(new PatientSummary()).when(this.factory).createPatientSummary(any(Object[].class), eq(this.uriInfo));
-        Patients result = this.patientsResource.listPatients(0, 30, "id", "asc");
+        Patients result = this.patientsResource.listPatients(0, 30, "id", "asc", null);
         Assert.assertEquals(15, result.getPatientSummaries().size());
     }
 
+    @Test
+    public void listPatientsAfterContinuesFromLastPatient() throws QueryException
+    {
+        Query query = mock(DefaultQuery.class);
+        doReturn(query).when(this.queries).createQuery(anyString(), anyString());
+        doReturn(new ArrayList<Object[]>()).when(query).execute();
+        this.patientsResource.listPatients(0, 30, "id", "asc", "P0000005");
+        verify(this.queries).createQuery(
+            "select doc.fullName, p.external_id, doc.creator, doc.creationDate, doc.version, doc.author, doc.date"
+                + " from Document doc, doc.object(PhenoTips.PatientClass) p where doc.name <> :t"
+                + " and doc.name > :name order by doc.name asc",
+            "xwql");
+        verify(query).bindValue("name", "P0000005");
+        verify(query).setLimit(100);
+    }
+
+    @Test
+    public void listPatientsAfterByExternalIdUsesExternalIdOfLastPatient() throws QueryException
+    {
+        Query query = mock(DefaultQuery.class);
+        doReturn(query).when(this.queries).createQuery(anyString(), anyString());
+        doReturn(new ArrayList<Object[]>()).when(query).execute();
+        doReturn(this.patient).when(this.repository).getPatientById("P0000005");
+        doReturn("eid5").when(this.patient).getExternalId();
+        this.patientsResource.listPatients(0, 30, "eid", "desc", "P0000005");
+        verify(this.queries).createQuery(
+            "select doc.fullName, p.external_id, doc.creator, doc.creationDate, doc.version, doc.author, doc.date"
+                + " from Document doc, doc.object(PhenoTips.PatientClass) p where doc.name <> :t"
+                + " and (coalesce(p.external_id, '') < :eid or (coalesce(p.external_id, '') = :eid"
+                + " and doc.name < :name)) order by coalesce(p.external_id, '') desc, doc.name desc",
+            "xwql");
+        verify(query).bindValue("name", "P0000005");
+        verify(query).bindValue("eid", "eid5");
+    }
+
+    @Test
+    public void listPatientsWithoutExternalIdContinueAcrossBatches() throws QueryException
+    {
+        // A full first batch of patients without an external identifier, followed by one more in the next batch
+        List<Object[]> firstBatch = new ArrayList<Object[]>();
+        for (int i = 1; i <= 100; i++) {
+            Object[] patientSummaryData = new Object[7];
+            patientSummaryData[0] = "data.P" + String.format("%07d", i);
+            firstBatch.add(patientSummaryData);
+        }
+        List<Object[]> secondBatch = new ArrayList<Object[]>();
+        Object[] lastPatientData = new Object[7];
+        lastPatientData[0] = "data.P0000101";
+        secondBatch.add(lastPatientData);
+        Query query = mock(DefaultQuery.class);
+        doReturn(query).when(this.queries).createQuery(anyString(), anyString());
+        doReturn(firstBatch).doReturn(secondBatch).when(query).execute();
+        doReturn(new PatientSummary()).when(this.factory).createPatientSummary(any(Object[].class), eq(this.uriInfo));
+
+        Patients result = this.patientsResource.listPatients(0, 200, "eid", "asc", null);
+
+        Assert.assertEquals(101, result.getPatientSummaries().size());
+        verify(this.queries).createQuery(
+            "select doc.fullName, p.external_id, doc.creator, doc.creationDate, doc.version, doc.author, doc.date"
+                + " from Document doc, doc.object(PhenoTips.PatientClass) p where doc.name <> :t"
+                + " and (coalesce(p.external_id, '') > :eid or (coalesce(p.external_id, '') = :eid"
+                + " and doc.name > :name)) order by coalesce(p.external_id, '') asc, doc.name asc",
+            "xwql");
+        verify(query).bindValue("name", "P0000100");
+        verify(query).bindValue("eid", "");
+    }
+
+    @Test
+    public void listPatientsAfterPatientWithoutExternalId() throws QueryException
+    {
+        Query query = mock(DefaultQuery.class);
+        doReturn(query).when(this.queries).createQuery(anyString(), anyString());
+        doReturn(new ArrayList<Object[]>()).when(query).execute();
+        doReturn(this.patient).when(this.repository).getPatientById("P0000005");
+        doReturn(null).when(this.patient).getExternalId();
+        this.patientsResource.listPatients(0, 30, "eid", "asc", "P0000005");
+        verify(query).bindValue("name", "P0000005");
+        verify(query).bindValue("eid", "");
+    }
+
+    @Test
+    public void listPatientsAfterUnknownPatientByExternalIdIsRejected()
+    {
+        WebApplicationException exception = null;
+        try {
+            this.patientsResource.listPatients(0, 30, "eid", "asc", "P0000005");
+        } catch (WebApplicationException ex) {
+            exception = ex;
+        }
+        Assert.assertNotNull(exception);
+        Assert.assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), exception.getResponse().getStatus());
+    }
+
+    @Test
+    public void listPatientsFullPageLinksToNextPage() throws QueryException
+    {
+        List<Object[]> patientList = new ArrayList<Object[]>();
+        for (int i = 1; i <= 3; i++) {
+            Object[] patientSummaryData = new Object[7];
+            patientSummaryData[0] = "data.P000000" + i;
+            patientList.add(patientSummaryData);
+            doReturn(new PatientSummary().withId("P000000" + i)).when(this.factory)
+                .createPatientSummary(patientSummaryData, this.uriInfo);
+        }
+        Query query = mock(DefaultQuery.class);
+        doReturn(query).when(this.queries).createQuery(anyString(), anyString());
+        doReturn(patientList).when(query).execute();
+
+        Patients result = this.patientsResource.listPatients(0, 2, "id", "asc", null);
+
+        Assert.assertEquals(2, result.getPatientSummaries().size());
+        Assert.assertEquals(2, result.getLinks().size());
+        Assert.assertEquals(Relations.NEXT, result.getLinks().get(1).getRel());
+        Assert.assertTrue(result.getLinks().get(1).getHref().endsWith("after=P0000002"));
+    }
+
     @Test
     public void listPatientFailureHandling() throws QueryException
     {
@@ -337,7 +454,7 @@ public void listPatientFailureHandling() throws QueryException
         doReturn(query).when(query).bindValue(anyString(), anyString());
         doThrow(queryException).when(query).execute();
         try {
-            this.patientsResource.listPatients(0, 30, "id", "asc");
+            this.patientsResource.listPatients(0, 30, "id", "asc", null);
         } catch (WebApplicationException ex) {
             exception = ex;
         }
@@ -0,0 +1,185 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.recordLocking.internal;
+
+import org.phenotips.Constants;
+
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.observation.event.Event;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * Default implementation of the {@link PatientRecordLockIndex}, keeping the references of the locked documents in
+ * memory. The locked documents are looked up with a query when the index is first used, and then the index is updated
+ * whenever a document is saved or deleted.
+ *
+ * @version $Id$
+ * @since 1.3M1
+ */
+@Component(roles = { PatientRecordLockIndex.class })
+@Singleton
+public class DefaultPatientRecordLockIndex implements PatientRecordLockIndex, Initializable, EventListener
+{
+    /** The XClass used for lock objects. */
+    private static final EntityReference LOCK_CLASS_REFERENCE = new EntityReference("PatientLock",
+        EntityType.DOCUMENT, Constants.CODE_SPACE_REFERENCE);
+
+    @Inject
+    private Logger logger;
+
+    /** Used for finding the documents already locked. */
+    @Inject
+    private QueryManager queryManager;
+
+    /** Resolves the document names returned by the query. */
+    @Inject
+    @Named("current")
+    private DocumentReferenceResolver<String> resolver;
+
+    /** Allows registering this object as an event listener, for keeping the index up to date. */
+    @Inject
+    private ObservationManager observationManager;
+
+    /** The references of the locked documents. */
+    private final Set<DocumentReference> locked =
+        Collections.newSetFromMap(new ConcurrentHashMap<DocumentReference, Boolean>());
+
+    /**
+     * The documents whose lock changed before the existing locks were looked up. These changes are newer than the
+     * results of a query running at the same time, so they take precedence over it. Also used for synchronizing the
+     * changes made while loading with the merge of the query results.
+     */
+    private final Set<DocumentReference> changedBeforeLoading = new HashSet<DocumentReference>();
+
+    /** Whether the existing locks were already looked up. */
+    private volatile boolean loaded;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.observationManager.addListener(this);
+    }
+
+    @Override
+    public boolean isLocked(DocumentReference document)
+    {
+        if (!this.loaded) {
+            load();
+        }
+        return this.locked.contains(document);
+    }
+
+    @Override
+    public void setLocked(DocumentReference document, boolean isLocked)
+    {
+        if (!this.loaded) {
+            synchronized (this.changedBeforeLoading) {
+                if (!this.loaded) {
+                    this.changedBeforeLoading.add(document);
+                }
+                update(document, isLocked);
+            }
+        } else {
+            update(document, isLocked);
+        }
+    }
+
+    @Override
+    public String getName()
+    {
+        return "patient-record-lock-index";
+    }
+
+    @Override
+    public List<Event> getEvents()
+    {
+        return Arrays.<Event>asList(new DocumentCreatedEvent(), new DocumentUpdatedEvent(), new DocumentDeletedEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        XWikiDocument doc = (XWikiDocument) source;
+        setLocked(doc.getDocumentReference(),
+            !(event instanceof DocumentDeletedEvent) && doc.getXObject(LOCK_CLASS_REFERENCE) != null);
+    }
+
+    private void update(DocumentReference document, boolean isLocked)
+    {
+        if (isLocked) {
+            this.locked.add(document);
+        } else {
+            this.locked.remove(document);
+        }
+    }
+
+    /**
+     * Looks up the documents that are already locked. Locks added or removed in the meantime, by events or by the lock
+     * manager, are newer than the query results, and are kept as they are. If the query fails, it will be tried again
+     * the next time the index is used.
+     */
+    private synchronized void load()
+    {
+        if (this.loaded) {
+            return;
+        }
+        try {
+            Query query = this.queryManager.createQuery("from doc.object(PhenoTips.PatientLock) as lock", Query.XWQL);
+            Set<DocumentReference> found = new HashSet<DocumentReference>();
+            for (Object name : query.execute()) {
+                found.add(this.resolver.resolve(String.valueOf(name)));
+            }
+            synchronized (this.changedBeforeLoading) {
+                found.removeAll(this.changedBeforeLoading);
+                this.locked.addAll(found);
+                this.changedBeforeLoading.clear();
+                this.loaded = true;
+            }
+        } catch (QueryException ex) {
+            this.logger.warn("Failed to look up the locked patient records: {}", ex.getMessage());
+        }
+    }
+}
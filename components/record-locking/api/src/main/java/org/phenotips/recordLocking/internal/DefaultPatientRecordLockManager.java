@@ -64,6 +64,10 @@ public class DefaultPatientRecordLockManager implements org.phenotips.recordLock
     @Named("manage")
     private AccessLevel manageAccessLevel;
 
+    /** Keeps track of the locked records for the authorization checks. */
+    @Inject
+    private PatientRecordLockIndex lockIndex;
+
     @Override
     public boolean lockPatientRecord(Patient patient)
     {
@@ -75,6 +79,7 @@ public boolean lockPatientRecord(Patient patient)
                 patientDocument.createXObject(this.lockClassReference, context);
                 xwiki.saveDocument(patientDocument, "Locked patient record", true,
                     context);
+                this.lockIndex.setLocked(patient.getDocument(), true);
                 return true;
             } else {
                 return false;
@@ -95,6 +100,7 @@ public boolean unlockPatientRecord(Patient patient)
                 patientDocument.removeXObjects(this.lockClassReference);
                 xwiki.saveDocument(patientDocument, "Unlocked patient record", true,
                     context);
+                this.lockIndex.setLocked(patient.getDocument(), false);
                 return true;
             } else {
                 return false;
@@ -0,0 +1,48 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.recordLocking.internal;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * Keeps track of the locked patient records, so that checking if a record is locked doesn't require loading the
+ * patient document.
+ *
+ * @version $Id$
+ * @since 1.3M1
+ */
+@Role
+public interface PatientRecordLockIndex
+{
+    /**
+     * Checks if the given document holds a locked patient record.
+     *
+     * @param document the document to check
+     * @return {@code true} if the document has a lock, {@code false} otherwise
+     */
+    boolean isLocked(DocumentReference document);
+
+    /**
+     * Records that a patient record was locked or unlocked.
+     *
+     * @param document the document holding the patient record
+     * @param locked {@code true} if the record is now locked, {@code false} if it was unlocked
+     */
+    void setLocked(DocumentReference document, boolean locked);
+}
@@ -0,0 +1,164 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.recordLocking.internal;
+
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.util.DefaultParameterizedType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link DefaultPatientRecordLockIndex}.
+ *
+ * @version $Id$
+ */
+public class DefaultPatientRecordLockIndexTest
+{
+    private static final DocumentReference LOCKED = new DocumentReference("xwiki", "data", "P0000001");
+
+    private static final DocumentReference UNLOCKED = new DocumentReference("xwiki", "data", "P0000002");
+
+    @Rule
+    public final MockitoComponentMockingRule<PatientRecordLockIndex> mocker =
+        new MockitoComponentMockingRule<PatientRecordLockIndex>(DefaultPatientRecordLockIndex.class);
+
+    private Query query;
+
+    @Before
+    public void setup() throws ComponentLookupException, QueryException
+    {
+        this.query = mock(Query.class);
+        QueryManager queryManager = this.mocker.getInstance(QueryManager.class);
+        when(queryManager.createQuery("from doc.object(PhenoTips.PatientLock) as lock", Query.XWQL))
+            .thenReturn(this.query);
+        when(this.query.execute()).thenReturn(Arrays.<Object>asList("data.P0000001"));
+        DocumentReferenceResolver<String> resolver = this.mocker.getInstance(
+            new DefaultParameterizedType(null, DocumentReferenceResolver.class, String.class), "current");
+        when(resolver.resolve("data.P0000001")).thenReturn(LOCKED);
+    }
+
+    @Test
+    public void existingLocksAreLoadedOnce() throws Exception
+    {
+        PatientRecordLockIndex index = this.mocker.getComponentUnderTest();
+
+        Assert.assertTrue(index.isLocked(LOCKED));
+        Assert.assertFalse(index.isLocked(UNLOCKED));
+        Mockito.verify(this.query).execute();
+    }
+
+    @Test
+    public void loadingIsRetriedAfterFailures() throws Exception
+    {
+        when(this.query.execute()).thenThrow(new QueryException("failed", this.query, null))
+            .thenReturn(Arrays.<Object>asList("data.P0000001"));
+        PatientRecordLockIndex index = this.mocker.getComponentUnderTest();
+
+        Assert.assertFalse(index.isLocked(LOCKED));
+        Assert.assertTrue(index.isLocked(LOCKED));
+        Assert.assertTrue(index.isLocked(LOCKED));
+        Mockito.verify(this.query, Mockito.times(2)).execute();
+    }
+
+    @Test
+    public void changesMadeWhileLoadingAreKept() throws Exception
+    {
+        final PatientRecordLockIndex index = this.mocker.getComponentUnderTest();
+        final XWikiDocument doc = mock(XWikiDocument.class);
+        when(doc.getDocumentReference()).thenReturn(LOCKED);
+        when(this.query.execute()).thenAnswer(new Answer<List<Object>>()
+        {
+            @Override
+            public List<Object> answer(InvocationOnMock invocation)
+            {
+                // The record is unlocked and another one is locked while the query runs, after it read the locks
+                ((EventListener) index).onEvent(new DocumentUpdatedEvent(), doc, null);
+                index.setLocked(UNLOCKED, true);
+                return Arrays.<Object>asList("data.P0000001");
+            }
+        });
+
+        Assert.assertFalse(index.isLocked(LOCKED));
+        Assert.assertTrue(index.isLocked(UNLOCKED));
+        Mockito.verify(this.query).execute();
+    }
+
+    @Test
+    public void setLockedUpdatesTheIndex() throws Exception
+    {
+        PatientRecordLockIndex index = this.mocker.getComponentUnderTest();
+
+        index.setLocked(UNLOCKED, true);
+        Assert.assertTrue(index.isLocked(UNLOCKED));
+        index.setLocked(LOCKED, false);
+        Assert.assertFalse(index.isLocked(LOCKED));
+    }
+
+    @Test
+    public void documentEventsUpdateTheIndex() throws Exception
+    {
+        PatientRecordLockIndex index = this.mocker.getComponentUnderTest();
+        EventListener listener = (EventListener) index;
+        Mockito.verify(this.mocker.<ObservationManager>getInstance(ObservationManager.class)).addListener(listener);
+        Assert.assertEquals(3, listener.getEvents().size());
+        Assert.assertNotNull(listener.getName());
+
+        XWikiDocument doc = mock(XWikiDocument.class);
+        when(doc.getDocumentReference()).thenReturn(UNLOCKED);
+        when(doc.getXObject(Matchers.any(EntityReference.class))).thenReturn(mock(BaseObject.class));
+        listener.onEvent(new DocumentCreatedEvent(), doc, null);
+        Assert.assertTrue(index.isLocked(UNLOCKED));
+
+        when(doc.getXObject(Matchers.any(EntityReference.class))).thenReturn(null);
+        listener.onEvent(new DocumentUpdatedEvent(), doc, null);
+        Assert.assertFalse(index.isLocked(UNLOCKED));
+
+        doc = mock(XWikiDocument.class);
+        when(doc.getDocumentReference()).thenReturn(LOCKED);
+        listener.onEvent(new DocumentDeletedEvent(), doc, null);
+        Assert.assertFalse(index.isLocked(LOCKED));
+    }
+}
@@ -86,6 +86,8 @@
     @Mock
     private PatientAccess patientAccess;
 
+    private PatientRecordLockIndex lockIndex;
+
     @Before
     public void setup() throws ComponentLookupException, XWikiException
     {
@@ -94,6 +96,7 @@ public void setup() throws ComponentLookupException, XWikiException
         // Mock injected components
         this.pm = this.mocker.getInstance(PermissionsManager.class);
         this.manageAccessLevel = this.mocker.getInstance(AccessLevel.class, "manage");
+        this.lockIndex = this.mocker.getInstance(PatientRecordLockIndex.class);
 
         // Provider is special and must be mocked differently
         ParameterizedType cpType = new DefaultParameterizedType(null, Provider.class, XWikiContext.class);
@@ -117,6 +120,7 @@ public void canLockPatient() throws ComponentLookupException
         Mockito.doReturn(true).when(this.patientAccess).hasAccessLevel(this.manageAccessLevel);
         PatientRecordLockManager mockedLockManager = this.mocker.getComponentUnderTest();
         Assert.assertTrue(mockedLockManager.lockPatientRecord(this.patient));
+        Mockito.verify(this.lockIndex).setLocked(this.patientDocumentReference, true);
     }
 
     @Test
@@ -126,6 +130,7 @@ public void wontLockWithoutManageAccess() throws ComponentLookupException
         Mockito.doReturn(false).when(this.patientAccess).hasAccessLevel(this.manageAccessLevel);
         PatientRecordLockManager mockedLockManager = this.mocker.getComponentUnderTest();
         Assert.assertFalse(mockedLockManager.lockPatientRecord(this.patient));
+        Mockito.verifyZeroInteractions(this.lockIndex);
     }
 
     @Test
@@ -153,6 +158,7 @@ public void canUnlockPatient() throws ComponentLookupException
         Mockito.doReturn(true).when(this.patientAccess).hasAccessLevel(this.manageAccessLevel);
         PatientRecordLockManager mockedLockManager = this.mocker.getComponentUnderTest();
         Assert.assertTrue(mockedLockManager.unlockPatientRecord(this.patient));
+        Mockito.verify(this.lockIndex).setLocked(this.patientDocumentReference, false);
     }
 
     @Test
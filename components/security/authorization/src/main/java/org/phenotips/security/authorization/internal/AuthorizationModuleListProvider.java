@@ -20,12 +20,19 @@
 import org.phenotips.security.authorization.AuthorizationModule;
 
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.event.ComponentDescriptorAddedEvent;
+import org.xwiki.component.event.ComponentDescriptorRemovedEvent;
 import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.observation.event.Event;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.LinkedList;
 import java.util.List;
 
 import javax.inject.Inject;
@@ -34,27 +41,71 @@
 import javax.inject.Singleton;
 
 /**
- * Provides an ordered list of authorization modules.
+ * Provides an ordered list of authorization modules. The list is looked up and sorted only once, and computed again
+ * when an authorization module is registered or unregistered.
  *
  * @version $Id$
  * @since 1.2RC1
  */
 @Component
 @Singleton
-public class AuthorizationModuleListProvider implements Provider<List<AuthorizationModule>>
+public class AuthorizationModuleListProvider implements Provider<List<AuthorizationModule>>, Initializable
 {
     @Inject
     @Named("wiki")
     private ComponentManager componentManager;
 
+    /** Used for finding out when the list of available modules changes. */
+    @Inject
+    private ObservationManager observationManager;
+
+    /** The sorted, unmodifiable list of modules, {@code null} if it must be looked up again. */
+    private volatile List<AuthorizationModule> modules;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.observationManager.addListener(new AbstractEventListener("authorization-module-list-updater",
+            new ComponentDescriptorAddedEvent(AuthorizationModule.class),
+            new ComponentDescriptorRemovedEvent(AuthorizationModule.class))
+        {
+            @Override
+            public void onEvent(Event event, Object source, Object data)
+            {
+                reset();
+            }
+        });
+    }
+
     @Override
     public List<AuthorizationModule> get()
+    {
+        List<AuthorizationModule> result = this.modules;
+        if (result == null) {
+            synchronized (this) {
+                result = this.modules;
+                if (result == null) {
+                    result = lookupModules();
+                    this.modules = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Forgets the current list of modules; it will be looked up again when next needed. */
+    private synchronized void reset()
+    {
+        this.modules = null;
+    }
+
+    private List<AuthorizationModule> lookupModules()
     {
         try {
-            List<AuthorizationModule> services = new LinkedList<>();
+            List<AuthorizationModule> services = new ArrayList<>();
             services.addAll(this.componentManager.<AuthorizationModule>getInstanceList(AuthorizationModule.class));
             Collections.sort(services, AuthorizationModuleComparator.INSTANCE);
-            return services;
+            return Collections.unmodifiableList(services);
         } catch (ComponentLookupException ex) {
             throw new RuntimeException("Failed to look up authorization modules", ex);
         }
@@ -0,0 +1,57 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.security.authorization.internal;
+
+import java.util.Map;
+
+/**
+ * Monitoring view of the authorization service, exposed through JMX.
+ *
+ * @version $Id$
+ * @since 1.3M1
+ */
+public interface AuthorizationStatisticsMXBean
+{
+    /**
+     * The number of times each authorization module granted access.
+     *
+     * @return the number of decisions, indexed by the class name of the module
+     */
+    Map<String, Long> getGrantedDecisions();
+
+    /**
+     * The number of times each authorization module denied access.
+     *
+     * @return the number of decisions, indexed by the class name of the module
+     */
+    Map<String, Long> getDeniedDecisions();
+
+    /**
+     * The number of times access was denied because no module could take a decision.
+     *
+     * @return a positive number
+     */
+    long getUndecided();
+
+    /**
+     * The number of checks answered from the decisions already taken during the same request.
+     *
+     * @return a positive number
+     */
+    long getCachedDecisions();
+}
@@ -20,30 +20,61 @@
 import org.phenotips.security.authorization.AuthorizationModule;
 import org.phenotips.security.authorization.AuthorizationService;
 
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.container.Container;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
 import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.observation.event.Event;
 import org.xwiki.security.authorization.Right;
 import org.xwiki.users.User;
 
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
 import javax.inject.Singleton;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.slf4j.Logger;
 
 /**
  * The default authorization service implementation, which queries all the individual {@link AuthorizationModule}s, in
- * descending order of priority, until one responds with a non-null decision.
+ * descending order of priority, until one responds with a non-null decision. Decisions are remembered until the end of
+ * the current request, or until the request modifies a document, since the same rights are usually checked several
+ * times while handling a request. Checks made outside of a request, for example by background threads, aren't
+ * remembered, and only a limited number of decisions is remembered for each request. The number of decisions taken by
+ * each module is exposed in JMX as {@code org.phenotips:type=AuthorizationService}.
  *
  * @version $Id$
  * @since 1.0M13
  */
 @Component
 @Singleton
-public class DefaultAuthorizationService implements AuthorizationService
+public class DefaultAuthorizationService implements AuthorizationService, Initializable, AuthorizationStatisticsMXBean
 {
+    /** The name of the execution context property holding the decisions taken during the current request. */
+    private static final String DECISIONS_KEY = "phenotips.authorization.decisions";
+
+    /** The maximum number of decisions remembered for a request. */
+    private static final int MAX_REQUEST_DECISIONS = 10000;
+
     /** Logging helper object. */
     @Inject
     private Logger logger;
@@ -52,13 +83,109 @@ public class DefaultAuthorizationService implements AuthorizationService
     @Inject
     private Provider<List<AuthorizationModule>> modules;
 
+    /** Provides access to the current request, where decisions are remembered. */
+    @Inject
+    private Execution execution;
+
+    /** Tells whether the current thread is handling a request. */
+    @Inject
+    private Container container;
+
+    /** Used for forgetting the decisions of the current request when it modifies documents. */
+    @Inject
+    private ObservationManager observationManager;
+
+    /** The number of access grants, indexed by the class name of the module that took the decision. */
+    private final ConcurrentMap<String, AtomicLong> granted = new ConcurrentHashMap<>();
+
+    /** The number of access denials, indexed by the class name of the module that took the decision. */
+    private final ConcurrentMap<String, AtomicLong> denied = new ConcurrentHashMap<>();
+
+    /** The number of checks where no module took a decision. */
+    private final AtomicLong undecided = new AtomicLong();
+
+    /** The number of checks answered from the decisions already taken during the request. */
+    private final AtomicLong cachedDecisions = new AtomicLong();
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.observationManager.addListener(new AbstractEventListener("authorization-decisions-cleaner",
+            new DocumentCreatedEvent(), new DocumentUpdatedEvent(), new DocumentDeletedEvent())
+        {
+            @Override
+            public void onEvent(Event event, Object source, Object data)
+            {
+                // Rights may depend on any document, for example a group or the patient record itself
+                Map<List<Object>, Boolean> decisions = getRequestDecisions(false);
+                if (decisions != null) {
+                    decisions.clear();
+                }
+            }
+        });
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName mbeanName = new ObjectName("org.phenotips:type=AuthorizationService");
+            if (server.isRegistered(mbeanName)) {
+                server.unregisterMBean(mbeanName);
+            }
+            server.registerMBean(this, mbeanName);
+        } catch (JMException ex) {
+            this.logger.debug("Failed to register the authorization statistics in JMX: {}", ex.getMessage());
+        }
+    }
+
     @Override
     public boolean hasAccess(User user, Right access, DocumentReference document)
+    {
+        Map<List<Object>, Boolean> decisions = getRequestDecisions(true);
+        if (decisions == null) {
+            return decide(user, access, document);
+        }
+        List<Object> key = Arrays.<Object>asList(user != null ? user.getId() : null, access, document);
+        Boolean decision = decisions.get(key);
+        if (decision != null) {
+            this.cachedDecisions.incrementAndGet();
+            return decision;
+        }
+        decision = decide(user, access, document);
+        if (decisions.size() < MAX_REQUEST_DECISIONS) {
+            decisions.put(key, decision);
+        }
+        return decision;
+    }
+
+    @Override
+    public Map<String, Long> getGrantedDecisions()
+    {
+        return snapshot(this.granted);
+    }
+
+    @Override
+    public Map<String, Long> getDeniedDecisions()
+    {
+        return snapshot(this.denied);
+    }
+
+    @Override
+    public long getUndecided()
+    {
+        return this.undecided.get();
+    }
+
+    @Override
+    public long getCachedDecisions()
+    {
+        return this.cachedDecisions.get();
+    }
+
+    private boolean decide(User user, Right access, DocumentReference document)
     {
         for (AuthorizationModule service : this.modules.get()) {
             try {
                 Boolean decision = service.hasAccess(user, access, document);
                 if (decision != null) {
+                    count(decision ? this.granted : this.denied, service.getClass().getName());
                     return decision;
                 }
             } catch (Exception ex) {
@@ -68,6 +195,53 @@ public boolean hasAccess(User user, Right access, DocumentReference document)
             }
         }
 
+        this.undecided.incrementAndGet();
         return false;
     }
+
+    /**
+     * Returns the decisions taken during the current request.
+     *
+     * @param create whether to create the map if no decision was taken yet; the map is only created if the current
+     *            thread is handling a request, since other execution contexts, for example those of background
+     *            threads, may live for a long time and wouldn't see the document changes made by other threads
+     * @return a modifiable map, or {@code null} if there's no request being handled, or no map and {@code create} is
+     *         {@code false}
+     */
+    @SuppressWarnings("unchecked")
+    private Map<List<Object>, Boolean> getRequestDecisions(boolean create)
+    {
+        ExecutionContext context = this.execution.getContext();
+        if (context == null) {
+            return null;
+        }
+        Map<List<Object>, Boolean> decisions = (Map<List<Object>, Boolean>) context.getProperty(DECISIONS_KEY);
+        if (decisions == null && create && this.container.getRequest() != null) {
+            decisions = new ConcurrentHashMap<>();
+            context.setProperty(DECISIONS_KEY, decisions);
+        }
+        return decisions;
+    }
+
+    private void count(ConcurrentMap<String, AtomicLong> counters, String module)
+    {
+        AtomicLong counter = counters.get(module);
+        if (counter == null) {
+            AtomicLong newCounter = new AtomicLong();
+            counter = counters.putIfAbsent(module, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        counter.incrementAndGet();
+    }
+
+    private Map<String, Long> snapshot(Map<String, AtomicLong> counters)
+    {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> counter : counters.entrySet()) {
+            result.put(counter.getKey(), counter.getValue().get());
+        }
+        return result;
+    }
 }
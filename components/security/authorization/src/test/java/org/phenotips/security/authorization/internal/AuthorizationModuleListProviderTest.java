@@ -21,12 +21,18 @@
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
+import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 import org.phenotips.security.authorization.AuthorizationModule;
+import org.xwiki.component.event.ComponentDescriptorAddedEvent;
+import org.xwiki.component.event.ComponentDescriptorRemovedEvent;
 import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.component.manager.ComponentManager;
 import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.ObservationManager;
 import org.xwiki.security.authorization.Right;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 import org.xwiki.users.User;
@@ -109,6 +115,38 @@ public void modulesWithSamePriorityGetSortedByName() throws Exception
         Assert.assertThat(actualList, is(expectedList));
     }
 
+    @Test
+    public void modulesAreLookedUpOnlyOnce() throws Exception
+    {
+        this.moduleList.add(this.lowPriorityModule);
+
+        List<AuthorizationModule> first = this.mocker.getComponentUnderTest().get();
+        List<AuthorizationModule> second = this.mocker.getComponentUnderTest().get();
+
+        Assert.assertSame(first, second);
+        Mockito.verify(this.componentManager).getInstanceList(AuthorizationModule.class);
+    }
+
+    @Test
+    public void modulesAreLookedUpAgainWhenModulesChange() throws Exception
+    {
+        this.moduleList.add(this.lowPriorityModule);
+        Assert.assertThat(this.mocker.getComponentUnderTest().get(), is(Arrays.asList(this.lowPriorityModule)));
+
+        ArgumentCaptor<EventListener> listener = ArgumentCaptor.forClass(EventListener.class);
+        Mockito.verify(this.mocker.getInstance(ObservationManager.class)).addListener(listener.capture());
+
+        this.moduleList.add(this.highPriorityModule);
+        listener.getValue().onEvent(new ComponentDescriptorAddedEvent(AuthorizationModule.class), null, null);
+        Assert.assertThat(this.mocker.getComponentUnderTest().get(),
+            is(Arrays.asList(this.highPriorityModule, this.lowPriorityModule)));
+
+        this.moduleList.remove(this.lowPriorityModule);
+        listener.getValue().onEvent(new ComponentDescriptorRemovedEvent(AuthorizationModule.class), null, null);
+        Assert.assertThat(this.mocker.getComponentUnderTest().get(), is(Arrays.asList(this.highPriorityModule)));
+        Mockito.verify(this.componentManager, Mockito.times(3)).getInstanceList(AuthorizationModule.class);
+    }
+
     @Test(expected = RuntimeException.class)
     public void componentLookupExceptionIsCaughtAndRuntimeExceptionIsThrown() throws ComponentLookupException
     {
@@ -21,9 +21,16 @@
 import org.phenotips.security.authorization.AuthorizationModule;
 import org.phenotips.security.authorization.AuthorizationService;
 
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
 import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.container.Container;
+import org.xwiki.container.Request;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
 import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.ObservationManager;
 import org.xwiki.security.authorization.Right;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 import org.xwiki.users.User;
@@ -37,6 +44,7 @@
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
@@ -44,7 +52,10 @@
 import javax.inject.Provider;
 
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 
@@ -181,6 +192,105 @@ public void exceptionsInModulesAreIgnored() throws Exception
         Assert.assertTrue(this.mocker.getComponentUnderTest().hasAccess(this.user, this.access, this.document));
     }
 
+    @Test
+    public void decisionsAreRememberedDuringTheRequest() throws Exception
+    {
+        when(this.mocker.<Execution>getInstance(Execution.class).getContext()).thenReturn(new ExecutionContext());
+        when(this.mocker.<Container>getInstance(Container.class).getRequest()).thenReturn(mock(Request.class));
+        this.moduleList = Collections.singletonList(this.moduleOne);
+        doReturn(this.moduleList).when(this.modules).get();
+        when(this.moduleOne.hasAccess(this.user, this.access, this.document)).thenReturn(true);
+        DocumentReference otherDocument = new DocumentReference("xwiki", "data", "P0000002");
+
+        AuthorizationService service = this.mocker.getComponentUnderTest();
+        Assert.assertTrue(service.hasAccess(this.user, this.access, this.document));
+        Assert.assertTrue(service.hasAccess(this.user, this.access, this.document));
+        Assert.assertFalse(service.hasAccess(this.user, this.access, otherDocument));
+
+        verify(this.moduleOne).hasAccess(this.user, this.access, this.document);
+        verify(this.moduleOne).hasAccess(this.user, this.access, otherDocument);
+        Assert.assertEquals(1, ((AuthorizationStatisticsMXBean) service).getCachedDecisions());
+    }
+
+    @Test
+    public void documentChangesClearTheRequestDecisions() throws Exception
+    {
+        when(this.mocker.<Execution>getInstance(Execution.class).getContext()).thenReturn(new ExecutionContext());
+        when(this.mocker.<Container>getInstance(Container.class).getRequest()).thenReturn(mock(Request.class));
+        this.moduleList = Collections.singletonList(this.moduleOne);
+        doReturn(this.moduleList).when(this.modules).get();
+        when(this.moduleOne.hasAccess(this.user, this.access, this.document)).thenReturn(true);
+        AuthorizationService service = this.mocker.getComponentUnderTest();
+        Assert.assertTrue(service.hasAccess(this.user, this.access, this.document));
+
+        ArgumentCaptor<EventListener> listener = ArgumentCaptor.forClass(EventListener.class);
+        verify(this.mocker.<ObservationManager>getInstance(ObservationManager.class)).addListener(listener.capture());
+        listener.getValue().onEvent(new DocumentUpdatedEvent(), null, null);
+        when(this.moduleOne.hasAccess(this.user, this.access, this.document)).thenReturn(false);
+
+        Assert.assertFalse(service.hasAccess(this.user, this.access, this.document));
+        verify(this.moduleOne, times(2)).hasAccess(this.user, this.access, this.document);
+    }
+
+    @Test
+    public void decisionsAreNotRememberedOutsideOfRequests() throws Exception
+    {
+        when(this.mocker.<Execution>getInstance(Execution.class).getContext()).thenReturn(new ExecutionContext());
+        this.moduleList = Collections.singletonList(this.moduleOne);
+        doReturn(this.moduleList).when(this.modules).get();
+        when(this.moduleOne.hasAccess(this.user, this.access, this.document)).thenReturn(true);
+
+        AuthorizationService service = this.mocker.getComponentUnderTest();
+        Assert.assertTrue(service.hasAccess(this.user, this.access, this.document));
+        Assert.assertTrue(service.hasAccess(this.user, this.access, this.document));
+
+        verify(this.moduleOne, times(2)).hasAccess(this.user, this.access, this.document);
+        Assert.assertEquals(0, ((AuthorizationStatisticsMXBean) service).getCachedDecisions());
+    }
+
+    @Test
+    public void theNumberOfRememberedDecisionsIsLimited() throws Exception
+    {
+        when(this.mocker.<Execution>getInstance(Execution.class).getContext()).thenReturn(new ExecutionContext());
+        when(this.mocker.<Container>getInstance(Container.class).getRequest()).thenReturn(mock(Request.class));
+        this.moduleList = Collections.singletonList(this.moduleOne);
+        doReturn(this.moduleList).when(this.modules).get();
+
+        AuthorizationService service = this.mocker.getComponentUnderTest();
+        for (int i = 0; i < 10000; ++i) {
+            service.hasAccess(this.user, this.access, new DocumentReference("xwiki", "data", "P" + i));
+        }
+        service.hasAccess(this.user, this.access, this.document);
+        service.hasAccess(this.user, this.access, this.document);
+        service.hasAccess(this.user, this.access, new DocumentReference("xwiki", "data", "P0"));
+
+        verify(this.moduleOne, times(2)).hasAccess(this.user, this.access, this.document);
+        Assert.assertEquals(1, ((AuthorizationStatisticsMXBean) service).getCachedDecisions());
+    }
+
+    @Test
+    public void decisionsAreCountedPerModule() throws Exception
+    {
+        this.moduleList = Arrays.asList(this.moduleOne, this.moduleTwo);
+        doReturn(this.moduleList).when(this.modules).get();
+        AuthorizationService service = this.mocker.getComponentUnderTest();
+        AuthorizationStatisticsMXBean statistics = (AuthorizationStatisticsMXBean) service;
+        String moduleName = this.moduleTwo.getClass().getName();
+
+        when(this.moduleTwo.hasAccess(this.user, this.access, this.document)).thenReturn(true);
+        service.hasAccess(this.user, this.access, this.document);
+        service.hasAccess(this.user, this.access, this.document);
+        when(this.moduleTwo.hasAccess(this.user, this.access, this.document)).thenReturn(false);
+        service.hasAccess(this.user, this.access, this.document);
+        when(this.moduleTwo.hasAccess(this.user, this.access, this.document)).thenReturn(null);
+        service.hasAccess(this.user, this.access, this.document);
+
+        Assert.assertEquals(Collections.singletonMap(moduleName, 2L), statistics.getGrantedDecisions());
+        Assert.assertEquals(Collections.singletonMap(moduleName, 1L), statistics.getDeniedDecisions());
+        Assert.assertEquals(1, statistics.getUndecided());
+        Assert.assertEquals(0, statistics.getCachedDecisions());
+    }
+
     private void resetMocks()
     {
         Mockito.reset(this.moduleOne, this.moduleTwo, this.moduleThree);
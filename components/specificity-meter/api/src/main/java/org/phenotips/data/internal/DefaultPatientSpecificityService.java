@@ -30,7 +30,9 @@
 
 /**
  * Default specificity computation, using the MONARCH initiative service, and, if that isn't available, falling back to
- * a local information content score.
+ * a local information content score. The MONARCH scorer never waits for the remote service, it only returns scores
+ * that are already known and requests the others in the background, so computing the specificity of a patient is
+ * always fast; until the MONARCH score becomes available, the local score is used.
  *
  * @version $Id$
  * @since 1.0M12
@@ -39,7 +41,7 @@
 @Singleton
 public class DefaultPatientSpecificityService implements PatientSpecificityService
 {
-    /** The default, high quality scorer. */
+    /** The default, high quality scorer, only returns scores that were already computed. */
     @Inject
     @Named("monarch")
     private PatientScorer monarchScorer;
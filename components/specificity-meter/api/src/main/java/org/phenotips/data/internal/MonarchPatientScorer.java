@@ -28,17 +28,39 @@
 import org.xwiki.cache.config.CacheConfiguration;
 import org.xwiki.cache.config.LRUCacheConfiguration;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
 import org.xwiki.component.phase.Initializable;
 import org.xwiki.component.phase.InitializationException;
 import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.environment.Environment;
+import org.xwiki.model.reference.DocumentReference;
 
+import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
+import java.io.Writer;
 import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -61,6 +83,13 @@
 
 /**
  * Patient scorer that uses the remote service offered by the MONARCH initiative.
+ * <p>
+ * The remote service is never queried while computing a score: known scores are returned right away, even if they are
+ * a bit old, while missing or old scores are requested in the background, and will be available the next time they are
+ * needed. Until then, this scorer reports that the score isn't available, so that callers can fall back to a local
+ * scorer. If the remote service fails repeatedly, no more requests are sent for a while. Computed scores are also
+ * stored in the permanent directory, so that they survive restarts.
+ * </p>
  *
  * @version $Id$
  * @since 1.0M12
@@ -68,10 +97,29 @@
 @Component
 @Named("monarch")
 @Singleton
-public class MonarchPatientScorer implements PatientScorer, Initializable
+public class MonarchPatientScorer implements PatientScorer, Initializable, Disposable
 {
     private static final String SCORER_NAME = "monarchinitiative.org";
 
+    private static final String SETTINGS_PREFIX = "phenotips.patientScoring.monarch.";
+
+    /** How many scores are kept, both in memory and in the permanent storage. */
+    private static final int MAX_SCORES = 10000;
+
+    /** Scores older than this are still used, but a new score is requested. */
+    private static final long REFRESH_AFTER = TimeUnit.HOURS.toMillis(1);
+
+    /** How many requests can wait for a free connection; if more scores are needed, they will be requested later. */
+    private static final int MAX_PENDING_REQUESTS = 256;
+
+    /** After this many consecutive failures, the remote service is considered unavailable. */
+    private static final int FAILURE_THRESHOLD = 5;
+
+    /** For how long no requests are sent once the remote service is considered unavailable. */
+    private static final long RETRY_AFTER = TimeUnit.MINUTES.toMillis(1);
+
+    private static final char STORAGE_SEPARATOR = '\t';
+
     @Inject
     private Logger logger;
 
@@ -79,8 +127,13 @@ public class MonarchPatientScorer implements PatientScorer, Initializable
     @Named("xwikiproperties")
     private ConfigurationSource configuration;
 
+    @Inject
+    private Environment environment;
+
     private String scorerURL;
 
+    private RequestConfig requestConfig;
+
     /** The HTTP client used for contacting the MONARCH server. */
     private CloseableHttpClient client = HttpClients.createSystem();
 
@@ -89,17 +142,68 @@ public class MonarchPatientScorer implements PatientScorer, Initializable
 
     private Cache<PatientSpecificity> cache;
 
+    /** Sends the requests to the MONARCH server, with a limited number of concurrent requests. */
+    private ExecutorService requestExecutor;
+
+    /** The cache keys for which a request is already waiting or running. */
+    private final Set<String> pendingRequests = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+    /** No requests are sent before this moment, in milliseconds since the epoch. */
+    private volatile long suspendedUntil;
+
+    /** Where the computed scores are stored, {@code null} if there's no permanent directory. */
+    private File storage;
+
+    /** How many lines the storage currently has, including replaced scores. */
+    private int storedLines;
+
+    /** How many lines the storage had after it was last compacted. */
+    private int compactedLines;
+
     @Override
     public void initialize() throws InitializationException
     {
         try {
             this.scorerURL = this.configuration
-                .getProperty("phenotips.patientScoring.monarch.serviceURL", "http://monarchinitiative.org/score");
-            CacheConfiguration config = new LRUCacheConfiguration("monarchSpecificityScore", 2048, 3600);
+                .getProperty(SETTINGS_PREFIX + "serviceURL", "http://monarchinitiative.org/score");
+            int timeout = getSetting("timeout", 2000);
+            this.requestConfig = RequestConfig.custom().setConnectTimeout(timeout)
+                .setConnectionRequestTimeout(timeout).setSocketTimeout(timeout).build();
+            CacheConfiguration config = new LRUCacheConfiguration("monarchSpecificityScore", MAX_SCORES);
             this.cache = this.cacheManager.createNewCache(config);
         } catch (CacheException ex) {
             throw new InitializationException("Failed to create cache", ex);
         }
+
+        int maxRequests = getSetting("maxConcurrentRequests", 4);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(maxRequests, maxRequests, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(MAX_PENDING_REQUESTS), new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "MONARCH specificity scorer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        executor.allowCoreThreadTimeOut(true);
+        this.requestExecutor = executor;
+
+        File permanentDirectory = this.environment.getPermanentDirectory();
+        if (permanentDirectory != null) {
+            this.storage = new File(permanentDirectory, "specificity/monarch.scores");
+            loadStoredScores();
+        }
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        this.requestExecutor.shutdownNow();
+        IOUtils.closeQuietly(this.client);
     }
 
     @Override
@@ -107,12 +211,13 @@ public PatientSpecificity getSpecificity(Patient patient)
     {
         String key = getCacheKey(patient);
         PatientSpecificity result = this.cache.get(key);
-        if (result == null) {
-            double score = getScore(patient);
-            if (score != -1.0) {
-                // getScore populates the cache
-                result = this.cache.get(key);
+        if (patient.getFeatures().isEmpty()) {
+            if (result == null) {
+                result = new PatientSpecificity(0, now(), SCORER_NAME);
+                this.cache.set(key, result);
             }
+        } else if (result == null || isOutdated(result)) {
+            requestScore(key, patient);
         }
         return result;
     }
@@ -120,45 +225,76 @@ public PatientSpecificity getSpecificity(Patient patient)
     @Override
     public double getScore(Patient patient)
     {
-        String key = getCacheKey(patient);
-        PatientSpecificity specificity = this.cache.get(key);
-        if (specificity != null) {
-            return specificity.getScore();
-        }
-        if (patient.getFeatures().isEmpty()) {
-            this.cache.set(key, new PatientSpecificity(0, now(), SCORER_NAME));
-            return 0;
+        PatientSpecificity specificity = getSpecificity(patient);
+        return specificity == null ? -1 : specificity.getScore();
+    }
+
+    private boolean isOutdated(PatientSpecificity specificity)
+    {
+        Date computed = specificity.getComputationDate();
+        return computed == null || System.currentTimeMillis() - computed.getTime() > REFRESH_AFTER;
+    }
+
+    /**
+     * Schedule a request for the score of a patient, unless the remote service is currently unavailable, or the same
+     * score is already being requested.
+     *
+     * @param key the cache key of the patient's features
+     * @param patient the patient to score
+     */
+    private void requestScore(final String key, Patient patient)
+    {
+        if (System.currentTimeMillis() < this.suspendedUntil || !this.pendingRequests.add(key)) {
+            return;
         }
-        CloseableHttpResponse response = null;
+        final String data = getRequestData(patient);
+        final DocumentReference document = patient.getDocument();
         try {
-            JSONObject data = new JSONObject();
-            JSONArray features = new JSONArray();
-            for (Feature f : patient.getFeatures()) {
-                if (StringUtils.isNotEmpty(f.getId())) {
-                    JSONObject featureObj = new JSONObject(Collections.singletonMap("id", f.getId()));
-                    if (!f.isPresent()) {
-                        featureObj.put("isPresent", false);
+            this.requestExecutor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try {
+                        fetchScore(key, data, document);
+                    } finally {
+                        MonarchPatientScorer.this.pendingRequests.remove(key);
                     }
-                    features.put(featureObj);
                 }
-            }
-            data.put("features", features);
+            });
+        } catch (RejectedExecutionException ex) {
+            // Too many pending requests, the score will be requested again the next time it is needed
+            this.pendingRequests.remove(key);
+        }
+    }
 
+    private void fetchScore(String key, String data, DocumentReference document)
+    {
+        if (System.currentTimeMillis() < this.suspendedUntil) {
+            // The server failed since this request was queued, don't wait for it; the pending key is dropped by the
+            // caller, so the score will be requested again once the pause is over
+            return;
+        }
+        CloseableHttpResponse response = null;
+        try {
             HttpPost method = new HttpPost(this.scorerURL);
-            method.setEntity(new StringEntity("annotation_profile=" + URLEncoder.encode(data.toString(), "UTF-8"),
+            method.setEntity(new StringEntity("annotation_profile=" + URLEncoder.encode(data, "UTF-8"),
                 ContentType.create("application/x-www-form-urlencoded", Consts.UTF_8)));
-
-            RequestConfig config = RequestConfig.custom().setSocketTimeout(2000).build();
-            method.setConfig(config);
+            method.setConfig(this.requestConfig);
             response = this.client.execute(method);
             JSONObject score = new JSONObject(IOUtils.toString(response.getEntity().getContent()));
-            specificity = new PatientSpecificity(score.getDouble("scaled_score"), now(), SCORER_NAME);
+            PatientSpecificity specificity =
+                new PatientSpecificity(score.getDouble("scaled_score"), now(), SCORER_NAME);
             this.cache.set(key, specificity);
-            return specificity.getScore();
+            this.consecutiveFailures.set(0);
+            storeScore(key, specificity);
         } catch (Exception ex) {
-            // Just return failure below
             this.logger.error("Failed to compute specificity score for patient [{}] using the monarch server [{}]: {}",
-                patient.getDocument(), this.scorerURL, ex.getMessage());
+                document, this.scorerURL, ex.getMessage());
+            if (this.consecutiveFailures.incrementAndGet() >= FAILURE_THRESHOLD) {
+                // Also reached when the first request after a pause fails, which starts a new pause
+                this.suspendedUntil = System.currentTimeMillis() + RETRY_AFTER;
+            }
         } finally {
             if (response != null) {
                 try {
@@ -169,7 +305,172 @@ public double getScore(Patient patient)
                 }
             }
         }
-        return -1;
+    }
+
+    private String getRequestData(Patient patient)
+    {
+        JSONObject data = new JSONObject();
+        JSONArray features = new JSONArray();
+        for (Feature f : patient.getFeatures()) {
+            if (StringUtils.isNotEmpty(f.getId())) {
+                JSONObject featureObj = new JSONObject(Collections.singletonMap("id", f.getId()));
+                if (!f.isPresent()) {
+                    featureObj.put("isPresent", false);
+                }
+                features.put(featureObj);
+            }
+        }
+        data.put("features", features);
+        return data.toString();
+    }
+
+    /**
+     * Load the scores stored by previous runs into the cache, and rewrite the storage without the scores that were
+     * later replaced by a newer score. If the storage can't be read, the scores read so far are used, but the storage
+     * isn't rewritten, so that the other scores aren't lost.
+     */
+    private void loadStoredScores()
+    {
+        Map<String, PatientSpecificity> scores = newScoreMap();
+        boolean complete = readStoredScores(scores);
+        for (Map.Entry<String, PatientSpecificity> score : scores.entrySet()) {
+            this.cache.set(score.getKey(), score.getValue());
+        }
+        if (complete) {
+            writeStoredScores(scores);
+        }
+    }
+
+    private synchronized void storeScore(String key, PatientSpecificity specificity)
+    {
+        if (this.storage == null) {
+            return;
+        }
+        try (Writer out = Files.newBufferedWriter(this.storage.toPath(), StandardCharsets.UTF_8,
+            StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            writeScore(out, key, specificity);
+        } catch (IOException ex) {
+            this.logger.warn("Failed to store the MONARCH score in [{}]: {}", this.storage, ex.getMessage());
+            return;
+        }
+        // Compacting again only once the storage doubled keeps the cost of compacting low for each stored score
+        if (++this.storedLines > Math.max(MAX_SCORES, 2 * this.compactedLines)) {
+            Map<String, PatientSpecificity> scores = newScoreMap();
+            if (readStoredScores(scores)) {
+                writeStoredScores(scores);
+            } else {
+                this.compactedLines = this.storedLines;
+            }
+        }
+    }
+
+    /**
+     * Read the stored scores, keeping only the newest score for each key. Invalid lines, for example a line left
+     * incomplete by a crash, are skipped.
+     *
+     * @param scores where to put the scores read
+     * @return {@code true} if the whole storage was read, {@code false} if reading it failed
+     */
+    private boolean readStoredScores(Map<String, PatientSpecificity> scores)
+    {
+        if (!this.storage.isFile()) {
+            return true;
+        }
+        int lines = 0;
+        int invalid = 0;
+        try (BufferedReader in = Files.newBufferedReader(this.storage.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                ++lines;
+                String[] fields = StringUtils.split(line, STORAGE_SEPARATOR);
+                PatientSpecificity score = parseScore(fields);
+                if (score == null) {
+                    ++invalid;
+                } else {
+                    // Re-insert, so that the newest scores are the last ones to be evicted
+                    scores.remove(fields[0]);
+                    scores.put(fields[0], score);
+                }
+            }
+        } catch (IOException ex) {
+            this.logger.warn("Failed to read the stored MONARCH scores from [{}]: {}", this.storage,
+                ex.getMessage());
+            return false;
+        }
+        if (invalid > 0) {
+            this.logger.warn("Skipped {} invalid lines in the stored MONARCH scores from [{}]", invalid,
+                this.storage);
+        }
+        this.storedLines = lines;
+        return true;
+    }
+
+    private PatientSpecificity parseScore(String[] fields)
+    {
+        if (fields.length != 3) {
+            return null;
+        }
+        try {
+            return new PatientSpecificity(Double.parseDouble(fields[1]), new Date(Long.parseLong(fields[2])),
+                SCORER_NAME);
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Replace the storage with the given scores.
+     *
+     * @param scores the scores to store
+     */
+    private void writeStoredScores(Map<String, PatientSpecificity> scores)
+    {
+        File temp = new File(this.storage.getParentFile(), this.storage.getName() + ".tmp");
+        try {
+            Files.createDirectories(this.storage.getParentFile().toPath());
+            try (Writer out = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, PatientSpecificity> score : scores.entrySet()) {
+                    writeScore(out, score.getKey(), score.getValue());
+                }
+            }
+            Files.move(temp.toPath(), this.storage.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            this.storedLines = scores.size();
+            this.compactedLines = scores.size();
+        } catch (IOException ex) {
+            this.logger.warn("Failed to store the MONARCH scores in [{}]: {}", this.storage, ex.getMessage());
+            this.compactedLines = this.storedLines;
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /**
+     * @return an empty map of scores, holding at most {@link #MAX_SCORES} scores, evicting the oldest ones first
+     */
+    private Map<String, PatientSpecificity> newScoreMap()
+    {
+        return new LinkedHashMap<String, PatientSpecificity>()
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PatientSpecificity> eldest)
+            {
+                return size() > MAX_SCORES;
+            }
+        };
+    }
+
+    private void writeScore(Writer out, String key, PatientSpecificity specificity) throws IOException
+    {
+        out.append(key).append(STORAGE_SEPARATOR).append(String.valueOf(specificity.getScore()))
+            .append(STORAGE_SEPARATOR).append(String.valueOf(specificity.getComputationDate().getTime())).append('\n');
+    }
+
+    private int getSetting(String name, int defaultValue)
+    {
+        Integer value = this.configuration.getProperty(SETTINGS_PREFIX + name, Integer.class);
+        return (value == null || value <= 0) ? defaultValue : value;
     }
 
     private String getCacheKey(Patient patient)
@@ -25,13 +25,16 @@
 import org.phenotips.vocabulary.VocabularyTerm;
 
 import org.xwiki.component.annotation.Component;
-import org.xwiki.component.phase.Initializable;
-import org.xwiki.component.phase.InitializationException;
 
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
 
@@ -42,6 +45,7 @@
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
+import org.slf4j.Logger;
 
 /**
  * Patient scorer that computes a local score based on the information content provided by the selected positive and
@@ -53,10 +57,22 @@
 @Component
 @Named("omimInformationContent")
 @Singleton
-public class OmimInformationContentPatientScorer implements PatientScorer, Initializable
+public class OmimInformationContentPatientScorer implements PatientScorer
 {
     private static final String SEARCH_FOR = "symptom";
 
+    /** The root of the HPO phenotypic abnormalities, present in all the annotated OMIM diseases. */
+    private static final String ROOT_TERM = "HP:0000001";
+
+    /** How many OMIM diseases are fetched at once when building the information content table. */
+    private static final int PAGE_SIZE = 1000;
+
+    /** How often to check, in milliseconds, if OMIM was reindexed and the information content must be recomputed. */
+    private static final long VERSION_CHECK_INTERVAL = 60000;
+
+    @Inject
+    private Logger logger;
+
     /** Provides access to the OMIM ontology, where the information content is checked. */
     @Inject
     @Named("omim")
@@ -67,14 +83,11 @@ public class OmimInformationContentPatientScorer implements PatientScorer, Initi
     @Named("hpo")
     private Vocabulary hpo;
 
-    /** The total information present in OMIM that is reachable through phenotypes. */
-    private double totalTerms;
+    /** The information content of each phenotype, computed once from the OMIM index; {@code null} until computed. */
+    private volatile InformationContentTable table;
 
-    @Override
-    public void initialize() throws InitializationException
-    {
-        this.totalTerms = this.omim.count(Collections.singletonMap(SEARCH_FOR, "HP:0000001"));
-    }
+    /** When the OMIM version was last checked. */
+    private volatile long lastVersionCheck;
 
     @Override
     public PatientSpecificity getSpecificity(Patient patient)
@@ -86,8 +99,12 @@ public PatientSpecificity getSpecificity(Patient patient)
     @Override
     public double getScore(Patient patient)
     {
-        Pair<Double, Integer> symptomsScore = process(patient, true);
-        Pair<Double, Integer> negativeSymptomsScore = process(patient, false);
+        InformationContentTable informationContent = getTable();
+        if (informationContent == null) {
+            return 0;
+        }
+        Pair<Double, Integer> symptomsScore = process(patient, true, informationContent);
+        Pair<Double, Integer> negativeSymptomsScore = process(patient, false, informationContent);
         double score = 0;
 
         if (symptomsScore.getRight() + negativeSymptomsScore.getRight() > 0) {
@@ -102,15 +119,17 @@ public double getScore(Patient patient)
      * @param p the patient profile to score
      * @param presentFeatures whether the score for positive ({@code true}) or negative ({@code false}) features is
      *            computed
+     * @param informationContent the information content of each phenotype
      * @return the score (information content) and the number of features
      */
-    private Pair<Double, Integer> process(Patient p, boolean presentFeatures)
+    private Pair<Double, Integer> process(Patient p, boolean presentFeatures,
+        InformationContentTable informationContent)
     {
         double score = 0;
         int count = 0;
         for (Feature f : p.getFeatures()) {
             if (StringUtils.isNotEmpty(f.getId()) && f.isPresent() == presentFeatures) {
-                score += informationContent(f);
+                score += informationContent(f, informationContent);
                 count++;
             }
         }
@@ -123,12 +142,13 @@ private Pair<Double, Integer> process(Patient p, boolean presentFeatures)
      * nearest represented ancestor is considered, with a slight boost for even more specificity.
      *
      * @param f the target feature to measure
+     * @param informationContent the information content of each phenotype
      * @return the information content captured by this term
      */
-    private double informationContent(Feature f)
+    private double informationContent(Feature f, InformationContentTable informationContent)
     {
         String toSearch = f.getId();
-        double ic = informationContent(this.omim.count(Collections.singletonMap(SEARCH_FOR, toSearch)));
+        double ic = informationContent.get(toSearch);
         int i = 0;
 
         while (ic == 0 && ++i < 5) {
@@ -141,24 +161,149 @@ private double informationContent(Feature f)
                 break;
             }
             toSearch = parents.iterator().next().getId();
-            ic = informationContent(this.omim.count(Collections.singletonMap(SEARCH_FOR, toSearch)));
+            ic = informationContent.get(toSearch);
         }
         return ic * (1 + i / 5);
     }
 
     /**
-     * How much information is contained in {@code n} terms out of the whole ontology?
+     * Get the information content table, building it if this is the first time it is needed, or if OMIM was reindexed
+     * since it was built. If building a new table fails, the previous table is kept, and building is tried again at
+     * the next version check.
      *
-     * @param n the number of selected terms
-     * @return the information content captured by the selected terms
+     * @return the current information content table, or {@code null} if it couldn't be built yet
      */
-    private double informationContent(long n)
+    private InformationContentTable getTable()
+    {
+        InformationContentTable current = this.table;
+        if (current != null && System.currentTimeMillis() - this.lastVersionCheck < VERSION_CHECK_INTERVAL) {
+            return current;
+        }
+        synchronized (this) {
+            current = this.table;
+            if (current == null || System.currentTimeMillis() - this.lastVersionCheck >= VERSION_CHECK_INTERVAL) {
+                String version = this.omim.getVersion();
+                if (current == null || !StringUtils.equals(version, current.version)) {
+                    InformationContentTable rebuilt = buildTable(version);
+                    if (rebuilt != null) {
+                        current = rebuilt;
+                        this.table = current;
+                    }
+                }
+                this.lastVersionCheck = System.currentTimeMillis();
+            }
+            return current;
+        }
+    }
+
+    /**
+     * Count how many OMIM diseases are selected by each phenotype, going once through all the annotated diseases
+     * instead of counting the diseases of each phenotype separately.
+     *
+     * @param version the current version of the OMIM index
+     * @return the information content table, or {@code null} if querying the OMIM index failed
+     */
+    private InformationContentTable buildTable(String version)
+    {
+        Map<String, Integer> counts = new HashMap<>();
+        Map<String, String> options = new HashMap<>();
+        options.put("fl", "id," + SEARCH_FOR);
+        options.put("sort", "id asc");
+        options.put("rows", String.valueOf(PAGE_SIZE));
+        options.put("spellcheck", Boolean.toString(false));
+        for (int start = 0;; start += PAGE_SIZE) {
+            options.put("start", String.valueOf(start));
+            List<VocabularyTerm> diseases;
+            try {
+                diseases = this.omim.search(Collections.singletonMap(SEARCH_FOR, ROOT_TERM), options);
+            } catch (RuntimeException ex) {
+                // Failed queries may surface as any runtime exception, for example a NPE on the missing response
+                this.logger.warn("Failed to compute the information content of phenotypes: {}", ex.getMessage());
+                return null;
+            }
+            if (diseases == null) {
+                this.logger.warn("Failed to compute the information content of phenotypes: OMIM is not available");
+                return null;
+            }
+            for (VocabularyTerm disease : diseases) {
+                Object symptoms = disease.get(SEARCH_FOR);
+                if (symptoms instanceof Collection) {
+                    for (Object symptom : (Collection<?>) symptoms) {
+                        count(String.valueOf(symptom), counts);
+                    }
+                } else if (symptoms != null) {
+                    count(String.valueOf(symptoms), counts);
+                }
+            }
+            if (diseases.size() < PAGE_SIZE) {
+                break;
+            }
+        }
+        return new InformationContentTable(version, counts);
+    }
+
+    private void count(String symptom, Map<String, Integer> counts)
     {
-        return n == 0 ? 0 : -Math.log((n * 1.0) / this.totalTerms) / Math.log(2);
+        Integer count = counts.get(symptom);
+        counts.put(symptom, count == null ? 1 : count + 1);
     }
 
     private Date now()
     {
         return Calendar.getInstance(TimeZone.getTimeZone("UTC"), Locale.ROOT).getTime();
     }
+
+    /**
+     * The information content of each phenotype, stored as sorted arrays.
+     */
+    private static final class InformationContentTable
+    {
+        /** The version of the OMIM index the table was built from. */
+        private final String version;
+
+        /** The HPO identifiers, sorted. */
+        private final String[] terms;
+
+        /** The information content of each of the {@link #terms}. */
+        private final double[] values;
+
+        InformationContentTable(String version, Map<String, Integer> counts)
+        {
+            this.version = version;
+            Integer total = counts.get(ROOT_TERM);
+            this.terms = counts.keySet().toArray(new String[counts.size()]);
+            Arrays.sort(this.terms);
+            this.values = new double[this.terms.length];
+            for (int i = 0; i < this.terms.length; ++i) {
+                this.values[i] = informationContent(counts.get(this.terms[i]), total == null ? 0 : total);
+            }
+        }
+
+        /**
+         * The information content of a phenotype.
+         *
+         * @param hpoId the identifier of a HPO term
+         * @return the information content, {@code 0} if the phenotype doesn't select any diseases
+         */
+        double get(String hpoId)
+        {
+            if (hpoId == null) {
+                return 0;
+            }
+            int position = Arrays.binarySearch(this.terms, hpoId);
+            return position < 0 ? 0 : this.values[position];
+        }
+
+        /**
+         * How much information is contained in {@code n} terms out of the whole ontology?
+         *
+         * @param n the number of selected terms
+         * @param totalTerms the total number of terms reachable through phenotypes
+         * @return the information content captured by the selected terms
+         */
+        private static double informationContent(long n, long totalTerms)
+        {
+            return n == 0 ? 0 : -Math.log((n * 1.0) / totalTerms) / Math.log(2);
+        }
+    }
 }
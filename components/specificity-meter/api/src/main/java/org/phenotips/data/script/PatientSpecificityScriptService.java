@@ -24,6 +24,7 @@
 import org.phenotips.data.PatientData;
 import org.phenotips.data.PatientSpecificityService;
 
+import org.xwiki.bridge.DocumentModelBridge;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.script.service.ScriptService;
@@ -188,6 +189,12 @@ public DocumentReference getDocument()
             return null;
         }
 
+        @Override
+        public DocumentModelBridge getXDocument()
+        {
+            return null;
+        }
+
         @Override
         public DocumentReference getReporter()
         {
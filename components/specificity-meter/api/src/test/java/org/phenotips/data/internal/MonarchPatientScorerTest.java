@@ -31,75 +31,108 @@
 import org.xwiki.component.phase.InitializationException;
 import org.xwiki.component.util.ReflectionUtils;
 import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.environment.Environment;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 
+import java.io.File;
 import java.io.IOException;
-import java.net.URI;
-import java.net.URISyntaxException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
-import org.apache.http.HttpEntity;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.client.methods.HttpUriRequest;
-import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.client.config.RequestConfig;
 import org.json.JSONObject;
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.Matchers;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 import org.mockito.internal.matchers.CapturingMatcher;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 public class MonarchPatientScorerTest
 {
+    private static final String SCORE_PATH = "/score";
+
+    private static final String EXPECTED_REQUEST =
+        "{\"features\":[{\"id\":\"HP:1\"},{\"id\":\"HP:2\",\"isPresent\":false}]}";
+
     private ConfigurationSource configuration;
 
     @Mock
     private Patient patient;
 
     @Mock
-    private CloseableHttpClient client;
+    private Cache<PatientSpecificity> cache;
 
-    @Mock
-    private CloseableHttpResponse response;
+    private Set<Feature> features = new LinkedHashSet<>();
 
-    @Mock
-    private HttpEntity responseEntity;
+    /** The local server standing in for the MONARCH server. */
+    private HttpServer server;
 
-    @Mock
-    private Cache<PatientSpecificity> cache;
+    private ExecutorService serverThreads;
 
-    private Set<Feature> features = new LinkedHashSet<>();
+    /** The requests received by the stub server, as decoded form content. */
+    private List<String> requests = new CopyOnWriteArrayList<>();
+
+    /** The response sent by the stub server. */
+    private String responseContent = "{\"scaled_score\":2}";
+
+    /** When set, the stub server waits for this latch before responding. */
+    private CountDownLatch responseLatch;
 
     @Rule
     public final MockitoComponentMockingRule<PatientScorer> mocker =
         new MockitoComponentMockingRule<PatientScorer>(MonarchPatientScorer.class);
 
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
     @Before
-    public void setup() throws CacheException, ComponentLookupException
+    public void setup() throws CacheException, ComponentLookupException, IOException
     {
         MockitoAnnotations.initMocks(this);
         CacheManager cm = this.mocker.getInstance(CacheManager.class);
         when(cm.<PatientSpecificity>createNewCache(any(CacheConfiguration.class))).thenReturn(this.cache);
 
+        this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        this.serverThreads = Executors.newCachedThreadPool();
+        this.server.setExecutor(this.serverThreads);
+        this.server.createContext("/", new StubHandler());
+        this.server.start();
+
         this.configuration = this.mocker.getInstance(ConfigurationSource.class, "xwikiproperties");
         when(this.configuration.getProperty("phenotips.patientScoring.monarch.serviceURL",
             "http://monarchinitiative.org/score"))
-                .thenReturn("http://monarchinitiative.org/score");
+                .thenReturn(getServerURL(SCORE_PATH));
 
         Feature feature = mock(Feature.class);
         when(feature.getId()).thenReturn("HP:1");
@@ -112,8 +145,13 @@ public void setup() throws CacheException, ComponentLookupException
         feature = mock(Feature.class);
         when(feature.getName()).thenReturn("custom");
         this.features.add(feature);
+    }
 
-        ReflectionUtils.setFieldValue(this.mocker.getComponentUnderTest(), "client", this.client);
+    @After
+    public void stopServer()
+    {
+        this.server.stop(0);
+        this.serverThreads.shutdownNow();
     }
 
     @Test
@@ -122,70 +160,243 @@ public void getScoreWithNoFeaturesReturns0() throws ComponentLookupException
         Mockito.doReturn(Collections.emptySet()).when(this.patient).getFeatures();
         double score = this.mocker.getComponentUnderTest().getScore(this.patient);
         Assert.assertEquals(0.0, score, 0.0);
+        Assert.assertTrue(this.requests.isEmpty());
     }
 
     @Test
-    public void getScoreSearchesRemotely() throws ComponentLookupException, URISyntaxException,
-        ClientProtocolException, IOException
+    public void getScoreSearchesRemotelyInTheBackground() throws Exception
     {
         Mockito.doReturn(this.features).when(this.patient).getFeatures();
-        URI expectedURI = new URI("http://monarchinitiative.org/score");
-        CapturingMatcher<HttpPost> reqCapture = new CapturingMatcher<>();
-        when(this.client.execute(Matchers.argThat(reqCapture))).thenReturn(this.response);
-        when(this.response.getEntity()).thenReturn(this.responseEntity);
-        when(this.responseEntity.getContent()).thenReturn(IOUtils.toInputStream("{\"scaled_score\":2}"));
-        double score = this.mocker.getComponentUnderTest().getScore(this.patient);
-        Assert.assertEquals(expectedURI, reqCapture.getLastValue().getURI());
-        String content =
-            URLDecoder.decode(IOUtils.toString(reqCapture.getLastValue().getEntity().getContent(), "UTF-8"), "UTF-8");
-        Assert.assertTrue(content.startsWith("annotation_profile="));
-        JSONObject actualJson = new JSONObject(content.substring("annotation_profile=".length()));
-        JSONObject expectedJson =
-            new JSONObject("{\"features\":[{\"id\":\"HP:1\"},{\"id\":\"HP:2\",\"isPresent\":false}]}");
-        Assert.assertTrue(expectedJson.similar(actualJson));
-        Assert.assertEquals("application/x-www-form-urlencoded; charset=UTF-8",
-            reqCapture.getLastValue().getEntity().getContentType().getValue());
-        Assert.assertEquals(2.0, score, 0.0);
+        useDirectExecutor();
+        CapturingMatcher<PatientSpecificity> specCapture = new CapturingMatcher<>();
+        Mockito.doNothing().when(this.cache).set(Matchers.eq("HP:1-HP:2"), Matchers.argThat(specCapture));
+
+        // The score isn't known yet, so the caller must fall back to another scorer
+        Assert.assertEquals(-1.0, this.mocker.getComponentUnderTest().getScore(this.patient), 0.0);
+
+        Assert.assertEquals(1, this.requests.size());
+        assertExpectedRequest(this.requests.get(0));
+        Assert.assertEquals(2.0, specCapture.getLastValue().getScore(), 0.0);
+    }
+
+    @Test
+    public void getScoreDoesNotWaitForTheRemoteServer() throws Exception
+    {
+        Mockito.doReturn(this.features).when(this.patient).getFeatures();
+        this.responseLatch = new CountDownLatch(1);
+        PatientScorer scorer = this.mocker.getComponentUnderTest();
+
+        long start = System.nanoTime();
+        Assert.assertEquals(-1.0, scorer.getScore(this.patient), 0.0);
+        Assert.assertEquals(-1.0, scorer.getScore(this.patient), 0.0);
+        Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+
+        this.responseLatch.countDown();
+        Mockito.verify(this.cache, Mockito.timeout(5000)).set(Matchers.eq("HP:1-HP:2"),
+            any(PatientSpecificity.class));
+        // Both calls needed the same score, which is only requested once
+        Assert.assertEquals(1, this.requests.size());
     }
 
     @Test
-    public void getScoreUsesCache() throws ComponentLookupException, URISyntaxException,
-        ClientProtocolException, IOException
+    public void getScoreUsesCache() throws Exception
     {
         Mockito.doReturn(this.features).when(this.patient).getFeatures();
+        useDirectExecutor();
         PatientSpecificity spec = mock(PatientSpecificity.class);
         when(this.cache.get("HP:1-HP:2")).thenReturn(spec);
         when(spec.getScore()).thenReturn(2.0);
+        when(spec.getComputationDate()).thenReturn(new Date());
         double score = this.mocker.getComponentUnderTest().getScore(this.patient);
         Assert.assertEquals(2.0, score, 0.0);
-        Mockito.verifyZeroInteractions(this.client);
+        Assert.assertTrue(this.requests.isEmpty());
     }
 
     @Test
-    public void getScoreWithNoResponseReturnsNegative1() throws ComponentLookupException, URISyntaxException,
-        ClientProtocolException, IOException
+    public void getScoreReturnsOutdatedScoreAndRefreshesIt() throws Exception
     {
         Mockito.doReturn(this.features).when(this.patient).getFeatures();
-        URI expectedURI = new URI("http://monarchinitiative.org/score");
-        CapturingMatcher<HttpPost> reqCapture = new CapturingMatcher<>();
-        when(this.client.execute(Matchers.argThat(reqCapture))).thenReturn(this.response);
-        when(this.response.getEntity()).thenReturn(this.responseEntity);
-        when(this.responseEntity.getContent()).thenReturn(IOUtils.toInputStream(""));
+        useDirectExecutor();
+        PatientSpecificity spec = new PatientSpecificity(1.0, new Date(0), "monarchinitiative.org");
+        when(this.cache.get("HP:1-HP:2")).thenReturn(spec);
+        CapturingMatcher<PatientSpecificity> specCapture = new CapturingMatcher<>();
+        Mockito.doNothing().when(this.cache).set(Matchers.eq("HP:1-HP:2"), Matchers.argThat(specCapture));
+
+        Assert.assertEquals(1.0, this.mocker.getComponentUnderTest().getScore(this.patient), 0.0);
+
+        Assert.assertEquals(1, this.requests.size());
+        Assert.assertEquals(2.0, specCapture.getLastValue().getScore(), 0.0);
+    }
+
+    @Test
+    public void getScoreWithNoResponseReturnsNegative1() throws Exception
+    {
+        Mockito.doReturn(this.features).when(this.patient).getFeatures();
+        useDirectExecutor();
+        this.responseContent = "";
         double score = this.mocker.getComponentUnderTest().getScore(this.patient);
-        Assert.assertEquals(expectedURI, reqCapture.getLastValue().getURI());
+        Assert.assertEquals(1, this.requests.size());
         Assert.assertEquals(-1.0, score, 0.0);
+        Mockito.verify(this.cache, Mockito.never()).set(any(String.class), any(PatientSpecificity.class));
     }
 
     @Test
-    public void getScoreWithExceptionReturnsNegative1() throws Exception
+    public void getScoreWithUnreachableServerReturnsNegative1() throws Exception
     {
         Mockito.doReturn(this.features).when(this.patient).getFeatures();
-        when(this.client.execute(any(HttpUriRequest.class))).thenThrow(new IOException());
+        useDirectExecutor();
+        this.server.stop(0);
         double score = this.mocker.getComponentUnderTest().getScore(this.patient);
         Assert.assertEquals(-1.0, score, 0.0);
         Mockito.verify(this.cache, Mockito.never()).set(any(String.class), any(PatientSpecificity.class));
     }
 
+    @Test
+    public void requestsAreSuspendedAfterRepeatedFailures() throws Exception
+    {
+        Mockito.doReturn(this.features).when(this.patient).getFeatures();
+        useDirectExecutor();
+        this.responseContent = "Service Unavailable";
+        PatientScorer scorer = this.mocker.getComponentUnderTest();
+        for (int i = 0; i < 10; ++i) {
+            Assert.assertEquals(-1.0, scorer.getScore(this.patient), 0.0);
+        }
+        Assert.assertEquals(5, this.requests.size());
+
+        // Once the pause is over, a single request is tried, and another failure starts a new pause
+        ReflectionUtils.setFieldValue(scorer, "suspendedUntil", 0L);
+        for (int i = 0; i < 10; ++i) {
+            Assert.assertEquals(-1.0, scorer.getScore(this.patient), 0.0);
+        }
+        Assert.assertEquals(6, this.requests.size());
+
+        // A successful request resets the failure count
+        ReflectionUtils.setFieldValue(scorer, "suspendedUntil", 0L);
+        this.responseContent = "{\"scaled_score\":2}";
+        scorer.getScore(this.patient);
+        this.responseContent = "Service Unavailable";
+        for (int i = 0; i < 10; ++i) {
+            scorer.getScore(this.patient);
+        }
+        Assert.assertEquals(12, this.requests.size());
+    }
+
+    @Test
+    public void queuedRequestsAreDroppedWhileSuspended() throws Exception
+    {
+        Mockito.doReturn(this.features).when(this.patient).getFeatures();
+        PatientScorer scorer = this.mocker.getComponentUnderTest();
+        DirectExecutorService executor = new DirectExecutorService();
+        executor.held = new ArrayList<>();
+        ReflectionUtils.setFieldValue(scorer, "requestExecutor", executor);
+        scorer.getScore(this.patient);
+        Assert.assertEquals(1, executor.held.size());
+
+        // The server is found to be down while the request waits in the queue
+        ReflectionUtils.setFieldValue(scorer, "suspendedUntil", System.currentTimeMillis() + 60000);
+        executor.held.remove(0).run();
+        Assert.assertTrue(this.requests.isEmpty());
+
+        // The dropped request isn't considered pending anymore, it is requested again after the pause
+        ReflectionUtils.setFieldValue(scorer, "suspendedUntil", 0L);
+        scorer.getScore(this.patient);
+        Assert.assertEquals(1, executor.held.size());
+        executor.held.remove(0).run();
+        Assert.assertEquals(1, this.requests.size());
+    }
+
+    @Test
+    public void scoresAreStoredAcrossRestarts() throws Exception
+    {
+        Environment environment = this.mocker.getInstance(Environment.class);
+        when(environment.getPermanentDirectory()).thenReturn(this.folder.getRoot());
+        Mockito.doReturn(this.features).when(this.patient).getFeatures();
+        useDirectExecutor();
+        this.mocker.getComponentUnderTest().getScore(this.patient);
+        File storage = new File(this.folder.getRoot(), "specificity/monarch.scores");
+        FileUtils.writeStringToFile(storage, "HP:3\t0.5\t1000\n", StandardCharsets.UTF_8, true);
+
+        Mockito.reset(this.cache);
+        ((Initializable) this.mocker.getComponentUnderTest()).initialize();
+
+        CapturingMatcher<PatientSpecificity> specCapture = new CapturingMatcher<>();
+        Mockito.verify(this.cache).set(Matchers.eq("HP:1-HP:2"), Matchers.argThat(specCapture));
+        Assert.assertEquals(2.0, specCapture.getLastValue().getScore(), 0.0);
+        Assert.assertEquals("monarchinitiative.org", specCapture.getLastValue().getComputingMethod());
+        specCapture = new CapturingMatcher<>();
+        Mockito.verify(this.cache).set(Matchers.eq("HP:3"), Matchers.argThat(specCapture));
+        Assert.assertEquals(0.5, specCapture.getLastValue().getScore(), 0.0);
+        Assert.assertEquals(new Date(1000), specCapture.getLastValue().getComputationDate());
+        Assert.assertEquals(2, FileUtils.readLines(storage, StandardCharsets.UTF_8).size());
+    }
+
+    @Test
+    public void invalidStoredScoresAreSkipped() throws Exception
+    {
+        Environment environment = this.mocker.getInstance(Environment.class);
+        when(environment.getPermanentDirectory()).thenReturn(this.folder.getRoot());
+        File storage = new File(this.folder.getRoot(), "specificity/monarch.scores");
+        FileUtils.writeStringToFile(storage, "HP:3\t0.5\t1000\nHP:4\tNaN?\t1000\ngarbage\nHP:5\t0.7\t2000\nHP:6\t0.",
+            StandardCharsets.UTF_8);
+
+        this.mocker.getComponentUnderTest();
+
+        Mockito.verify(this.cache).set(Matchers.eq("HP:3"), Matchers.any(PatientSpecificity.class));
+        Mockito.verify(this.cache).set(Matchers.eq("HP:5"), Matchers.any(PatientSpecificity.class));
+        Mockito.verify(this.cache, Mockito.times(2)).set(Matchers.anyString(), Matchers.any(PatientSpecificity.class));
+        Assert.assertEquals(2, FileUtils.readLines(storage, StandardCharsets.UTF_8).size());
+    }
+
+    @Test
+    public void unreadableStorageIsNotRewritten() throws Exception
+    {
+        Environment environment = this.mocker.getInstance(Environment.class);
+        when(environment.getPermanentDirectory()).thenReturn(this.folder.getRoot());
+        File storage = new File(this.folder.getRoot(), "specificity/monarch.scores");
+        // Not valid UTF-8, reading fails
+        byte[] content = new byte[] { 'H', 'P', ':', '3', '\t', '1', '\t', '1', '\n', (byte) 0xC3, (byte) 0x28 };
+        FileUtils.writeByteArrayToFile(storage, content);
+
+        this.mocker.getComponentUnderTest();
+
+        Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(storage));
+    }
+
+    @Test
+    public void storageIsCompactedWhenItGrows() throws Exception
+    {
+        Environment environment = this.mocker.getInstance(Environment.class);
+        when(environment.getPermanentDirectory()).thenReturn(this.folder.getRoot());
+        Mockito.doReturn(this.features).when(this.patient).getFeatures();
+        useDirectExecutor();
+        File storage = new File(this.folder.getRoot(), "specificity/monarch.scores");
+        FileUtils.writeStringToFile(storage, "HP:3\t0.5\t1000\nHP:3\t0.6\t2000\n", StandardCharsets.UTF_8, true);
+        // Pretend that many scores were already stored since startup
+        ReflectionUtils.setFieldValue(this.mocker.getComponentUnderTest(), "storedLines", 10000);
+
+        this.mocker.getComponentUnderTest().getScore(this.patient);
+
+        List<String> lines = FileUtils.readLines(storage, StandardCharsets.UTF_8);
+        Assert.assertEquals(2, lines.size());
+        Assert.assertEquals("HP:3\t0.6\t2000", lines.get(0));
+        Assert.assertTrue(lines.get(1).startsWith("HP:1-HP:2\t2.0\t"));
+    }
+
+    @Test
+    public void nonPositiveSettingsUseTheDefaults() throws Exception
+    {
+        when(this.configuration.getProperty("phenotips.patientScoring.monarch.timeout", Integer.class)).thenReturn(0);
+        when(this.configuration.getProperty("phenotips.patientScoring.monarch.maxConcurrentRequests", Integer.class))
+            .thenReturn(-1);
+        ((Initializable) this.mocker.getComponentUnderTest()).initialize();
+
+        RequestConfig config = ReflectionUtils.getFieldValue(this.mocker.getComponentUnderTest(), "requestConfig");
+        Assert.assertEquals(2000, config.getSocketTimeout());
+        ThreadPoolExecutor executor =
+            ReflectionUtils.getFieldValue(this.mocker.getComponentUnderTest(), "requestExecutor");
+        Assert.assertEquals(4, executor.getMaximumPoolSize());
+    }
+
     @Test
     public void getSpecificityWithNoFeaturesReturns0() throws ComponentLookupException
     {
@@ -203,30 +414,17 @@ public void getSpecificityWithNoFeaturesReturns0() throws ComponentLookupExcepti
     }
 
     @Test
-    public void getSpecificitySearchesRemotely() throws Exception
+    public void getSpecificitySearchesRemotelyInTheBackground() throws Exception
     {
         Mockito.doReturn(this.features).when(this.patient).getFeatures();
-        URI expectedURI = new URI("http://monarchinitiative.org/score");
-        CapturingMatcher<HttpPost> reqCapture = new CapturingMatcher<>();
-        when(this.client.execute(Matchers.argThat(reqCapture))).thenReturn(this.response);
-        when(this.response.getEntity()).thenReturn(this.responseEntity);
-        when(this.responseEntity.getContent()).thenReturn(IOUtils.toInputStream("{\"scaled_score\":2}"));
+        useDirectExecutor();
         CapturingMatcher<PatientSpecificity> specCapture = new CapturingMatcher<>();
         Mockito.doNothing().when(this.cache).set(Matchers.eq("HP:1-HP:2"), Matchers.argThat(specCapture));
         Date d1 = new Date();
-        this.mocker.getComponentUnderTest().getSpecificity(this.patient);
+        Assert.assertNull(this.mocker.getComponentUnderTest().getSpecificity(this.patient));
         Date d2 = new Date();
         PatientSpecificity spec = specCapture.getLastValue();
-        Assert.assertEquals(expectedURI, reqCapture.getLastValue().getURI());
-        String content =
-            URLDecoder.decode(IOUtils.toString(reqCapture.getLastValue().getEntity().getContent(), "UTF-8"), "UTF-8");
-        Assert.assertTrue(content.startsWith("annotation_profile="));
-        JSONObject actualJson = new JSONObject(content.substring("annotation_profile=".length()));
-        JSONObject expectedJson =
-            new JSONObject("{\"features\":[{\"id\":\"HP:1\"},{\"id\":\"HP:2\",\"isPresent\":false}]}");
-        Assert.assertTrue(expectedJson.similar(actualJson));
-        Assert.assertEquals("application/x-www-form-urlencoded; charset=UTF-8",
-            reqCapture.getLastValue().getEntity().getContentType().getValue());
+        assertExpectedRequest(this.requests.get(0));
         Assert.assertEquals(2.0, spec.getScore(), 0.0);
         Assert.assertEquals("monarchinitiative.org", spec.getComputingMethod());
         Assert.assertFalse(d1.after(spec.getComputationDate()));
@@ -237,19 +435,20 @@ public void getSpecificitySearchesRemotely() throws Exception
     public void getSpecificityUsesCache() throws Exception
     {
         Mockito.doReturn(this.features).when(this.patient).getFeatures();
+        useDirectExecutor();
         PatientSpecificity spec = mock(PatientSpecificity.class);
+        when(spec.getComputationDate()).thenReturn(new Date());
         when(this.cache.get("HP:1-HP:2")).thenReturn(spec);
         Assert.assertSame(spec, this.mocker.getComponentUnderTest().getSpecificity(this.patient));
-        Mockito.verifyZeroInteractions(this.client);
+        Assert.assertTrue(this.requests.isEmpty());
     }
 
     @Test
     public void getSpecificityWithNoResponseReturnsNull() throws Exception
     {
         Mockito.doReturn(this.features).when(this.patient).getFeatures();
-        when(this.client.execute(any(HttpUriRequest.class))).thenReturn(this.response);
-        when(this.response.getEntity()).thenReturn(this.responseEntity);
-        when(this.responseEntity.getContent()).thenReturn(IOUtils.toInputStream(""));
+        useDirectExecutor();
+        this.responseContent = "";
         Assert.assertNull(this.mocker.getComponentUnderTest().getSpecificity(this.patient));
     }
 
@@ -264,32 +463,112 @@ public void initializationFailsWhenCreatingCacheFails() throws ComponentLookupEx
     }
 
     @Test
-    public void checkURLConfigurable() throws ComponentLookupException, URISyntaxException,
-        ClientProtocolException, IOException, InitializationException
+    public void checkURLConfigurable() throws Exception
     {
         when(this.configuration.getProperty("phenotips.patientScoring.monarch.serviceURL",
             "http://monarchinitiative.org/score"))
-                .thenReturn("http://proxy/score");
+                .thenReturn(getServerURL("/proxy/score"));
         Mockito.doReturn(this.features).when(this.patient).getFeatures();
-        URI expectedURI = new URI("http://proxy/score");
-        CapturingMatcher<HttpPost> reqCapture = new CapturingMatcher<>();
-        when(this.client.execute(Matchers.argThat(reqCapture))).thenReturn(this.response);
-        when(this.response.getEntity()).thenReturn(this.responseEntity);
-        when(this.responseEntity.getContent()).thenReturn(IOUtils.toInputStream("{\"scaled_score\":2}"));
-        // Since the component was already initialized in setUp() with the default URL, re-initialize it
+        // Since the component may have been initialized with the default URL, re-initialize it
         // with the new configuration mock
         ((Initializable) this.mocker.getComponentUnderTest()).initialize();
-        double score = this.mocker.getComponentUnderTest().getScore(this.patient);
-        Assert.assertEquals(expectedURI, reqCapture.getLastValue().getURI());
-        String content =
-            URLDecoder.decode(IOUtils.toString(reqCapture.getLastValue().getEntity().getContent(), "UTF-8"), "UTF-8");
-        Assert.assertTrue(content.startsWith("annotation_profile="));
-        JSONObject actualJson = new JSONObject(content.substring("annotation_profile=".length()));
-        JSONObject expectedJson =
-            new JSONObject("{\"features\":[{\"id\":\"HP:1\"},{\"id\":\"HP:2\",\"isPresent\":false}]}");
-        Assert.assertTrue(expectedJson.similar(actualJson));
-        Assert.assertEquals("application/x-www-form-urlencoded; charset=UTF-8",
-            reqCapture.getLastValue().getEntity().getContentType().getValue());
-        Assert.assertEquals(2.0, score, 0.0);
+        useDirectExecutor();
+        this.mocker.getComponentUnderTest().getScore(this.patient);
+        Assert.assertEquals(1, this.requests.size());
+        Assert.assertTrue(this.requests.get(0).startsWith("/proxy/score "));
+        assertExpectedRequest(this.requests.get(0));
+    }
+
+    private String getServerURL(String path)
+    {
+        return "http://localhost:" + this.server.getAddress().getPort() + path;
+    }
+
+    /** Run the remote requests right away, so that their results can be checked once the scorer returns. */
+    private void useDirectExecutor() throws ComponentLookupException
+    {
+        ReflectionUtils.setFieldValue(this.mocker.getComponentUnderTest(), "requestExecutor",
+            new DirectExecutorService());
+    }
+
+    private void assertExpectedRequest(String request)
+    {
+        String content = request.substring(request.indexOf(' ') + 1);
+        Assert.assertTrue(content.startsWith("application/x-www-form-urlencoded; charset=UTF-8 annotation_profile="));
+        JSONObject actualJson = new JSONObject(content.substring(content.indexOf("annotation_profile=") + 19));
+        Assert.assertTrue(new JSONObject(EXPECTED_REQUEST).similar(actualJson));
+    }
+
+    /** Records each request as "path content-type decoded-content", and answers with the configured response. */
+    private final class StubHandler implements HttpHandler
+    {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException
+        {
+            String content = URLDecoder.decode(IOUtils.toString(exchange.getRequestBody(), "UTF-8"), "UTF-8");
+            MonarchPatientScorerTest.this.requests.add(exchange.getRequestURI().getPath() + ' '
+                + exchange.getRequestHeaders().getFirst("Content-Type") + ' ' + content);
+            try {
+                if (MonarchPatientScorerTest.this.responseLatch != null) {
+                    MonarchPatientScorerTest.this.responseLatch.await(5, TimeUnit.SECONDS);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] response = MonarchPatientScorerTest.this.responseContent.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, response.length == 0 ? -1 : response.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(response);
+            }
+        }
+    }
+
+    /** Runs tasks in the calling thread, or holds them for later when {@link #held} is set. */
+    private static final class DirectExecutorService extends AbstractExecutorService
+    {
+        private List<Runnable> held;
+
+        private boolean shutdown;
+
+        @Override
+        public void execute(Runnable command)
+        {
+            if (this.held != null) {
+                this.held.add(command);
+            } else {
+                command.run();
+            }
+        }
+
+        @Override
+        public void shutdown()
+        {
+            this.shutdown = true;
+        }
+
+        @Override
+        public List<Runnable> shutdownNow()
+        {
+            this.shutdown = true;
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean isShutdown()
+        {
+            return this.shutdown;
+        }
+
+        @Override
+        public boolean isTerminated()
+        {
+            return this.shutdown;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit)
+        {
+            return true;
+        }
     }
 }
@@ -26,21 +26,30 @@
 
 import org.xwiki.cache.CacheException;
 import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.util.ReflectionUtils;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
 
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.mockito.Matchers;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class OmimInformationContentPatientScorerTest
@@ -54,6 +63,8 @@
 
     private Vocabulary omim;
 
+    private List<VocabularyTerm> diseases = new ArrayList<>();
+
     @Rule
     public final MockitoComponentMockingRule<PatientScorer> mocker =
         new MockitoComponentMockingRule<PatientScorer>(OmimInformationContentPatientScorer.class);
@@ -85,12 +96,84 @@ public void setup() throws CacheException, ComponentLookupException
         when(hp3.getParents()).thenReturn(Collections.singleton(hp4));
         when(hp4.getId()).thenReturn("HP:4");
 
+        // 60 annotated diseases: 3 with HP:1, 1 with HP:2, none with HP:3, 2 with HP:4
         this.omim = this.mocker.getInstance(Vocabulary.class, "omim");
-        when(this.omim.count(Collections.singletonMap("symptom", "HP:0000001"))).thenReturn(60L);
-        when(this.omim.count(Collections.singletonMap("symptom", "HP:1"))).thenReturn(3L);
-        when(this.omim.count(Collections.singletonMap("symptom", "HP:2"))).thenReturn(1L);
-        when(this.omim.count(Collections.singletonMap("symptom", "HP:3"))).thenReturn(0L);
-        when(this.omim.count(Collections.singletonMap("symptom", "HP:4"))).thenReturn(2L);
+        for (int i = 0; i < 60; ++i) {
+            List<String> symptoms = new ArrayList<>();
+            symptoms.add("HP:0000001");
+            if (i < 3) {
+                symptoms.add("HP:1");
+            }
+            if (i == 0) {
+                symptoms.add("HP:2");
+            }
+            if (i >= 58) {
+                symptoms.add("HP:4");
+            }
+            VocabularyTerm disease = mock(VocabularyTerm.class);
+            when(disease.get("symptom")).thenReturn(symptoms);
+            this.diseases.add(disease);
+        }
+        when(this.omim.search(eq(Collections.singletonMap("symptom", "HP:0000001")),
+            Matchers.anyMapOf(String.class, String.class))).thenReturn(this.diseases);
+    }
+
+    @Test
+    public void informationContentIsComputedOnceFromTheOmimIndex() throws ComponentLookupException
+    {
+        Mockito.doReturn(this.features).when(this.patient).getFeatures();
+        this.mocker.getComponentUnderTest().getScore(this.patient);
+        this.mocker.getComponentUnderTest().getScore(this.patient);
+        verify(this.omim, times(1)).search(Matchers.anyMapOf(String.class, Object.class),
+            Matchers.anyMapOf(String.class, String.class));
+        verify(this.omim, never()).count(Matchers.anyMapOf(String.class, Object.class));
+    }
+
+    @Test
+    public void informationContentIsRecomputedWhenOmimIsReindexed() throws Exception
+    {
+        Mockito.doReturn(this.features).when(this.patient).getFeatures();
+        when(this.omim.getVersion()).thenReturn("1");
+        Assert.assertEquals(0.56, this.mocker.getComponentUnderTest().getScore(this.patient), 0.01);
+
+        // After reindexing, HP:1 selects all the diseases and becomes non-informative
+        VocabularyTerm disease = mock(VocabularyTerm.class);
+        when(disease.get("symptom")).thenReturn(Arrays.asList("HP:0000001", "HP:1", "HP:3"));
+        when(this.omim.search(eq(Collections.singletonMap("symptom", "HP:0000001")),
+            Matchers.anyMapOf(String.class, String.class))).thenReturn(Collections.singletonList(disease));
+        when(this.omim.getVersion()).thenReturn("2");
+        ReflectionUtils.setFieldValue(this.mocker.getComponentUnderTest(), "lastVersionCheck", 0L);
+        Assert.assertEquals(0.0, this.mocker.getComponentUnderTest().getScore(this.patient), 0.0);
+    }
+
+    @Test
+    public void failedSearchKeepsThePreviousInformationContent() throws Exception
+    {
+        Mockito.doReturn(this.features).when(this.patient).getFeatures();
+        when(this.omim.getVersion()).thenReturn("1");
+        Assert.assertEquals(0.56, this.mocker.getComponentUnderTest().getScore(this.patient), 0.01);
+
+        // The OMIM index was reindexed, but querying it fails
+        when(this.omim.search(eq(Collections.singletonMap("symptom", "HP:0000001")),
+            Matchers.anyMapOf(String.class, String.class))).thenThrow(new NullPointerException());
+        when(this.omim.getVersion()).thenReturn("2");
+        ReflectionUtils.setFieldValue(this.mocker.getComponentUnderTest(), "lastVersionCheck", 0L);
+        Assert.assertEquals(0.56, this.mocker.getComponentUnderTest().getScore(this.patient), 0.01);
+    }
+
+    @Test
+    public void failedSearchWithoutPreviousInformationContentReturns0() throws Exception
+    {
+        Mockito.doReturn(this.features).when(this.patient).getFeatures();
+        when(this.omim.search(eq(Collections.singletonMap("symptom", "HP:0000001")),
+            Matchers.anyMapOf(String.class, String.class))).thenReturn(null);
+        Assert.assertEquals(0.0, this.mocker.getComponentUnderTest().getScore(this.patient), 0.0);
+
+        // The information content is computed at the next check, once OMIM is available again
+        when(this.omim.search(eq(Collections.singletonMap("symptom", "HP:0000001")),
+            Matchers.anyMapOf(String.class, String.class))).thenReturn(this.diseases);
+        ReflectionUtils.setFieldValue(this.mocker.getComponentUnderTest(), "lastVersionCheck", 0L);
+        Assert.assertEquals(0.56, this.mocker.getComponentUnderTest().getScore(this.patient), 0.01);
     }
 
     @Test
@@ -154,13 +237,6 @@ public void getScoreWithNonInformativeFeaturesReturns0() throws ComponentLookupE
         when(hp13.getParents()).thenReturn(Collections.singleton(hp14));
         when(hp14.getParents()).thenReturn(Collections.singleton(hp15));
 
-        when(this.omim.count(Collections.singletonMap("symptom", "HP:10"))).thenReturn(0L);
-        when(this.omim.count(Collections.singletonMap("symptom", "HP:11"))).thenReturn(0L);
-        when(this.omim.count(Collections.singletonMap("symptom", "HP:12"))).thenReturn(0L);
-        when(this.omim.count(Collections.singletonMap("symptom", "HP:13"))).thenReturn(0L);
-        when(this.omim.count(Collections.singletonMap("symptom", "HP:14"))).thenReturn(0L);
-        when(this.omim.count(Collections.singletonMap("symptom", "HP:15"))).thenReturn(0L);
-
         Feature feature = mock(Feature.class);
         when(feature.getId()).thenReturn("HP:10");
         when(feature.isPresent()).thenReturn(true);
@@ -176,7 +252,6 @@ public void getScoreWithParentlessTermDoesntThrowException() throws ComponentLoo
         when(this.hpo.getTerm("HP:10")).thenReturn(hp10);
         when(hp10.getId()).thenReturn("HP:10");
         when(hp10.getParents()).thenReturn(Collections.<VocabularyTerm>emptySet());
-        when(this.omim.count(Collections.singletonMap("symptom", "HP:10"))).thenReturn(0L);
 
         Feature feature = mock(Feature.class);
         when(feature.getId()).thenReturn("HP:10");
@@ -191,8 +191,8 @@ public void readJSONDoesNothing() throws ComponentLookupException
     @Test
     public void saveDoesNothing() throws ComponentLookupException
     {
-        this.mocker.getComponentUnderTest().save(this.patient);
-        this.mocker.getComponentUnderTest().save(null);
+        this.mocker.getComponentUnderTest().save(this.patient, null);
+        this.mocker.getComponentUnderTest().save(null, null);
         Mockito.verifyZeroInteractions(this.service);
     }
 
@@ -20,6 +20,9 @@
 import org.xwiki.component.annotation.Role;
 import org.xwiki.stability.Unstable;
 
+import java.io.IOException;
+
+import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.core.CoreContainer;
 
 /**
@@ -38,4 +41,33 @@
      * @return a loaded core container instance
      */
     CoreContainer getContainer();
+
+    /**
+     * Creates an empty core, configured like an existing core, where a full reindex can be built while the live core
+     * keeps answering queries. A shadow core left behind by an interrupted reindex is discarded first.
+     *
+     * @param coreName the name of the live core
+     * @return a client for the new, empty core, or {@code null} if the live core cannot be located on disk
+     * @throws IOException if preparing the directory of the new core fails
+     * @since 1.3M1
+     */
+    SolrClient createShadowCore(String coreName) throws IOException;
+
+    /**
+     * Replaces a live core with its shadow core, created by {@link #createShadowCore(String)}. Clients of the live core
+     * see the new index right away. Afterwards, the shadow core holds the previous index, until
+     * {@link #discardShadowCore(String) discarded}.
+     *
+     * @param coreName the name of the live core
+     * @since 1.3M1
+     */
+    void swapShadowCore(String coreName);
+
+    /**
+     * Unloads the shadow core of a live core and deletes its index, if it exists.
+     *
+     * @param coreName the name of the live core
+     * @since 1.3M1
+     */
+    void discardShadowCore(String coreName);
 }
@@ -19,9 +19,13 @@
 
 import org.xwiki.cache.Cache;
 import org.xwiki.component.annotation.Role;
+import org.xwiki.component.phase.Disposable;
 import org.xwiki.component.phase.InitializationException;
 import org.xwiki.stability.Unstable;
 
+import java.util.Collection;
+import java.util.Map;
+
 import org.apache.solr.client.solrj.SolrClient;
 
 /**
@@ -32,7 +36,7 @@
  */
 @Unstable
 @Role
-public interface SolrVocabularyResourceManager
+public interface SolrVocabularyResourceManager extends Disposable
 {
     /**
      * Initializes the resources needed by a Solr-indexed vocabulary. This method must be called once before using the
@@ -50,6 +54,24 @@
      */
     Cache<VocabularyTerm> getTermCache();
 
+    /**
+     * Get the terms requested most often from the term cache, either since the vocabulary was initialized, or, right
+     * after initialization, during the previous run. These are the terms worth loading in a new, empty cache.
+     *
+     * @return a collection of term identifiers, most requested first; may be empty
+     * @since 1.3M1
+     */
+    Collection<String> getFrequentlyUsedTerms();
+
+    /**
+     * Replace the term cache with a new one containing only the given terms. The old cache keeps answering lookups
+     * until the new one is filled, so that a reindex doesn't leave the vocabulary with an empty cache.
+     *
+     * @param terms the terms to put in the new cache, keyed by their identifier
+     * @since 1.3M1
+     */
+    void replaceTermCache(Map<String, VocabularyTerm> terms);
+
     /**
      * Get the Solr core used for the target vocabulary.
      *
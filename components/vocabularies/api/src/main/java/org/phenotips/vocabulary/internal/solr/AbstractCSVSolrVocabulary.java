@@ -59,8 +59,7 @@ public abstract class AbstractCSVSolrVocabulary extends AbstractSolrVocabulary
     @Override
     public int reindex(String sourceUrl)
     {
-        this.clear();
-        return this.index(sourceUrl);
+        return rebuildIndex(sourceUrl);
     }
 
     /**
@@ -70,6 +69,7 @@ public int reindex(String sourceUrl)
      * @return {@code 0} if the indexing succeeded, {@code 1} if writing to the Solr server failed, {@code 2} if the
      *         specified URL is invalid
      */
+    @Override
     protected int index(String sourceUrl)
     {
         Collection<SolrInputDocument> data = null;
@@ -111,27 +111,8 @@ protected int index(String sourceUrl)
     protected void commitTerms(Collection<SolrInputDocument> batch)
         throws SolrServerException, IOException, OutOfMemoryError
     {
-        this.externalServicesAccess.getSolrConnection().add(batch);
-        this.externalServicesAccess.getSolrConnection().commit();
-        this.externalServicesAccess.getTermCache().removeAll();
-    }
-
-    /**
-     * Delete all the data in the Solr index.
-     *
-     * @return {@code 0} if the command was successful, {@code 1} otherwise
-     */
-    protected int clear()
-    {
-        try {
-            this.externalServicesAccess.getSolrConnection().deleteByQuery("*:*");
-            return 0;
-        } catch (SolrServerException ex) {
-            this.logger.error("SolrServerException while clearing the Solr index", ex);
-        } catch (IOException ex) {
-            this.logger.error("IOException while clearing the Solr index", ex);
-        }
-        return 1;
+        getIndexingConnection().add(batch);
+        getIndexingConnection().commit();
     }
 
     protected VocabularyTerm requestTerm(String queryString, String phraseFields)
@@ -20,15 +20,24 @@
 import org.phenotips.obo2solr.ParameterPreparer;
 import org.phenotips.obo2solr.SolrUpdateGenerator;
 import org.phenotips.obo2solr.TermData;
+import org.phenotips.obo2solr.TermHandler;
+import org.phenotips.obo2solr.TermHierarchy;
 import org.phenotips.vocabulary.VocabularyTerm;
 
+import org.xwiki.configuration.ConfigurationSource;
+
 import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Named;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.solr.client.solrj.SolrQuery;
@@ -38,6 +47,7 @@
 import org.apache.solr.common.SolrDocumentList;
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.CursorMarkParams;
 
 /**
  * Ontologies processed from OBO files share much of the processing code.
@@ -54,6 +64,25 @@ public abstract class AbstractOBOSolrVocabulary extends AbstractSolrVocabulary
 
     protected static final String VERSION_FIELD_NAME = "version";
 
+    /** The name of the field holding the direct parents of a term. */
+    protected static final String IS_A_FIELD_NAME = "is_a";
+
+    /** How many terms are fetched at once when loading the {@link #getHierarchy() in-memory hierarchy}. */
+    private static final int GRAPH_LOADING_PAGE_SIZE = 5000;
+
+    /** How long to wait before trying again to load the in-memory hierarchy, after a failure. */
+    private static final long GRAPH_RETRY_DELAY = TimeUnit.MINUTES.toMillis(5);
+
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    /** The in-memory copy of the term hierarchy, loaded when first needed, and discarded when reindexing. */
+    private volatile TermHierarchy hierarchy;
+
+    /** When loading the in-memory hierarchy last failed, {@code 0} if it didn't fail since the last reindex. */
+    private volatile long hierarchyFailureTime;
+
     /** The number of documents to be added and committed to Solr at a time. */
     protected abstract int getSolrDocsPerBatch();
 
@@ -75,55 +104,119 @@ public VocabularyTerm getTerm(String id)
     @Override
     public int reindex(String sourceUrl)
     {
-        this.clear();
-        return this.index(sourceUrl);
+        int result = rebuildIndex(sourceUrl);
+        this.hierarchy = null;
+        this.hierarchyFailureTime = 0;
+        return result;
+    }
+
+    /**
+     * Get an in-memory copy of the {@code is_a} hierarchy of this vocabulary, which answers distance queries without
+     * going through Solr. The hierarchy is loaded from the index the first time it is needed, unless it was disabled
+     * with the {@code phenotips.vocabularies.<identifier>.inMemoryGraph} setting in {@code xwiki.properties}. If
+     * loading fails, it isn't tried again for a few minutes, so that callers fall back to querying the index instead of
+     * scanning it again on every call.
+     *
+     * @return the hierarchy, or {@code null} if it is disabled or couldn't be loaded
+     */
+    protected TermHierarchy getHierarchy()
+    {
+        TermHierarchy result = this.hierarchy;
+        if (result == null && isGraphEnabled()
+            && System.currentTimeMillis() - this.hierarchyFailureTime >= GRAPH_RETRY_DELAY) {
+            synchronized (this) {
+                if (this.hierarchy == null
+                    && System.currentTimeMillis() - this.hierarchyFailureTime >= GRAPH_RETRY_DELAY) {
+                    this.hierarchy = loadHierarchy();
+                    if (this.hierarchy == null) {
+                        this.hierarchyFailureTime = System.currentTimeMillis();
+                    }
+                }
+                result = this.hierarchy;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public long getDistance(String fromTermId, String toTermId)
+    {
+        TermHierarchy terms = getHierarchy();
+        if (terms != null && terms.contains(fromTermId) && terms.contains(toTermId)) {
+            return terms.getDistance(fromTermId, toTermId);
+        }
+        return super.getDistance(fromTermId, toTermId);
+    }
+
+    private boolean isGraphEnabled()
+    {
+        String key = "phenotips.vocabularies." + getIdentifier() + ".inMemoryGraph";
+        Boolean enabled = this.configuration.getProperty(key, Boolean.class);
+        return enabled == null || enabled;
+    }
+
+    private TermHierarchy loadHierarchy()
+    {
+        TermHierarchy result = new TermHierarchy();
+        SolrQuery query = new SolrQuery("*:*");
+        query.setFields(ID_FIELD_NAME, IS_A_FIELD_NAME);
+        query.setRows(GRAPH_LOADING_PAGE_SIZE);
+        query.setSort(ID_FIELD_NAME, SolrQuery.ORDER.asc);
+        String cursor = CursorMarkParams.CURSOR_MARK_START;
+        try {
+            while (true) {
+                query.set(CursorMarkParams.CURSOR_MARK_PARAM, cursor);
+                QueryResponse response = this.externalServicesAccess.getSolrConnection().query(query);
+                for (SolrDocument doc : response.getResults()) {
+                    List<String> termParents = new ArrayList<>();
+                    Collection<Object> values = doc.getFieldValues(IS_A_FIELD_NAME);
+                    if (values != null) {
+                        for (Object value : values) {
+                            termParents.add(StringUtils.substringBefore(String.valueOf(value), " "));
+                        }
+                    }
+                    result.setParents((String) doc.getFirstValue(ID_FIELD_NAME), termParents);
+                }
+                String next = response.getNextCursorMark();
+                if (next == null || next.equals(cursor)) {
+                    break;
+                }
+                cursor = next;
+            }
+        } catch (SolrServerException | SolrException | IOException ex) {
+            this.logger.warn("Failed to load the [{}] hierarchy: {}", getCoreName(), ex.getMessage());
+            return null;
+        }
+        this.logger.debug("Loaded the [{}] hierarchy with {} terms", getCoreName(), result.size());
+        return result;
     }
 
     /**
      * Add a vocabulary to the index.
      *
      * @param sourceUrl the address from where to get the vocabulary source file
-     * @return {@code 0} if the indexing succeeded, {@code 1} if writing to the Solr server failed, {@code 2} if the
-     *         specified URL is invalid
+     * @return {@code 0} if the indexing succeeded, {@code 1} if reading the source or writing to the Solr server
+     *         failed, {@code 2} if the specified URL is invalid or doesn't contain any terms
      */
+    @Override
     protected int index(String sourceUrl)
     {
-        String realOntologyUrl = StringUtils.defaultIfBlank(sourceUrl, getDefaultSourceLocation());
-
-        SolrUpdateGenerator generator = new SolrUpdateGenerator();
-        Map<String, Double> fieldSelection = new HashMap<String, Double>();
-        Map<String, TermData> data = generator.transform(realOntologyUrl, fieldSelection);
-        if (data == null) {
+        URL url;
+        try {
+            url = new URL(StringUtils.defaultIfBlank(sourceUrl, getDefaultSourceLocation()));
+        } catch (MalformedURLException ex) {
             return 2;
         }
+        TermBatcher batcher = new TermBatcher();
         try {
-            Collection<SolrInputDocument> termBatch = new HashSet<SolrInputDocument>();
-            Iterator<Map.Entry<String, TermData>> dataIterator = data.entrySet().iterator();
-            int batchCounter = 0;
-            while (dataIterator.hasNext()) {
-                /* Resetting when the batch fills */
-                if (batchCounter == getSolrDocsPerBatch()) {
-                    commitTerms(termBatch);
-                    termBatch = new HashSet<>();
-                    batchCounter = 0;
-                }
-                Map.Entry<String, TermData> item = dataIterator.next();
-                SolrInputDocument doc = new SolrInputDocument();
-                for (Map.Entry<String, Collection<String>> property : item.getValue().entrySet()) {
-                    String name = property.getKey();
-                    for (String value : property.getValue()) {
-                        doc.addField(name, value, ParameterPreparer.DEFAULT_BOOST.floatValue());
-                    }
-                }
-                termBatch.add(doc);
-                batchCounter++;
+            // Terms are sent to Solr in batches as soon as they are parsed, instead of parsing the whole ontology first
+            if (new SolrUpdateGenerator().transform(url, new HashMap<String, Double>(), batcher) == 0) {
+                return 2;
             }
-            commitTerms(termBatch);
+            batcher.flush();
             return 0;
-        } catch (SolrServerException ex) {
+        } catch (SolrServerException | IOException ex) {
             this.logger.warn("Failed to index ontology: {}", ex.getMessage());
-        } catch (IOException ex) {
-            this.logger.warn("Failed to communicate with the Solr server while indexing ontology: {}", ex.getMessage());
         } catch (OutOfMemoryError ex) {
             this.logger.warn("Failed to add terms to the Solr. Ran out of memory. {}", ex.getMessage());
         }
@@ -133,27 +226,8 @@ protected int index(String sourceUrl)
     protected void commitTerms(Collection<SolrInputDocument> batch)
         throws SolrServerException, IOException, OutOfMemoryError
     {
-        this.externalServicesAccess.getSolrConnection().add(batch);
-        this.externalServicesAccess.getSolrConnection().commit();
-        this.externalServicesAccess.getTermCache().removeAll();
-    }
-
-    /**
-     * Delete all the data in the Solr index.
-     *
-     * @return {@code 0} if the command was successful, {@code 1} otherwise
-     */
-    protected int clear()
-    {
-        try {
-            this.externalServicesAccess.getSolrConnection().deleteByQuery("*:*");
-            return 0;
-        } catch (SolrServerException ex) {
-            this.logger.error("SolrServerException while clearing the Solr index", ex);
-        } catch (IOException ex) {
-            this.logger.error("IOException while clearing the Solr index", ex);
-        }
-        return 1;
+        getIndexingConnection().add(batch);
+        getIndexingConnection().commit();
     }
 
     @Override
@@ -179,4 +253,38 @@ public String getVersion()
         }
         return null;
     }
+
+    /**
+     * Converts parsed terms into Solr documents and commits them in batches of {@link #getSolrDocsPerBatch()}.
+     */
+    private final class TermBatcher implements TermHandler
+    {
+        private final List<SolrInputDocument> batch = new ArrayList<>();
+
+        @Override
+        public void handle(TermData term) throws IOException
+        {
+            SolrInputDocument doc = new SolrInputDocument();
+            for (Map.Entry<String, Collection<String>> property : term.entrySet()) {
+                String name = property.getKey();
+                for (String value : property.getValue()) {
+                    doc.addField(name, value, ParameterPreparer.DEFAULT_BOOST.floatValue());
+                }
+            }
+            this.batch.add(doc);
+            if (this.batch.size() >= getSolrDocsPerBatch()) {
+                try {
+                    flush();
+                } catch (SolrServerException ex) {
+                    throw new IOException(ex.getMessage(), ex);
+                }
+            }
+        }
+
+        void flush() throws SolrServerException, IOException
+        {
+            commitTerms(this.batch);
+            this.batch.clear();
+        }
+    }
 }
@@ -17,27 +17,47 @@
  */
 package org.phenotips.vocabulary.internal.solr;
 
+import org.phenotips.vocabulary.SolrCoreContainerHandler;
 import org.phenotips.vocabulary.SolrVocabularyResourceManager;
 import org.phenotips.vocabulary.Vocabulary;
 import org.phenotips.vocabulary.VocabularyTerm;
 
+import org.xwiki.cache.Cache;
+import org.xwiki.component.phase.Disposable;
 import org.xwiki.component.phase.Initializable;
 import org.xwiki.component.phase.InitializationException;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.inject.Inject;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.SolrException;
 import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.ModifiableSolrParams;
 import org.apache.solr.common.params.SolrParams;
@@ -51,7 +71,7 @@
  * @version $Id$
  * @since 1.2M4 (under different names since 1.0M8)
  */
-public abstract class AbstractSolrVocabulary implements Vocabulary, Initializable
+public abstract class AbstractSolrVocabulary implements Vocabulary, Initializable, Disposable
 {
     /** The name of the ID field. */
     protected static final String ID_FIELD_NAME = "id";
@@ -62,6 +82,15 @@ public abstract class AbstractSolrVocabulary implements Vocabulary, Initializabl
      */
     private static final VocabularyTerm EMPTY_MARKER = new SolrVocabularyTerm(null, null);
 
+    /**
+     * The largest fraction of the current terms that a rebuilt index may lose; a new index with fewer terms is most
+     * likely built from a truncated or wrong source, and is not used.
+     */
+    private static final double MAX_TERM_LOSS = 0.2;
+
+    /** The maximum number of terms requested in a single Solr query, well below the default {@code rows} limit. */
+    private static final int TERMS_PER_QUERY = 500;
+
     /** Logging helper object. */
     @Inject
     protected Logger logger;
@@ -70,10 +99,50 @@ public abstract class AbstractSolrVocabulary implements Vocabulary, Initializabl
     @Inject
     protected SolrVocabularyResourceManager externalServicesAccess;
 
+    /** Provides access to the Solr cores, needed for rebuilding the index in a separate core. */
+    @Inject
+    private SolrCoreContainerHandler cores;
+
+    /** While the index is being rebuilt in a shadow core, the connection to that core. */
+    private volatile SolrClient shadowConnection;
+
+    /**
+     * Runs the Solr queries needed by large {@link #getTerms(Collection)} requests in parallel. Started when the
+     * component is initialized, and stopped when it is disposed.
+     */
+    private ExecutorService termFetchers;
+
+    /** The number of term lookups answered by the term cache, including lookups of missing terms. */
+    private final AtomicLong termCacheHits = new AtomicLong();
+
+    /** The number of term lookups that had to query Solr. */
+    private final AtomicLong termCacheMisses = new AtomicLong();
+
     @Override
     public void initialize() throws InitializationException
     {
         this.externalServicesAccess.initialize(this.getCoreName());
+        this.termFetchers = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()),
+            new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable task)
+                {
+                    Thread thread = new Thread(task, "Vocabulary term fetcher [" + getCoreName() + ']');
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        warmUpTermCache();
+    }
+
+    @Override
+    public void dispose()
+    {
+        if (this.termFetchers != null) {
+            this.termFetchers.shutdownNow();
+        }
+        this.externalServicesAccess.dispose();
     }
 
     // Dilemma:
@@ -92,6 +161,7 @@ public VocabularyTerm getTerm(String id)
     {
         VocabularyTerm result = this.externalServicesAccess.getTermCache().get(id);
         if (result == null) {
+            this.termCacheMisses.incrementAndGet();
             ModifiableSolrParams params = new ModifiableSolrParams();
             params.set(CommonParams.Q, ID_FIELD_NAME + ':' + ClientUtils.escapeQueryChars(id));
             SolrDocumentList allResults = this.search(params);
@@ -101,6 +171,8 @@ public VocabularyTerm getTerm(String id)
             } else {
                 this.externalServicesAccess.getTermCache().set(id, EMPTY_MARKER);
             }
+        } else {
+            this.termCacheHits.incrementAndGet();
         }
         return (result == EMPTY_MARKER) ? null : result;
     }
@@ -108,30 +180,68 @@ public VocabularyTerm getTerm(String id)
     @Override
     public Set<VocabularyTerm> getTerms(Collection<String> ids)
     {
-        Set<VocabularyTerm> result = new LinkedHashSet<VocabularyTerm>();
-        StringBuilder query = new StringBuilder("id:(");
+        Cache<VocabularyTerm> cache = this.externalServicesAccess.getTermCache();
+        // Keeps the requested order; null values are placeholders for terms not found in the cache
+        Map<String, VocabularyTerm> terms = new LinkedHashMap<>();
+        Set<String> missing = new LinkedHashSet<>();
         for (String id : ids) {
-            VocabularyTerm cachedTerm = this.externalServicesAccess.getTermCache().get(id);
-            if (cachedTerm != null) {
-                if (cachedTerm != EMPTY_MARKER) {
-                    result.add(cachedTerm);
+            VocabularyTerm cachedTerm = cache.get(id);
+            if (cachedTerm == null) {
+                missing.add(id);
+            }
+            terms.put(id, cachedTerm);
+        }
+        this.termCacheHits.addAndGet(terms.size() - missing.size());
+        this.termCacheMisses.addAndGet(missing.size());
+
+        if (!missing.isEmpty()) {
+            Set<String> checked = new HashSet<>();
+            for (SolrDocument doc : fetchTerms(new ArrayList<>(missing), checked)) {
+                VocabularyTerm term = new SolrVocabularyTerm(doc, this);
+                cache.set(term.getId(), term);
+                if (terms.containsKey(term.getId())) {
+                    terms.put(term.getId(), term);
+                }
+            }
+            // Only the terms really missing from the index are marked as such, failed queries may succeed later
+            for (String id : missing) {
+                if (terms.get(id) == null && checked.contains(id)) {
+                    cache.set(id, EMPTY_MARKER);
                 }
-            } else {
-                query.append(ClientUtils.escapeQueryChars(id));
-                query.append(' ');
             }
         }
-        query.append(')');
 
-        // There's at least one more term not found in the cache
-        if (query.length() > 5) {
-            for (SolrDocument doc : this.search(SolrQueryUtils.transformQueryToSolrParams(query.toString()))) {
-                result.add(new SolrVocabularyTerm(doc, this));
+        Set<VocabularyTerm> result = new LinkedHashSet<>();
+        for (VocabularyTerm term : terms.values()) {
+            if (term != null && term != EMPTY_MARKER) {
+                result.add(term);
             }
         }
         return result;
     }
 
+    /**
+     * Get the number of term lookups answered from the term cache since this vocabulary was initialized.
+     *
+     * @return a positive number
+     * @since 1.3M1
+     */
+    public long getTermCacheHits()
+    {
+        return this.termCacheHits.get();
+    }
+
+    /**
+     * Get the number of term lookups which had to query the Solr index since this vocabulary was initialized.
+     *
+     * @return a positive number
+     * @since 1.3M1
+     */
+    public long getTermCacheMisses()
+    {
+        return this.termCacheMisses.get();
+    }
+
     @Override
     public List<VocabularyTerm> search(Map<String, ?> fieldValues)
     {
@@ -174,6 +284,88 @@ public String getVersion()
         return null;
     }
 
+    /**
+     * Rebuild the index from a source. The new index is built in a separate core while the live core keeps answering
+     * queries, and replaces the live core only if indexing succeeded and the new index doesn't have a lot fewer terms
+     * than the live one. If the separate core cannot be created, the live index is cleared and rebuilt in place.
+     *
+     * @param sourceUrl the address from where to get the vocabulary source file
+     * @return the result of {@link #index(String)}, or {@code 1} if the new index is empty or much smaller than the live
+     *         one, or if clearing the live index failed
+     * @since 1.3M1
+     */
+    protected synchronized int rebuildIndex(String sourceUrl)
+    {
+        SolrClient shadow = null;
+        try {
+            shadow = this.cores.createShadowCore(getCoreName());
+        } catch (IOException | SolrException ex) {
+            this.logger.warn("Failed to create a new core for reindexing [{}]: {}", getCoreName(), ex.getMessage());
+        }
+        int result;
+        if (shadow == null) {
+            this.logger.warn("The [{}] index will be rebuilt in place", getCoreName());
+            result = clear() == 0 ? index(sourceUrl) : 1;
+        } else {
+            try {
+                this.shadowConnection = shadow;
+                result = index(sourceUrl);
+                if (result == 0) {
+                    result = swapIfValid(shadow);
+                }
+            } finally {
+                this.shadowConnection = null;
+                // After a successful swap this is the old index, otherwise it is an incomplete one
+                this.cores.discardShadowCore(getCoreName());
+            }
+        }
+        if (result == 0) {
+            refreshTermCache();
+        }
+        return result;
+    }
+
+    /**
+     * Add the terms from a source to the index, through {@link #getIndexingConnection()}.
+     *
+     * @param sourceUrl the address from where to get the vocabulary source file
+     * @return {@code 0} if the indexing succeeded, {@code 1} if writing to the Solr server failed, {@code 2} if the
+     *         specified URL is invalid
+     * @since 1.3M1
+     */
+    protected abstract int index(String sourceUrl);
+
+    /**
+     * Get the connection where indexed terms must be written: the core being built while {@link #rebuildIndex(String)
+     * rebuilding the index}, the live core otherwise.
+     *
+     * @return a Solr client
+     * @since 1.3M1
+     */
+    protected SolrClient getIndexingConnection()
+    {
+        SolrClient shadow = this.shadowConnection;
+        return shadow != null ? shadow : this.externalServicesAccess.getSolrConnection();
+    }
+
+    /**
+     * Delete all the data in the Solr index.
+     *
+     * @return {@code 0} if the command was successful, {@code 1} otherwise
+     */
+    protected int clear()
+    {
+        try {
+            getIndexingConnection().deleteByQuery("*:*");
+            return 0;
+        } catch (SolrServerException ex) {
+            this.logger.error("SolrServerException while clearing the Solr index", ex);
+        } catch (IOException ex) {
+            this.logger.error("IOException while clearing the Solr index", ex);
+        }
+        return 1;
+    }
+
     @Override
     public long getDistance(String fromTermId, String toTermId)
     {
@@ -195,6 +387,152 @@ public List<VocabularyTerm> search(String input, int maxResults, String sort, St
         throw new UnsupportedOperationException();
     }
 
+    private int swapIfValid(SolrClient shadow)
+    {
+        try {
+            long terms = shadow.query(new SolrQuery("*:*").setRows(0)).getResults().getNumFound();
+            if (terms == 0) {
+                this.logger.warn("The new [{}] index is empty, keeping the current one", getCoreName());
+                return 1;
+            }
+            // Negative if the live index can't be counted, in which case there's nothing to compare with
+            long currentTerms = size();
+            if (terms < currentTerms * (1 - MAX_TERM_LOSS)) {
+                this.logger.warn("The new [{}] index only has {} terms instead of {}, keeping the current one",
+                    getCoreName(), terms, currentTerms);
+                return 1;
+            }
+            this.logger.info("Replacing the [{}] index, {} terms instead of {}", getCoreName(), terms, currentTerms);
+            this.cores.swapShadowCore(getCoreName());
+            return 0;
+        } catch (SolrServerException | IOException | SolrException ex) {
+            this.logger.warn("Failed to replace the [{}] index: {}", getCoreName(), ex.getMessage());
+            return 1;
+        }
+    }
+
+    /**
+     * Replace the term cache with a new one, filled with the current version of the most used terms. Meant to be
+     * called after the index is rebuilt, so that the cache neither serves stale terms nor starts empty.
+     */
+    protected void refreshTermCache()
+    {
+        Map<String, VocabularyTerm> terms = new HashMap<>();
+        Collection<String> frequent = this.externalServicesAccess.getFrequentlyUsedTerms();
+        if (!frequent.isEmpty()) {
+            for (SolrDocument doc : fetchTerms(new ArrayList<>(frequent), new HashSet<String>())) {
+                VocabularyTerm term = new SolrVocabularyTerm(doc, this);
+                terms.put(term.getId(), term);
+            }
+        }
+        this.externalServicesAccess.replaceTermCache(terms);
+    }
+
+    /**
+     * Load the terms used most during the previous run in the term cache, in the background. The terms are stored
+     * directly in the cache, without looking them up first, so that warming up doesn't count as cache usage.
+     */
+    private void warmUpTermCache()
+    {
+        final Collection<String> frequent = this.externalServicesAccess.getFrequentlyUsedTerms();
+        if (frequent.isEmpty()) {
+            return;
+        }
+        Thread warmUp = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    Cache<VocabularyTerm> cache = AbstractSolrVocabulary.this.externalServicesAccess.getTermCache();
+                    for (SolrDocument doc : fetchTerms(new ArrayList<>(frequent), new HashSet<String>())) {
+                        VocabularyTerm term = new SolrVocabularyTerm(doc, AbstractSolrVocabulary.this);
+                        cache.set(term.getId(), term);
+                    }
+                } catch (RuntimeException ex) {
+                    AbstractSolrVocabulary.this.logger.warn("Failed to warm up the [{}] term cache: {}",
+                        getCoreName(), ex.getMessage());
+                }
+            }
+        }, "Vocabulary cache warm-up");
+        warmUp.setDaemon(true);
+        warmUp.start();
+    }
+
+    /**
+     * Fetch terms from Solr, splitting the identifiers in chunks small enough to be requested in one query. When more
+     * than one query is needed, the queries run in parallel.
+     *
+     * @param ids the identifiers of the terms to fetch
+     * @param checked will receive the identifiers which were successfully looked up, whether they were found or not;
+     *            identifiers from failed queries aren't added
+     * @return the documents found, in no particular order; identifiers not found in the index are skipped
+     */
+    private List<SolrDocument> fetchTerms(List<String> ids, Collection<String> checked)
+    {
+        List<SolrDocument> result = new ArrayList<>(ids.size());
+        ExecutorService fetchers = this.termFetchers;
+        if (ids.size() <= TERMS_PER_QUERY || fetchers == null) {
+            for (int start = 0; start < ids.size(); start += TERMS_PER_QUERY) {
+                List<String> chunk = ids.subList(start, Math.min(start + TERMS_PER_QUERY, ids.size()));
+                addAll(result, fetchTermsChunk(chunk), chunk, checked);
+            }
+            return result;
+        }
+        Map<List<String>, Future<SolrDocumentList>> chunks = new LinkedHashMap<>();
+        try {
+            for (int start = 0; start < ids.size(); start += TERMS_PER_QUERY) {
+                final List<String> chunk = ids.subList(start, Math.min(start + TERMS_PER_QUERY, ids.size()));
+                chunks.put(chunk, fetchers.submit(new Callable<SolrDocumentList>()
+                {
+                    @Override
+                    public SolrDocumentList call()
+                    {
+                        return fetchTermsChunk(chunk);
+                    }
+                }));
+            }
+        } catch (RejectedExecutionException ex) {
+            // The component is being disposed, the remaining chunks are not fetched
+            this.logger.debug("Not fetching more terms from [{}], shutting down", getCoreName());
+        }
+        for (Map.Entry<List<String>, Future<SolrDocumentList>> chunk : chunks.entrySet()) {
+            try {
+                addAll(result, chunk.getValue().get(), chunk.getKey(), checked);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException ex) {
+                this.logger.warn("Failed to fetch terms from [{}]: {}", getCoreName(), ex.getMessage());
+            }
+        }
+        return result;
+    }
+
+    private SolrDocumentList fetchTermsChunk(List<String> ids)
+    {
+        StringBuilder query = new StringBuilder("id:(");
+        for (String id : ids) {
+            query.append(ClientUtils.escapeQueryChars(id));
+            query.append(' ');
+        }
+        query.append(')');
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set(CommonParams.Q, query.toString());
+        params.set(CommonParams.ROWS, ids.size());
+        return this.search(params);
+    }
+
+    private void addAll(List<SolrDocument> target, SolrDocumentList source, List<String> ids,
+        Collection<String> checked)
+    {
+        // A null result means that the query failed
+        if (source != null) {
+            target.addAll(source);
+            checked.addAll(ids);
+        }
+    }
+
     /**
      * Perform a search, falling back on the suggested spellchecked query if the original query fails to return any
      * results.
@@ -26,14 +26,22 @@
 import org.xwiki.environment.Environment;
 
 import java.io.File;
+import java.io.IOException;
 
 import javax.inject.Inject;
 
+import org.apache.commons.io.FileUtils;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
 import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.CoreDescriptor;
+import org.slf4j.Logger;
 
 /**
  * Default implementation of {@link SolrCoreContainerHandler}, looking for the Solr configuration in a subdirectory of
- * the permanent directory called {@code solr}.
+ * the permanent directory called {@code solr}. The shadow core of a core {@code name} is called
+ * {@code name_reindex}, and lives in a sibling of the live core's directory; since swapping cores also swaps their
+ * directories, the live core alternates between these two directories from one reindex to the next.
  *
  * @version $Id$
  * @since 1.2M4 (under a different package since 1.0M13)
@@ -41,10 +49,18 @@
 @Component
 public class DefaultSolrCoreContainerHandler implements SolrCoreContainerHandler, Initializable, Disposable
 {
+    private static final String SHADOW_CORE_SUFFIX = "_reindex";
+
+    private static final String CONFIGURATION_DIRECTORY = "conf";
+
     /** Provides access to the configured permanent directory. */
     @Inject
     private Environment environment;
 
+    /** Logging helper object. */
+    @Inject
+    private Logger logger;
+
     /** The initialized core container. */
     private CoreContainer cores;
 
@@ -62,6 +78,46 @@ public CoreContainer getContainer()
         return this.cores;
     }
 
+    @Override
+    public synchronized SolrClient createShadowCore(String coreName) throws IOException
+    {
+        CoreDescriptor live = this.cores.getCoreDescriptor(coreName);
+        if (live == null || live.getInstanceDir() == null) {
+            this.logger.warn("Cannot locate the [{}] core on disk", coreName);
+            return null;
+        }
+        String shadowName = coreName + SHADOW_CORE_SUFFIX;
+        // Left behind by an interrupted reindex
+        discardShadowCore(coreName);
+
+        File liveDirectory = new File(live.getInstanceDir());
+        File shadowDirectory =
+            new File(liveDirectory.getParentFile(), shadowName.equals(liveDirectory.getName()) ? coreName : shadowName);
+        FileUtils.deleteDirectory(shadowDirectory);
+        FileUtils.copyDirectory(new File(liveDirectory, CONFIGURATION_DIRECTORY),
+            new File(shadowDirectory, CONFIGURATION_DIRECTORY));
+
+        CoreDescriptor shadow = new CoreDescriptor(this.cores, shadowName, shadowDirectory.getAbsolutePath());
+        this.cores.getCoresLocator().create(this.cores, shadow);
+        this.cores.create(shadow);
+        return new EmbeddedSolrServer(this.cores, shadowName);
+    }
+
+    @Override
+    public synchronized void swapShadowCore(String coreName)
+    {
+        this.cores.swap(coreName, coreName + SHADOW_CORE_SUFFIX);
+    }
+
+    @Override
+    public synchronized void discardShadowCore(String coreName)
+    {
+        String shadowName = coreName + SHADOW_CORE_SUFFIX;
+        if (this.cores.getAllCoreNames().contains(shadowName)) {
+            this.cores.unload(shadowName, true, true, false);
+        }
+    }
+
     @Override
     public void dispose() throws ComponentLifecycleException
     {
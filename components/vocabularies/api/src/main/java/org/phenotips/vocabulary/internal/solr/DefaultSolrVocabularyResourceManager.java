@@ -24,19 +24,47 @@
 import org.xwiki.cache.Cache;
 import org.xwiki.cache.CacheException;
 import org.xwiki.cache.CacheManager;
-import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.cache.config.LRUCacheConfiguration;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.annotation.InstantiationStrategy;
 import org.xwiki.component.descriptor.ComponentInstantiationStrategy;
 import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.inject.Inject;
+import javax.inject.Named;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.slf4j.Logger;
 
 /**
- * Default implementation for the {@link SolrVocabularyResourceManager} component.
+ * Default implementation for the {@link SolrVocabularyResourceManager} component. The term cache is a bounded LRU
+ * cache, configured per vocabulary in {@code xwiki.properties}:
+ * <dl>
+ * <dt>{@code phenotips.vocabularies.<name>.cache.maxEntries}</dt>
+ * <dd>the maximum number of terms kept in the cache, {@value #DEFAULT_MAX_ENTRIES} by default</dd>
+ * <dt>{@code phenotips.vocabularies.<name>.cache.timeToLive}</dt>
+ * <dd>how long a term is kept in the cache, in seconds; by default terms don't expire</dd>
+ * <dt>{@code phenotips.vocabularies.<name>.cache.warmUp}</dt>
+ * <dd>how many of the most used terms are remembered between restarts and reindexes, {@value #DEFAULT_WARM_UP} by
+ * default</dd>
+ * </dl>
+ * The cache statistics are exposed in JMX as {@code org.phenotips:type=VocabularyTermCache,name=<name>}.
  *
  * @version $Id$
  * @since 1.2M4 (under different names since 1.0M10)
@@ -45,11 +73,38 @@
 @InstantiationStrategy(ComponentInstantiationStrategy.PER_LOOKUP)
 public class DefaultSolrVocabularyResourceManager implements SolrVocabularyResourceManager
 {
+    private static final String CONFIGURATION_PREFIX = "phenotips.vocabularies.";
+
+    private static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    private static final int DEFAULT_WARM_UP = 500;
+
+    /** Suffix of the file, stored in the Solr home, where the most used terms of a vocabulary are saved. */
+    private static final String FREQUENT_TERMS_FILE_SUFFIX = ".frequentTerms";
+
+    /** Makes the identifiers of successive caches unique, since the old cache is still in use while a new one fills. */
+    private static final AtomicInteger CACHE_GENERATION = new AtomicInteger();
+
     /** @see #getSolrConnection() */
     private SolrClient core;
 
     /** @see #getTermCache() */
-    private Cache<VocabularyTerm> cache;
+    private MonitoredTermCache cache;
+
+    /** The name of the managed vocabulary. */
+    private String name;
+
+    /** The maximum number of terms in the cache. */
+    private int maxEntries;
+
+    /** How long terms are kept in the cache, in seconds, {@code 0} for no expiration. */
+    private int timeToLive;
+
+    /** How many of the most used terms are reported by {@link #getFrequentlyUsedTerms()}. */
+    private int warmUpSize;
+
+    /** The terms used most during the previous run, loaded at initialization. */
+    private List<String> previouslyUsedTerms = Collections.emptyList();
 
     /** Provides access to the Solr cores. */
     @Inject
@@ -59,17 +114,32 @@ public class DefaultSolrVocabularyResourceManager implements SolrVocabularyResou
     @Inject
     private CacheManager cacheFactory;
 
+    /** Provides the cache settings. */
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    /** Logging helper object. */
+    @Inject
+    private Logger logger;
+
     @Override
     public void initialize(String vocabularyName) throws InitializationException
     {
+        this.name = vocabularyName;
+        this.maxEntries = getSetting("maxEntries", DEFAULT_MAX_ENTRIES);
+        this.timeToLive = getSetting("timeToLive", 0);
+        this.warmUpSize = Math.min(getSetting("warmUp", DEFAULT_WARM_UP), this.maxEntries);
         try {
             this.core = new EmbeddedSolrServer(this.cores.getContainer(), vocabularyName);
-            this.cache = this.cacheFactory.createNewLocalCache(new CacheConfiguration());
+            this.cache = new MonitoredTermCache(createCache(), this.maxEntries, this.timeToLive);
         } catch (RuntimeException ex) {
             throw new InitializationException("Invalid Solr core: " + ex.getMessage());
         } catch (final CacheException ex) {
             throw new InitializationException("Cannot create cache: " + ex.getMessage());
         }
+        this.previouslyUsedTerms = loadFrequentlyUsedTerms();
+        registerMBean();
     }
 
     @Override
@@ -83,4 +153,107 @@ public SolrClient getSolrConnection()
     {
         return this.core;
     }
+
+    @Override
+    public Collection<String> getFrequentlyUsedTerms()
+    {
+        List<String> result = this.cache.getFrequentlyUsedTerms(this.warmUpSize);
+        return result.isEmpty() ? this.previouslyUsedTerms : result;
+    }
+
+    @Override
+    public void replaceTermCache(Map<String, VocabularyTerm> terms)
+    {
+        try {
+            this.cache.replace(createCache(), terms);
+        } catch (CacheException ex) {
+            this.logger.warn("Failed to create a new term cache for [{}], emptying the current one: {}", this.name,
+                ex.getMessage());
+            this.cache.removeAll();
+        }
+    }
+
+    @Override
+    public void dispose()
+    {
+        if (this.cache == null) {
+            return;
+        }
+        saveFrequentlyUsedTerms();
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(getMBeanName());
+        } catch (JMException ex) {
+            // Wasn't registered
+        }
+        this.cache.dispose();
+    }
+
+    private int getSetting(String setting, int defaultValue)
+    {
+        Integer value =
+            this.configuration.getProperty(CONFIGURATION_PREFIX + this.name + ".cache." + setting, Integer.class);
+        return (value == null || value < 0) ? defaultValue : value;
+    }
+
+    private Cache<VocabularyTerm> createCache() throws CacheException
+    {
+        LRUCacheConfiguration config = new LRUCacheConfiguration(
+            "phenotips.vocabulary." + this.name + ".terms." + CACHE_GENERATION.incrementAndGet(), this.maxEntries);
+        if (this.timeToLive > 0) {
+            config.getLRUEvictionConfiguration().setTimeToLive(this.timeToLive);
+        }
+        return this.cacheFactory.createNewLocalCache(config);
+    }
+
+    private ObjectName getMBeanName() throws JMException
+    {
+        return new ObjectName("org.phenotips:type=VocabularyTermCache,name=" + ObjectName.quote(this.name));
+    }
+
+    private void registerMBean()
+    {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName mbeanName = getMBeanName();
+            // A vocabulary which was looked up again replaces the statistics of its previous instance
+            if (server.isRegistered(mbeanName)) {
+                server.unregisterMBean(mbeanName);
+            }
+            server.registerMBean(this.cache, mbeanName);
+        } catch (JMException ex) {
+            this.logger.debug("Failed to register the [{}] term cache in JMX: {}", this.name, ex.getMessage());
+        }
+    }
+
+    private File getFrequentlyUsedTermsFile()
+    {
+        return new File(this.cores.getContainer().getSolrHome(), this.name + FREQUENT_TERMS_FILE_SUFFIX);
+    }
+
+    private List<String> loadFrequentlyUsedTerms()
+    {
+        try {
+            File file = getFrequentlyUsedTermsFile();
+            if (file.isFile()) {
+                List<String> terms = FileUtils.readLines(file, StandardCharsets.UTF_8);
+                return terms.subList(0, Math.min(terms.size(), this.warmUpSize));
+            }
+        } catch (IOException | RuntimeException ex) {
+            this.logger.debug("Failed to read the most used terms of [{}]: {}", this.name, ex.getMessage());
+        }
+        return Collections.emptyList();
+    }
+
+    private void saveFrequentlyUsedTerms()
+    {
+        List<String> terms = this.cache.getFrequentlyUsedTerms(this.warmUpSize);
+        if (terms.isEmpty()) {
+            return;
+        }
+        try {
+            FileUtils.writeLines(getFrequentlyUsedTermsFile(), StandardCharsets.UTF_8.name(), terms);
+        } catch (IOException | RuntimeException ex) {
+            this.logger.debug("Failed to save the most used terms of [{}]: {}", this.name, ex.getMessage());
+        }
+    }
 }
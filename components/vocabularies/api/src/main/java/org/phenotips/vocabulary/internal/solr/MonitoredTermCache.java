@@ -0,0 +1,382 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary.internal.solr;
+
+import org.phenotips.vocabulary.VocabularyTerm;
+
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.event.CacheEntryEvent;
+import org.xwiki.cache.event.CacheEntryListener;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Term cache wrapper which counts hits and misses, keeps track of how often each term is requested, and allows the
+ * underlying cache to be replaced atomically with a new, pre-filled one.
+ * <p>
+ * Term usage is estimated with a small, fixed size frequency sketch, which counts all the requested terms and
+ * periodically halves its counters so that old usage fades away. The identifiers of at most twice
+ * {@link #getMaxEntries()} terms are remembered as candidates for {@link #getFrequentlyUsedTerms(int)}; a new term
+ * replaces the least used candidates once it is requested more often than them. Only lookups count as usage, terms
+ * {@link #set set} directly, for example when warming up the cache, don't.
+ *
+ * @version $Id$
+ * @since 1.3M1
+ */
+public class MonitoredTermCache implements Cache<VocabularyTerm>, MonitoredTermCacheMBean
+{
+    /** The cache currently answering lookups, along with its size counter. */
+    private volatile Generation current;
+
+    /** @see #getMaxEntries() */
+    private final int maxEntries;
+
+    /** @see #getTimeToLive() */
+    private final int timeToLive;
+
+    /** @see #getHits() */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** @see #getMisses() */
+    private final AtomicLong misses = new AtomicLong();
+
+    /** Estimates how many times each term was requested recently. */
+    private final FrequencySketch usage;
+
+    /** The terms which may be reported as frequently used, at most twice {@link #maxEntries}. */
+    private final Set<String> candidates = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * The least used of the candidates kept the last time they were pruned; once the candidates are full, a term must
+     * be requested more often than this one before it can replace one of them.
+     */
+    private volatile String admissionLimit;
+
+    /** A cache replaced by a new one, disposed after the next replacement or when this cache is disposed. */
+    private Generation retired;
+
+    /** Listeners registered from outside, moved to the new cache when the underlying cache is replaced. */
+    private final List<CacheEntryListener<VocabularyTerm>> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Simple constructor.
+     *
+     * @param cache the initial underlying cache
+     * @param maxEntries the maximum number of entries configured for the underlying cache
+     * @param timeToLive the entry lifespan configured for the underlying cache, in seconds
+     */
+    public MonitoredTermCache(Cache<VocabularyTerm> cache, int maxEntries, int timeToLive)
+    {
+        this.maxEntries = maxEntries;
+        this.timeToLive = timeToLive;
+        this.current = new Generation(cache);
+        this.usage = new FrequencySketch(maxEntries);
+    }
+
+    @Override
+    public VocabularyTerm get(String key)
+    {
+        VocabularyTerm result = this.current.cache.get(key);
+        if (result == null) {
+            this.misses.incrementAndGet();
+        } else {
+            this.hits.incrementAndGet();
+        }
+        recordUsage(key);
+        return result;
+    }
+
+    @Override
+    public void set(String key, VocabularyTerm value)
+    {
+        this.current.cache.set(key, value);
+    }
+
+    @Override
+    public void remove(String key)
+    {
+        this.current.cache.remove(key);
+    }
+
+    @Override
+    public void removeAll()
+    {
+        Generation generation = this.current;
+        generation.cache.removeAll();
+        generation.size.set(0);
+    }
+
+    @Override
+    public void addCacheEntryListener(CacheEntryListener<VocabularyTerm> listener)
+    {
+        this.listeners.add(listener);
+        this.current.cache.addCacheEntryListener(listener);
+    }
+
+    @Override
+    public void removeCacheEntryListener(CacheEntryListener<VocabularyTerm> listener)
+    {
+        this.listeners.remove(listener);
+        this.current.cache.removeCacheEntryListener(listener);
+    }
+
+    @Override
+    public synchronized void dispose()
+    {
+        disposeRetired();
+        this.current.cache.dispose();
+    }
+
+    /**
+     * Fill a new cache with the given terms, then start using it instead of the current one. Until the new cache is
+     * filled, lookups are still answered by the old one. Since lookups started just before the switch may still use
+     * the old cache, it is only emptied right away, and disposed later, when it is replaced in turn, or when this cache
+     * is disposed.
+     *
+     * @param cache the new, empty, underlying cache
+     * @param content the terms to put in the new cache
+     */
+    public synchronized void replace(Cache<VocabularyTerm> cache, Map<String, VocabularyTerm> content)
+    {
+        Generation next = new Generation(cache);
+        for (Map.Entry<String, VocabularyTerm> entry : content.entrySet()) {
+            cache.set(entry.getKey(), entry.getValue());
+        }
+        for (CacheEntryListener<VocabularyTerm> listener : this.listeners) {
+            cache.addCacheEntryListener(listener);
+        }
+        Generation previous = this.current;
+        this.current = next;
+
+        disposeRetired();
+        for (CacheEntryListener<VocabularyTerm> listener : this.listeners) {
+            previous.cache.removeCacheEntryListener(listener);
+        }
+        previous.cache.removeAll();
+        this.retired = previous;
+    }
+
+    /**
+     * Get the terms requested most often since this cache was created.
+     *
+     * @param count the maximum number of terms to return
+     * @return a list of term identifiers, most requested first
+     */
+    public List<String> getFrequentlyUsedTerms(int count)
+    {
+        final Map<String, Integer> estimates = new HashMap<>();
+        for (String id : this.candidates) {
+            estimates.put(id, this.usage.estimate(id));
+        }
+        List<String> result = new ArrayList<>(estimates.keySet());
+        Collections.sort(result, new Comparator<String>()
+        {
+            @Override
+            public int compare(String o1, String o2)
+            {
+                return Integer.compare(estimates.get(o2), estimates.get(o1));
+            }
+        });
+        return new ArrayList<>(result.subList(0, Math.min(Math.min(count, this.maxEntries), result.size())));
+    }
+
+    @Override
+    public int getSize()
+    {
+        return this.current.size.get();
+    }
+
+    @Override
+    public int getMaxEntries()
+    {
+        return this.maxEntries;
+    }
+
+    @Override
+    public int getTimeToLive()
+    {
+        return this.timeToLive;
+    }
+
+    @Override
+    public long getHits()
+    {
+        return this.hits.get();
+    }
+
+    @Override
+    public long getMisses()
+    {
+        return this.misses.get();
+    }
+
+    @Override
+    public double getHitRatio()
+    {
+        long h = this.hits.get();
+        long total = h + this.misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    private void recordUsage(String key)
+    {
+        int estimate = this.usage.increment(key);
+        if (this.candidates.contains(key)) {
+            return;
+        }
+        String limit = this.admissionLimit;
+        if (this.candidates.size() < this.maxEntries || limit == null || estimate > this.usage.estimate(limit)) {
+            this.candidates.add(key);
+            if (this.candidates.size() > 2 * this.maxEntries) {
+                pruneCandidates();
+            }
+        }
+    }
+
+    /** Only keep the {@link #maxEntries} most used candidates, and only admit more used terms from now on. */
+    private synchronized void pruneCandidates()
+    {
+        if (this.candidates.size() <= 2 * this.maxEntries) {
+            return;
+        }
+        List<String> kept = getFrequentlyUsedTerms(this.maxEntries);
+        this.candidates.retainAll(kept);
+        this.admissionLimit = kept.isEmpty() ? null : kept.get(kept.size() - 1);
+    }
+
+    private void disposeRetired()
+    {
+        if (this.retired != null) {
+            this.retired.cache.dispose();
+            this.retired = null;
+        }
+    }
+
+    /**
+     * A count-min sketch: approximate request counters for any number of terms, in a fixed amount of memory. Each term
+     * increments one counter in each of several rows, chosen by different hash functions, and its count is estimated
+     * as the smallest of these counters, which may overestimate, but never underestimates, the real count. After a
+     * number of requests proportional to the size of the sketch, all the counters are halved.
+     */
+    private static final class FrequencySketch
+    {
+        private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+
+        private final AtomicIntegerArray counters;
+
+        private final int width;
+
+        private final int sampleSize;
+
+        private final AtomicInteger additions = new AtomicInteger();
+
+        FrequencySketch(int expectedEntries)
+        {
+            int size = Math.max(16, expectedEntries);
+            this.width = Integer.highestOneBit(size - 1) << 1;
+            this.counters = new AtomicIntegerArray(SEEDS.length * this.width);
+            this.sampleSize = 10 * this.width;
+        }
+
+        int increment(String key)
+        {
+            int result = Integer.MAX_VALUE;
+            for (int row = 0; row < SEEDS.length; ++row) {
+                result = Math.min(result, this.counters.incrementAndGet(getIndex(key, row)));
+            }
+            if (this.additions.incrementAndGet() >= this.sampleSize) {
+                age();
+            }
+            return result;
+        }
+
+        int estimate(String key)
+        {
+            int result = Integer.MAX_VALUE;
+            for (int row = 0; row < SEEDS.length; ++row) {
+                result = Math.min(result, this.counters.get(getIndex(key, row)));
+            }
+            return result;
+        }
+
+        private synchronized void age()
+        {
+            if (this.additions.get() < this.sampleSize) {
+                return;
+            }
+            this.additions.set(0);
+            for (int i = 0; i < this.counters.length(); ++i) {
+                this.counters.set(i, this.counters.get(i) >>> 1);
+            }
+        }
+
+        private int getIndex(String key, int row)
+        {
+            int hash = key.hashCode() * SEEDS[row];
+            hash ^= hash >>> 16;
+            return row * this.width + (hash & (this.width - 1));
+        }
+    }
+
+    /**
+     * An underlying cache and the number of entries it holds, counted from the cache events.
+     */
+    private static final class Generation implements CacheEntryListener<VocabularyTerm>
+    {
+        private final Cache<VocabularyTerm> cache;
+
+        private final AtomicInteger size = new AtomicInteger();
+
+        Generation(Cache<VocabularyTerm> cache)
+        {
+            this.cache = cache;
+            cache.addCacheEntryListener(this);
+        }
+
+        @Override
+        public void cacheEntryAdded(CacheEntryEvent<VocabularyTerm> event)
+        {
+            this.size.incrementAndGet();
+        }
+
+        @Override
+        public void cacheEntryRemoved(CacheEntryEvent<VocabularyTerm> event)
+        {
+            if (this.size.decrementAndGet() < 0) {
+                this.size.set(0);
+            }
+        }
+
+        @Override
+        public void cacheEntryModified(CacheEntryEvent<VocabularyTerm> event)
+        {
+            // The number of entries doesn't change
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary.internal.solr;
+
+/**
+ * Monitoring view of a vocabulary term cache, exposed through JMX.
+ *
+ * @version $Id$
+ * @since 1.3M1
+ */
+public interface MonitoredTermCacheMBean
+{
+    /**
+     * The number of entries currently held in the cache, including the markers for terms known to be missing.
+     *
+     * @return a positive number
+     */
+    int getSize();
+
+    /**
+     * The maximum number of entries the cache holds before evicting the least recently used ones.
+     *
+     * @return a positive number
+     */
+    int getMaxEntries();
+
+    /**
+     * How long an entry is kept in the cache.
+     *
+     * @return a duration in seconds, {@code 0} if entries don't expire
+     */
+    int getTimeToLive();
+
+    /**
+     * The number of lookups answered by the cache, including lookups of terms known to be missing.
+     *
+     * @return a positive number
+     */
+    long getHits();
+
+    /**
+     * The number of lookups which were not answered by the cache.
+     *
+     * @return a positive number
+     */
+    long getMisses();
+
+    /**
+     * The fraction of lookups answered by the cache.
+     *
+     * @return a number between {@code 0} and {@code 1}, {@code 0} if there were no lookups yet
+     */
+    double getHitRatio();
+}
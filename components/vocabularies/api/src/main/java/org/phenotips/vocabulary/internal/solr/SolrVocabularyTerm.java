@@ -17,6 +17,7 @@
  */
 package org.phenotips.vocabulary.internal.solr;
 
+import org.phenotips.obo2solr.TermHierarchy;
 import org.phenotips.vocabulary.Vocabulary;
 import org.phenotips.vocabulary.VocabularyTerm;
 
@@ -185,6 +186,12 @@ public long getDistanceTo(final VocabularyTerm other)
         if (this.equals(other)) {
             return 0;
         }
+        if (this.ontology instanceof AbstractOBOSolrVocabulary) {
+            TermHierarchy hierarchy = ((AbstractOBOSolrVocabulary) this.ontology).getHierarchy();
+            if (hierarchy != null && hierarchy.contains(getId()) && hierarchy.contains(other.getId())) {
+                return hierarchy.getDistance(getId(), other.getId());
+            }
+        }
 
         long distance = Integer.MAX_VALUE;
 
@@ -0,0 +1,183 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary.internal.solr;
+
+import org.phenotips.vocabulary.VocabularyTerm;
+
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.event.CacheEntryListener;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.Mockito;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for {@link MonitoredTermCache}.
+ */
+public class MonitoredTermCacheTest
+{
+    private Cache<VocabularyTerm> delegate;
+
+    private MonitoredTermCache cache;
+
+    @SuppressWarnings("unchecked")
+    @Before
+    public void setUp()
+    {
+        this.delegate = mock(Cache.class);
+        this.cache = new MonitoredTermCache(this.delegate, 3, 60);
+    }
+
+    @Test
+    public void lookupsAreCounted()
+    {
+        VocabularyTerm term = mock(VocabularyTerm.class);
+        when(this.delegate.get("HP:1")).thenReturn(term);
+
+        Assert.assertSame(term, this.cache.get("HP:1"));
+        Assert.assertSame(term, this.cache.get("HP:1"));
+        Assert.assertNull(this.cache.get("HP:2"));
+
+        Assert.assertEquals(2, this.cache.getHits());
+        Assert.assertEquals(1, this.cache.getMisses());
+        Assert.assertEquals(2.0 / 3, this.cache.getHitRatio(), 0.0001);
+        Assert.assertEquals(3, this.cache.getMaxEntries());
+        Assert.assertEquals(60, this.cache.getTimeToLive());
+    }
+
+    @Test
+    public void hitRatioIsZeroWithoutLookups()
+    {
+        Assert.assertEquals(0, this.cache.getHitRatio(), 0);
+    }
+
+    @Test
+    public void frequentlyUsedTermsAreSortedByUsage()
+    {
+        this.cache.get("HP:1");
+        this.cache.get("HP:2");
+        this.cache.get("HP:2");
+        this.cache.get("HP:3");
+        this.cache.get("HP:3");
+        this.cache.get("HP:3");
+        this.cache.get("HP:4");
+        this.cache.get("HP:4");
+        this.cache.get("HP:4");
+        this.cache.get("HP:4");
+
+        Assert.assertEquals(Arrays.asList("HP:4", "HP:3"), this.cache.getFrequentlyUsedTerms(2));
+        // No more terms than the cache can hold are reported
+        Assert.assertEquals(Arrays.asList("HP:4", "HP:3", "HP:2"), this.cache.getFrequentlyUsedTerms(10));
+    }
+
+    @Test
+    public void termsRequestedLaterCanBecomeFrequentlyUsed()
+    {
+        for (int i = 0; i < 10; ++i) {
+            this.cache.get("HP:" + i);
+        }
+        for (int i = 0; i < 5; ++i) {
+            this.cache.get("HP:1000");
+        }
+
+        Assert.assertEquals(Collections.singletonList("HP:1000"), this.cache.getFrequentlyUsedTerms(1));
+        Assert.assertEquals(3, this.cache.getFrequentlyUsedTerms(10).size());
+    }
+
+    @Test
+    public void storedTermsDoNotCountAsUsage()
+    {
+        this.cache.set("HP:1", mock(VocabularyTerm.class));
+
+        Assert.assertTrue(this.cache.getFrequentlyUsedTerms(10).isEmpty());
+        Assert.assertEquals(0, this.cache.getHits());
+        Assert.assertEquals(0, this.cache.getMisses());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void sizeFollowsCacheEvents()
+    {
+        ArgumentCaptor<CacheEntryListener> listener = ArgumentCaptor.forClass(CacheEntryListener.class);
+        verify(this.delegate).addCacheEntryListener(listener.capture());
+
+        listener.getValue().cacheEntryAdded(null);
+        listener.getValue().cacheEntryAdded(null);
+        listener.getValue().cacheEntryModified(null);
+        Assert.assertEquals(2, this.cache.getSize());
+
+        listener.getValue().cacheEntryRemoved(null);
+        Assert.assertEquals(1, this.cache.getSize());
+
+        this.cache.removeAll();
+        Assert.assertEquals(0, this.cache.getSize());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void replaceFillsNewCacheBeforeSwitching()
+    {
+        CacheEntryListener<VocabularyTerm> external = mock(CacheEntryListener.class);
+        this.cache.addCacheEntryListener(external);
+        Cache<VocabularyTerm> fresh = mock(Cache.class);
+        VocabularyTerm term = mock(VocabularyTerm.class);
+        when(fresh.get("HP:1")).thenReturn(term);
+
+        this.cache.replace(fresh, Collections.singletonMap("HP:1", term));
+
+        InOrder order = Mockito.inOrder(fresh, this.delegate);
+        order.verify(fresh).set("HP:1", term);
+        order.verify(this.delegate).removeCacheEntryListener(external);
+        order.verify(this.delegate).removeAll();
+        verify(fresh).addCacheEntryListener(external);
+        Assert.assertSame(term, this.cache.get("HP:1"));
+        verify(this.delegate, never()).get(any(String.class));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void replacedCachesAreDisposedLater()
+    {
+        Cache<VocabularyTerm> second = mock(Cache.class);
+        Cache<VocabularyTerm> third = mock(Cache.class);
+
+        this.cache.replace(second, Collections.<String, VocabularyTerm>emptyMap());
+        // Lookups which started before the switch may still use the old cache
+        verify(this.delegate, never()).dispose();
+
+        this.cache.replace(third, Collections.<String, VocabularyTerm>emptyMap());
+        verify(this.delegate).dispose();
+        verify(second, never()).dispose();
+
+        this.cache.dispose();
+        verify(second).dispose();
+        verify(third).dispose();
+    }
+}
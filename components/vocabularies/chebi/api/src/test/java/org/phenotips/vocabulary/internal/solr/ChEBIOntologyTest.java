@@ -86,7 +86,8 @@ public void testChEBIOntologyReindex()
         Mockito.verify(this.server).deleteByQuery("*:*");
         Mockito.verify(this.server, Mockito.atLeast(1)).commit();
         Mockito.verify(this.server, Mockito.atLeast(1)).add(Matchers.anyCollectionOf(SolrInputDocument.class));
-        Mockito.verify(this.cache, Mockito.atLeast(1)).removeAll();
+        Mockito.verify(this.mocker.getInstance(SolrVocabularyResourceManager.class))
+            .replaceTermCache(Matchers.anyMapOf(String.class, VocabularyTerm.class));
         Mockito.verifyNoMoreInteractions(this.cache, this.server);
         Assert.assertTrue(this.ontologyServiceResult == 0);
     }
@@ -99,6 +99,13 @@ public String getDefaultSourceLocation()
         throw new UnsupportedOperationException();
     }
 
+    @Override
+    protected int index(String sourceUrl)
+    {
+        // The ethnicity index is distributed already built, there is no source to index
+        throw new UnsupportedOperationException();
+    }
+
     @Override
     public Set<String> getAliases()
     {
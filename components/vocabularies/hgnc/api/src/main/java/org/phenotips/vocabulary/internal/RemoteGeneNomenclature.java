@@ -27,12 +27,14 @@
 import org.xwiki.cache.eviction.EntryEvictionConfiguration;
 import org.xwiki.cache.eviction.LRUEvictionConfiguration;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
 import org.xwiki.component.phase.Initializable;
 import org.xwiki.component.phase.InitializationException;
 import org.xwiki.configuration.ConfigurationSource;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
 import java.net.URLEncoder;
 import java.util.Collection;
 import java.util.Collections;
@@ -43,10 +45,24 @@
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
@@ -57,6 +73,7 @@
 import org.apache.http.entity.ContentType;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.params.CommonParams;
 import org.json.JSONArray;
@@ -73,7 +90,7 @@
 @Component
 @Named("hgncRemote")
 @Singleton
-public class RemoteGeneNomenclature implements Vocabulary, Initializable
+public class RemoteGeneNomenclature implements Vocabulary, Initializable, Disposable
 {
     /**
      * Object used to mark in the cache that a term doesn't exist, since null means that the cache doesn't contain the
@@ -93,6 +110,17 @@ public class RemoteGeneNomenclature implements Vocabulary, Initializable
 
     private static final Map<String, String> QUERY_OPERATORS = new HashMap<>();
 
+    private static final String CONFIGURATION_PREFIX = "phenotips.ontologies.hgnc.";
+
+    /** The default number of requests sent to the remote service at the same time. */
+    private static final int DEFAULT_MAX_CONNECTIONS = 20;
+
+    /** The default maximum number of terms held in the cache. */
+    private static final int DEFAULT_CACHE_SIZE = 10000;
+
+    /** The default time, in seconds, after which a cached term is fetched again; gene names rarely change. */
+    private static final int DEFAULT_CACHE_TIME_TO_LIVE = 86400;
+
     @Inject
     @Named("xwikiproperties")
     private ConfigurationSource configuration;
@@ -105,8 +133,21 @@ public class RemoteGeneNomenclature implements Vocabulary, Initializable
 
     private String fetchServiceURL;
 
+    /** Keeps the connections to the remote REST service open, so that they can be reused by subsequent requests. */
+    private final PoolingHttpClientConnectionManager connections = new PoolingHttpClientConnectionManager();
+
     /** Performs HTTP requests to the remote REST service. */
-    private final CloseableHttpClient client = HttpClients.createSystem();
+    private final CloseableHttpClient client =
+        HttpClients.custom().useSystemProperties().setConnectionManager(this.connections).build();
+
+    /** Sends the requests needed by {@link #getTerms(Collection)} in parallel. */
+    private ExecutorService fetchers;
+
+    /** The terms currently being fetched, so that concurrent lookups of the same term share a single request. */
+    private final ConcurrentMap<String, Lookup> pendingLookups = new ConcurrentHashMap<>();
+
+    /** Request counters and latencies, exposed through JMX. */
+    private final RemoteRequestStatistics statistics = new RemoteRequestStatistics();
 
     @Inject
     private Logger logger;
@@ -129,11 +170,14 @@ public void initialize() throws InitializationException
     {
         try {
             this.baseServiceURL =
-                this.configuration.getProperty("phenotips.ontologies.hgnc.serviceURL", "http://rest.genenames.org/");
+                this.configuration.getProperty(CONFIGURATION_PREFIX + "serviceURL", "http://rest.genenames.org/");
             this.searchServiceURL = this.baseServiceURL + "search/";
             this.infoServiceURL = this.baseServiceURL + "info";
             this.fetchServiceURL = this.baseServiceURL + "fetch/";
-            this.cache = this.cacheFactory.createNewLocalCache(new CacheConfiguration());
+            EntryEvictionConfiguration termConfig =
+                new LRUEvictionConfiguration(getSetting("cache.maxEntries", DEFAULT_CACHE_SIZE));
+            termConfig.setTimeToLive(getSetting("cache.timeToLive", DEFAULT_CACHE_TIME_TO_LIVE));
+            this.cache = this.cacheFactory.createNewLocalCache(new CacheConfiguration(termConfig));
             EntryEvictionConfiguration infoConfig = new LRUEvictionConfiguration(1);
             infoConfig.setTimeToLive(300);
             this.infoCache = this.cacheFactory.createNewLocalCache(new CacheConfiguration(infoConfig));
@@ -143,35 +187,50 @@ public void initialize() throws InitializationException
         QUERY_OPERATORS.put("OR", "");
         QUERY_OPERATORS.put(DEFAULT_OPERATOR, DEFAULT_OPERATOR + ' ');
         QUERY_OPERATORS.put("NOT", "-");
+
+        int maxConnections = getSetting("maxConnections", DEFAULT_MAX_CONNECTIONS);
+        this.connections.setMaxTotal(maxConnections);
+        this.connections.setDefaultMaxPerRoute(maxConnections);
+        if (this.fetchers != null) {
+            this.fetchers.shutdown();
+        }
+        this.fetchers = Executors.newFixedThreadPool(maxConnections, new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable task)
+            {
+                Thread thread = new Thread(task, "HGNC term fetcher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        registerMBean();
+    }
+
+    @Override
+    public void dispose()
+    {
+        if (this.fetchers != null) {
+            this.fetchers.shutdownNow();
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(getMBeanName());
+        } catch (JMException ex) {
+            // Wasn't registered
+        }
+        try {
+            this.client.close();
+        } catch (IOException ex) {
+            this.logger.debug("Failed to close the HGNC connections: {}", ex.getMessage());
+        }
     }
 
     @Override
     public VocabularyTerm getTerm(String id)
     {
         VocabularyTerm result = this.cache.get(id);
-        String safeID;
         if (result == null) {
-            try {
-                safeID = URLEncoder.encode(id, Consts.UTF_8.name());
-            } catch (UnsupportedEncodingException e) {
-                safeID = id.replaceAll("\\s", "");
-                this.logger.warn("Could not find the encoding: {}", Consts.UTF_8.name());
-            }
-            HttpGet method = new HttpGet(this.fetchServiceURL + "symbol/" + safeID);
-            method.setHeader(HttpHeaders.ACCEPT, ContentType.APPLICATION_JSON.getMimeType());
-            try (CloseableHttpResponse httpResponse = this.client.execute(method)) {
-                String response = IOUtils.toString(httpResponse.getEntity().getContent(), Consts.UTF_8);
-                JSONObject responseJSON = new JSONObject(response);
-                JSONArray docs = responseJSON.getJSONObject(RESPONSE_KEY).getJSONArray(DATA_KEY);
-                if (docs.length() == 1) {
-                    result = new JSONOntologyTerm(docs.getJSONObject(0), this);
-                    this.cache.set(id, result);
-                } else {
-                    this.cache.set(id, EMPTY_MARKER);
-                }
-            } catch (IOException | JSONException ex) {
-                this.logger.warn("Failed to fetch gene definition: {}", ex.getMessage());
-            }
+            result = getResult(lookup(id, false));
         }
         return (result == EMPTY_MARKER) ? null : result;
     }
@@ -179,11 +238,28 @@ public VocabularyTerm getTerm(String id)
     @Override
     public Set<VocabularyTerm> getTerms(Collection<String> ids)
     {
-        // FIXME Reimplement with a bunch of async connections fired in parallel
-        Set<VocabularyTerm> result = new LinkedHashSet<>();
+        // Start fetching all the missing terms at once, then wait for them
+        Map<String, VocabularyTerm> cached = new HashMap<>();
+        Map<String, Future<VocabularyTerm>> lookups = new HashMap<>();
         for (String id : ids) {
-            VocabularyTerm term = getTerm(id);
+            if (cached.containsKey(id) || lookups.containsKey(id)) {
+                continue;
+            }
+            VocabularyTerm term = this.cache.get(id);
             if (term != null) {
+                cached.put(id, term);
+            } else {
+                lookups.put(id, lookup(id, true));
+            }
+        }
+
+        Set<VocabularyTerm> result = new LinkedHashSet<>();
+        for (String id : ids) {
+            VocabularyTerm term = cached.get(id);
+            if (term == null && lookups.containsKey(id)) {
+                term = getResult(lookups.get(id));
+            }
+            if (term != null && term != EMPTY_MARKER) {
                 result.add(term);
             }
         }
@@ -339,6 +415,109 @@ public String getVersion()
         return info == null ? "" : info.getString("lastModified");
     }
 
+    /**
+     * Start fetching a term from the remote service, unless the same term is already being fetched.
+     *
+     * @param id the identifier of the term to fetch
+     * @param inBackground whether to send the request in a separate thread, or in the current thread
+     * @return the pending result of the lookup
+     */
+    private Future<VocabularyTerm> lookup(String id, boolean inBackground)
+    {
+        Lookup lookup = new Lookup(id);
+        Lookup pending = this.pendingLookups.putIfAbsent(id, lookup);
+        if (pending != null) {
+            this.statistics.requestCoalesced();
+            return pending;
+        }
+        if (inBackground) {
+            try {
+                this.fetchers.execute(lookup);
+            } catch (RejectedExecutionException ex) {
+                // Shutting down
+                lookup.cancel(false);
+            }
+        } else {
+            lookup.run();
+        }
+        return lookup;
+    }
+
+    private VocabularyTerm getResult(Future<VocabularyTerm> lookup)
+    {
+        try {
+            return lookup.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | CancellationException ex) {
+            this.logger.warn("Failed to fetch gene definition: {}", ex.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Fetch a term from the remote service, and cache the result.
+     *
+     * @param id the identifier of the term to fetch
+     * @return the term, {@link #EMPTY_MARKER} if the term doesn't exist, or {@code null} if the request failed
+     */
+    private VocabularyTerm fetch(String id)
+    {
+        String safeID;
+        try {
+            safeID = URLEncoder.encode(id, Consts.UTF_8.name());
+        } catch (UnsupportedEncodingException e) {
+            safeID = id.replaceAll("\\s", "");
+            this.logger.warn("Could not find the encoding: {}", Consts.UTF_8.name());
+        }
+        HttpGet method = new HttpGet(this.fetchServiceURL + "symbol/" + safeID);
+        method.setHeader(HttpHeaders.ACCEPT, ContentType.APPLICATION_JSON.getMimeType());
+        long startTime = System.nanoTime();
+        boolean successful = false;
+        try (CloseableHttpResponse httpResponse = this.client.execute(method)) {
+            String response = IOUtils.toString(httpResponse.getEntity().getContent(), Consts.UTF_8);
+            JSONObject responseJSON = new JSONObject(response);
+            JSONArray docs = responseJSON.getJSONObject(RESPONSE_KEY).getJSONArray(DATA_KEY);
+            successful = true;
+            VocabularyTerm result = EMPTY_MARKER;
+            if (docs.length() == 1) {
+                result = new JSONOntologyTerm(docs.getJSONObject(0), this);
+            }
+            this.cache.set(id, result);
+            return result;
+        } catch (IOException | JSONException ex) {
+            this.logger.warn("Failed to fetch gene definition: {}", ex.getMessage());
+        } finally {
+            this.statistics.requestFinished(startTime, successful);
+        }
+        return null;
+    }
+
+    private int getSetting(String name, int defaultValue)
+    {
+        Integer value = this.configuration.getProperty(CONFIGURATION_PREFIX + name, Integer.class);
+        return (value == null || value <= 0) ? defaultValue : value;
+    }
+
+    private ObjectName getMBeanName() throws JMException
+    {
+        return new ObjectName("org.phenotips:type=RemoteVocabulary,name=" + ObjectName.quote(getIdentifier()));
+    }
+
+    private void registerMBean()
+    {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName mbeanName = getMBeanName();
+            if (server.isRegistered(mbeanName)) {
+                server.unregisterMBean(mbeanName);
+            }
+            server.registerMBean(this.statistics, mbeanName);
+        } catch (JMException ex) {
+            this.logger.debug("Failed to register the HGNC request statistics in JMX: {}", ex.getMessage());
+        }
+    }
+
     private JSONObject getInfo()
     {
         JSONObject info = this.infoCache.get("");
@@ -431,6 +610,33 @@ private StringBuilder processSubquery(StringBuilder query, Map.Entry<String, Map
         return query;
     }
 
+    /**
+     * A term lookup, which is no longer listed as pending once it is done.
+     */
+    private final class Lookup extends FutureTask<VocabularyTerm>
+    {
+        private final String id;
+
+        Lookup(final String id)
+        {
+            super(new Callable<VocabularyTerm>()
+            {
+                @Override
+                public VocabularyTerm call()
+                {
+                    return fetch(id);
+                }
+            });
+            this.id = id;
+        }
+
+        @Override
+        protected void done()
+        {
+            RemoteGeneNomenclature.this.pendingLookups.remove(this.id, this);
+        }
+    }
+
     private static class JSONOntologyTerm implements VocabularyTerm
     {
         private JSONObject data;
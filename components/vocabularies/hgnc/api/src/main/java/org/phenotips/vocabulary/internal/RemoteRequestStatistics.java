@@ -0,0 +1,97 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the number and latency of the requests sent to a remote vocabulary service.
+ *
+ * @version $Id$
+ * @since 1.3M1
+ */
+public class RemoteRequestStatistics implements RemoteRequestStatisticsMBean
+{
+    private final AtomicLong requests = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private final AtomicLong coalesced = new AtomicLong();
+
+    private final AtomicLong totalLatency = new AtomicLong();
+
+    private final AtomicLong maxLatency = new AtomicLong();
+
+    /**
+     * Record a finished request.
+     *
+     * @param startTime the value of {@link System#nanoTime()} when the request was sent
+     * @param successful whether a valid response was received
+     */
+    public void requestFinished(long startTime, boolean successful)
+    {
+        long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+        this.requests.incrementAndGet();
+        if (!successful) {
+            this.failures.incrementAndGet();
+        }
+        this.totalLatency.addAndGet(latency);
+        long max = this.maxLatency.get();
+        while (latency > max && !this.maxLatency.compareAndSet(max, latency)) {
+            max = this.maxLatency.get();
+        }
+    }
+
+    /** Record a lookup which reused a request already in progress. */
+    public void requestCoalesced()
+    {
+        this.coalesced.incrementAndGet();
+    }
+
+    @Override
+    public long getRequests()
+    {
+        return this.requests.get();
+    }
+
+    @Override
+    public long getFailures()
+    {
+        return this.failures.get();
+    }
+
+    @Override
+    public long getCoalescedRequests()
+    {
+        return this.coalesced.get();
+    }
+
+    @Override
+    public double getAverageLatency()
+    {
+        long count = this.requests.get();
+        return count == 0 ? 0 : (double) this.totalLatency.get() / count;
+    }
+
+    @Override
+    public long getMaxLatency()
+    {
+        return this.maxLatency.get();
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary.internal;
+
+/**
+ * Monitoring view of the requests sent to a remote vocabulary service, exposed through JMX.
+ *
+ * @version $Id$
+ * @since 1.3M1
+ */
+public interface RemoteRequestStatisticsMBean
+{
+    /**
+     * The number of requests sent to the remote service, including the failed ones.
+     *
+     * @return a positive number
+     */
+    long getRequests();
+
+    /**
+     * The number of requests which failed, because the service couldn't be reached or sent an invalid response.
+     *
+     * @return a positive number
+     */
+    long getFailures();
+
+    /**
+     * The number of lookups which didn't send a new request, since the same term was already being fetched.
+     *
+     * @return a positive number
+     */
+    long getCoalescedRequests();
+
+    /**
+     * The average time needed for a request.
+     *
+     * @return a duration in milliseconds, {@code 0} if there were no requests yet
+     */
+    double getAverageLatency();
+
+    /**
+     * The longest time needed for a request.
+     *
+     * @return a duration in milliseconds, {@code 0} if there were no requests yet
+     */
+    long getMaxLatency();
+}
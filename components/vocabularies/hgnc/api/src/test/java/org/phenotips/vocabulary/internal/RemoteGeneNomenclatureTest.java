@@ -33,23 +33,36 @@
 
 import java.io.IOException;
 import java.lang.reflect.Field;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.http.HttpEntity;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.json.JSONArray;
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Rule;
@@ -60,6 +73,10 @@
 import org.mockito.MockitoAnnotations;
 import org.mockito.internal.matchers.CapturingMatcher;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
@@ -96,6 +113,17 @@
 
     private VocabularyTerm emptyMarker;
 
+    /** The pooled client created by the component, used instead of the mocked client when testing against a server. */
+    private CloseableHttpClient realClient;
+
+    private HttpServer server;
+
+    private ExecutorService serverThreads;
+
+    private final List<String> requestedPaths = new CopyOnWriteArrayList<>();
+
+    private final List<String> requestedTypes = new CopyOnWriteArrayList<>();
+
     @Before
     public void setUp() throws ComponentLookupException, CacheException, NoSuchFieldException,
         IllegalArgumentException, IllegalAccessException
@@ -106,6 +134,7 @@ public void setUp() throws ComponentLookupException, CacheException, NoSuchField
         this.configuration = this.mocker.getInstance(ConfigurationSource.class, "xwikiproperties");
         when(this.configuration.getProperty("phenotips.ontologies.hgnc.serviceURL", "http://rest.genenames.org/"))
             .thenReturn("http://rest.genenames.org/");
+        this.realClient = (CloseableHttpClient) getFieldValue("client");
         ReflectionUtils.setFieldValue(this.mocker.getComponentUnderTest(), "client", this.client);
         Field em = ReflectionUtils.getField(RemoteGeneNomenclature.class, "EMPTY_MARKER");
         em.setAccessible(true);
@@ -211,23 +240,104 @@ public void getTermWithExceptionReturnsNull() throws ComponentLookupException, U
     }
 
     @Test
-    public void getTermsFetchesFromRemoteServer() throws ComponentLookupException, URISyntaxException,
-        ClientProtocolException, IOException
+    public void getTermsFetchesFromRemoteServer() throws Exception
     {
-        URI expectedURI1 = new URI("http://rest.genenames.org/fetch/symbol/BRCA1");
-        URI expectedURI2 = new URI("http://rest.genenames.org/fetch/symbol/NOTHING");
-        CapturingMatcher<HttpUriRequest> reqCapture = new CapturingMatcher<>();
-        when(this.client.execute(Matchers.argThat(reqCapture))).thenReturn(this.response);
-        when(this.response.getEntity()).thenReturn(this.responseEntity);
-        when(this.responseEntity.getContent()).thenReturn(ClassLoader.getSystemResourceAsStream("BRCA1.json"),
-            ClassLoader.getSystemResourceAsStream("NOTHING.json"));
+        startStubServer(new StubHandler()
+        {
+            @Override
+            String getResponse(String symbol)
+            {
+                return "BRCA1".equals(symbol) ? "BRCA1.json" : "NOTHING.json";
+            }
+        });
         Set<VocabularyTerm> result = this.mocker.getComponentUnderTest().getTerms(Arrays.asList("BRCA1", "NOTHING"));
-        List<HttpUriRequest> calledURIs = reqCapture.getAllValues();
-        Assert.assertEquals(expectedURI1, calledURIs.get(0).getURI());
-        Assert.assertEquals(expectedURI2, calledURIs.get(1).getURI());
-        Assert.assertEquals("application/json", reqCapture.getLastValue().getLastHeader("Accept").getValue());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("/fetch/symbol/BRCA1", "/fetch/symbol/NOTHING")),
+            new HashSet<>(this.requestedPaths));
+        Assert.assertEquals(Arrays.asList("application/json", "application/json"), this.requestedTypes);
         Assert.assertEquals(1, result.size());
-        Assert.assertEquals("BRCA1", result.iterator().next().getId());
+        VocabularyTerm term = result.iterator().next();
+        Assert.assertEquals("BRCA1", term.getId());
+        verify(this.cache).set("BRCA1", term);
+        verify(this.cache).set("NOTHING", this.emptyMarker);
+        RemoteRequestStatistics statistics = (RemoteRequestStatistics) getFieldValue("statistics");
+        Assert.assertEquals(2, statistics.getRequests());
+        Assert.assertEquals(0, statistics.getFailures());
+    }
+
+    @Test
+    public void getTermsSendsRequestsInParallel() throws Exception
+    {
+        final CountDownLatch allReceived = new CountDownLatch(3);
+        final AtomicBoolean sequential = new AtomicBoolean();
+        startStubServer(new StubHandler()
+        {
+            @Override
+            String getResponse(String symbol) throws InterruptedException
+            {
+                // Only answer once all the requests were received
+                allReceived.countDown();
+                if (!allReceived.await(5, TimeUnit.SECONDS)) {
+                    sequential.set(true);
+                }
+                return "NOTHING.json";
+            }
+        });
+        Set<VocabularyTerm> result = this.mocker.getComponentUnderTest().getTerms(Arrays.asList("A", "B", "C"));
+        Assert.assertTrue(result.isEmpty());
+        Assert.assertFalse(sequential.get());
+        Assert.assertEquals(3, this.requestedPaths.size());
+    }
+
+    @Test
+    public void concurrentLookupsOfTheSameTermShareOneRequest() throws Exception
+    {
+        final CountDownLatch received = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        startStubServer(new StubHandler()
+        {
+            @Override
+            String getResponse(String symbol) throws InterruptedException
+            {
+                received.countDown();
+                release.await(5, TimeUnit.SECONDS);
+                return "BRCA1.json";
+            }
+        });
+        final Vocabulary component = this.mocker.getComponentUnderTest();
+        final Map<String, VocabularyTerm> results = new ConcurrentHashMap<>();
+        Thread first = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                results.put("first", component.getTerm("BRCA1"));
+            }
+        };
+        Thread second = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                results.put("second", component.getTerm("BRCA1"));
+            }
+        };
+        first.start();
+        Assert.assertTrue(received.await(5, TimeUnit.SECONDS));
+        second.start();
+        // Wait until the second lookup is blocked waiting for the first one
+        long deadline = System.currentTimeMillis() + 5000;
+        while (second.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+        first.join(5000);
+        second.join(5000);
+
+        Assert.assertEquals(1, this.requestedPaths.size());
+        Assert.assertEquals("BRCA1", results.get("first").getId());
+        Assert.assertSame(results.get("first"), results.get("second"));
+        RemoteRequestStatistics statistics = (RemoteRequestStatistics) getFieldValue("statistics");
+        Assert.assertEquals(1, statistics.getCoalescedRequests());
     }
 
     @Test
@@ -498,4 +608,62 @@ public void invalidOrEmptyResponseReturnsNoInfo() throws ComponentLookupExceptio
         when(this.responseEntity.getContent()).thenReturn(ClassLoader.getSystemResourceAsStream(""));
         Assert.assertEquals("", this.mocker.getComponentUnderTest().getVersion());
     }
+
+    /**
+     * Serve gene definitions from a local HTTP server, using a real HTTP client instead of the mocked one.
+     *
+     * @param handler decides which response to send for each requested symbol
+     */
+    private void startStubServer(StubHandler handler) throws Exception
+    {
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.server.createContext("/", handler);
+        this.serverThreads = Executors.newCachedThreadPool();
+        this.server.setExecutor(this.serverThreads);
+        this.server.start();
+        when(this.configuration.getProperty("phenotips.ontologies.hgnc.serviceURL", "http://rest.genenames.org/"))
+            .thenReturn("http://localhost:" + this.server.getAddress().getPort() + "/");
+        ((Initializable) this.mocker.getComponentUnderTest()).initialize();
+        ReflectionUtils.setFieldValue(this.mocker.getComponentUnderTest(), "client", this.realClient);
+    }
+
+    private Object getFieldValue(String name) throws Exception
+    {
+        Field field = ReflectionUtils.getField(RemoteGeneNomenclature.class, name);
+        field.setAccessible(true);
+        return field.get(this.mocker.getComponentUnderTest());
+    }
+
+    @After
+    public void stopStubServer()
+    {
+        if (this.server != null) {
+            this.server.stop(0);
+            this.serverThreads.shutdownNow();
+        }
+    }
+
+    private abstract class StubHandler implements HttpHandler
+    {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException
+        {
+            String path = exchange.getRequestURI().getPath();
+            RemoteGeneNomenclatureTest.this.requestedPaths.add(path);
+            RemoteGeneNomenclatureTest.this.requestedTypes.add(exchange.getRequestHeaders().getFirst("Accept"));
+            try {
+                byte[] response = IOUtils.toByteArray(
+                    ClassLoader.getSystemResourceAsStream(getResponse(StringUtils.substringAfterLast(path, "/"))));
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, response.length);
+                exchange.getResponseBody().write(response);
+            } catch (InterruptedException ex) {
+                exchange.sendResponseHeaders(500, -1);
+            } finally {
+                exchange.close();
+            }
+        }
+
+        abstract String getResponse(String symbol) throws InterruptedException;
+    }
 }
@@ -17,6 +17,7 @@
  */
 package org.phenotips.vocabulary.internal.solr;
 
+import org.phenotips.vocabulary.SolrCoreContainerHandler;
 import org.phenotips.vocabulary.Vocabulary;
 import org.phenotips.vocabulary.VocabularyTerm;
 import org.phenotips.vocabulary.SolrVocabularyResourceManager;
@@ -24,18 +25,27 @@
 import org.xwiki.cache.Cache;
 import org.xwiki.cache.CacheException;
 import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.phase.Disposable;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
 
+import org.apache.commons.lang3.StringUtils;
 import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrDocumentList;
 import org.apache.solr.common.SolrInputDocument;
 import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.CursorMarkParams;
 import org.apache.solr.common.params.DisMaxParams;
 import org.apache.solr.common.params.SolrParams;
 import org.junit.Assert;
@@ -43,12 +53,16 @@
 import org.junit.Rule;
 import org.junit.Test;
 import org.mockito.ArgumentMatcher;
+import org.mockito.InOrder;
 import org.mockito.Matchers;
 import org.mockito.Mockito;
 
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.argThat;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -93,11 +107,77 @@ public void testHumanPhenotypeOntologyReindex()
         Mockito.verify(this.server).deleteByQuery("*:*");
         Mockito.verify(this.server).commit();
         Mockito.verify(this.server).add(Matchers.anyCollectionOf(SolrInputDocument.class));
-        Mockito.verify(this.cache).removeAll();
+        Mockito.verify(this.mocker.getInstance(SolrVocabularyResourceManager.class))
+            .replaceTermCache(Matchers.anyMapOf(String.class, VocabularyTerm.class));
         Mockito.verifyNoMoreInteractions(this.cache, this.server);
         Assert.assertTrue(this.ontologyServiceResult == 0);
     }
 
+    @Test
+    public void reindexBuildsNewCoreAndSwapsIt() throws ComponentLookupException, IOException, SolrServerException
+    {
+        SolrClient shadow = mockShadowCore(42);
+
+        Assert.assertEquals(0, this.ontologyService.reindex(this.getClass().getResource("/hpo-test.obo").toString()));
+
+        SolrCoreContainerHandler cores = this.mocker.getInstance(SolrCoreContainerHandler.class);
+        InOrder order = Mockito.inOrder(shadow, cores);
+        order.verify(shadow).add(Matchers.anyCollectionOf(SolrInputDocument.class));
+        order.verify(shadow).commit();
+        order.verify(cores).swapShadowCore("hpo");
+        order.verify(cores).discardShadowCore("hpo");
+        // Only the initial in-place reindex touched the live core
+        verify(this.server, times(1)).deleteByQuery("*:*");
+        verify(this.server, times(1)).add(Matchers.anyCollectionOf(SolrInputDocument.class));
+    }
+
+    @Test
+    public void reindexKeepsCurrentCoreWhenNewCoreIsEmpty()
+        throws ComponentLookupException, IOException, SolrServerException
+    {
+        mockShadowCore(0);
+
+        Assert.assertEquals(1, this.ontologyService.reindex(this.getClass().getResource("/hpo-test.obo").toString()));
+
+        SolrCoreContainerHandler cores = this.mocker.getInstance(SolrCoreContainerHandler.class);
+        verify(cores, never()).swapShadowCore("hpo");
+        verify(cores).discardShadowCore("hpo");
+    }
+
+    @Test
+    public void reindexKeepsCurrentCoreWhenNewCoreIsMuchSmaller()
+        throws ComponentLookupException, IOException, SolrServerException
+    {
+        mockShadowCore(42);
+        SolrDocumentList results = new SolrDocumentList();
+        results.setNumFound(1000);
+        QueryResponse response = mock(QueryResponse.class);
+        when(response.getResults()).thenReturn(results);
+        when(this.server.query(any(SolrParams.class))).thenReturn(response);
+
+        Assert.assertEquals(1, this.ontologyService.reindex(this.getClass().getResource("/hpo-test.obo").toString()));
+
+        SolrCoreContainerHandler cores = this.mocker.getInstance(SolrCoreContainerHandler.class);
+        verify(cores, never()).swapShadowCore("hpo");
+        verify(cores).discardShadowCore("hpo");
+    }
+
+    @Test
+    public void reindexReplacesCurrentCoreWhenNewCoreIsSlightlySmaller()
+        throws ComponentLookupException, IOException, SolrServerException
+    {
+        mockShadowCore(950);
+        SolrDocumentList results = new SolrDocumentList();
+        results.setNumFound(1000);
+        QueryResponse response = mock(QueryResponse.class);
+        when(response.getResults()).thenReturn(results);
+        when(this.server.query(any(SolrParams.class))).thenReturn(response);
+
+        Assert.assertEquals(0, this.ontologyService.reindex(this.getClass().getResource("/hpo-test.obo").toString()));
+
+        verify(this.mocker.getInstance(SolrCoreContainerHandler.class)).swapShadowCore("hpo");
+    }
+
     @Test
     public void testHumanPhenotypeOntologyVersion() throws SolrServerException, IOException
     {
@@ -169,6 +249,117 @@ public void testHumanPhenotypeOntologySuggestTermsMultipleWords() throws Compone
         verify(this.server).query(argThat(new IsDisMaxQuery()));
     }
 
+
+    @Test
+    public void getTermsCachesFoundAndMissingTerms() throws SolrServerException, IOException
+    {
+        SolrDocument found = new SolrDocument();
+        found.setField("id", "HP:0000001");
+        SolrDocumentList results = new SolrDocumentList();
+        results.add(found);
+        QueryResponse response = mock(QueryResponse.class);
+        when(response.getResults()).thenReturn(results);
+        when(this.server.query(any(SolrParams.class))).thenReturn(response);
+
+        Set<VocabularyTerm> terms = this.ontologyService.getTerms(Arrays.asList("HP:0000001", "HP:0000002"));
+
+        Assert.assertEquals(1, terms.size());
+        Assert.assertEquals("HP:0000001", terms.iterator().next().getId());
+        verify(this.cache).set(eq("HP:0000001"), argThat(new HasId("HP:0000001")));
+        verify(this.cache).set(eq("HP:0000002"), argThat(new HasId(null)));
+        Assert.assertEquals(0, ((AbstractSolrVocabulary) this.ontologyService).getTermCacheHits());
+        Assert.assertEquals(2, ((AbstractSolrVocabulary) this.ontologyService).getTermCacheMisses());
+    }
+
+    @Test
+    public void getTermsDoesNotQueryCachedTerms() throws SolrServerException, IOException
+    {
+        VocabularyTerm cached = mock(VocabularyTerm.class);
+        when(this.cache.get("HP:0000001")).thenReturn(cached);
+
+        Set<VocabularyTerm> terms = this.ontologyService.getTerms(Collections.singleton("HP:0000001"));
+
+        Assert.assertEquals(Collections.singleton(cached), terms);
+        verify(this.server, never()).query(any(SolrParams.class));
+        Assert.assertEquals(1, ((AbstractSolrVocabulary) this.ontologyService).getTermCacheHits());
+    }
+
+    @Test
+    public void getTermsSplitsLargeRequests() throws SolrServerException, IOException
+    {
+        QueryResponse response = mock(QueryResponse.class);
+        when(response.getResults()).thenReturn(new SolrDocumentList());
+        when(this.server.query(any(SolrParams.class))).thenReturn(response);
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 1200; ++i) {
+            ids.add("HP:" + i);
+        }
+
+        Assert.assertTrue(this.ontologyService.getTerms(ids).isEmpty());
+
+        verify(this.server, times(3)).query(any(SolrParams.class));
+    }
+
+    @Test
+    public void getTermsDoesNotCacheFailedLookups() throws SolrServerException, IOException
+    {
+        when(this.server.query(any(SolrParams.class))).thenThrow(new SolrServerException("unavailable"));
+
+        Assert.assertTrue(this.ontologyService.getTerms(Arrays.asList("HP:0000001", "HP:0000002")).isEmpty());
+
+        verify(this.cache, never()).set(Matchers.anyString(), argThat(new HasId(null)));
+    }
+
+    @Test
+    public void getTermsOnlyCachesMissingTermsFromSuccessfulChunks() throws SolrServerException, IOException
+    {
+        QueryResponse response = mock(QueryResponse.class);
+        when(response.getResults()).thenReturn(new SolrDocumentList());
+        when(this.server.query(any(SolrParams.class))).thenReturn(response);
+        when(this.server.query(argThat(new RequestsId("HP:0")))).thenThrow(new SolrServerException("unavailable"));
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 1200; ++i) {
+            ids.add("HP:" + i);
+        }
+
+        Assert.assertTrue(this.ontologyService.getTerms(ids).isEmpty());
+
+        // The first chunk failed, the other two found nothing
+        verify(this.cache, never()).set(eq("HP:0"), any(VocabularyTerm.class));
+        verify(this.cache, never()).set(eq("HP:499"), any(VocabularyTerm.class));
+        verify(this.cache).set(eq("HP:500"), argThat(new HasId(null)));
+        verify(this.cache).set(eq("HP:1199"), argThat(new HasId(null)));
+    }
+
+    @Test
+    public void getTermsAfterDisposeDoesNotCacheAnything() throws Exception
+    {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 1200; ++i) {
+            ids.add("HP:" + i);
+        }
+        ((Disposable) this.ontologyService).dispose();
+
+        Assert.assertTrue(this.ontologyService.getTerms(ids).isEmpty());
+
+        verify(this.server, never()).query(any(SolrParams.class));
+        verify(this.cache, never()).set(Matchers.anyString(), any(VocabularyTerm.class));
+    }
+
+    @Test
+    public void failedHierarchyLoadingIsNotRetriedRightAway() throws SolrServerException, IOException
+    {
+        QueryResponse response = mock(QueryResponse.class);
+        when(response.getResults()).thenReturn(new SolrDocumentList());
+        when(this.server.query(any(SolrParams.class))).thenReturn(response);
+        when(this.server.query(argThat(new IsHierarchyQuery()))).thenThrow(new SolrServerException("unavailable"));
+
+        Assert.assertEquals(-1, this.ontologyService.getDistance("HP:0000001", "HP:0000002"));
+        Assert.assertEquals(-1, this.ontologyService.getDistance("HP:0000001", "HP:0000002"));
+
+        verify(this.server, times(1)).query(argThat(new IsHierarchyQuery()));
+    }
+
     class IsDisMaxQuery extends ArgumentMatcher<SolrParams>
     {
         @Override
@@ -202,4 +393,58 @@ public boolean matches(Object argument)
                 && params.get(DisMaxParams.QF) == null;
         }
     }
+
+    class IsHierarchyQuery extends ArgumentMatcher<SolrParams>
+    {
+        @Override
+        public boolean matches(Object argument)
+        {
+            return argument != null && ((SolrParams) argument).get(CursorMarkParams.CURSOR_MARK_PARAM) != null;
+        }
+    }
+
+    class RequestsId extends ArgumentMatcher<SolrParams>
+    {
+        private final String id;
+
+        RequestsId(String id)
+        {
+            this.id = id;
+        }
+
+        @Override
+        public boolean matches(Object argument)
+        {
+            String query = argument == null ? null : ((SolrParams) argument).get(CommonParams.Q);
+            return query != null && query.startsWith("id:(" + ClientUtils.escapeQueryChars(this.id) + ' ');
+        }
+    }
+
+    private SolrClient mockShadowCore(long terms) throws ComponentLookupException, IOException, SolrServerException
+    {
+        SolrClient shadow = mock(SolrClient.class);
+        SolrDocumentList results = new SolrDocumentList();
+        results.setNumFound(terms);
+        QueryResponse response = mock(QueryResponse.class);
+        when(response.getResults()).thenReturn(results);
+        when(shadow.query(any(SolrParams.class))).thenReturn(response);
+        when(this.mocker.getInstance(SolrCoreContainerHandler.class).createShadowCore("hpo")).thenReturn(shadow);
+        return shadow;
+    }
+
+    class HasId extends ArgumentMatcher<VocabularyTerm>
+    {
+        private final String id;
+
+        HasId(String id)
+        {
+            this.id = id;
+        }
+
+        @Override
+        public boolean matches(Object argument)
+        {
+            return StringUtils.equals(this.id, ((VocabularyTerm) argument).getId());
+        }
+    }
 }
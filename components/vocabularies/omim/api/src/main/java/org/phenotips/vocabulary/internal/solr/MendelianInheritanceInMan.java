@@ -21,9 +21,11 @@
 import org.phenotips.vocabulary.VocabularyTerm;
 
 import org.xwiki.component.annotation.Component;
+import org.xwiki.configuration.ConfigurationSource;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.Collection;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -65,10 +67,17 @@ public class MendelianInheritanceInMan extends AbstractSolrVocabulary
     /** The standard name of this ontology, used as a term prefix. */
     public static final String STANDARD_NAME = "MIM";
 
+    /** The number of documents to be added to Solr at a time. */
+    private static final int SOLR_DOCS_PER_BATCH = 1000;
+
     @Inject
     @Named("hpo")
     private Vocabulary hpo;
 
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
     @Override
     protected String getCoreName()
     {
@@ -196,19 +205,33 @@ public String getVersion()
     }
 
     @Override
-    public synchronized int reindex(String sourceURL)
+    public int reindex(String sourceURL)
+    {
+        return rebuildIndex(sourceURL);
+    }
+
+    @Override
+    protected int index(String sourceURL)
     {
+        final List<SolrInputDocument> batch = new ArrayList<>(SOLR_DOCS_PER_BATCH);
         try {
-            Collection<SolrInputDocument> data = new OmimSourceParser(this.hpo, sourceURL).getData();
-            if (data.isEmpty()) {
+            int count = new OmimSourceParser(this.hpo, sourceURL, getSourceDirectory())
+                .parse(new OmimSourceParser.DocumentHandler()
+                {
+                    @Override
+                    public void handle(SolrInputDocument document) throws IOException
+                    {
+                        batch.add(document);
+                        if (batch.size() >= SOLR_DOCS_PER_BATCH) {
+                            addBatch(batch);
+                        }
+                    }
+                });
+            if (count == 0) {
                 return 2;
             }
-            if (clear() == 1) {
-                return 1;
-            }
-            this.externalServicesAccess.getSolrConnection().add(data);
-            this.externalServicesAccess.getSolrConnection().commit();
-            this.externalServicesAccess.getTermCache().removeAll();
+            addBatch(batch);
+            getIndexingConnection().commit();
         } catch (SolrServerException | IOException ex) {
             this.logger.error("Failed to reindex OMIM: {}", ex.getMessage(), ex);
             return 1;
@@ -216,21 +239,27 @@ public synchronized int reindex(String sourceURL)
         return 0;
     }
 
-    /**
-     * Delete all the data in the Solr index.
-     *
-     * @return {@code 0} if the command was successful, {@code 1} otherwise
-     */
-    private int clear()
+    private void addBatch(List<SolrInputDocument> batch) throws IOException
     {
+        if (batch.isEmpty()) {
+            return;
+        }
         try {
-            this.externalServicesAccess.getSolrConnection().deleteByQuery("*:*");
-            return 0;
+            getIndexingConnection().add(batch);
         } catch (SolrServerException ex) {
-            this.logger.error("SolrServerException while clearing the Solr index", ex);
-        } catch (IOException ex) {
-            this.logger.error("IOException while clearing the Solr index", ex);
+            throw new IOException(ex.getMessage(), ex);
         }
-        return 1;
+        batch.clear();
+    }
+
+    /**
+     * The local directory where the OMIM sources are mirrored, if one is configured.
+     *
+     * @return a directory, or {@code null} if the sources should always be fetched from their original location
+     */
+    private File getSourceDirectory()
+    {
+        String path = this.configuration.getProperty("phenotips.vocabularies.omim.sourceDirectory", String.class);
+        return StringUtils.isBlank(path) ? null : new File(path);
     }
 }
@@ -20,20 +20,40 @@
 import org.phenotips.vocabulary.Vocabulary;
 import org.phenotips.vocabulary.VocabularyTerm;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.compress.compressors.CompressorException;
 import org.apache.commons.compress.compressors.CompressorStreamFactory;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVRecord;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.solr.common.SolrInputDocument;
 import org.joda.time.DateTime;
@@ -44,6 +64,15 @@
 /**
  * Class for parsing the special OMIM source, while also gathering annotations from other sources: OMIM-Gene symbols
  * mapping from OMIM, OMIM-Phenotype mapping from HPO, OMIM-GeneReviews mapping from NCBI.
+ * <p>
+ * The annotation sources are fetched and parsed in parallel, while the OMIM source is being downloaded. The OMIM
+ * records are then passed, fully annotated, to a {@link DocumentHandler} as soon as they are parsed. When a local
+ * source directory is used, each source is downloaded in that directory, along with a {@code .source} file recording
+ * where it was downloaded from. A copy downloaded from the same location less than a day ago is used as is, so that
+ * an interrupted import doesn't have to fetch again the sources which were already downloaded; older copies, or copies
+ * of a different location, are downloaded again. If downloading fails, the existing copy is used instead, if there is
+ * one, so sources can also be placed manually in that directory for servers which can't access the remote sources.
+ * </p>
  *
  * @version $Id$
  * @since 1.2RC2
@@ -70,14 +99,19 @@
     private static final String ANNOTATIONS_BASE_URL =
         "http://compbio.charite.de/hudson/job/hpo.annotations/lastStableBuild/artifact/misc/";
 
-    private static final String GENE_ANNOTATIONS_URL = "ftp://ftp.omim.org/OMIM/mim2gene.txt";
+    static final String GENE_ANNOTATIONS_URL = "ftp://ftp.omim.org/OMIM/mim2gene.txt";
 
-    private static final String POSITIVE_ANNOTATIONS_URL = ANNOTATIONS_BASE_URL + "phenotype_annotation.tab";
+    static final String POSITIVE_ANNOTATIONS_URL = ANNOTATIONS_BASE_URL + "phenotype_annotation.tab";
 
-    private static final String NEGATIVE_ANNOTATIONS_URL = ANNOTATIONS_BASE_URL + "negative_phenotype_annotation.tab";
+    static final String NEGATIVE_ANNOTATIONS_URL = ANNOTATIONS_BASE_URL + "negative_phenotype_annotation.tab";
 
-    private static final String GENEREVIEWS_MAPPING_URL =
-        "ftp://ftp.ncbi.nih.gov/pub/GeneReviews/NBKid_shortname_OMIM.txt";
+    static final String GENEREVIEWS_MAPPING_URL = "ftp://ftp.ncbi.nih.gov/pub/GeneReviews/NBKid_shortname_OMIM.txt";
+
+    /** Suffix of the file recording the location from which a mirrored source was downloaded. */
+    static final String MIRROR_SOURCE_SUFFIX = ".source";
+
+    /** How long a mirrored source is used before being downloaded again. */
+    private static final long MIRROR_LIFETIME = TimeUnit.DAYS.toMillis(1);
 
     private static final String ENCODING = "UTF-8";
 
@@ -89,14 +123,37 @@
 
     private static final String GENE_FIELD = "GENE";
 
-    private SolrInputDocument crtTerm;
+    /** One thread for each source. */
+    private static final int FETCHER_THREADS = 5;
 
-    private Map<String, SolrInputDocument> data = new HashMap<>();
+    /**
+     * Receives the parsed OMIM records.
+     */
+    public interface DocumentHandler
+    {
+        /**
+         * Process a fully annotated OMIM record.
+         *
+         * @param document the Solr document for the record
+         * @throws IOException if processing the document fails; parsing stops and the exception is passed on
+         */
+        void handle(SolrInputDocument document) throws IOException;
+    }
 
     private Logger logger = LoggerFactory.getLogger(OmimSourceParser.class);
 
     private Vocabulary hpo;
 
+    private String sourceURL;
+
+    private File sourceDirectory;
+
+    /** @see #getData() */
+    private Map<String, SolrInputDocument> data;
+
+    /** The identifiers of each HPO term and its ancestors, computed once per term. */
+    private ConcurrentMap<String, Collection<String>> ancestors = new ConcurrentHashMap<>();
+
     /**
      * Constructor which prepares the vocabulary data, parsing OMIM from the official site.
      *
@@ -115,182 +172,490 @@ public OmimSourceParser(Vocabulary hpo)
      *            file URL
      */
     public OmimSourceParser(Vocabulary hpo, String sourceURL)
+    {
+        this(hpo, sourceURL, null);
+    }
+
+    /**
+     * Constructor which prepares the vocabulary data, parsing OMIM from the specified source file, and using a local
+     * directory as a mirror for all the sources.
+     *
+     * @param hpo the HPO vocabulary, needed for computing the ancestors for the MIM-Phenotype mapping
+     * @param sourceURL the location from which to fetch the OMIM source, as a zipped file; may be a ftp, http, or local
+     *            file URL
+     * @param sourceDirectory a local directory where the sources are looked for first, and where missing sources are
+     *            downloaded; may be {@code null}, in which case sources are always fetched from their URL
+     * @since 1.3M1
+     */
+    public OmimSourceParser(Vocabulary hpo, String sourceURL, File sourceDirectory)
     {
         this.hpo = hpo;
-        try (BufferedReader in =
-            new BufferedReader(new InputStreamReader(new CompressorStreamFactory().createCompressorInputStream(
-                new URL(sourceURL).openConnection().getInputStream()), ENCODING))) {
-            transform(in);
-            loadGenes();
-            loadSymptoms(true);
-            loadSymptoms(false);
-            loadGeneReviews();
-            loadVersion();
-        } catch (NullPointerException | CompressorException | IOException ex) {
-            this.logger.error("Failed to prepare the OMIM index: {}", ex.getMessage(), ex);
-        }
+        this.sourceURL = sourceURL;
+        this.sourceDirectory = sourceDirectory;
     }
 
     /**
-     * Return the parsed vocabulary data.
+     * Return the parsed vocabulary data. Prefer {@link #parse(DocumentHandler)}, which doesn't keep all the data in
+     * memory.
      *
      * @return the vocabulary data, may be an empty collection if parsing the source failed
      */
-    public Collection<SolrInputDocument> getData()
+    public synchronized Collection<SolrInputDocument> getData()
     {
+        if (this.data == null) {
+            final Map<String, SolrInputDocument> result = new LinkedHashMap<>();
+            try {
+                parse(new DocumentHandler()
+                {
+                    @Override
+                    public void handle(SolrInputDocument document)
+                    {
+                        result.put(String.valueOf(document.getFieldValue(ID_FIELD)), document);
+                    }
+                });
+            } catch (IOException ex) {
+                this.logger.error("Failed to prepare the OMIM index: {}", ex.getMessage(), ex);
+                result.clear();
+            }
+            this.data = result;
+        }
         return this.data.values();
     }
 
-    private Map<String, SolrInputDocument> transform(BufferedReader in) throws IOException
+    /**
+     * Parse the OMIM source and its annotations, passing each record to a handler as soon as it is ready. Failing to
+     * fetch one of the annotation sources is logged, and the records are sent without those annotations.
+     *
+     * @param handler receives the parsed records, followed by a header document holding the version
+     * @return the number of OMIM records sent to the handler, not counting the header document
+     * @throws IOException if fetching or parsing the OMIM source fails, or if the handler fails
+     * @since 1.3M1
+     */
+    public int parse(DocumentHandler handler) throws IOException
     {
-        String line;
-        StringBuilder fieldValue = new StringBuilder();
-        String fieldName = null;
-        while ((line = in.readLine()) != null) {
-            if (RECORD_MARKER.equalsIgnoreCase(line) || END_MARKER.equalsIgnoreCase(line)) {
-                if (this.crtTerm != null) {
-                    loadField(fieldName, fieldValue.toString().trim());
-                    storeCrtTerm();
-                } else {
-                    this.crtTerm = new SolrInputDocument();
+        ExecutorService fetchers = Executors.newFixedThreadPool(FETCHER_THREADS);
+        try {
+            Future<File> omim = fetchers.submit(new Callable<File>()
+            {
+                @Override
+                public File call() throws IOException
+                {
+                    return fetchOmim();
+                }
+            });
+            Future<Map<String, List<String>>> genes = fetchers.submit(new Callable<Map<String, List<String>>>()
+            {
+                @Override
+                public Map<String, List<String>> call()
+                {
+                    return loadGenes();
+                }
+            });
+            Future<Annotations> positive = fetchers.submit(new Callable<Annotations>()
+            {
+                @Override
+                public Annotations call()
+                {
+                    return loadSymptoms(true);
+                }
+            });
+            Future<Annotations> negative = fetchers.submit(new Callable<Annotations>()
+            {
+                @Override
+                public Annotations call()
+                {
+                    return loadSymptoms(false);
+                }
+            });
+            Future<Map<String, String>> reviews = fetchers.submit(new Callable<Map<String, String>>()
+            {
+                @Override
+                public Map<String, String> call()
+                {
+                    return loadGeneReviews();
+                }
+            });
+
+            RecordAnnotator annotator =
+                new RecordAnnotator(get(genes), get(positive), get(negative), get(reviews), handler);
+            File source = get(omim);
+            try {
+                return transform(source, annotator);
+            } finally {
+                if (this.sourceDirectory == null && !isLocal(this.sourceURL) && !source.delete()) {
+                    source.deleteOnExit();
                 }
-            } else if (line.startsWith(FIELD_MARKER)) {
-                loadField(fieldName, fieldValue.toString().trim());
-                fieldValue.setLength(0);
-                fieldName = line.substring(FIELD_MARKER.length());
-            } else {
-                fieldValue.append(line.trim()).append(' ');
             }
+        } finally {
+            fetchers.shutdownNow();
         }
-
-        return this.data;
     }
 
-    private void storeCrtTerm()
+    private int transform(File source, RecordAnnotator annotator) throws IOException
     {
-        this.data.put(String.valueOf(this.crtTerm.get(ID_FIELD).getFirstValue()), this.crtTerm);
-        this.crtTerm = new SolrInputDocument();
+        int count = 0;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new CompressorStreamFactory()
+            .createCompressorInputStream(new BufferedInputStream(new FileInputStream(source))), ENCODING))) {
+            String line;
+            StringBuilder fieldValue = new StringBuilder();
+            String fieldName = null;
+            SolrInputDocument crtTerm = null;
+            while ((line = in.readLine()) != null) {
+                if (RECORD_MARKER.equalsIgnoreCase(line) || END_MARKER.equalsIgnoreCase(line)) {
+                    if (crtTerm != null) {
+                        loadField(crtTerm, fieldName, fieldValue.toString().trim());
+                        count += annotator.emit(crtTerm);
+                    }
+                    crtTerm = new SolrInputDocument();
+                    fieldName = null;
+                    fieldValue.setLength(0);
+                } else if (line.startsWith(FIELD_MARKER)) {
+                    if (crtTerm != null) {
+                        loadField(crtTerm, fieldName, fieldValue.toString().trim());
+                    }
+                    fieldValue.setLength(0);
+                    fieldName = line.substring(FIELD_MARKER.length());
+                } else {
+                    fieldValue.append(line.trim()).append(' ');
+                }
+            }
+        } catch (CompressorException ex) {
+            throw new IOException("Invalid OMIM source: " + ex.getMessage(), ex);
+        }
+        annotator.emitVersion();
+        return count;
     }
 
-    private void loadField(String name, String value)
+    private void loadField(SolrInputDocument crtTerm, String name, String value)
     {
         if (StringUtils.isAnyBlank(name, value)) {
             return;
         }
         switch (name) {
             case FIELD_MIM_NUMBER:
-                this.crtTerm.setField(ID_FIELD, value);
+                crtTerm.setField(ID_FIELD, value);
                 break;
             case FIELD_TITLE:
                 String title = StringUtils.substringBefore(value, TITLE_SEPARATOR).trim();
                 String[] synonyms =
                     StringUtils.split(StringUtils.substringAfter(value, TITLE_SEPARATOR), TITLE_SEPARATOR);
-                this.crtTerm.setField(NAME_FIELD, title);
+                crtTerm.setField(NAME_FIELD, title);
                 for (String synonym : synonyms) {
-                    this.crtTerm.addField(SYNONYM_FIELD, synonym.trim());
+                    crtTerm.addField(SYNONYM_FIELD, synonym.trim());
                 }
                 break;
             case FIELD_TEXT:
-                this.crtTerm.addField("def", value);
+                crtTerm.addField("def", value);
                 break;
             default:
                 return;
         }
     }
 
-    private void loadSymptoms(boolean positive)
+    private Annotations loadSymptoms(boolean positive)
     {
-        String omimId = "";
-        String previousOmimId = null;
-        Set<String> ancestors = new HashSet<>();
-        try (BufferedReader in = new BufferedReader(
-            new InputStreamReader(new URL(positive ? POSITIVE_ANNOTATIONS_URL : NEGATIVE_ANNOTATIONS_URL)
-                .openConnection().getInputStream(), ENCODING))) {
+        Annotations result = new Annotations();
+        try (BufferedReader in = open(positive ? POSITIVE_ANNOTATIONS_URL : NEGATIVE_ANNOTATIONS_URL)) {
             for (CSVRecord row : CSVFormat.TDF.parse(in)) {
                 if ("OMIM".equals(row.get(0))) {
-                    omimId = row.get(1);
-                    addAncestors(previousOmimId, omimId, ancestors, positive);
-                    previousOmimId = omimId;
-                    SolrInputDocument term = this.data.get(omimId);
-                    if (term != null) {
-                        term.addField(positive ? "actual_symptom" : "actual_not_symptom", row.get(4));
-                    }
-                    VocabularyTerm vterm = this.hpo.getTerm(row.get(4));
-                    if (vterm != null) {
-                        for (VocabularyTerm ancestor : vterm.getAncestorsAndSelf()) {
-                            ancestors.add(ancestor.getId());
-                        }
-                    }
+                    result.add(row.get(1), row.get(4));
                 }
             }
-            addAncestors(omimId, null, ancestors, positive);
-        } catch (IOException ex) {
+        } catch (IOException | RuntimeException ex) {
+            // Malformed rows cause runtime exceptions, which shouldn't prevent indexing the records
             this.logger.error("Failed to load OMIM-HPO links: {}", ex.getMessage(), ex);
+            return new Annotations();
         }
+        result.computeAncestors();
+        return result;
     }
 
-    private void addAncestors(String previousOmimId, String newOmimId, Set<String> ancestors, boolean positive)
+    private Collection<String> getAncestorsAndSelf(String hpoId)
+    {
+        Collection<String> result = this.ancestors.get(hpoId);
+        if (result == null) {
+            result = new HashSet<>();
+            VocabularyTerm term = this.hpo.getTerm(hpoId);
+            if (term != null) {
+                for (VocabularyTerm ancestor : term.getAncestorsAndSelf()) {
+                    result.add(ancestor.getId());
+                }
+            }
+            this.ancestors.putIfAbsent(hpoId, result);
+        }
+        return result;
+    }
+
+    /**
+     * Fetch the ancestors of several terms at once, instead of querying the HPO vocabulary once for each term.
+     *
+     * @param hpoIds the identifiers of the terms to look up
+     */
+    private void cacheAncestors(Collection<String> hpoIds)
     {
-        if (previousOmimId == null || previousOmimId.equals(newOmimId)) {
+        if (hpoIds.isEmpty()) {
             return;
         }
-        final String symptomField = "symptom";
-        SolrInputDocument term = this.data.get(previousOmimId);
-        if (!positive) {
-            ancestors.removeAll(term.getFieldValues(symptomField));
-            term.addField("not_symptom", new HashSet<String>(ancestors));
-        } else {
-            term.addField(symptomField, new HashSet<String>(ancestors));
+        for (VocabularyTerm term : this.hpo.getTerms(hpoIds)) {
+            if (term == null) {
+                continue;
+            }
+            Collection<String> result = new HashSet<>();
+            for (VocabularyTerm ancestor : term.getAncestorsAndSelf()) {
+                result.add(ancestor.getId());
+            }
+            this.ancestors.putIfAbsent(term.getId(), result);
         }
-        ancestors.clear();
     }
 
-    private void loadGenes()
+    private Map<String, List<String>> loadGenes()
     {
         final String missing = "-";
-        try (BufferedReader in = new BufferedReader(
-            new InputStreamReader(new URL(GENE_ANNOTATIONS_URL).openConnection().getInputStream(), ENCODING))) {
+        Map<String, List<String>> result = new HashMap<>();
+        try (BufferedReader in = open(GENE_ANNOTATIONS_URL)) {
             for (CSVRecord row : CSVFormat.TDF.withHeader().parse(in)) {
                 if (!row.get("Type").contains("gene")) {
                     continue;
                 }
-                SolrInputDocument term = this.data.get(row.get(2));
-                if (term != null) {
-                    String gs = row.get("Approved Gene Symbol");
-                    if (!missing.equals(gs)) {
-                        term.addField(GENE_FIELD, gs);
-                    }
-                    String eid = row.get("Ensembl Gene ID");
-                    if (!missing.equals(eid)) {
-                        term.addField(GENE_FIELD, eid);
-                    }
+                List<String> genes = result.get(row.get(2));
+                if (genes == null) {
+                    genes = new ArrayList<>(2);
+                    result.put(row.get(2), genes);
+                }
+                String gs = row.get("Approved Gene Symbol");
+                if (!missing.equals(gs)) {
+                    genes.add(gs);
+                }
+                String eid = row.get("Ensembl Gene ID");
+                if (!missing.equals(eid)) {
+                    genes.add(eid);
                 }
             }
-        } catch (IOException ex) {
+        } catch (IOException | RuntimeException ex) {
             this.logger.error("Failed to load OMIM-Gene links: {}", ex.getMessage(), ex);
+            return Collections.emptyMap();
         }
+        return result;
     }
 
-    private void loadGeneReviews()
+    private Map<String, String> loadGeneReviews()
     {
-        try (BufferedReader in = new BufferedReader(
-            new InputStreamReader(new URL(GENEREVIEWS_MAPPING_URL).openConnection().getInputStream(), ENCODING))) {
+        Map<String, String> result = new HashMap<>();
+        try (BufferedReader in = open(GENEREVIEWS_MAPPING_URL)) {
             for (CSVRecord row : CSVFormat.TDF.withHeader().parse(in)) {
-                SolrInputDocument term = this.data.get(row.get(2));
-                if (term != null) {
-                    term.setField("gene_reviews_link", "https://www.ncbi.nlm.nih.gov/books/" + row.get(0));
-                }
+                result.put(row.get(2), "https://www.ncbi.nlm.nih.gov/books/" + row.get(0));
             }
-        } catch (IOException ex) {
+        } catch (IOException | RuntimeException ex) {
             this.logger.error("Failed to load OMIM-GeneReviews links: {}", ex.getMessage(), ex);
+            return Collections.emptyMap();
         }
+        return result;
     }
 
-    private void loadVersion()
+    /**
+     * Get a local copy of the OMIM source, so that it can be downloaded while the other sources are being parsed.
+     *
+     * @return the local source file
+     * @throws IOException if downloading the source fails
+     */
+    private File fetchOmim() throws IOException
     {
-        SolrInputDocument metaTerm = new SolrInputDocument();
-        metaTerm.addField(ID_FIELD, "HEADER_INFO");
-        metaTerm.addField("version", ISODateTimeFormat.dateTime().withZoneUTC().print(new DateTime()));
-        this.data.put("VERSION", metaTerm);
+        if (this.sourceDirectory != null) {
+            return getMirrored(this.sourceURL);
+        }
+        if (isLocal(this.sourceURL)) {
+            return new File(new URL(this.sourceURL).getPath());
+        }
+        File result = File.createTempFile("omim", ".txt.Z");
+        download(this.sourceURL, result);
+        return result;
+    }
+
+    private BufferedReader open(String url) throws IOException
+    {
+        InputStream in = this.sourceDirectory != null ? new FileInputStream(getMirrored(url))
+            : new URL(url).openConnection().getInputStream();
+        return new BufferedReader(new InputStreamReader(in, ENCODING));
+    }
+
+    /**
+     * Get the copy of a source from the local source directory, downloading it first if there is no recent copy of that
+     * source.
+     *
+     * @param url the location of the source
+     * @return the local file
+     * @throws IOException if downloading the source fails, and there is no previous copy of the source
+     */
+    private File getMirrored(String url) throws IOException
+    {
+        String name = StringUtils.substringAfterLast(url, "/");
+        File result = new File(this.sourceDirectory, name);
+        File sourceInfo = new File(this.sourceDirectory, name + MIRROR_SOURCE_SUFFIX);
+        if (isRecentCopy(result, sourceInfo, url)) {
+            return result;
+        }
+        try {
+            if (!this.sourceDirectory.isDirectory() && !this.sourceDirectory.mkdirs()) {
+                throw new IOException("Cannot create the OMIM source directory " + this.sourceDirectory);
+            }
+            // Only complete downloads get the final name
+            File partial = new File(this.sourceDirectory, name + ".part");
+            download(url, partial);
+            Files.move(partial.toPath(), result.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            FileUtils.writeStringToFile(sourceInfo, url, ENCODING);
+        } catch (IOException ex) {
+            if (!result.isFile()) {
+                throw ex;
+            }
+            this.logger.warn("Failed to download [{}], using the existing copy: {}", url, ex.getMessage());
+        }
+        return result;
+    }
+
+    private boolean isRecentCopy(File copy, File sourceInfo, String url)
+    {
+        try {
+            return copy.isFile() && sourceInfo.isFile()
+                && System.currentTimeMillis() - copy.lastModified() < MIRROR_LIFETIME
+                && url.equals(FileUtils.readFileToString(sourceInfo, ENCODING).trim());
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    private void download(String url, File target) throws IOException
+    {
+        this.logger.debug("Downloading [{}]", url);
+        try (InputStream in = new URL(url).openConnection().getInputStream()) {
+            Files.copy(in, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private boolean isLocal(String url)
+    {
+        return StringUtils.startsWith(url, "file:");
+    }
+
+    private <T> T get(Future<T> task) throws IOException
+    {
+        try {
+            return task.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while fetching the OMIM sources", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause().getMessage(), ex.getCause());
+        }
+    }
+
+    /**
+     * The HPO annotations of OMIM records, as listed in the source, and extended with all their ancestors.
+     */
+    private final class Annotations
+    {
+        private final Map<String, List<String>> direct = new HashMap<>();
+
+        private final Map<String, Set<String>> extended = new HashMap<>();
+
+        void add(String omimId, String hpoId)
+        {
+            List<String> terms = this.direct.get(omimId);
+            if (terms == null) {
+                terms = new ArrayList<>();
+                this.direct.put(omimId, terms);
+            }
+            terms.add(hpoId);
+        }
+
+        void computeAncestors()
+        {
+            Set<String> unknown = new HashSet<>();
+            for (List<String> terms : this.direct.values()) {
+                unknown.addAll(terms);
+            }
+            unknown.removeAll(OmimSourceParser.this.ancestors.keySet());
+            cacheAncestors(unknown);
+            for (Map.Entry<String, List<String>> entry : this.direct.entrySet()) {
+                Set<String> closure = new LinkedHashSet<>();
+                for (String hpoId : entry.getValue()) {
+                    closure.addAll(getAncestorsAndSelf(hpoId));
+                }
+                this.extended.put(entry.getKey(), closure);
+            }
+        }
+    }
+
+    /**
+     * Adds the annotations to each parsed record, then passes it on to the handler.
+     */
+    private static final class RecordAnnotator
+    {
+        private final Map<String, List<String>> genes;
+
+        private final Annotations positive;
+
+        private final Annotations negative;
+
+        private final Map<String, String> reviews;
+
+        private final DocumentHandler handler;
+
+        RecordAnnotator(Map<String, List<String>> genes, Annotations positive, Annotations negative,
+            Map<String, String> reviews, DocumentHandler handler)
+        {
+            this.genes = genes;
+            this.positive = positive;
+            this.negative = negative;
+            this.reviews = reviews;
+            this.handler = handler;
+        }
+
+        int emit(SolrInputDocument term) throws IOException
+        {
+            Object id = term.getFieldValue(ID_FIELD);
+            if (id == null) {
+                return 0;
+            }
+            String omimId = String.valueOf(id);
+            addAll(term, GENE_FIELD, this.genes.get(omimId));
+            addAll(term, "actual_symptom", this.positive.direct.get(omimId));
+            Set<String> symptoms = this.positive.extended.get(omimId);
+            addAll(term, "symptom", symptoms);
+            addAll(term, "actual_not_symptom", this.negative.direct.get(omimId));
+            Set<String> notSymptoms = this.negative.extended.get(omimId);
+            if (notSymptoms != null) {
+                notSymptoms = new HashSet<>(notSymptoms);
+                if (symptoms != null) {
+                    notSymptoms.removeAll(symptoms);
+                }
+                addAll(term, "not_symptom", notSymptoms);
+            }
+            String review = this.reviews.get(omimId);
+            if (review != null) {
+                term.setField("gene_reviews_link", review);
+            }
+            this.handler.handle(term);
+            return 1;
+        }
+
+        void emitVersion() throws IOException
+        {
+            SolrInputDocument metaTerm = new SolrInputDocument();
+            metaTerm.addField(ID_FIELD, "HEADER_INFO");
+            metaTerm.addField("version", ISODateTimeFormat.dateTime().withZoneUTC().print(new DateTime()));
+            this.handler.handle(metaTerm);
+        }
+
+        private void addAll(SolrInputDocument term, String field, Collection<String> values)
+        {
+            if (values != null) {
+                for (String value : values) {
+                    term.addField(field, value);
+                }
+            }
+        }
     }
 }
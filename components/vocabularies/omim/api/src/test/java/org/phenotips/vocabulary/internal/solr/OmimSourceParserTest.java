@@ -0,0 +1,331 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary.internal.solr;
+
+import org.phenotips.vocabulary.Vocabulary;
+import org.phenotips.vocabulary.VocabularyTerm;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Matchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Tests for the {@link OmimSourceParser} class, using small copies of the OMIM source and of its annotation sources,
+ * placed in the local source directory.
+ *
+ * @version $Id$
+ */
+public class OmimSourceParserTest
+{
+    private static final String OMIM_FILE = "omim.txt.Z";
+
+    private static final String NOT_SYMPTOM = "not_symptom";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File mirror;
+
+    private String omimURL;
+
+    private Vocabulary hpo;
+
+    private Map<String, VocabularyTerm> hpoTerms = new HashMap<>();
+
+    /**
+     * Prepares the source directory, and a small HPO hierarchy:
+     *
+     * <pre>
+     *          HP:0000001
+     *              |
+     *          HP:0000118
+     *          /        \
+     *   HP:0000707    HP:0000478
+     *       |             |
+     *   HP:0001250    HP:0000505
+     * </pre>
+     */
+    @Before
+    public void setUp() throws IOException
+    {
+        this.mirror = this.folder.newFolder("mirror");
+        File omim = new File(this.folder.newFolder("remote"), OMIM_FILE);
+        compress("omim.txt", omim);
+        this.omimURL = omim.toURI().toString();
+        compress("omim.txt", new File(this.mirror, OMIM_FILE));
+        mirror(this.omimURL, OMIM_FILE);
+        mirror(OmimSourceParser.GENE_ANNOTATIONS_URL, "mim2gene.txt");
+        mirror(OmimSourceParser.POSITIVE_ANNOTATIONS_URL, "phenotype_annotation.tab");
+        mirror(OmimSourceParser.NEGATIVE_ANNOTATIONS_URL, "negative_phenotype_annotation.tab");
+        mirror(OmimSourceParser.GENEREVIEWS_MAPPING_URL, "NBKid_shortname_OMIM.txt");
+
+        defineTerm("HP:0000001", null);
+        defineTerm("HP:0000118", "HP:0000001");
+        defineTerm("HP:0000707", "HP:0000118");
+        defineTerm("HP:0001250", "HP:0000707");
+        defineTerm("HP:0000478", "HP:0000118");
+        defineTerm("HP:0000505", "HP:0000478");
+        this.hpo = mock(Vocabulary.class);
+        doAnswer(new Answer<Set<VocabularyTerm>>()
+        {
+            @Override
+            public Set<VocabularyTerm> answer(InvocationOnMock invocation)
+            {
+                Set<VocabularyTerm> result = new HashSet<>();
+                for (Object id : (Collection<?>) invocation.getArguments()[0]) {
+                    if (OmimSourceParserTest.this.hpoTerms.containsKey(id)) {
+                        result.add(OmimSourceParserTest.this.hpoTerms.get(id));
+                    }
+                }
+                return result;
+            }
+        }).when(this.hpo).getTerms(Matchers.anyCollectionOf(String.class));
+        doAnswer(new Answer<VocabularyTerm>()
+        {
+            @Override
+            public VocabularyTerm answer(InvocationOnMock invocation)
+            {
+                return OmimSourceParserTest.this.hpoTerms.get(invocation.getArguments()[0]);
+            }
+        }).when(this.hpo).getTerm(Matchers.anyString());
+    }
+
+    @Test
+    public void recordsAreParsed() throws IOException
+    {
+        Map<String, SolrInputDocument> records = parse(this.omimURL);
+
+        Assert.assertEquals(Arrays.asList("100100", "100200", "100300", "HEADER_INFO"),
+            Arrays.asList(records.keySet().toArray()));
+        SolrInputDocument record = records.get("100100");
+        Assert.assertEquals("#100100 PRUNE BELLY SYNDROME", record.getFieldValue("name"));
+        Assert.assertEquals(Arrays.<Object>asList("PBS", "EAGLE-BARRETT SYNDROME"),
+            record.getFieldValues("synonym"));
+        Assert.assertEquals("The prune belly syndrome is characterized by deficient abdominal muscles.",
+            record.getFieldValue("def"));
+        Assert.assertEquals("#100300 ADAMS-OLIVER SYNDROME 1; AOS1", records.get("100300").getFieldValue("name"));
+        Assert.assertNull(records.get("100300").getFieldValue("def"));
+        Assert.assertNotNull(records.get("HEADER_INFO").getFieldValue("version"));
+    }
+
+    @Test
+    public void genesAndGeneReviewsAreAdded() throws IOException
+    {
+        Map<String, SolrInputDocument> records = parse(this.omimURL);
+
+        Assert.assertNull(records.get("100100").getFieldValues("GENE"));
+        Assert.assertEquals(Arrays.<Object>asList("GENE2"), records.get("100200").getFieldValues("GENE"));
+        Assert.assertEquals(Arrays.<Object>asList("ARHGAP31", "ENSG00000031081"),
+            records.get("100300").getFieldValues("GENE"));
+        Assert.assertEquals("https://www.ncbi.nlm.nih.gov/books/NBK1116",
+            records.get("100300").getFieldValue("gene_reviews_link"));
+        Assert.assertNull(records.get("100100").getFieldValue("gene_reviews_link"));
+    }
+
+    @Test
+    public void symptomsIncludeTheirAncestors() throws IOException
+    {
+        SolrInputDocument record = parse(this.omimURL).get("100100");
+
+        Assert.assertEquals(set("HP:0001250", "HP:0000478"), set(record.getFieldValues("actual_symptom")));
+        Assert.assertEquals(set("HP:0001250", "HP:0000707", "HP:0000478", "HP:0000118", "HP:0000001"),
+            set(record.getFieldValues("symptom")));
+        Assert.assertEquals(set("HP:0000505"), set(record.getFieldValues("actual_not_symptom")));
+    }
+
+    /** Ancestors of the negative annotations which are also ancestors of the positive annotations are not negated. */
+    @Test
+    public void negativeSymptomsExcludePositiveSymptoms() throws IOException
+    {
+        SolrInputDocument record = parse(this.omimURL).get("100100");
+
+        Assert.assertEquals(set("HP:0000505"), set(record.getFieldValues(NOT_SYMPTOM)));
+    }
+
+    @Test
+    public void negativeSymptomsWithoutPositiveSymptomsAreKept() throws IOException
+    {
+        Map<String, SolrInputDocument> records = parse(this.omimURL);
+
+        SolrInputDocument record = records.get("100200");
+        Assert.assertNull(record.getFieldValues("symptom"));
+        Assert.assertEquals(set("HP:0001250"), set(record.getFieldValues("actual_not_symptom")));
+        Assert.assertEquals(set("HP:0001250", "HP:0000707", "HP:0000118", "HP:0000001"),
+            set(record.getFieldValues(NOT_SYMPTOM)));
+        Assert.assertNull(records.get("100300").getFieldValues(NOT_SYMPTOM));
+    }
+
+    @Test
+    public void malformedAnnotationSourceIsSkipped() throws IOException
+    {
+        FileUtils.writeStringToFile(new File(this.mirror, "negative_phenotype_annotation.tab"),
+            "OMIM\t100100\tPRUNE BELLY SYNDROME\n", "UTF-8");
+
+        Map<String, SolrInputDocument> records = parse(this.omimURL);
+
+        Assert.assertEquals(4, records.size());
+        Assert.assertNull(records.get("100100").getFieldValues(NOT_SYMPTOM));
+        Assert.assertNull(records.get("100200").getFieldValues(NOT_SYMPTOM));
+        Assert.assertEquals(set("HP:0001250", "HP:0000478"),
+            set(records.get("100100").getFieldValues("actual_symptom")));
+        Assert.assertEquals(Arrays.<Object>asList("GENE2"), records.get("100200").getFieldValues("GENE"));
+    }
+
+    @Test
+    public void copiesOfOtherSourcesAreReplaced() throws IOException
+    {
+        File other = new File(this.folder.newFolder("other"), OMIM_FILE);
+        writeCompressed(other, "*RECORD*\n*FIELD* NO\n200000\n*FIELD* TI\n200000 NEW RECORD\n*THEEND*\n");
+
+        Map<String, SolrInputDocument> records = parse(other.toURI().toString());
+
+        Assert.assertEquals(Arrays.asList("200000", "HEADER_INFO"), Arrays.asList(records.keySet().toArray()));
+        Assert.assertEquals(other.toURI().toString(), FileUtils.readFileToString(
+            new File(this.mirror, OMIM_FILE + OmimSourceParser.MIRROR_SOURCE_SUFFIX), "UTF-8"));
+    }
+
+    @Test
+    public void oldCopiesAreRefreshed() throws IOException
+    {
+        File copy = new File(this.mirror, OMIM_FILE);
+        writeCompressed(copy, "*RECORD*\n*FIELD* NO\n200000\n*FIELD* TI\n200000 OLD RECORD\n*THEEND*\n");
+        Assert.assertTrue(copy.setLastModified(System.currentTimeMillis() - 2 * 24 * 3600 * 1000L));
+
+        Assert.assertEquals(Arrays.asList("100100", "100200", "100300", "HEADER_INFO"),
+            Arrays.asList(parse(this.omimURL).keySet().toArray()));
+    }
+
+    @Test
+    public void recentCopiesAreReused() throws IOException
+    {
+        File copy = new File(this.mirror, OMIM_FILE);
+        writeCompressed(copy, "*RECORD*\n*FIELD* NO\n200000\n*FIELD* TI\n200000 LOCAL RECORD\n*THEEND*\n");
+
+        Assert.assertEquals(Arrays.asList("200000", "HEADER_INFO"),
+            Arrays.asList(parse(this.omimURL).keySet().toArray()));
+    }
+
+    @Test
+    public void existingCopyIsUsedWhenTheSourceIsUnavailable() throws IOException
+    {
+        String missing = new File(this.folder.getRoot(), "missing/" + OMIM_FILE).toURI().toString();
+
+        Map<String, SolrInputDocument> records = parse(missing);
+
+        Assert.assertEquals(Arrays.asList("100100", "100200", "100300", "HEADER_INFO"),
+            Arrays.asList(records.keySet().toArray()));
+    }
+
+    @Test(expected = IOException.class)
+    public void unavailableSourceWithoutCopyFails() throws IOException
+    {
+        Assert.assertTrue(new File(this.mirror, OMIM_FILE).delete());
+        parse(new File(this.folder.getRoot(), "missing/" + OMIM_FILE).toURI().toString());
+    }
+
+    private Map<String, SolrInputDocument> parse(String sourceURL) throws IOException
+    {
+        final Map<String, SolrInputDocument> result = new LinkedHashMap<>();
+        new OmimSourceParser(this.hpo, sourceURL, this.mirror).parse(new OmimSourceParser.DocumentHandler()
+        {
+            @Override
+            public void handle(SolrInputDocument document)
+            {
+                result.put(String.valueOf(document.getFieldValue("id")), document);
+            }
+        });
+        return result;
+    }
+
+    private void defineTerm(String id, String parentId)
+    {
+        VocabularyTerm term = mock(VocabularyTerm.class);
+        doReturn(id).when(term).getId();
+        Set<VocabularyTerm> ancestors = new LinkedHashSet<>();
+        ancestors.add(term);
+        if (parentId != null) {
+            ancestors.addAll(this.hpoTerms.get(parentId).getAncestorsAndSelf());
+        }
+        doReturn(ancestors).when(term).getAncestorsAndSelf();
+        this.hpoTerms.put(id, term);
+    }
+
+    /** Copy a source in the local source directory, as if it was recently downloaded from the given location. */
+    private void mirror(String url, String name) throws IOException
+    {
+        File copy = new File(this.mirror, name);
+        if (!copy.exists()) {
+            try (InputStream in = getClass().getResourceAsStream("/omim/" + name)) {
+                FileUtils.copyInputStreamToFile(in, copy);
+            }
+        }
+        FileUtils.writeStringToFile(new File(this.mirror, name + OmimSourceParser.MIRROR_SOURCE_SUFFIX), url, "UTF-8");
+    }
+
+    private void compress(String resource, File target) throws IOException
+    {
+        try (InputStream in = getClass().getResourceAsStream("/omim/" + resource)) {
+            writeCompressed(target, IOUtils.toString(in, "UTF-8"));
+        }
+    }
+
+    private void writeCompressed(File target, String content) throws IOException
+    {
+        try (OutputStream out = new GZIPOutputStream(new FileOutputStream(target))) {
+            out.write(content.getBytes("UTF-8"));
+        }
+    }
+
+    private Set<Object> set(Object... values)
+    {
+        return new HashSet<>(Arrays.asList(values));
+    }
+
+    private Set<Object> set(Collection<Object> values)
+    {
+        return values == null ? Collections.emptySet() : new HashSet<>(values);
+    }
+}